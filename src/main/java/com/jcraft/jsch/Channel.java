@@ -53,8 +53,24 @@ public abstract class Channel {
   volatile int lwsize = lwsize_max; // local initial window size
   volatile int lmpsize = 0x4000; // local maximum packet size
 
+  // the upper limit of lwsize_max set by max_input_buffer_size
+  private int lwsize_limit = Integer.MAX_VALUE;
+
+  // bytes drained by the consumer, but not yet returned to the local window
+  private int lconsumed = 0;
+  private final Object lwsize_lock = new Object();
+  volatile boolean adjust_queued = false;
+
+  // created once data has to be delivered to a consumer which may block
+  private InboundQueue inbound = null;
+
+  // window auto-tuning: bytes consumed since tune_start
+  private long tune_start = 0;
+  private long tune_bytes = 0;
+
   volatile long rwsize = 0; // remote initial window size
   volatile int rmpsize = 0; // remote maximum packet size
+  volatile long windowStall = 0; // nanoseconds spent waiting for the remote window
 
   IO io = null;
   Thread thread = null;
@@ -75,6 +91,8 @@ public abstract class Channel {
 
   int notifyme = 0;
 
+  private volatile RateLimiter rateLimiter = null;
+
   Channel() {
     // OpenSSH 8.0 introduced a bug that rejected channels with an ID that exceeds INT_MAX.
     // See https://github.com/openssh/openssh-portable/commit/7ec5cb4.
@@ -114,6 +132,33 @@ public abstract class Channel {
     }
   }
 
+  /**
+   * Sets the limiter of the data transferred on this channel, which applies in addition to the
+   * limits of its session. A channel opened with {@link Session#openChannel(String)} gets a limiter
+   * of its own if <code>channel_rate_limit</code> is set to a rate in bytes per second.
+   *
+   * @param rateLimiter the limiter, or <code>null</code> for none
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /** Waits until the limits of this channel and its session allow <code>n</code> more bytes. */
+  void throttle(long n) {
+    RateLimiter _rateLimiter = rateLimiter;
+    if (_rateLimiter != null) {
+      _rateLimiter.acquire(n);
+    }
+    Session _session = session;
+    if (_session != null) {
+      _session.throttle(n);
+    }
+  }
+
   public void setXForwarding(boolean foo) {}
 
   public void start() throws JSchException {}
@@ -161,10 +206,12 @@ public abstract class Channel {
     int max_input_buffer_size = 32 * 1024;
     try {
       max_input_buffer_size = Integer.parseInt(getSession().getConfig("max_input_buffer_size"));
+      limitLocalWindow(Math.max(32 * 1024, max_input_buffer_size));
     } catch (Exception e) {
     }
-    PipedInputStream in = new MyPipedInputStream(32 * 1024, // this value should be customizable.
+    MyPipedInputStream in = new MyPipedInputStream(32 * 1024, // this value should be customizable.
         max_input_buffer_size);
+    in.channel = this;
     boolean resizable = 32 * 1024 < max_input_buffer_size;
     io.setOutputStream(new PassiveOutputStream(in, resizable), false);
     return in;
@@ -180,10 +227,12 @@ public abstract class Channel {
     int max_input_buffer_size = 32 * 1024;
     try {
       max_input_buffer_size = Integer.parseInt(getSession().getConfig("max_input_buffer_size"));
+      limitLocalWindow(Math.max(32 * 1024, max_input_buffer_size));
     } catch (Exception e) {
     }
-    PipedInputStream in = new MyPipedInputStream(32 * 1024, // this value should be customizable.
+    MyPipedInputStream in = new MyPipedInputStream(32 * 1024, // this value should be customizable.
         max_input_buffer_size);
+    in.channel = this;
     boolean resizable = 32 * 1024 < max_input_buffer_size;
     io.setExtOutputStream(new PassiveOutputStream(in, resizable), false);
     return in;
@@ -309,6 +358,10 @@ public abstract class Channel {
     private int BUFFER_SIZE = 1024;
     private int max_buffer_size = BUFFER_SIZE;
 
+    // if set, bytes read from this stream are reported to the channel as consumed
+    Channel channel = null;
+    private boolean counting = true;
+
     MyPipedInputStream() throws IOException {
       super();
     }
@@ -348,7 +401,39 @@ public abstract class Channel {
       in = 0;
       out = 0;
       buffer[in++] = 0;
-      read();
+      boolean _counting = counting;
+      counting = false;
+      try {
+        read();
+      } finally {
+        counting = _counting;
+      }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      int c = super.read();
+      if (c != -1 && counting && channel != null) {
+        channel.consumed(1);
+      }
+      return c;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      // PipedInputStream.read(byte[], int, int) is implemented on top of read()
+      boolean _counting = counting;
+      counting = false;
+      int n;
+      try {
+        n = super.read(b, off, len);
+      } finally {
+        counting = _counting;
+      }
+      if (n > 0 && counting && channel != null) {
+        channel.consumed(n);
+      }
+      return n;
     }
 
     private int freeSpace() {
@@ -373,8 +458,16 @@ public abstract class Channel {
           foo *= 2;
         }
 
-        if (foo > max_buffer_size) {
-          foo = max_buffer_size;
+        // the buffer of a channel must be able to hold its whole window, so that the session's
+        // reader thread never waits for the consumer. The window is no larger than
+        // max_input_buffer_size if it has been configured, see limitLocalWindow.
+        int max = max_buffer_size;
+        Channel _channel = channel;
+        if (_channel != null && max < _channel.lwsize_max) {
+          max = _channel.lwsize_max;
+        }
+        if (foo > max) {
+          foo = max;
         }
         if ((foo - datasize) < len)
           return;
@@ -391,8 +484,11 @@ public abstract class Channel {
             out = tmp.length - (buffer.length - out);
           }
         } else if (in == out) {
-          System.arraycopy(buffer, 0, tmp, 0, buffer.length);
+          // the buffer is full and its data may wrap around
+          System.arraycopy(buffer, out, tmp, 0, buffer.length - out);
+          System.arraycopy(buffer, 0, tmp, buffer.length - out, out);
           in = buffer.length;
+          out = 0;
         }
         buffer = tmp;
       } else if (buffer.length == size && size > BUFFER_SIZE) {
@@ -406,11 +502,217 @@ public abstract class Channel {
   }
 
   void setLocalWindowSizeMax(int foo) {
-    this.lwsize_max = foo;
+    this.lwsize_max = Math.min(foo, lwsize_limit);
+  }
+
+  /**
+   * Keeps the local window of this channel, which the buffer of a stream returned by
+   * {@link #getInputStream()} or {@link #getExtInputStream()} must be able to hold, within
+   * <code>max</code> bytes. The window is only shrunk before the channel is opened, as the remote
+   * side may already use the window it has been given.
+   */
+  void limitLocalWindow(int max) {
+    synchronized (lwsize_lock) {
+      if (isConnected()) {
+        return;
+      }
+      lwsize_limit = Math.min(lwsize_limit, max);
+      if (lwsize_max > lwsize_limit) {
+        lwsize_max = lwsize_limit;
+      }
+      if (lwsize > lwsize_limit) {
+        lwsize = lwsize_limit;
+      }
+    }
   }
 
   void setLocalWindowSize(int foo) {
-    this.lwsize = foo;
+    synchronized (lwsize_lock) {
+      this.lwsize = foo;
+    }
+  }
+
+  /**
+   * Hands SSH_MSG_CHANNEL_DATA or SSH_MSG_CHANNEL_EXTENDED_DATA received from the remote side to
+   * the consumer of this channel without blocking the calling thread.
+   *
+   * <p>
+   * Data for a stream returned by {@link #getInputStream()} or {@link #getExtInputStream()} is put
+   * in its buffer, which grows up to the local window size. Any other consumer gets the data from
+   * an {@link InboundQueue}, on another thread.
+   * </p>
+   */
+  void deliver(byte[] foo, int s, int l, boolean ext) throws IOException {
+    InboundQueue queue = inbound;
+    if (queue == null) {
+      if (isBuffered(ext)) {
+        if (ext) {
+          write_ext(foo, s, l);
+        } else {
+          write(foo, s, l);
+        }
+        received(l, ext);
+        return;
+      }
+      try {
+        queue = inbound = new InboundQueue(this, getSession().getDeliveryExecutor());
+      } catch (JSchException e) {
+        throw new IOException(e.toString(), e);
+      }
+    }
+    synchronized (lwsize_lock) {
+      lwsize -= l;
+    }
+    queue.add(ext ? InboundQueue.EXTENDED_DATA : InboundQueue.DATA, foo, s, l);
+  }
+
+  /** Handles SSH_MSG_CHANNEL_EOF after the data received before it has been delivered. */
+  void receiveEof() {
+    InboundQueue queue = inbound;
+    if (queue != null) {
+      try {
+        queue.add(InboundQueue.EOF, null, 0, 0);
+        return;
+      } catch (IOException e) {
+      }
+    }
+    eof_remote();
+  }
+
+  /** Handles SSH_MSG_CHANNEL_CLOSE after the data received before it has been delivered. */
+  void receiveClose() {
+    InboundQueue queue = inbound;
+    if (queue != null) {
+      try {
+        queue.add(InboundQueue.CLOSE, null, 0, 0);
+        return;
+      } catch (IOException e) {
+      }
+    }
+    disconnect();
+  }
+
+  /** Accounts for data delivered from the {@link InboundQueue}. */
+  void delivered(int len, boolean ext) {
+    if (!isBuffered(ext)) {
+      consumed(len);
+    }
+  }
+
+  private boolean isBuffered(boolean ext) {
+    IO _io = io;
+    OutputStream out = _io == null ? null : (ext ? _io.out_ext : _io.out);
+    return out instanceof PassiveOutputStream && ((PassiveOutputStream) out).isConsumedBy(this);
+  }
+
+  /**
+   * Accounts for <code>len</code> bytes of SSH_MSG_CHANNEL_DATA or SSH_MSG_CHANNEL_EXTENDED_DATA
+   * received from the remote side and already handed to {@link #write(byte[], int, int)} or
+   * {@link #write_ext(byte[], int, int)}. Unless the data has been put in a stream returned by
+   * {@link #getInputStream()} or {@link #getExtInputStream()}, it is consumed right away.
+   */
+  void received(int len, boolean ext) {
+    boolean buffered = isBuffered(ext);
+    synchronized (lwsize_lock) {
+      lwsize -= len;
+      if (!buffered) {
+        lconsumed += len;
+      }
+    }
+    scheduleWindowAdjust(buffered ? 0 : len);
+  }
+
+  /** Accounts for <code>len</code> bytes drained by the consumer of this channel. */
+  void consumed(int len) {
+    synchronized (lwsize_lock) {
+      lconsumed += len;
+    }
+    scheduleWindowAdjust(len);
+  }
+
+  boolean needsWindowAdjust(WindowPolicy policy) {
+    synchronized (lwsize_lock) {
+      return lconsumed > 0 && policy.adjust(lwsize, lwsize_max, lconsumed, lmpsize) > 0;
+    }
+  }
+
+  /**
+   * Returns the number of bytes to be sent in SSH_MSG_CHANNEL_WINDOW_ADJUST, and adds them to the
+   * local window.
+   */
+  int takeWindowAdjust(WindowPolicy policy) {
+    synchronized (lwsize_lock) {
+      if (lconsumed <= 0) {
+        return 0;
+      }
+      int foo = policy.adjust(lwsize, lwsize_max, lconsumed, lmpsize);
+      if (foo <= 0) {
+        return 0;
+      }
+      if (foo > lconsumed) {
+        foo = lconsumed;
+      }
+      lconsumed -= foo;
+      lwsize += foo;
+      return foo;
+    }
+  }
+
+  /**
+   * Takes back <code>len</code> bytes returned by {@link #takeWindowAdjust(WindowPolicy)}, whose
+   * SSH_MSG_CHANNEL_WINDOW_ADJUST could not be sent.
+   */
+  void restoreWindowAdjust(int len) {
+    synchronized (lwsize_lock) {
+      lconsumed += len;
+      lwsize -= len;
+    }
+  }
+
+  /**
+   * Grows the maximum local window size up to <code>max</code>, if the consumer has drained more
+   * than half of the window within one round-trip time, i.e. the window, not the network or the
+   * consumer, limits the throughput. The added space is returned to the remote side with the next
+   * window adjust.
+   *
+   * @param len the number of bytes just consumed
+   * @param now the current value of {@link System#nanoTime()}
+   * @param rtt the round-trip time in nanoseconds
+   * @param max the upper limit of the maximum local window size
+   */
+  void tuneLocalWindow(int len, long now, long rtt, int max) {
+    synchronized (lwsize_lock) {
+      if (tune_start == 0) {
+        tune_start = now;
+        tune_bytes = 0;
+        return;
+      }
+      tune_bytes += len;
+      long elapsed = now - tune_start;
+      if (elapsed < rtt) {
+        return;
+      }
+      // bytes drained in one round-trip
+      long foo = tune_bytes * rtt / elapsed;
+      tune_start = now;
+      tune_bytes = 0;
+      max = Math.min(max, lwsize_limit);
+      if (foo * 2 > lwsize_max && lwsize_max < max) {
+        int bar = (int) Math.min(max, (long) lwsize_max * 2);
+        lconsumed += bar - lwsize_max;
+        lwsize_max = bar;
+      }
+    }
+  }
+
+  private void scheduleWindowAdjust(int consumed) {
+    Session _session = session;
+    if (_session != null) {
+      WindowAdjuster adjuster = _session.windowAdjuster;
+      if (adjuster != null) {
+        adjuster.schedule(this, consumed);
+      }
+    }
   }
 
   void setLocalPacketSize(int foo) {
@@ -626,14 +928,22 @@ public abstract class Channel {
 
   static class PassiveOutputStream extends PipedOutputStream {
     private MyPipedInputStream _sink = null;
+    private MyPipedInputStream consumer = null;
 
     PassiveOutputStream(PipedInputStream in, boolean resizable_buffer) throws IOException {
       super(in);
-      if (resizable_buffer && (in instanceof MyPipedInputStream)) {
-        this._sink = (MyPipedInputStream) in;
+      if (in instanceof MyPipedInputStream) {
+        this.consumer = (MyPipedInputStream) in;
+        if (resizable_buffer || consumer.channel != null) {
+          this._sink = (MyPipedInputStream) in;
+        }
       }
     }
 
+    boolean isConsumedBy(Channel channel) {
+      return consumer != null && consumer.channel == channel;
+    }
+
     @Override
     public void write(int b) throws IOException {
       if (_sink != null) {
@@ -27,17 +27,26 @@
 package com.jcraft.jsch;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ChannelSftp extends ChannelSession {
 
@@ -72,13 +81,13 @@ public class ChannelSftp extends ChannelSession {
   private static final byte SSH_FXP_EXTENDED = (byte) 200;
   private static final byte SSH_FXP_EXTENDED_REPLY = (byte) 201;
 
-  // pflags
-  private static final int SSH_FXF_READ = 0x00000001;
-  private static final int SSH_FXF_WRITE = 0x00000002;
-  private static final int SSH_FXF_APPEND = 0x00000004;
-  private static final int SSH_FXF_CREAT = 0x00000008;
-  private static final int SSH_FXF_TRUNC = 0x00000010;
-  private static final int SSH_FXF_EXCL = 0x00000020;
+  // pflags, as used by openAsync(String, int)
+  public static final int SSH_FXF_READ = 0x00000001;
+  public static final int SSH_FXF_WRITE = 0x00000002;
+  public static final int SSH_FXF_APPEND = 0x00000004;
+  public static final int SSH_FXF_CREAT = 0x00000008;
+  public static final int SSH_FXF_TRUNC = 0x00000010;
+  public static final int SSH_FXF_EXCL = 0x00000020;
 
   private static final int SSH_FILEXFER_ATTR_SIZE = 0x00000001;
   private static final int SSH_FILEXFER_ATTR_UIDGID = 0x00000002;
@@ -119,29 +128,44 @@ public class ChannelSftp extends ChannelSession {
   public static final int OVERWRITE = 0;
   public static final int RESUME = 1;
   public static final int APPEND = 2;
+  /**
+   * Transfers only the blocks which differ between the source and the destination file, as found by
+   * comparing their hashes, and truncates the destination to the size of the source. The remote
+   * file is hashed by the server with the "check-file-handle" extension, so without it the whole
+   * file is transferred. With a stream instead of a local file, this is the same as
+   * {@link #OVERWRITE}.
+   */
+  public static final int SYNC = 3;
 
   private boolean interactive = false;
   private int seq = 1;
-  private int[] ackid = new int[1];
 
   private Buffer buf;
   private Packet packet;
 
-  // The followings will be used in file uploading.
-  private Buffer obuf;
-  private Packet opacket;
-
   private int client_version = 3;
-  private int server_version = 3;
+  int server_version = 3;
   private String version = String.valueOf(client_version);
 
   private Hashtable<String, String> extensions = null;
-  private InputStream io_in = null;
+  // the extension names listed by the "supported2" extension
+  private List<String> supported_extensions = new ArrayList<>();
+  private volatile InputStream io_in = null;
+
+  // reads every response and dispatches it by request id
+  private SftpDispatcher dispatcher = null;
+  private final Object dispatcherLock = new Object();
+  private final Object sendLock = new Object();
 
   private boolean extension_posix_rename = false;
   private boolean extension_statvfs = false;
   // private boolean extension_fstatvfs = false;
   private boolean extension_hardlink = false;
+  private boolean extension_copy_data = false;
+  private boolean extension_copy_file = false;
+  private boolean extension_check_file_handle = false;
+  private boolean extension_check_file_name = false;
+  private SftpLimits limits = SftpLimits.NONE;
 
   /*
    * 10. Changes from previous protocol versions The SSH File Transfer Protocol has changed over
@@ -157,27 +181,42 @@ public class ChannelSftp extends ChannelSession {
   private static final char file_separatorc = File.separatorChar;
   private static boolean fs_is_bs = (byte) File.separatorChar == '\\';
 
-  private String cwd;
+  private volatile String cwd;
   private String home;
   private String lcwd;
 
-  private Charset fEncoding = StandardCharsets.UTF_8;
+  private volatile Charset fEncoding = StandardCharsets.UTF_8;
   private boolean fEncoding_is_utf8 = true;
 
   private boolean useWriteFlushWorkaround = true;
 
-  private RequestQueue rq = new RequestQueue(16);
+  private int bulk_requests = 16;
+  private boolean bulk_requests_fixed = false;
+  private int max_requests = 64;
+  private int max_request_size = 261120;
+  private int sync_block_size = 1024 * 1024;
+  private SftpPipelineMonitor pipelineMonitor = null;
+  volatile SftpTransferStats transferStats = null;
+  private volatile SftpCache cache = null;
 
   /**
    * Specify how many requests may be sent at any one time. Increasing this value may slightly
-   * improve file transfer speed but will increase memory usage. The default is 16 requests.
+   * improve file transfer speed but will increase memory usage.
+   *
+   * <p>
+   * By default, transfers start with 16 requests and adapt the number and the size of the requests
+   * to the measured round trip time and throughput, up to <code>sftp_max_requests</code> requests
+   * of <code>sftp_max_request_size</code> bytes. Once this method has been called, the given number
+   * of requests is used as is.
+   * </p>
    *
    * @param bulk_requests how many requests may be outstanding at any one time.
    */
   public void setBulkRequests(int bulk_requests) throws JSchException {
-    if (bulk_requests > 0)
-      rq = new RequestQueue(bulk_requests);
-    else
+    if (bulk_requests > 0) {
+      this.bulk_requests = bulk_requests;
+      this.bulk_requests_fixed = true;
+    } else
       throw new JSchException("setBulkRequests: " + bulk_requests + " must be greater than 0.");
   }
 
@@ -187,13 +226,81 @@ public class ChannelSftp extends ChannelSession {
    * @return how many requests may be sent at any one time.
    */
   public int getBulkRequests() {
-    return rq.size();
+    return bulk_requests;
+  }
+
+  /**
+   * Sets the monitor which is told how the number and the size of the requests of the following
+   * transfers are adapted.
+   *
+   * @param monitor the monitor, or <code>null</code>
+   */
+  public void setPipelineMonitor(SftpPipelineMonitor monitor) {
+    this.pipelineMonitor = monitor;
+  }
+
+  /**
+   * Caches the attributes, canonical paths and directory listings read by this channel, so that
+   * repeated checks of the same paths, like the check that the destination of each upload is not a
+   * directory, do not cost a round trip each time. A path which does not exist is cached as well.
+   *
+   * <p>
+   * The entries of a path are dropped when it is changed by a method of this channel, like
+   * {@link #put(String, String)}, {@link #rm(String)}, {@link #rename(String, String)},
+   * {@link #mkdir(String)} or {@link #setStat(String, SftpATTRS)}, but changes by other clients are
+   * only seen once the entries have expired. The cache is disabled by default, unless
+   * <code>sftp_cache_ttl</code> is set; <code>sftp_cache_size</code> sets its default size.
+   * </p>
+   *
+   * @param ttl how long an entry is kept in milliseconds, or <code>0</code> to disable the cache
+   * @param size the maximum number of entries, of which the least recently used are dropped first
+   */
+  public void setCache(long ttl, int size) {
+    if (ttl < 0 || size <= 0) {
+      throw new IllegalArgumentException("setCache: " + ttl + ", " + size);
+    }
+    this.cache = ttl == 0 ? null : new SftpCache(ttl, size);
+  }
+
+  /** Drops all entries of the cache enabled by {@link #setCache(long, int)}. */
+  public void clearCache() {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.clear();
+    }
+  }
+
+  private void invalidate(byte[] path) {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.invalidate(Util.byte2str(path, fEncoding));
+    }
   }
 
+  private void invalidateTree(byte[] path) {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.invalidateTree(Util.byte2str(path, fEncoding));
+    }
+  }
+
+  /**
+   * @deprecated This setting no longer has any effect. Uploads used to wait for outstanding
+   *             acknowledgements when the remote window ran short, so that a server which stops
+   *             adjusting the window until its replies are read could not stall them. Replies are
+   *             now read by the channel as soon as they arrive, which makes the workaround
+   *             unnecessary.
+   */
+  @Deprecated
   public void setUseWriteFlushWorkaround(boolean useWriteFlushWorkaround) {
     this.useWriteFlushWorkaround = useWriteFlushWorkaround;
   }
 
+  /**
+   * @deprecated This setting no longer has any effect, see
+   *             {@link #setUseWriteFlushWorkaround(boolean)}.
+   */
+  @Deprecated
   public boolean getUseWriteFlushWorkaround() {
     return useWriteFlushWorkaround;
   }
@@ -212,9 +319,9 @@ public class ChannelSftp extends ChannelSession {
   public void start() throws JSchException {
     try {
 
-      PipedOutputStream pos = new PipedOutputStream();
-      io.setOutputStream(pos);
-      PipedInputStream pis = new MyPipedInputStream(pos, rq.size() * rmpsize);
+      MyPipedInputStream pis = new MyPipedInputStream(bulk_requests * rmpsize);
+      pis.channel = this;
+      io.setOutputStream(new PassiveOutputStream(pis, false));
       io.setInputStream(pis);
 
       io_in = io.in;
@@ -234,9 +341,6 @@ public class ChannelSftp extends ChannelSession {
       buf = new Buffer(lmpsize);
       packet = new Packet(buf);
 
-      obuf = new Buffer(rmpsize);
-      opacket = new Packet(obuf);
-
       int i = 0;
       int length;
       int type;
@@ -267,6 +371,9 @@ public class ChannelSftp extends ChannelSession {
           extension_data = buf.getString();
           length -= (4 + extension_data.length);
           extensions.put(Util.byte2str(extension_name), Util.byte2str(extension_data));
+          if (Util.byte2str(extension_name).equals("supported2")) {
+            supported_extensions = supported2(extension_data);
+          }
         }
       }
 
@@ -290,6 +397,26 @@ public class ChannelSftp extends ChannelSession {
         extension_hardlink = true;
       }
 
+      extension_copy_data = isSupported("copy-data", "1");
+      extension_copy_file = isSupported("copy-file", null);
+      extension_check_file_handle = isSupported("check-file-handle", null);
+      extension_check_file_name = isSupported("check-file-name", null);
+
+      if (extensions.get("limits@openssh.com") != null
+          && extensions.get("limits@openssh.com").equals("1")) {
+        limits = _limits();
+      }
+
+      max_requests = parseConfig("sftp_max_requests", max_requests);
+      max_request_size = maxRequestSize(parseConfig("sftp_max_request_size", max_request_size));
+      sync_block_size = parseConfig("sftp_sync_block_size", sync_block_size);
+      int cache_ttl = parseConfig("sftp_cache_ttl", 0);
+      if (cache_ttl > 0 && cache == null) {
+        setCache(cache_ttl, parseConfig("sftp_cache_size", 1024));
+      }
+
+      startDispatcher();
+
       lcwd = new File(".").getCanonicalPath();
     } catch (Exception e) {
       // System.err.println(e);
@@ -299,6 +426,38 @@ public class ChannelSftp extends ChannelSession {
     }
   }
 
+  /**
+   * Returns whether the server announces the extension <code>name</code>, either by itself with the
+   * data <code>version</code>, or any data if <code>version</code> is <code>null</code>, or in the
+   * extension names of "supported2".
+   */
+  private boolean isSupported(String name, String version) {
+    String data = extensions.get(name);
+    if (data != null && (version == null || data.equals(version))) {
+      return true;
+    }
+    return supported_extensions.contains(name);
+  }
+
+  /** Returns the extension names of the data of a "supported2" extension. */
+  static List<String> supported2(byte[] data) {
+    List<String> names = new ArrayList<>();
+    try {
+      Buffer buf = new Buffer(data);
+      // attribute mask and bits, open flags, access mask, max read size, open and block vectors
+      buf.setOffSet(4 * 5 + 2 * 2);
+      for (int i = buf.getInt(); i > 0; i--) {
+        buf.getString(); // attribute extension name
+      }
+      for (int i = buf.getInt(); i > 0; i--) {
+        names.add(Util.byte2str(buf.getString()));
+      }
+    } catch (RuntimeException e) {
+      // a malformed list is ignored from where it breaks off
+    }
+    return names;
+  }
+
   public void quit() {
     disconnect();
   }
@@ -322,7 +481,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void cd(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
       path = isUnique(path);
@@ -359,7 +518,7 @@ public class ChannelSftp extends ChannelSession {
 
   /**
    * Sends data from <code>src</code> file to <code>dst</code> file. The <code>mode</code> should be
-   * <code>OVERWRITE</code>, <code>RESUME</code> or <code>APPEND</code>.
+   * <code>OVERWRITE</code>, <code>RESUME</code>, <code>APPEND</code> or <code>SYNC</code>.
    *
    * @param src source file
    * @param dst destination file
@@ -370,7 +529,7 @@ public class ChannelSftp extends ChannelSession {
       throws SftpException {
 
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       src = localAbsolutePath(src);
       dst = remoteAbsolutePath(dst);
@@ -446,14 +605,19 @@ public class ChannelSftp extends ChannelSession {
         if (monitor != null) {
           monitor.init(SftpProgressMonitor.PUT, _src, _dst, (new File(_src)).length());
           if (mode == RESUME) {
-            monitor.count(size_of_dst);
+            SftpTransferStats.skip(monitor, size_of_dst);
           }
         }
-        try (InputStream fis = new FileInputStream(_src)) {
-          _put(fis, _dst, monitor, mode);
+        if (mode == SYNC) {
+          _putSync(_src, _dst, monitor);
+          continue;
+        }
+        try (FileChannel fc = FileChannel.open(new File(_src).toPath(), StandardOpenOption.READ)) {
+          _put(null, fc, _dst, monitor, mode);
         }
       }
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException)
         throw (SftpException) e;
       throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
@@ -484,7 +648,7 @@ public class ChannelSftp extends ChannelSession {
   public void put(InputStream src, String dst, SftpProgressMonitor monitor, int mode)
       throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       dst = remoteAbsolutePath(dst);
 
@@ -508,6 +672,7 @@ public class ChannelSftp extends ChannelSession {
 
       _put(src, dst, monitor, mode);
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException) {
         if (((SftpException) e).id == SSH_FX_FAILURE && isRemoteDir(dst)) {
           throw new SftpException(SSH_FX_FAILURE, dst + " is a directory");
@@ -520,8 +685,20 @@ public class ChannelSftp extends ChannelSession {
 
   public void _put(InputStream src, String dst, SftpProgressMonitor monitor, int mode)
       throws SftpException {
+    _put(src, null, dst, monitor, mode);
+  }
+
+  /**
+   * Uploads either the stream <code>src</code> or the local file <code>fc</code>, which is read
+   * straight into the packets.
+   */
+  private void _put(InputStream src, FileChannel fc, String dst, SftpProgressMonitor monitor,
+      int mode) throws SftpException {
+    if (mode == SYNC) {
+      mode = OVERWRITE;
+    }
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       byte[] dstb = Util.str2byte(dst, fEncoding);
       long skip = 0;
@@ -533,135 +710,71 @@ public class ChannelSftp extends ChannelSession {
           // System.err.println(eee);
         }
       }
-      if (mode == RESUME && skip > 0) {
+      if (mode == RESUME && skip > 0 && fc != null) {
+        if (fc.size() < skip) {
+          throw new SftpException(SSH_FX_FAILURE, "failed to resume for " + dst);
+        }
+      } else if (mode == RESUME && skip > 0) {
         long skipped = src.skip(skip);
         if (skipped < skip) {
           throw new SftpException(SSH_FX_FAILURE, "failed to resume for " + dst);
         }
       }
 
+      int pflags = SSH_FXF_WRITE | SSH_FXF_CREAT;
       if (mode == OVERWRITE) {
-        sendOPENW(dstb);
-      } else {
-        sendOPENA(dstb);
-      }
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
-        throw new SftpException(SSH_FX_FAILURE, "invalid type=" + type);
-      }
-      if (type == SSH_FXP_STATUS) {
-        int i = buf.getInt();
-        throwStatusError(buf, i);
-      }
-      byte[] handle = buf.getString(); // handle
-      byte[] data = null;
-
-      boolean dontcopy = true;
-
-      int buffer_margin = session.getBufferMargin();
-      if (!dontcopy) { // This case will not work anymore.
-        data = new byte[obuf.buffer.length - (5 + 13 + 21 + handle.length + buffer_margin)];
-      }
-
-      long offset = 0;
-      if (mode == RESUME || mode == APPEND) {
-        offset += skip;
-      }
-
-      int startid = seq;
-      int ackcount = 0;
-      int _s = 0;
-      int _datalen = 0;
-
-      if (!dontcopy) { // This case will not work anymore.
-        _datalen = data.length;
-      } else {
-        data = obuf.buffer;
-        _s = 5 + 13 + 21 + handle.length;
-        _datalen = obuf.buffer.length - _s - buffer_margin;
-      }
-
-      int bulk_requests = rq.size();
-
-      while (true) {
-        int nread = 0;
-        int count = 0;
-        int s = _s;
-        int datalen = _datalen;
-
-        do {
-          nread = src.read(data, s, datalen);
-          if (nread > 0) {
-            s += nread;
-            datalen -= nread;
-            count += nread;
-          }
-        } while (datalen > 0 && nread > 0);
-        if (count <= 0)
-          break;
-
-        int foo = count;
-        while (foo > 0) {
-          if ((seq - 1) == startid || ((seq - startid) - ackcount) >= bulk_requests) {
-            while (((seq - startid) - ackcount) >= bulk_requests) {
-              if (checkStatus(ackid, header)) {
-                int _ackid = ackid[0];
-                if (startid > _ackid || _ackid > seq - 1) {
-                  if (_ackid == seq) {
-                    if (getSession().getLogger().isEnabled(Logger.ERROR)) {
-                      getSession().getLogger().log(Logger.ERROR,
-                          "ack error: startid=" + startid + " seq=" + seq + " _ackid=" + _ackid);
-                    }
-                  } else {
-                    throw new SftpException(SSH_FX_FAILURE,
-                        "ack error: startid=" + startid + " seq=" + seq + " _ackid=" + _ackid);
-                  }
-                }
-                ackcount++;
-              } else {
-                break;
-              }
-            }
-          }
-          if (dontcopy) {
-            foo -= sendWRITE(handle, offset, data, 0, foo);
-            if (data != obuf.buffer) {
-              data = obuf.buffer;
-              _datalen = obuf.buffer.length - _s - buffer_margin;
-            }
-          } else {
-            foo -= sendWRITE(handle, offset, data, _s, foo);
-          }
-        }
-        offset += count;
-        if (monitor != null && !monitor.count(count)) {
-          break;
-        }
+        pflags |= SSH_FXF_TRUNC;
       }
-      int _ackcount = seq - startid;
-      while (_ackcount > ackcount) {
-        if (!checkStatus(null, header)) {
-          break;
+      invalidate(dstb);
+      SftpHandle handle = SftpDispatcher.await(dispatcher().open(dstb, dst, pflags));
+      try {
+        long offset = (mode == RESUME || mode == APPEND) ? skip : 0;
+        if (fc != null) {
+          long position = mode == RESUME ? skip : 0;
+          upload(handle, offset, monitor).transferFrom(fc, position, fc.size());
+        } else {
+          upload(handle, offset, monitor).transferFrom(src);
         }
-        ackcount++;
+        if (monitor != null)
+          monitor.end();
+      } catch (Exception e) {
+        _closeQuietly(handle);
+        invalidate(dstb);
+        throw e;
       }
-      if (monitor != null)
-        monitor.end();
-      _sendCLOSE(handle, header);
+      SftpDispatcher.await(dispatcher().close(handle));
+      invalidate(dstb);
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException)
         throw (SftpException) e;
       throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
     }
   }
 
+  private void _putSync(String src, String dst, SftpProgressMonitor monitor) throws Exception {
+    byte[] dstb = Util.str2byte(dst, fEncoding);
+    try (FileChannel fc = FileChannel.open(new File(src).toPath(), StandardOpenOption.READ)) {
+      SftpSync.put(this, fc, dst, sync_block_size, monitor);
+    } finally {
+      invalidate(dstb);
+    }
+    if (monitor != null)
+      monitor.end();
+  }
+
+  /** Stops the sampling of the statistics of a failed transfer, whose monitor is not ended. */
+  private static void transferFailed(SftpProgressMonitor monitor) {
+    if (monitor instanceof SftpTransferStats) {
+      ((SftpTransferStats) monitor).failed();
+    }
+  }
+
+  private SftpUpload upload(SftpHandle handle, long offset, SftpProgressMonitor monitor)
+      throws SftpException {
+    return new SftpUpload(dispatcher(), handle, offset, writeFlowControl(handle), monitor);
+  }
+
   public OutputStream put(String dst) throws SftpException {
     return put(dst, (SftpProgressMonitor) null, OVERWRITE);
   }
@@ -688,7 +801,7 @@ public class ChannelSftp extends ChannelSession {
   public OutputStream put(String dst, final SftpProgressMonitor monitor, final int mode,
       long offset) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       dst = remoteAbsolutePath(dst);
       dst = isUnique(dst);
@@ -713,146 +826,19 @@ public class ChannelSftp extends ChannelSession {
         monitor.init(SftpProgressMonitor.PUT, "-", dst, SftpProgressMonitor.UNKNOWN_SIZE);
       }
 
-      if (mode == OVERWRITE) {
-        sendOPENW(dstb);
-      } else {
-        sendOPENA(dstb);
-      }
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
-        throw new SftpException(SSH_FX_FAILURE, "");
-      }
-      if (type == SSH_FXP_STATUS) {
-        int i = buf.getInt();
-        throwStatusError(buf, i);
+      int pflags = SSH_FXF_WRITE | SSH_FXF_CREAT;
+      if (mode == OVERWRITE || mode == SYNC) {
+        pflags |= SSH_FXF_TRUNC;
       }
-      final byte[] handle = buf.getString(); // handle
+      invalidate(dstb);
+      SftpHandle handle = SftpDispatcher.await(dispatcher().open(dstb, dst, pflags));
 
       if (mode == RESUME || mode == APPEND) {
         offset += skip;
       }
-
-      final long[] _offset = new long[1];
-      _offset[0] = offset;
-      OutputStream out = new OutputStream() {
-        private boolean init = true;
-        private boolean isClosed = false;
-        private int[] ackid = new int[1];
-        private int startid = 0;
-        private int _ackid = 0;
-        private int ackcount = 0;
-        private int writecount = 0;
-        private Header header = new Header();
-
-        @Override
-        public void write(byte[] d) throws IOException {
-          write(d, 0, d.length);
-        }
-
-        @Override
-        public void write(byte[] d, int s, int len) throws IOException {
-          if (init) {
-            startid = seq;
-            _ackid = seq;
-            init = false;
-          }
-
-          if (isClosed) {
-            throw new IOException("stream already closed");
-          }
-
-          try {
-            int _len = len;
-            while (_len > 0) {
-              if (useWriteFlushWorkaround && rwsize < 21 + handle.length + _len + 4) {
-                flush();
-              }
-              int sent = sendWRITE(handle, _offset[0], d, s, _len);
-              writecount++;
-              _offset[0] += sent;
-              s += sent;
-              _len -= sent;
-              if ((seq - 1) == startid || io_in.available() >= 1024) {
-                while (io_in.available() > 0) {
-                  if (checkStatus(ackid, header)) {
-                    _ackid = ackid[0];
-                    if (startid > _ackid || _ackid > seq - 1) {
-                      throw new SftpException(SSH_FX_FAILURE, "");
-                    }
-                    ackcount++;
-                  } else {
-                    break;
-                  }
-                }
-              }
-            }
-            if (monitor != null && !monitor.count(len)) {
-              close();
-              throw new IOException("canceled");
-            }
-          } catch (IOException e) {
-            throw e;
-          } catch (Exception e) {
-            throw new IOException(e.toString(), e);
-          }
-        }
-
-        byte[] _data = new byte[1];
-
-        @Override
-        public void write(int foo) throws IOException {
-          _data[0] = (byte) foo;
-          write(_data, 0, 1);
-        }
-
-        @Override
-        public void flush() throws IOException {
-
-          if (isClosed) {
-            throw new IOException("stream already closed");
-          }
-
-          if (!init) {
-            try {
-              while (writecount > ackcount) {
-                if (!checkStatus(null, header)) {
-                  break;
-                }
-                ackcount++;
-              }
-            } catch (SftpException e) {
-              throw new IOException(e.toString(), e);
-            }
-          }
-        }
-
-        @Override
-        public void close() throws IOException {
-          if (isClosed) {
-            return;
-          }
-          flush();
-          if (monitor != null)
-            monitor.end();
-          try {
-            _sendCLOSE(handle, header);
-          } catch (IOException e) {
-            throw e;
-          } catch (Exception e) {
-            throw new IOException(e.toString(), e);
-          }
-          isClosed = true;
-        }
-      };
-      return out;
+      return new SftpOutputStream(this, handle, offset, monitor, () -> invalidate(dstb));
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException)
         throw (SftpException) e;
       throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
@@ -874,7 +860,7 @@ public class ChannelSftp extends ChannelSession {
     boolean _dstExist = false;
     String _dst = null;
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       src = remoteAbsolutePath(src);
       dst = localAbsolutePath(dst);
@@ -941,18 +927,32 @@ public class ChannelSftp extends ChannelSession {
         if (monitor != null) {
           monitor.init(SftpProgressMonitor.GET, _src, _dst, attr.getSize());
           if (mode == RESUME) {
-            monitor.count(_dstFile.length());
+            SftpTransferStats.skip(monitor, _dstFile.length());
           }
         }
 
         _dstExist = _dstFile.exists();
-        try (OutputStream fos = mode == OVERWRITE ? new FileOutputStream(_dst)
-            : new FileOutputStream(_dst, true) /* append */) {
+        if (mode == SYNC) {
+          try (FileChannel fc = FileChannel.open(_dstFile.toPath(), StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE, StandardOpenOption.READ)) {
+            SftpSync.get(this, _src, fc, sync_block_size, monitor);
+          }
+          if (monitor != null)
+            monitor.end();
+          continue;
+        }
+
+        try (FileChannel fc = mode == OVERWRITE
+            ? FileChannel.open(_dstFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+            : FileChannel.open(_dstFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
           // System.err.println("_get: "+_src+", "+_dst);
-          _get(_src, fos, monitor, mode, new File(_dst).length());
+          _get(_src, fc, monitor, mode, fc.size());
         }
       }
     } catch (Exception e) {
+      transferFailed(monitor);
       if (!_dstExist && _dst != null) {
         File _dstFile = new File(_dst);
         if (_dstFile.exists() && _dstFile.length() == 0) {
@@ -977,7 +977,7 @@ public class ChannelSftp extends ChannelSession {
       throws SftpException {
     // System.err.println("get: "+src+", "+dst);
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       src = remoteAbsolutePath(src);
       src = isUnique(src);
@@ -986,11 +986,12 @@ public class ChannelSftp extends ChannelSession {
         SftpATTRS attr = _stat(src);
         monitor.init(SftpProgressMonitor.GET, src, "??", attr.getSize());
         if (mode == RESUME) {
-          monitor.count(skip);
+          SftpTransferStats.skip(monitor, skip);
         }
       }
       _get(src, dst, monitor, mode, skip);
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException)
         throw (SftpException) e;
       throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
@@ -1000,258 +1001,117 @@ public class ChannelSftp extends ChannelSession {
   private void _get(String src, OutputStream dst, SftpProgressMonitor monitor, int mode, long skip)
       throws SftpException {
     // System.err.println("_get: "+src+", "+dst);
-
-    byte[] srcb = Util.str2byte(src, fEncoding);
     try {
-      sendOPENR(srcb);
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
-        throw new SftpException(SSH_FX_FAILURE, "");
-      }
-
-      if (type == SSH_FXP_STATUS) {
-        int i = buf.getInt();
-        throwStatusError(buf, i);
+      SftpHandle handle = _openR(src);
+      try {
+        download(handle, mode == RESUME ? skip : 0, monitor).transferTo(dst);
+        dst.flush();
+        if (monitor != null)
+          monitor.end();
+      } catch (Exception e) {
+        _closeQuietly(handle);
+        throw e;
       }
+      SftpDispatcher.await(dispatcher().close(handle));
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
 
-      byte[] handle = buf.getString(); // filename
-
-      long offset = 0;
-      if (mode == RESUME) {
-        offset += skip;
+  /**
+   * Downloads <code>src</code> into a local file, writing every chunk at its position as soon as it
+   * has arrived. If the download fails or is cancelled, the file is cut back to the data received
+   * without a gap, so that it can be resumed from its size.
+   *
+   * @param skip the size of the local file; with {@link #RESUME}, the download starts at this
+   *        offset of <code>src</code>, with {@link #APPEND}, the data is written after it
+   */
+  private void _get(String src, FileChannel dst, SftpProgressMonitor monitor, int mode, long skip)
+      throws SftpException {
+    try {
+      SftpHandle handle = _openR(src);
+      try {
+        long offset = mode == RESUME ? skip : 0;
+        download(handle, offset, monitor).transferTo(dst, mode == APPEND ? skip : 0, true);
+        if (monitor != null)
+          monitor.end();
+      } catch (Exception e) {
+        _closeQuietly(handle);
+        throw e;
       }
+      SftpDispatcher.await(dispatcher().close(handle));
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
 
-      int request_max = 1;
-      rq.init();
-      long request_offset = offset;
-
-      int request_len = buf.buffer.length - 13;
-      if (server_version == 0) {
-        request_len = 1024;
-      }
+  private SftpHandle _openR(String src) throws SftpException {
+    byte[] srcb = Util.str2byte(src, fEncoding);
+    return SftpDispatcher.await(dispatcher().open(srcb, src, SSH_FXF_READ));
+  }
 
-      loop: while (true) {
+  private void _closeQuietly(SftpHandle handle) {
+    try {
+      dispatcher().close(handle);
+    } catch (SftpException e) {
+    }
+  }
 
-        while (rq.count() < request_max) {
-          sendREAD(handle, request_offset, request_len, rq);
-          request_offset += request_len;
-        }
+  private SftpDownload download(SftpHandle handle, long offset, SftpProgressMonitor monitor)
+      throws SftpException {
+    return new SftpDownload(dispatcher(), handle, offset, readFlowControl(), monitor);
+  }
 
-        header = header(buf, header);
-        length = header.length;
-        type = header.type;
+  /** Returns a new flow control for reads of this channel. */
+  SftpFlowControl readFlowControl() {
+    int request_len = buf.buffer.length - 13;
+    int max_len = limits.readLength(Math.max(request_len, max_request_size));
+    request_len = Math.min(request_len, max_len);
+    if (server_version == 0) {
+      request_len = max_len = 1024;
+    }
+    return flowControl(request_len, max_len);
+  }
 
-        RequestQueue.Request rr = null;
-        try {
-          rr = rq.get(header.rid);
-        } catch (RequestQueue.OutOfOrderException e) {
-          request_offset = e.offset;
-          skip(header.length);
-          rq.cancel(header, buf);
-          continue;
-        }
+  /** Returns a new flow control for writes to <code>handle</code>. */
+  SftpFlowControl writeFlowControl(SftpHandle handle) throws SftpException {
+    int request_len = dispatcher().maxWriteLength(handle);
+    return flowControl(request_len, request_len);
+  }
 
-        if (type == SSH_FXP_STATUS) {
-          fill(buf, length);
-          int i = buf.getInt();
-          if (i == SSH_FX_EOF) {
-            break loop;
-          }
-          throwStatusError(buf, i);
-        }
+  private SftpFlowControl flowControl(int request_len, int max_len) {
+    return new SftpFlowControl(bulk_requests, Math.max(bulk_requests, max_requests), request_len,
+        max_len, !bulk_requests_fixed, pipelineMonitor);
+  }
 
-        if (type != SSH_FXP_DATA) {
-          break loop;
-        }
+  /**
+   * Limits the configured size of the read requests, so that the SSH_FXP_DATA replies of a server
+   * which returns as much as has been requested are not rejected as too long.
+   */
+  static int maxRequestSize(int size) {
+    return Math.min(size, SftpDispatcher.MAX_DATA_LENGTH);
+  }
 
-        buf.rewind();
-        fill(buf.buffer, 0, 4);
-        length -= 4;
-        int length_of_data = buf.getInt(); // length of data
-
-        /*
-         * Since sftp protocol version 6, "end-of-file" has been defined, byte SSH_FXP_DATA uint32
-         * request-id string data bool end-of-file [optional] but some sftpd server will send such a
-         * field in the sftp protocol 3 ;-(
-         */
-        int optional_data = length - length_of_data;
-
-        int foo = length_of_data;
-        while (foo > 0) {
-          int bar = foo;
-          if (bar > buf.buffer.length) {
-            bar = buf.buffer.length;
-          }
-          int data_len = io_in.read(buf.buffer, 0, bar);
-          if (data_len < 0) {
-            break loop;
-          }
+  private int parseConfig(String key, int def) {
+    try {
+      int value = Integer.parseInt(getSession().getConfig(key));
+      return value > 0 ? value : def;
+    } catch (Exception e) {
+      return def;
+    }
+  }
 
-          dst.write(buf.buffer, 0, data_len);
+  public InputStream get(String src) throws SftpException {
+    return get(src, null, 0L);
+  }
 
-          offset += data_len;
-          foo -= data_len;
-
-          if (monitor != null) {
-            if (!monitor.count(data_len)) {
-              skip(foo);
-              if (optional_data > 0) {
-                skip(optional_data);
-              }
-              break loop;
-            }
-          }
-        }
-        // System.err.println("length: "+length); // length should be 0
-
-        if (optional_data > 0) {
-          skip(optional_data);
-        }
-
-        if (length_of_data < rr.length) { //
-          rq.cancel(header, buf);
-          sendREAD(handle, rr.offset + length_of_data, (int) (rr.length - length_of_data), rq);
-          request_offset = rr.offset + rr.length;
-        }
-
-        if (request_max < rq.size()) {
-          request_max++;
-        }
-      }
-      dst.flush();
-
-      if (monitor != null)
-        monitor.end();
-
-      rq.cancel(header, buf);
-
-      _sendCLOSE(handle, header);
-    } catch (Exception e) {
-      if (e instanceof SftpException)
-        throw (SftpException) e;
-      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
-    }
-  }
-
-  private class RequestQueue {
-    class OutOfOrderException extends Exception {
-      private static final long serialVersionUID = -1L;
-      long offset;
-
-      OutOfOrderException(long offset) {
-        this.offset = offset;
-      }
-    }
-
-    class Request {
-      int id;
-      long offset;
-      long length;
-    }
-
-    Request[] rrq = null;
-    int head, count;
-
-    RequestQueue(int size) {
-      rrq = new Request[size];
-      for (int i = 0; i < rrq.length; i++) {
-        rrq[i] = new Request();
-      }
-      init();
-    }
-
-    void init() {
-      head = count = 0;
-    }
-
-    void add(int id, long offset, int length) {
-      if (count == 0)
-        head = 0;
-      int tail = head + count;
-      if (tail >= rrq.length)
-        tail -= rrq.length;
-      rrq[tail].id = id;
-      rrq[tail].offset = offset;
-      rrq[tail].length = length;
-      count++;
-    }
-
-    Request get(int id) throws OutOfOrderException, SftpException {
-      count -= 1;
-      int i = head;
-      head++;
-      if (head == rrq.length)
-        head = 0;
-      if (rrq[i].id != id) {
-        long offset = getOffset();
-        boolean find = false;
-        for (int j = 0; j < rrq.length; j++) {
-          if (rrq[j].id == id) {
-            find = true;
-            rrq[j].id = 0;
-            break;
-          }
-        }
-        if (find)
-          throw new OutOfOrderException(offset);
-        throw new SftpException(SSH_FX_FAILURE, "RequestQueue: unknown request id " + id);
-      }
-      rrq[i].id = 0;
-      return rrq[i];
-    }
-
-    int count() {
-      return count;
-    }
-
-    int size() {
-      return rrq.length;
-    }
-
-    void cancel(Header header, Buffer buf) throws IOException {
-      int _count = count;
-      for (int i = 0; i < _count; i++) {
-        header = header(buf, header);
-        int length = header.length;
-        for (int j = 0; j < rrq.length; j++) {
-          if (rrq[j].id == header.rid) {
-            rrq[j].id = 0;
-            break;
-          }
-        }
-        skip(length);
-      }
-      init();
-    }
-
-    long getOffset() {
-      long result = Long.MAX_VALUE;
-
-      for (int i = 0; i < rrq.length; i++) {
-        if (rrq[i].id == 0)
-          continue;
-        if (result > rrq[i].offset)
-          result = rrq[i].offset;
-      }
-
-      return result;
-    }
-  }
-
-  public InputStream get(String src) throws SftpException {
-    return get(src, null, 0L);
-  }
-
-  public InputStream get(String src, SftpProgressMonitor monitor) throws SftpException {
-    return get(src, monitor, 0L);
-  }
+  public InputStream get(String src, SftpProgressMonitor monitor) throws SftpException {
+    return get(src, monitor, 0L);
+  }
 
   /**
    * @deprecated This method will be deleted in the future.
@@ -1274,7 +1134,7 @@ public class ChannelSftp extends ChannelSession {
       throws SftpException {
 
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       src = remoteAbsolutePath(src);
       src = isUnique(src);
@@ -1286,36 +1146,12 @@ public class ChannelSftp extends ChannelSession {
         monitor.init(SftpProgressMonitor.GET, src, "??", attr.getSize());
       }
 
-      sendOPENR(srcb);
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
-        throw new SftpException(SSH_FX_FAILURE, "");
-      }
-      if (type == SSH_FXP_STATUS) {
-        int i = buf.getInt();
-        throwStatusError(buf, i);
-      }
-
-      final byte[] handle = buf.getString(); // handle
-
-      rq.init();
+      final SftpHandle handle = _openR(src);
+      final SftpDownload download = download(handle, skip, monitor);
 
       InputStream in = new InputStream() {
-        long offset = skip;
         boolean closed = false;
-        int rest_length = 0;
         byte[] _data = new byte[1];
-        byte[] rest_byte = new byte[1024];
-        Header header = new Header();
-        int request_max = 1;
-        long request_offset = offset;
 
         @Override
         public int read() throws IOException {
@@ -1346,157 +1182,11 @@ public class ChannelSftp extends ChannelSession {
           if (s < 0 || len < 0 || s + len > d.length) {
             throw new IndexOutOfBoundsException();
           }
-          if (len == 0) {
-            return 0;
-          }
-
-          if (rest_length > 0) {
-            int foo = rest_length;
-            if (foo > len)
-              foo = len;
-            System.arraycopy(rest_byte, 0, d, s, foo);
-            if (foo != rest_length) {
-              System.arraycopy(rest_byte, foo, rest_byte, 0, rest_length - foo);
-            }
-
-            if (monitor != null) {
-              if (!monitor.count(foo)) {
-                close();
-                return -1;
-              }
-            }
-
-            rest_length -= foo;
-            return foo;
-          }
-
-          if (buf.buffer.length - 13 < len) {
-            len = buf.buffer.length - 13;
-          }
-          if (server_version == 0 && len > 1024) {
-            len = 1024;
-          }
-
-          if (rq.count() == 0 || true // working around slow transfer speed for
-                                      // some sftp servers including Titan FTP.
-          ) {
-            int request_len = buf.buffer.length - 13;
-            if (server_version == 0) {
-              request_len = 1024;
-            }
-
-            while (rq.count() < request_max) {
-              try {
-                sendREAD(handle, request_offset, request_len, rq);
-              } catch (Exception e) {
-                throw new IOException("error");
-              }
-              request_offset += request_len;
-            }
-          }
-
-          header = header(buf, header);
-          rest_length = header.length;
-          int type = header.type;
-          int id = header.rid;
-
-          RequestQueue.Request rr = null;
-          try {
-            rr = rq.get(header.rid);
-          } catch (RequestQueue.OutOfOrderException e) {
-            request_offset = e.offset;
-            skip(header.length);
-            rq.cancel(header, buf);
-            return 0;
-          } catch (SftpException e) {
-            throw new IOException("error: " + e.toString(), e);
-          }
-
-          if (type != SSH_FXP_STATUS && type != SSH_FXP_DATA) {
-            throw new IOException("Unexpected server response type: " + sshFxpDescription(type));
-          }
-          if (type == SSH_FXP_STATUS) {
-            fill(buf, rest_length);
-            int i = buf.getInt();
-            rest_length = 0;
-            if (i == SSH_FX_EOF) {
-              close();
-              return -1;
-            }
-            throw new IOException("SFTP status error: " + sftpStatusMessage(buf, i));
-          }
-
-          buf.rewind();
-          fill(buf.buffer, 0, 4);
-          int length_of_data = buf.getInt();
-          rest_length -= 4;
-
-          /*
-           * Since sftp protocol version 6, "end-of-file" has been defined, byte SSH_FXP_DATA uint32
-           * request-id string data bool end-of-file [optional] but some sftpd server will send such
-           * a field in the sftp protocol 3 ;-(
-           */
-          int optional_data = rest_length - length_of_data;
-
-          offset += length_of_data;
-          int foo = length_of_data;
-          if (foo > 0) {
-            int bar = foo;
-            if (bar > len) {
-              bar = len;
-            }
-            int i = io_in.read(d, s, bar);
-            if (i < 0) {
-              return -1;
-            }
-            foo -= i;
-            rest_length = foo;
-
-            if (foo > 0) {
-              if (rest_byte.length < foo) {
-                rest_byte = new byte[foo];
-              }
-              int _s = 0;
-              int _len = foo;
-              int j;
-              while (_len > 0) {
-                j = io_in.read(rest_byte, _s, _len);
-                if (j <= 0)
-                  break;
-                _s += j;
-                _len -= j;
-              }
-            }
-
-            if (optional_data > 0) {
-              io_in.skip(optional_data);
-            }
-
-            if (length_of_data < rr.length) { //
-              rq.cancel(header, buf);
-              try {
-                sendREAD(handle, rr.offset + length_of_data, (int) (rr.length - length_of_data),
-                    rq);
-              } catch (Exception e) {
-                throw new IOException("error");
-              }
-              request_offset = rr.offset + rr.length;
-            }
-
-            if (request_max < rq.size()) {
-              request_max++;
-            }
-
-            if (monitor != null) {
-              if (!monitor.count(i)) {
-                close();
-                return -1;
-              }
-            }
-
-            return i;
+          int i = download.read(d, s, len);
+          if (i == -1) {
+            close();
           }
-          return 0; // ??
+          return i;
         }
 
         @Override
@@ -1506,18 +1196,16 @@ public class ChannelSftp extends ChannelSession {
           closed = true;
           if (monitor != null)
             monitor.end();
-          rq.cancel(header, buf);
           try {
-            _sendCLOSE(handle, header);
-          } catch (IOException e) {
-            throw e;
-          } catch (Exception e) {
+            SftpDispatcher.await(dispatcher().close(handle));
+          } catch (SftpException e) {
             throw new IOException(e.toString(), e);
           }
         }
       };
       return in;
     } catch (Exception e) {
+      transferFailed(monitor);
       if (e instanceof SftpException)
         throw (SftpException) e;
       throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
@@ -1543,168 +1231,148 @@ public class ChannelSftp extends ChannelSession {
    * <code>LsEntrySelector#BREAK</code>, the operation will be canceled immediately.
    *
    * @see ChannelSftp.LsEntrySelector
+   * @see #lsIterator(String)
    * @since 0.1.47
    */
   public void ls(String path, LsEntrySelector selector) throws SftpException {
     // System.out.println("ls: "+path);
+    SftpLsIterator i = null;
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
-
-      path = remoteAbsolutePath(path);
-      byte[] pattern = null;
-      Vector<LsEntry> v = new Vector<>();
-
-      int foo = path.lastIndexOf('/');
-      String dir = path.substring(0, ((foo == 0) ? 1 : foo));
-      String _pattern = path.substring(foo + 1);
-      dir = Util.unquote(dir);
-
-      // If pattern has included '*' or '?', we need to convert
-      // to UTF-8 string before globbing.
-      byte[][] _pattern_utf8 = new byte[1][];
-      boolean pattern_has_wildcard = isPattern(_pattern, _pattern_utf8);
-
-      if (pattern_has_wildcard) {
-        pattern = _pattern_utf8[0];
-      } else {
-        String upath = Util.unquote(path);
-        // SftpATTRS attr=_lstat(upath);
-        SftpATTRS attr = _stat(upath);
-        if (attr.isDir()) {
-          pattern = null;
-          dir = upath;
-        } else {
-          /*
-           * // If we can generage longname by ourself, // we don't have to use openDIR. String
-           * filename=Util.unquote(_pattern); String longname=... v.addElement(new LsEntry(filename,
-           * longname, attr)); return v;
-           */
-
-          if (fEncoding_is_utf8) {
-            pattern = _pattern_utf8[0];
-            pattern = Util.unquote(pattern);
-          } else {
-            _pattern = Util.unquote(_pattern);
-            pattern = Util.str2byte(_pattern, fEncoding);
-          }
+      i = lsIterator(path);
+      LsEntry entry;
+      while ((entry = i.fetch()) != null) {
+        if (selector.select(entry) == LsEntrySelector.BREAK) {
+          break;
         }
       }
-
-      sendOPENDIR(Util.str2byte(dir, fEncoding));
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
-        throw new SftpException(SSH_FX_FAILURE, "");
-      }
-      if (type == SSH_FXP_STATUS) {
-        int i = buf.getInt();
-        throwStatusError(buf, i);
+      SftpLsIterator _i = i;
+      i = null;
+      _i.close();
+    } catch (Exception e) {
+      if (i != null) {
+        i.closeQuietly();
       }
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
 
-      int cancel = LsEntrySelector.CONTINUE;
-      byte[] handle = buf.getString(); // handle
+  /**
+   * Lists the files specified by the remote <code>path</code> like {@link #ls(String)}, but returns
+   * the entries one after another as they are read instead of collecting them.
+   *
+   * <p>
+   * Up to {@link #getBulkRequests()} SSH_FXP_READDIR requests are kept outstanding while the
+   * entries are consumed, and only the responses which have not been consumed yet are kept in
+   * memory, so a directory of any size can be listed with bounded memory. The long names of the
+   * entries are only decoded when asked for. The directory is closed once all entries have been
+   * returned; a caller which stops earlier must close the iterator.
+   * </p>
+   *
+   * <p>
+   * The iterator reads its responses with the asynchronous requests of this channel, so it may be
+   * used while other requests are running, but not by several threads at the same time. Failures
+   * while iterating are thrown as {@link java.io.UncheckedIOException}, whose cause has the
+   * {@link SftpException} as its cause.
+   * </p>
+   *
+   * @param path the remote directory, file or glob pattern
+   * @return the entries, which must be closed unless all of them are read
+   */
+  public SftpLsIterator lsIterator(String path) throws SftpException {
+    path = remoteAbsolutePath(path);
+    byte[] pattern = null;
 
-      while (cancel == LsEntrySelector.CONTINUE) {
+    int foo = path.lastIndexOf('/');
+    String dir = path.substring(0, ((foo == 0) ? 1 : foo));
+    String _pattern = path.substring(foo + 1);
+    dir = Util.unquote(dir);
 
-        sendREADDIR(handle);
+    // If pattern has included '*' or '?', we need to convert
+    // to UTF-8 string before globbing.
+    byte[][] _pattern_utf8 = new byte[1][];
+    boolean pattern_has_wildcard = isPattern(_pattern, _pattern_utf8);
 
-        header = header(buf, header);
-        length = header.length;
-        type = header.type;
-        if (type != SSH_FXP_STATUS && type != SSH_FXP_NAME) {
-          throw new SftpException(SSH_FX_FAILURE, "");
-        }
-        if (type == SSH_FXP_STATUS) {
-          fill(buf, length);
-          int i = buf.getInt();
-          if (i == SSH_FX_EOF)
-            break;
-          throwStatusError(buf, i);
+    if (pattern_has_wildcard) {
+      pattern = _pattern_utf8[0];
+    } else {
+      String upath = Util.unquote(path);
+      SftpATTRS attr =
+          SftpDispatcher.await(dispatcher().stat(Util.str2byte(upath, fEncoding), true));
+      if (attr.isDir()) {
+        pattern = null;
+        dir = upath;
+      } else {
+        if (fEncoding_is_utf8) {
+          pattern = _pattern_utf8[0];
+          pattern = Util.unquote(pattern);
+        } else {
+          _pattern = Util.unquote(_pattern);
+          pattern = Util.str2byte(_pattern, fEncoding);
         }
+      }
+    }
 
-        buf.rewind();
-        fill(buf.buffer, 0, 4);
-        length -= 4;
-        int count = buf.getInt();
-
-        byte[] str;
-        int flags;
-
-        buf.reset();
-        while (count > 0) {
-          if (length > 0) {
-            buf.shift();
-            int j = (buf.buffer.length > (buf.index + length)) ? length
-                : (buf.buffer.length - buf.index);
-            int i = fill(buf.buffer, buf.index, j);
-            buf.index += i;
-            length -= i;
-          }
-          byte[] filename = buf.getString();
-          byte[] longname = null;
-          if (server_version <= 3) {
-            longname = buf.getString();
-          }
-          SftpATTRS attrs = SftpATTRS.getATTR(buf);
-
-          if (cancel == LsEntrySelector.BREAK) {
-            count--;
-            continue;
-          }
-
-          boolean find = false;
-          String f = null;
-          if (pattern == null) {
-            find = true;
-          } else if (!pattern_has_wildcard) {
-            find = Util.array_equals(pattern, filename);
-          } else {
-            byte[] _filename = filename;
-            if (!fEncoding_is_utf8) {
-              f = Util.byte2str(_filename, fEncoding);
-              _filename = Util.str2byte(f, StandardCharsets.UTF_8);
-            }
-            find = Util.glob(pattern, _filename);
-          }
-
-          if (find) {
-            if (f == null) {
-              f = Util.byte2str(filename, fEncoding);
-            }
-            String l = null;
-            if (longname == null) {
-              // TODO: we need to generate long name from attrs
-              // for the sftp protocol 4(and later).
-              l = attrs.toString() + " " + f;
-            } else {
-              l = Util.byte2str(longname, fEncoding);
-            }
+    SftpHandle handle =
+        SftpDispatcher.await(dispatcher().opendir(Util.str2byte(dir, fEncoding), dir));
+    return new SftpLsIterator(this, handle, pattern, pattern_has_wildcard, bulk_requests);
+  }
 
-            cancel = selector.select(new LsEntry(f, l, attrs));
+  /**
+   * Lists the files specified by the remote <code>path</code> as a stream, which keeps several
+   * SSH_FXP_READDIR requests outstanding and reads the entries as they are consumed. The stream
+   * should be closed, so that the directory is closed if not all entries have been consumed.
+   *
+   * @see #lsIterator(String)
+   */
+  public Stream<LsEntry> lsStream(String path) throws SftpException {
+    SftpLsIterator i = lsIterator(path);
+    return StreamSupport
+        .stream(Spliterators.spliteratorUnknownSize(i, Spliterator.ORDERED | Spliterator.NONNULL),
+            false)
+        .onClose(() -> {
+          try {
+            i.close();
+          } catch (SftpException e) {
+            throw new UncheckedIOException(new IOException(e.toString(), e));
           }
+        });
+  }
 
-          count--;
-        }
-      }
-      _sendCLOSE(handle, header);
+  /**
+   * Creates the remote directory <code>path</code> and its missing parent directories, with
+   * pipelined requests. A directory which already exists is accepted.
+   *
+   * @param path the remote directory, which is not globbed
+   */
+  public void mkdirs(String path) throws SftpException {
+    SftpBatch.mkdirs(this, path);
+  }
 
-      /*
-       * if(v.size()==1 && pattern_has_wildcard){ LsEntry le=(LsEntry)v.elementAt(0);
-       * if(le.getAttrs().isDir()){ String f=le.getFilename(); if(isPattern(f)){ f=Util.quote(f); }
-       * if(!dir.endsWith("/")){ dir+="/"; } v=null; return ls(dir+f); } }
-       */
+  /**
+   * Removes the remote file or directory <code>path</code> and everything below it, with pipelined
+   * requests. Symbolic links are removed, not followed. Every file and directory which can be
+   * removed is removed; the first failure is then thrown, with the other failures as suppressed
+   * exceptions.
+   *
+   * @param path the remote file or directory, which is not globbed
+   */
+  public void rmRecursive(String path) throws SftpException {
+    SftpBatch.rmRecursive(this, path);
+  }
 
-    } catch (Exception e) {
-      if (e instanceof SftpException)
-        throw (SftpException) e;
-      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
-    }
+  /**
+   * Applies <code>ops</code> with pipelined requests, instead of waiting for the response to each
+   * one before the next one is sent. The operations may be processed by the server in any order, so
+   * operations which depend on each other must be applied by separate calls.
+   *
+   * @param ops the operations
+   * @return the failure of each operation, or <code>null</code> for the operations which have
+   *         succeeded
+   */
+  public List<SftpException> applyAll(List<SftpOp> ops) {
+    return SftpBatch.applyAll(this, ops);
   }
 
   public String readlink(String path) throws SftpException {
@@ -1714,7 +1382,7 @@ public class ChannelSftp extends ChannelSession {
             "The remote sshd is too old to support symlink operation.");
       }
 
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -1762,7 +1430,7 @@ public class ChannelSftp extends ChannelSession {
     }
 
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       String _oldpath = remoteAbsolutePath(oldpath);
       newpath = remoteAbsolutePath(newpath);
@@ -1810,7 +1478,7 @@ public class ChannelSftp extends ChannelSession {
     }
 
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       String _oldpath = remoteAbsolutePath(oldpath);
       newpath = remoteAbsolutePath(newpath);
@@ -1859,7 +1527,7 @@ public class ChannelSftp extends ChannelSession {
     }
 
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       oldpath = remoteAbsolutePath(oldpath);
       newpath = remoteAbsolutePath(newpath);
@@ -1879,23 +1547,326 @@ public class ChannelSftp extends ChannelSession {
         newpath = Util.unquote(newpath);
       }
 
-      sendRENAME(Util.str2byte(oldpath, fEncoding), Util.str2byte(newpath, fEncoding));
+      sendRENAME(Util.str2byte(oldpath, fEncoding), Util.str2byte(newpath, fEncoding));
+
+      Header header = new Header();
+      header = header(buf, header);
+      int length = header.length;
+      int type = header.type;
+
+      fill(buf, length);
+
+      if (type != SSH_FXP_STATUS) {
+        throw new SftpException(SSH_FX_FAILURE, "");
+      }
+
+      int i = buf.getInt();
+      if (i == SSH_FX_OK)
+        return;
+      throwStatusError(buf, i);
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
+
+  /**
+   * Opens the remote file <code>path</code> for random access, like
+   * {@link java.nio.file.Files#newByteChannel(java.nio.file.Path, OpenOption...)}.
+   *
+   * <p>
+   * The supported options are those of {@link StandardOpenOption} except
+   * <code>DELETE_ON_CLOSE</code>, <code>SYNC</code> and <code>DSYNC</code>. Without
+   * <code>READ</code>, <code>WRITE</code> or <code>APPEND</code>, the file is opened for reading.
+   * </p>
+   *
+   * @param path the remote file
+   * @param options how the file is opened
+   * @return the channel, which has to be closed
+   * @see SftpByteChannel
+   */
+  public SftpByteChannel openChannel(String path, OpenOption... options) throws SftpException {
+    try {
+      updateReadSide();
+
+      path = isUnique(remoteAbsolutePath(path));
+      return _openChannel(path, options);
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
+
+  /**
+   * Opens the absolute remote <code>path</code> like {@link #openChannel(String, OpenOption...)},
+   * but only with asynchronous requests, so that it may be called by any thread.
+   */
+  SftpByteChannel _openChannel(String path, OpenOption... options) throws SftpException {
+    boolean read = false;
+    boolean write = false;
+    boolean append = false;
+    int pflags = 0;
+    for (OpenOption option : options) {
+      if (option == StandardOpenOption.READ) {
+        read = true;
+      } else if (option == StandardOpenOption.WRITE) {
+        write = true;
+      } else if (option == StandardOpenOption.APPEND) {
+        write = append = true;
+        pflags |= SSH_FXF_APPEND;
+      } else if (option == StandardOpenOption.CREATE) {
+        pflags |= SSH_FXF_CREAT;
+      } else if (option == StandardOpenOption.CREATE_NEW) {
+        pflags |= SSH_FXF_CREAT | SSH_FXF_EXCL;
+      } else if (option == StandardOpenOption.TRUNCATE_EXISTING) {
+        pflags |= SSH_FXF_TRUNC;
+      } else if (option != StandardOpenOption.SPARSE && option != LinkOption.NOFOLLOW_LINKS) {
+        throw new SftpException(SSH_FX_OP_UNSUPPORTED, "unsupported option: " + option);
+      }
+    }
+    if (!write) {
+      // as with Files.newByteChannel, the options to create a file only apply to writing
+      read = true;
+      pflags = 0;
+    } else if (append) {
+      pflags &= ~SSH_FXF_TRUNC;
+    }
+    if (read) {
+      pflags |= SSH_FXF_READ;
+    }
+    if (write) {
+      pflags |= SSH_FXF_WRITE;
+    }
+
+    byte[] pathb = Util.str2byte(path, fEncoding);
+    if (write) {
+      invalidate(pathb);
+    }
+    SftpHandle handle = SftpDispatcher.await(dispatcher().open(pathb, path, pflags));
+    try {
+      // the size is only needed to read, or to append
+      long size = 0;
+      if ((pflags & SSH_FXF_TRUNC) == 0 && (read || append)) {
+        size = SftpDispatcher.await(dispatcher().fstat(handle)).getSize();
+      }
+      return new SftpByteChannel(this, handle, read, write, append, size);
+    } catch (SftpException e) {
+      _closeQuietly(handle);
+      throw e;
+    }
+  }
+
+  /**
+   * Copies the remote file <code>src</code> to <code>dst</code> on the server, without the data
+   * passing through the client. If <code>dst</code> is a directory, the file is copied into it. An
+   * existing file is overwritten, but copying a file onto itself fails.
+   *
+   * <p>
+   * The copy is done by the "copy-file" extension, or by the "copy-data" extension if the server
+   * does not support "copy-file". Only if neither is supported the data is read and written back
+   * with pipelined requests.
+   * </p>
+   *
+   * @param src the remote file
+   * @param dst the remote destination
+   */
+  public void copy(String src, String dst) throws SftpException {
+    try {
+      updateReadSide();
+
+      src = isUnique(remoteAbsolutePath(src));
+      dst = copyTarget(src, remoteAbsolutePath(dst));
+      if (isSameFile(src, dst)) {
+        throw new SftpException(SSH_FX_FAILURE,
+            "copy: " + src + " and " + dst + " are the same file");
+      }
+      _copyFile(src, dst, true);
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
+
+  /**
+   * Copies <code>length</code> bytes of the remote file <code>src</code> from
+   * <code>srcOffset</code> to <code>dst</code> at <code>dstOffset</code> on the server, like
+   * {@link #copy(String, String)}. <code>dst</code> is created if it does not exist, and is not
+   * truncated otherwise.
+   *
+   * <p>
+   * The copy is done by the "copy-data" extension, or else with pipelined requests. If
+   * <code>src</code> and <code>dst</code> are the same file, the ranges must not overlap.
+   * </p>
+   *
+   * @param src the remote file
+   * @param srcOffset the offset in <code>src</code> to copy from
+   * @param length the number of bytes to copy, or <code>0</code> to copy up to the end of
+   *        <code>src</code>
+   * @param dst the remote destination
+   * @param dstOffset the offset in <code>dst</code> to copy to
+   */
+  public void copy(String src, long srcOffset, long length, String dst, long dstOffset)
+      throws SftpException {
+    if (srcOffset < 0 || length < 0 || dstOffset < 0) {
+      throw new SftpException(SSH_FX_BAD_MESSAGE, "copy: offsets and length must not be negative");
+    }
+    try {
+      updateReadSide();
+
+      src = isUnique(remoteAbsolutePath(src));
+      dst = copyTarget(src, remoteAbsolutePath(dst));
+      byte[] dstb = Util.str2byte(dst, fEncoding);
+
+      invalidate(dstb);
+      try {
+        _copy(src, srcOffset, length, dst, dstOffset, SSH_FXF_WRITE | SSH_FXF_CREAT);
+      } finally {
+        invalidate(dstb);
+      }
+    } catch (Exception e) {
+      if (e instanceof SftpException)
+        throw (SftpException) e;
+      throw new SftpException(SSH_FX_FAILURE, e.toString(), e);
+    }
+  }
+
+  /** Resolves the destination of a copy like the one of a rename, or into a directory. */
+  private String copyTarget(String src, String dst) throws Exception {
+    Vector<String> v = glob_remote(dst);
+    int vsize = v.size();
+    if (vsize >= 2) {
+      throw new SftpException(SSH_FX_FAILURE, v.toString());
+    }
+    if (vsize == 1) {
+      dst = v.elementAt(0);
+    } else {
+      if (isPattern(dst))
+        throw new SftpException(SSH_FX_FAILURE, dst);
+      dst = Util.unquote(dst);
+    }
+    if (isRemoteDir(dst)) {
+      dst += (dst.endsWith("/") ? "" : "/") + src.substring(src.lastIndexOf('/') + 1);
+    }
+    return dst;
+  }
+
+  /**
+   * Returns whether the absolute remote paths <code>src</code> and <code>dst</code> resolve to the
+   * same file, which a copy would truncate before reading it. <code>dst</code> does not exist if it
+   * cannot be resolved.
+   */
+  private boolean isSameFile(String src, String dst) throws Exception {
+    if (src.equals(dst)) {
+      return true;
+    }
+    byte[] srcb = _realpath(src);
+    byte[] dstb;
+    try {
+      dstb = _realpath(dst);
+    } catch (SftpException e) {
+      return false;
+    }
+    return Arrays.equals(srcb, dstb);
+  }
+
+  /**
+   * Copies the absolute remote path <code>src</code> to <code>dst</code> like
+   * {@link #copy(String, String)}, but only with asynchronous requests, so that it may be called by
+   * any thread.
+   *
+   * @param overwrite whether an existing <code>dst</code> is overwritten, or the copy fails
+   */
+  void _copyFile(String src, String dst, boolean overwrite) throws IOException, SftpException {
+    byte[] srcb = Util.str2byte(src, fEncoding);
+    byte[] dstb = Util.str2byte(dst, fEncoding);
+
+    invalidate(dstb);
+    try {
+      if (extension_copy_file) {
+        SftpDispatcher.await(dispatcher().copyFile(srcb, dstb, overwrite));
+      } else {
+        int pflags = SSH_FXF_WRITE | SSH_FXF_CREAT | (overwrite ? SSH_FXF_TRUNC : SSH_FXF_EXCL);
+        _copy(src, 0, 0, dst, 0, pflags);
+      }
+    } finally {
+      invalidate(dstb);
+    }
+  }
+
+  private void _copy(String src, long srcOffset, long length, String dst, long dstOffset,
+      int pflags) throws IOException, SftpException {
+    SftpDispatcher d = dispatcher();
+    SftpHandle in = _openR(src);
+    try {
+      SftpHandle out = SftpDispatcher.await(d.open(Util.str2byte(dst, fEncoding), dst, pflags));
+      try {
+        if (extension_copy_data) {
+          SftpDispatcher.await(d.copyData(in, srcOffset, length, out, dstOffset));
+        } else {
+          long end = length == 0 ? Long.MAX_VALUE : srcOffset + length;
+          SftpDownload download = new SftpDownload(d, in, srcOffset, end, readFlowControl(), null);
+          InputStream data = new InputStream() {
+            @Override
+            public int read() throws IOException {
+              byte[] b = new byte[1];
+              return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              return download.read(b, off, len);
+            }
+          };
+          new SftpUpload(d, out, dstOffset, writeFlowControl(out), null).transferFrom(data);
+        }
+      } catch (IOException | SftpException | RuntimeException e) {
+        _closeQuietly(out);
+        throw e;
+      }
+      SftpDispatcher.await(d.close(out));
+    } finally {
+      _closeQuietly(in);
+    }
+  }
 
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
+  /**
+   * Has the server hash a range of the remote file <code>path</code>, with the "check-file-name"
+   * extension, or with "check-file-handle" on a handle of the file if the server does not support
+   * "check-file-name".
+   *
+   * @param path the remote file
+   * @param algorithms the hash algorithms the server may choose from, in the order of preference
+   *        and separated by commas, e.g. <code>sha256,sha1,md5</code>
+   * @param offset the offset of the range
+   * @param length the length of the range, or <code>0</code> for the range up to the end of the
+   *        file
+   * @param blockSize the size of the blocks which are hashed one by one, at least 256, or
+   *        <code>0</code> for one hash over the whole range
+   */
+  public SftpFileHashes checkFile(String path, String algorithms, long offset, long length,
+      int blockSize) throws SftpException {
+    try {
+      updateReadSide();
 
-      fill(buf, length);
+      path = isUnique(remoteAbsolutePath(path));
+      byte[] pathb = Util.str2byte(path, fEncoding);
 
-      if (type != SSH_FXP_STATUS) {
-        throw new SftpException(SSH_FX_FAILURE, "");
+      if (extension_check_file_name) {
+        return SftpDispatcher
+            .await(dispatcher().checkFile(pathb, false, algorithms, offset, length, blockSize));
+      }
+      if (!extension_check_file_handle) {
+        throw new SftpException(SSH_FX_OP_UNSUPPORTED, "check-file is not supported");
+      }
+      SftpHandle handle = _openR(path);
+      try {
+        return SftpDispatcher.await(checkFileAsync(handle, algorithms, offset, length, blockSize));
+      } finally {
+        _closeQuietly(handle);
       }
-
-      int i = buf.getInt();
-      if (i == SSH_FX_OK)
-        return;
-      throwStatusError(buf, i);
     } catch (Exception e) {
       if (e instanceof SftpException)
         throw (SftpException) e;
@@ -1905,7 +1876,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void rm(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -1941,20 +1912,7 @@ public class ChannelSftp extends ChannelSession {
 
   private boolean isRemoteDir(String path) {
     try {
-      sendSTAT(Util.str2byte(path, fEncoding));
-
-      Header header = new Header();
-      header = header(buf, header);
-      int length = header.length;
-      int type = header.type;
-
-      fill(buf, length);
-
-      if (type != SSH_FXP_ATTRS) {
-        return false;
-      }
-      SftpATTRS attr = SftpATTRS.getATTR(buf);
-      return attr.isDir();
+      return _stat(path).isDir();
     } catch (Exception e) {
     }
     return false;
@@ -1962,7 +1920,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void chgrp(int gid, String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -1986,7 +1944,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void chown(int uid, String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2010,7 +1968,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void chmod(int permissions, String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2034,7 +1992,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void setMtime(String path, int mtime) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2058,7 +2016,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void rmdir(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2095,7 +2053,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void mkdir(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2125,7 +2083,7 @@ public class ChannelSftp extends ChannelSession {
 
   public SftpATTRS stat(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
       path = isUnique(path);
@@ -2140,6 +2098,27 @@ public class ChannelSftp extends ChannelSession {
   }
 
   private SftpATTRS _stat(byte[] path) throws SftpException {
+    SftpCache _cache = cache;
+    if (_cache == null) {
+      return _statNoCache(path);
+    }
+    String key = Util.byte2str(path, fEncoding);
+    SftpATTRS attr = _cache.attrs(key);
+    if (attr == null) {
+      try {
+        attr = _statNoCache(path);
+      } catch (SftpException e) {
+        if (e.id == SSH_FX_NO_SUCH_FILE) {
+          _cache.putMissing(key);
+        }
+        throw e;
+      }
+      _cache.putAttrs(key, attr);
+    }
+    return attr;
+  }
+
+  private SftpATTRS _statNoCache(byte[] path) throws SftpException {
     try {
 
       sendSTAT(path);
@@ -2174,7 +2153,7 @@ public class ChannelSftp extends ChannelSession {
 
   public SftpStatVFS statVFS(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
       path = isUnique(path);
@@ -2222,13 +2201,38 @@ public class ChannelSftp extends ChannelSession {
     // return null;
   }
 
+  /**
+   * Asks the server for its limits. A server which fails the request is treated like one which does
+   * not announce any.
+   */
+  private SftpLimits _limits() throws Exception {
+    sendLIMITS();
+
+    Header header = new Header();
+    header = header(buf, header);
+    int length = header.length;
+    int type = header.type;
+
+    fill(buf, length);
+
+    if (type != (SSH_FXP_EXTENDED_REPLY & 0xff)) {
+      return SftpLimits.NONE;
+    }
+    return SftpLimits.getLimits(buf);
+  }
+
+  /** Returns the limits announced by the server. */
+  SftpLimits limits() {
+    return limits;
+  }
+
   private SftpStatVFS _statVFS(String path) throws SftpException {
     return _statVFS(Util.str2byte(path, fEncoding));
   }
 
   public SftpATTRS lstat(String path) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
       path = isUnique(path);
@@ -2269,6 +2273,18 @@ public class ChannelSftp extends ChannelSession {
   }
 
   private byte[] _realpath(String path) throws SftpException, IOException, Exception {
+    SftpCache _cache = cache;
+    byte[] str = _cache == null ? null : _cache.realpath(path);
+    if (str == null) {
+      str = _realpathNoCache(path);
+      if (_cache != null) {
+        _cache.putRealpath(path, str);
+      }
+    }
+    return str;
+  }
+
+  private byte[] _realpathNoCache(String path) throws SftpException, IOException, Exception {
     sendREALPATH(Util.str2byte(path, fEncoding));
 
     Header header = new Header();
@@ -2301,7 +2317,7 @@ public class ChannelSftp extends ChannelSession {
 
   public void setStat(String path, SftpATTRS attr) throws SftpException {
     try {
-      ((MyPipedInputStream) io_in).updateReadSide();
+      updateReadSide();
 
       path = remoteAbsolutePath(path);
 
@@ -2358,7 +2374,7 @@ public class ChannelSftp extends ChannelSession {
   public String getHome() throws SftpException {
     if (home == null) {
       try {
-        ((MyPipedInputStream) io_in).updateReadSide();
+        updateReadSide();
 
         byte[] _home = _realpath("");
         home = Util.byte2str(_home, fEncoding);
@@ -2421,7 +2437,16 @@ public class ChannelSftp extends ChannelSession {
     packet.reset();
     putHEAD(SSH_FXP_INIT, 5);
     buf.putInt(3); // version 3
-    getSession().write(packet, this, 5 + 4);
+    send(packet, 5 + 4);
+  }
+
+  private void sendLIMITS() throws Exception {
+    byte[] extension = Util.str2byte("limits@openssh.com");
+    packet.reset();
+    putHEAD(SSH_FXP_EXTENDED, 9 + extension.length);
+    buf.putInt(seq++);
+    buf.putString(extension);
+    send(packet, 9 + extension.length + 4);
   }
 
   private void sendREALPATH(byte[] path) throws Exception {
@@ -2449,19 +2474,22 @@ public class ChannelSftp extends ChannelSession {
   }
 
   private void sendSETSTAT(byte[] path, SftpATTRS attr) throws Exception {
+    invalidate(path);
     packet.reset();
     putHEAD(SSH_FXP_SETSTAT, 9 + path.length + attr.length());
     buf.putInt(seq++);
     buf.putString(path); // path
     attr.dump(buf);
-    getSession().write(packet, this, 9 + path.length + attr.length() + 4);
+    send(packet, 9 + path.length + attr.length() + 4);
   }
 
   private void sendREMOVE(byte[] path) throws Exception {
+    invalidate(path);
     sendPacketPath(SSH_FXP_REMOVE, path);
   }
 
   private void sendMKDIR(byte[] path, SftpATTRS attr) throws Exception {
+    invalidate(path);
     packet.reset();
     putHEAD(SSH_FXP_MKDIR, 9 + path.length + (attr != null ? attr.length() : 4));
     buf.putInt(seq++);
@@ -2470,18 +2498,22 @@ public class ChannelSftp extends ChannelSession {
       attr.dump(buf);
     else
       buf.putInt(0);
-    getSession().write(packet, this, 9 + path.length + (attr != null ? attr.length() : 4) + 4);
+    send(packet, 9 + path.length + (attr != null ? attr.length() : 4) + 4);
   }
 
   private void sendRMDIR(byte[] path) throws Exception {
+    invalidateTree(path);
     sendPacketPath(SSH_FXP_RMDIR, path);
   }
 
   private void sendSYMLINK(byte[] p1, byte[] p2) throws Exception {
+    invalidate(p1);
+    invalidate(p2);
     sendPacketPath(SSH_FXP_SYMLINK, p1, p2);
   }
 
   private void sendHARDLINK(byte[] p1, byte[] p2) throws Exception {
+    invalidate(p2);
     sendPacketPath((byte) 0, p1, p2, "hardlink@openssh.com");
   }
 
@@ -2498,6 +2530,8 @@ public class ChannelSftp extends ChannelSession {
   }
 
   private void sendRENAME(byte[] p1, byte[] p2) throws Exception {
+    invalidateTree(p1);
+    invalidateTree(p2);
     sendPacketPath(SSH_FXP_RENAME, p1, p2,
         extension_posix_rename ? "posix-rename@openssh.com" : null);
   }
@@ -2510,14 +2544,6 @@ public class ChannelSftp extends ChannelSession {
     sendOPEN(path, SSH_FXF_READ);
   }
 
-  private void sendOPENW(byte[] path) throws Exception {
-    sendOPEN(path, SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC);
-  }
-
-  private void sendOPENA(byte[] path) throws Exception {
-    sendOPEN(path, SSH_FXF_WRITE | /* SSH_FXF_APPEND | */ SSH_FXF_CREAT);
-  }
-
   private void sendOPEN(byte[] path, int mode) throws Exception {
     packet.reset();
     putHEAD(SSH_FXP_OPEN, 17 + path.length);
@@ -2525,7 +2551,7 @@ public class ChannelSftp extends ChannelSession {
     buf.putString(path);
     buf.putInt(mode);
     buf.putInt(0); // attrs
-    getSession().write(packet, this, 17 + path.length + 4);
+    send(packet, 17 + path.length + 4);
   }
 
   private void sendPacketPath(byte fxp, byte[] path) throws Exception {
@@ -2545,7 +2571,7 @@ public class ChannelSftp extends ChannelSession {
       buf.putString(Util.str2byte(extension));
     }
     buf.putString(path); // path
-    getSession().write(packet, this, len + 4);
+    send(packet, len + 4);
   }
 
   private void sendPacketPath(byte fxp, byte[] p1, byte[] p2) throws Exception {
@@ -2566,52 +2592,10 @@ public class ChannelSftp extends ChannelSession {
     }
     buf.putString(p1);
     buf.putString(p2);
-    getSession().write(packet, this, len + 4);
-  }
-
-  private int sendWRITE(byte[] handle, long offset, byte[] data, int start, int length)
-      throws Exception {
-    int _length = length;
-    opacket.reset();
-    Session _session = getSession();
-    int buffer_margin = _session.getBufferMargin();
-    if (obuf.buffer.length < obuf.index + 13 + 21 + handle.length + length + buffer_margin) {
-      _length = obuf.buffer.length - (obuf.index + 13 + 21 + handle.length + buffer_margin);
-      // System.err.println("_length="+_length+" length="+length);
-    }
-
-    putHEAD(obuf, SSH_FXP_WRITE, 21 + handle.length + _length); // 14
-    obuf.putInt(seq++); // 4
-    obuf.putString(handle); // 4+handle.length
-    obuf.putLong(offset); // 8
-    if (obuf.buffer != data) {
-      obuf.putString(data, start, _length); // 4+_length
-    } else {
-      obuf.putInt(_length);
-      obuf.skip(_length);
-    }
-    _session.write(opacket, this, 21 + handle.length + _length + 4);
-    return _length;
-  }
-
-  private void sendREAD(byte[] handle, long offset, int length) throws Exception {
-    sendREAD(handle, offset, length, null);
-  }
-
-  private void sendREAD(byte[] handle, long offset, int length, RequestQueue rrq) throws Exception {
-    packet.reset();
-    putHEAD(SSH_FXP_READ, 21 + handle.length);
-    buf.putInt(seq++);
-    buf.putString(handle);
-    buf.putLong(offset);
-    buf.putInt(length);
-    getSession().write(packet, this, 21 + handle.length + 4);
-    if (rrq != null) {
-      rrq.add(seq - 1, offset, length);
-    }
+    send(packet, len + 4);
   }
 
-  private void putHEAD(Buffer buf, byte type, int length) throws Exception {
+  void putHEAD(Buffer buf, byte type, int length) throws Exception {
     buf.putByte((byte) Session.SSH_MSG_CHANNEL_DATA);
     buf.putInt(recipient);
     buf.putInt(length + 4);
@@ -2623,6 +2607,24 @@ public class ChannelSftp extends ChannelSession {
     putHEAD(buf, type, length);
   }
 
+  /**
+   * Writes an SFTP packet to the channel. Packets may be written by several threads, and the
+   * session may split a packet to fit the remote window, so the writes are serialized.
+   */
+  void send(Packet packet, int length) throws Exception {
+    Session _session = getSession();
+    synchronized (sendLock) {
+      _session.write(packet, this, length);
+    }
+  }
+
+  private void updateReadSide() throws IOException {
+    InputStream in = io_in;
+    if (in instanceof MyPipedInputStream) {
+      ((MyPipedInputStream) in).updateReadSide();
+    }
+  }
+
   private Vector<String> glob_remote(String _path) throws Exception {
     Vector<String> v = new Vector<>();
     int i = 0;
@@ -2651,6 +2653,21 @@ public class ChannelSftp extends ChannelSession {
 
     pattern = _pattern_utf8[0];
 
+    SftpCache _cache = cache;
+    List<byte[]> names = _cache == null ? null : _cache.listing(dir);
+    if (names != null) {
+      String pdir = dir.endsWith("/") ? dir : dir + "/";
+      for (byte[] filename : names) {
+        if (matches(pattern, true, filename)) {
+          v.addElement(pdir + Util.byte2str(filename, fEncoding));
+        }
+      }
+      return v;
+    }
+    if (_cache != null) {
+      names = new ArrayList<>();
+    }
+
     sendOPENDIR(Util.str2byte(dir, fEncoding));
 
     Header header = new Header();
@@ -2713,6 +2730,20 @@ public class ChannelSftp extends ChannelSession {
         }
         SftpATTRS attrs = SftpATTRS.getATTR(buf);
 
+        if (names != null) {
+          if (names.size() < SftpCache.MAX_LISTING) {
+            names.add(filename);
+            // the attributes of a link are not those of its target
+            if (!attrs.isLink()
+                && (attrs.getFlags() & SftpATTRS.SSH_FILEXFER_ATTR_PERMISSIONS) != 0) {
+              String _dir = dir.endsWith("/") ? dir : dir + "/";
+              _cache.putAttrs(_dir + Util.byte2str(filename, fEncoding), attrs);
+            }
+          } else {
+            names = null;
+          }
+        }
+
         byte[] _filename = filename;
         String f = null;
         boolean found = false;
@@ -2738,8 +2769,12 @@ public class ChannelSftp extends ChannelSession {
         count--;
       }
     }
-    if (_sendCLOSE(handle, header))
+    if (_sendCLOSE(handle, header)) {
+      if (names != null) {
+        _cache.putListing(dir, names);
+      }
       return v;
+    }
     return null;
   }
 
@@ -2907,7 +2942,7 @@ public class ChannelSftp extends ChannelSession {
     }
   }
 
-  private String sftpStatusMessage(Buffer buf, int i) {
+  String sftpStatusMessage(Buffer buf, int i) {
     String description = sshExceptionDescription(i);
     if (server_version >= 3 && // WindRiver's sftp will send invalid
         buf.getLength() >= 4) { // SSH_FXP_STATUS packet.
@@ -2929,6 +2964,11 @@ public class ChannelSftp extends ChannelSession {
   @Override
   public void disconnect() {
     super.disconnect();
+    synchronized (dispatcherLock) {
+      if (dispatcher != null) {
+        dispatcher.stop();
+      }
+    }
   }
 
   private boolean isPattern(String path, byte[][] utf8) {
@@ -3059,10 +3099,336 @@ public class ChannelSftp extends ChannelSession {
     }
   }
 
+  /**
+   * Starts the thread which reads every response from now on, so that asynchronous requests may be
+   * outstanding at any time, also while a synchronous method is running.
+   */
+  private void startDispatcher() throws JSchException {
+    Session _session = getSession();
+    SftpDispatcher _dispatcher = new SftpDispatcher(this, io_in);
+    Thread thread = _session.getThreadFactory().newThread(_dispatcher);
+    thread.setName("Sftp thread " + _session.getHost());
+    if (_session.daemon_thread) {
+      thread.setDaemon(_session.daemon_thread);
+    }
+    io_in = _dispatcher.getInputStream();
+    synchronized (dispatcherLock) {
+      dispatcher = _dispatcher;
+    }
+    _dispatcher.start(thread);
+  }
+
+  SftpDispatcher dispatcher() throws SftpException {
+    synchronized (dispatcherLock) {
+      if (dispatcher == null) {
+        throw new SftpException(SSH_FX_NO_CONNECTION, "The channel is not connected.");
+      }
+      return dispatcher;
+    }
+  }
+
+  /**
+   * Resolves <code>path</code> like {@link #remoteAbsolutePath(String)}, but without a request to
+   * the server; if the current directory is not known yet, the server resolves a relative path
+   * against the home directory.
+   */
+  String asyncPath(String path) {
+    String _cwd = cwd;
+    if (path.charAt(0) == '/' || _cwd == null)
+      return path;
+    if (_cwd.endsWith("/"))
+      return _cwd + path;
+    return _cwd + "/" + path;
+  }
+
+  LsEntry toLsEntry(byte[] filename, byte[] longname, SftpATTRS attrs) {
+    return new LsEntry(Util.byte2str(filename, fEncoding), longname, fEncoding, attrs);
+  }
+
+  /** Returns whether the file name of a directory entry matches a pattern of {@link #ls}. */
+  boolean matches(byte[] pattern, boolean wildcard, byte[] filename) {
+    if (pattern == null) {
+      return true;
+    }
+    if (!wildcard) {
+      return Util.array_equals(pattern, filename);
+    }
+    if (!fEncoding_is_utf8) {
+      filename = Util.str2byte(Util.byte2str(filename, fEncoding), StandardCharsets.UTF_8);
+    }
+    return Util.glob(pattern, filename);
+  }
+
+  static <T> CompletableFuture<T> failed(SftpException e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  /**
+   * Sends SSH_FXP_STAT for <code>path</code> without waiting for the response.
+   *
+   * <p>
+   * The asynchronous methods may be called by any number of threads at the same time, also while
+   * another thread is running a synchronous method. Their responses are read by a thread of the
+   * channel which completes the returned futures, so dependent actions which are not run
+   * asynchronously must not block. A relative <code>path</code> is resolved against the current
+   * remote directory, and is not globbed. Failures are reported as {@link SftpException}.
+   * </p>
+   *
+   * @param path the remote path
+   * @return the attributes of the file, following symbolic links
+   */
+  public CompletableFuture<SftpATTRS> statAsync(String path) {
+    try {
+      return dispatcher().stat(Util.str2byte(asyncPath(path), fEncoding), true);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Sends SSH_FXP_LSTAT for <code>path</code> without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<SftpATTRS> lstatAsync(String path) {
+    try {
+      return dispatcher().stat(Util.str2byte(asyncPath(path), fEncoding), false);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Sends SSH_FXP_FSTAT for an open handle without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<SftpATTRS> fstatAsync(SftpHandle handle) {
+    try {
+      return dispatcher().fstat(handle);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Has the server hash a range of an open file with the "check-file-handle" extension, without
+   * waiting for the response. The future fails with {@link #SSH_FX_OP_UNSUPPORTED} if the server
+   * does not support the extension.
+   *
+   * @see #checkFile(String, String, long, long, int)
+   */
+  public CompletableFuture<SftpFileHashes> checkFileAsync(SftpHandle handle, String algorithms,
+      long offset, long length, int blockSize) {
+    if (!extension_check_file_handle) {
+      return failed(new SftpException(SSH_FX_OP_UNSUPPORTED, "check-file-handle is not supported"));
+    }
+    try {
+      return dispatcher().checkFile(handle.handle, true, algorithms, offset, length, blockSize);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Opens a remote file without waiting for the response.
+   *
+   * @param path the remote path
+   * @param pflags a combination of {@link #SSH_FXF_READ}, {@link #SSH_FXF_WRITE},
+   *        {@link #SSH_FXF_APPEND}, {@link #SSH_FXF_CREAT}, {@link #SSH_FXF_TRUNC} and
+   *        {@link #SSH_FXF_EXCL}
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<SftpHandle> openAsync(String path, int pflags) {
+    try {
+      String _path = asyncPath(path);
+      byte[] _pathb = Util.str2byte(_path, fEncoding);
+      if ((pflags & (SSH_FXF_WRITE | SSH_FXF_APPEND | SSH_FXF_CREAT | SSH_FXF_TRUNC)) != 0) {
+        invalidate(_pathb);
+      }
+      return dispatcher().open(_pathb, _path, pflags);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Opens a remote directory for {@link #readdirAsync(SftpHandle)} without waiting for the
+   * response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<SftpHandle> opendirAsync(String path) {
+    try {
+      String _path = asyncPath(path);
+      return dispatcher().opendir(Util.str2byte(_path, fEncoding), _path);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Creates a remote directory without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> mkdirAsync(String path) {
+    try {
+      byte[] _path = Util.str2byte(asyncPath(path), fEncoding);
+      invalidate(_path);
+      return dispatcher().mkdir(_path);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Removes a remote directory without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> rmdirAsync(String path) {
+    try {
+      byte[] _path = Util.str2byte(asyncPath(path), fEncoding);
+      invalidateTree(_path);
+      return dispatcher().rmdir(_path);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Removes a remote file without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> rmAsync(String path) {
+    try {
+      byte[] _path = Util.str2byte(asyncPath(path), fEncoding);
+      invalidate(_path);
+      return dispatcher().remove(_path);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Renames a remote file or directory without waiting for the response, with
+   * posix-rename@openssh.com if the server supports it.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> renameAsync(String oldpath, String newpath) {
+    if (server_version < 2) {
+      return failed(new SftpException(SSH_FX_OP_UNSUPPORTED,
+          "The remote sshd is too old to support rename operation."));
+    }
+    try {
+      byte[] _oldpath = Util.str2byte(asyncPath(oldpath), fEncoding);
+      byte[] _newpath = Util.str2byte(asyncPath(newpath), fEncoding);
+      invalidateTree(_oldpath);
+      invalidateTree(_newpath);
+      return dispatcher().rename(_oldpath, _newpath, extension_posix_rename);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Sets the attributes of a remote file without waiting for the response. Only the attributes
+   * whose flags are set in <code>attrs</code> are changed.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> setStatAsync(String path, SftpATTRS attrs) {
+    try {
+      byte[] _path = Util.str2byte(asyncPath(path), fEncoding);
+      invalidate(_path);
+      return dispatcher().setstat(_path, attrs);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Closes a handle without waiting for the response.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> closeAsync(SftpHandle handle) {
+    try {
+      return dispatcher().close(handle);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Reads up to <code>len</code> bytes at <code>offset</code> of an open file into <code>b</code>.
+   * The server may return fewer bytes than requested even before the end of the file.
+   *
+   * @return the number of bytes read, or <code>-1</code> if <code>offset</code> is at or beyond the
+   *         end of the file
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Integer> readAsync(SftpHandle handle, long offset, byte[] b, int off,
+      int len) {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    try {
+      return dispatcher().read(handle, offset, b, off, len);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Writes <code>len</code> bytes of <code>b</code> at <code>offset</code> of an open file. Data
+   * which does not fit in one packet is sent with several SSH_FXP_WRITE requests, and the returned
+   * future completes once all of them have been acknowledged.
+   *
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<Void> writeAsync(SftpHandle handle, long offset, byte[] b, int off,
+      int len) {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.invalidate(handle.getPath());
+    }
+    try {
+      return dispatcher().write(handle, offset, b, off, len);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
+  /**
+   * Reads the next entries of a directory opened by {@link #opendirAsync(String)}.
+   *
+   * @return the entries, or <code>null</code> once all entries have been read
+   * @see #statAsync(String)
+   */
+  public CompletableFuture<List<LsEntry>> readdirAsync(SftpHandle handle) {
+    try {
+      return dispatcher().readdir(handle);
+    } catch (SftpException e) {
+      return failed(e);
+    }
+  }
+
   public static class LsEntry implements Comparable<LsEntry> {
     private String filename;
     private String longname;
     private SftpATTRS attrs;
+    // the long name as sent by the server, until it is decoded
+    private byte[] _longname;
+    private Charset encoding;
 
     LsEntry(String filename, String longname, SftpATTRS attrs) {
       setFilename(filename);
@@ -3070,6 +3436,17 @@ public class ChannelSftp extends ChannelSession {
       setAttrs(attrs);
     }
 
+    /**
+     * @param longname the long name as sent by the server, which is only decoded when asked for, or
+     *        <code>null</code> if the server has not sent one
+     */
+    LsEntry(String filename, byte[] longname, Charset encoding, SftpATTRS attrs) {
+      setFilename(filename);
+      setAttrs(attrs);
+      this._longname = longname;
+      this.encoding = encoding;
+    }
+
     public String getFilename() {
       return filename;
     };
@@ -3079,11 +3456,22 @@ public class ChannelSftp extends ChannelSession {
     };
 
     public String getLongname() {
+      if (longname == null) {
+        if (_longname != null) {
+          longname = Util.byte2str(_longname, encoding);
+        } else if (encoding != null) {
+          // TODO: we need to generate long name from attrs
+          // for the sftp protocol 4(and later).
+          longname = attrs.toString() + " " + filename;
+        }
+        _longname = null;
+      }
       return longname;
     };
 
     void setLongname(String longname) {
       this.longname = longname;
+      this._longname = null;
     };
 
     public SftpATTRS getAttrs() {
@@ -3096,7 +3484,7 @@ public class ChannelSftp extends ChannelSession {
 
     @Override
     public String toString() {
-      return longname;
+      return getLongname();
     }
 
     @Override
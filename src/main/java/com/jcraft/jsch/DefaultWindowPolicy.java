@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * Returns drained bytes to the window once the remaining window falls below
+ * <code>window_adjust_threshold</code> percent (default 50) of its maximum size, and at least
+ * <code>window_adjust_min</code> bytes (default 32768) can be returned or the consumer has drained
+ * everything it has been sent.
+ */
+class DefaultWindowPolicy implements WindowPolicy {
+
+  private int threshold = 50;
+  private int min = 32768;
+
+  @Override
+  public void init(Session session) {
+    try {
+      threshold = Integer.parseInt(session.getConfig("window_adjust_threshold"));
+    } catch (Exception e) {
+    }
+    try {
+      min = Integer.parseInt(session.getConfig("window_adjust_min"));
+    } catch (Exception e) {
+    }
+  }
+
+  @Override
+  public int adjust(int window, int windowMax, int consumed, int packetSize) {
+    if (window > 0 && window >= (long) windowMax * threshold / 100) {
+      return 0;
+    }
+    if (consumed < min && (long) window + consumed < windowMax) {
+      return 0;
+    }
+    return consumed;
+  }
+}
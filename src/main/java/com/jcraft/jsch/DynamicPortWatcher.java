@@ -0,0 +1,606 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * This file depends on following documents, - RFC 1928 SOCKS Protocol Version 5 - SOCKS: A protocol
+ * for TCP proxy across firewalls (SOCKS4) - SOCKS 4A: A Simple Extension to SOCKS 4 Protocol.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Local SOCKS4/SOCKS5 listener for dynamic port forwarding (<code>ssh -D</code>).
+ *
+ * <p>
+ * All pending SOCKS handshakes are driven by a single selector thread, so clients that are slow to
+ * send their request do not tie up a thread. Once a CONNECT request has been parsed, the success
+ * reply is written immediately and the <code>direct-tcpip</code> channel is opened afterwards, the
+ * same way OpenSSH does it, so the client can start sending while SSH_MSG_CHANNEL_OPEN is still in
+ * flight. If the channel cannot be opened, the client connection is simply closed. Opening the
+ * channel waits for the server's confirmation, so it is handed off to the session's delivery
+ * executor and never holds up the handshakes of other clients.
+ * </p>
+ *
+ * <p>
+ * The accepted connection is read and written through {@link SocketChannel#read(ByteBuffer)} and
+ * {@link SocketChannel#write(ByteBuffer)} rather than the streams of its socket adaptor. Up to Java
+ * 11, the adaptor streams share a lock, so a pending read would block writing the server's data
+ * back to the client.
+ * </p>
+ *
+ * <p>
+ * If a connection cannot be accepted, e.g. because the process has run out of file descriptors,
+ * accepting is paused for a second; the forwarding and the connections already accepted are kept.
+ * </p>
+ */
+class DynamicPortWatcher extends PortWatcher {
+
+  private static final int HANDSHAKE_TIMEOUT = 30000;
+  private static final int SELECT_TIMEOUT = 1000;
+  private static final int ACCEPT_PAUSE = 1000;
+
+  private final ServerSocketChannel ssc;
+  private final Selector selector;
+  private final SelectionKey acceptKey;
+
+  // when accepting has been paused, or 0
+  private long acceptPaused = 0;
+
+  DynamicPortWatcher(Session session, String address, int lport) throws JSchException {
+    super(session, lport);
+    ServerSocketChannel _ssc = null;
+    Selector _selector = null;
+    SelectionKey _acceptKey = null;
+    try {
+      boundaddress = InetAddress.getByName(address);
+      _ssc = ServerSocketChannel.open();
+      _ssc.socket().bind(new InetSocketAddress(boundaddress, lport));
+      _ssc.configureBlocking(false);
+      _selector = Selector.open();
+      _acceptKey = _ssc.register(_selector, SelectionKey.OP_ACCEPT);
+    } catch (Exception e) {
+      try {
+        if (_ssc != null)
+          _ssc.close();
+        if (_selector != null)
+          _selector.close();
+      } catch (IOException ee) {
+      }
+      String message = "PortForwardingD: local port " + address + ":" + lport + " cannot be bound.";
+      throw new JSchException(message, e);
+    }
+    ssc = _ssc;
+    selector = _selector;
+    acceptKey = _acceptKey;
+    ss = ssc.socket();
+    if (lport == 0) {
+      int assigned = ss.getLocalPort();
+      if (assigned != -1)
+        this.lport = assigned;
+    }
+  }
+
+  @Override
+  void run() {
+    thread = this::run;
+    try {
+      while (thread != null && ssc.isOpen()) {
+        selector.select(SELECT_TIMEOUT);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            handshake(key);
+          }
+        }
+        resumeAccept();
+        expire();
+      }
+    } catch (Exception e) {
+      if (thread != null && session.getLogger().isEnabled(Logger.ERROR)) {
+        session.getLogger().log(Logger.ERROR,
+            "PortForwardingD: stopped forwarding local port " + lport + ": " + e.getMessage(), e);
+      }
+    }
+    delete();
+    for (SelectionKey key : selector.keys()) {
+      close(key.channel());
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+    }
+  }
+
+  @Override
+  void delete() {
+    thread = null;
+    selector.wakeup();
+    super.delete();
+  }
+
+  private void accept() {
+    SocketChannel sc;
+    try {
+      sc = ssc.accept();
+    } catch (IOException e) {
+      if (!ssc.isOpen()) {
+        return;
+      }
+      if (session.getLogger().isEnabled(Logger.WARN)) {
+        String message = "PortForwardingD: local port " + lport + " cannot accept a connection";
+        session.getLogger().log(Logger.WARN, message + ": " + e.getMessage(), e);
+      }
+      // the pending connection would be reported as acceptable again right away
+      acceptKey.interestOps(0);
+      acceptPaused = System.currentTimeMillis();
+      return;
+    }
+    if (sc == null) {
+      return;
+    }
+    try {
+      sc.configureBlocking(false);
+      sc.socket().setTcpNoDelay(true);
+      sc.register(selector, SelectionKey.OP_READ, new Handshake());
+    } catch (IOException e) {
+      close(sc);
+    }
+  }
+
+  private void handshake(SelectionKey key) {
+    SocketChannel sc = (SocketChannel) key.channel();
+    Handshake h = (Handshake) key.attachment();
+    try {
+      if (key.isWritable()) {
+        sc.write(h.out);
+        if (h.out.hasRemaining()) {
+          return;
+        }
+        h.out.clear();
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      if (key.isReadable()) {
+        if (sc.read(h.in) < 0) {
+          close(sc);
+          return;
+        }
+      }
+
+      int result = h.process();
+      h.out.flip();
+      if (result == Handshake.FAILED) {
+        // best effort; the error reply is tiny and the connection is dropped anyway
+        sc.write(h.out);
+        close(sc);
+        return;
+      }
+      if (result == Handshake.DONE) {
+        key.cancel();
+        selector.selectNow();
+        sc.configureBlocking(true);
+        Executor executor;
+        try {
+          executor = session.getDeliveryExecutor();
+        } catch (JSchException e) {
+          close(sc);
+          return;
+        }
+        executor.execute(() -> connect(sc, h));
+        return;
+      }
+      sc.write(h.out);
+      if (h.out.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else {
+        h.out.clear();
+      }
+    } catch (IOException e) {
+      close(sc);
+    }
+  }
+
+  private void connect(SocketChannel sc, Handshake h) {
+    try {
+      while (h.out.hasRemaining()) {
+        sc.write(h.out);
+      }
+      openChannel(sc, h);
+    } catch (IOException e) {
+      close(sc);
+    }
+  }
+
+  private void openChannel(SocketChannel sc, Handshake h) throws IOException {
+    Socket socket = sc.socket();
+    InputStream in = new ChannelInputStream(sc);
+    byte[] rest = h.remaining();
+    if (rest.length > 0) {
+      in = new SequenceInputStream(new ByteArrayInputStream(rest), in);
+    }
+
+    ChannelDirectTCPIP channel = null;
+    try {
+      channel = (ChannelDirectTCPIP) session.openChannel("direct-tcpip");
+    } catch (JSchException e) {
+    }
+    if (channel == null) {
+      close(sc);
+      if (session.getLogger().isEnabled(Logger.DEBUG)) {
+        session.getLogger().log(Logger.DEBUG, "Failed to add DirectTCPIP channel to " + h.host + ":"
+            + h.port + " - session may be disconnecting");
+      }
+      return;
+    }
+
+    channel.setInputStream(in);
+    channel.setOutputStream(new ChannelOutputStream(sc));
+    channel.setHost(h.host);
+    channel.setPort(h.port);
+    channel.setOrgIPAddress(socket.getInetAddress().getHostAddress());
+    channel.setOrgPort(socket.getPort());
+    try {
+      channel.connect(connectTimeout);
+    } catch (JSchException e) {
+      close(sc);
+    }
+  }
+
+  private void resumeAccept() {
+    if (acceptPaused != 0 && System.currentTimeMillis() - acceptPaused >= ACCEPT_PAUSE
+        && acceptKey.isValid()) {
+      acceptPaused = 0;
+      acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (SelectionKey key : selector.keys()) {
+      Object h = key.attachment();
+      if (h instanceof Handshake && now - ((Handshake) h).start > HANDSHAKE_TIMEOUT) {
+        close(key.channel());
+      }
+    }
+  }
+
+  private static void close(java.nio.channels.Channel c) {
+    try {
+      c.close();
+    } catch (IOException e) {
+    }
+  }
+
+  static class ChannelInputStream extends InputStream {
+    private final SocketChannel sc;
+    private final byte[] one = new byte[1];
+
+    ChannelInputStream(SocketChannel sc) {
+      this.sc = sc;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int i = read(one, 0, 1);
+      return i < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return sc.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+      sc.close();
+    }
+  }
+
+  static class ChannelOutputStream extends OutputStream {
+    private final SocketChannel sc;
+
+    ChannelOutputStream(SocketChannel sc) {
+      this.sc = sc;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+      while (bb.hasRemaining()) {
+        sc.write(bb);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      sc.close();
+    }
+  }
+
+  /**
+   * Incremental parser for the client side of a SOCKS4, SOCKS4A or SOCKS5 CONNECT handshake. Bytes
+   * received from the client are appended to <code>in</code>, and replies to be sent back are
+   * appended to <code>out</code>.
+   */
+  static class Handshake {
+    static final int NEED_MORE = 0;
+    static final int DONE = 1;
+    static final int FAILED = -1;
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final int STATE_START = 0;
+    private static final int STATE_SOCKS5_REQUEST = 1;
+
+    final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    final long start = System.currentTimeMillis();
+
+    private int state = STATE_START;
+
+    int version;
+    String host;
+    int port;
+
+    int process() {
+      in.flip();
+      try {
+        int result = NEED_MORE;
+        while (result == NEED_MORE && in.hasRemaining()) {
+          int position = in.position();
+          if (state == STATE_START) {
+            version = in.get(position) & 0xff;
+            if (version == 5) {
+              result = greeting5();
+            } else if (version == 4) {
+              result = request4();
+            } else {
+              result = FAILED;
+            }
+          } else {
+            result = request5();
+          }
+          if (result == NEED_MORE && in.position() == position) {
+            break;
+          }
+        }
+        if (result == NEED_MORE && in.remaining() == in.capacity()) {
+          result = FAILED;
+        }
+        return result;
+      } finally {
+        in.compact();
+      }
+    }
+
+    byte[] remaining() {
+      in.flip();
+      byte[] foo = new byte[in.remaining()];
+      in.get(foo);
+      in.clear();
+      return foo;
+    }
+
+    /*
+     * +----+----------+----------+ |VER | NMETHODS | METHODS | +----+----------+----------+ | 1 | 1
+     * | 1 to 255 | +----+----------+----------+
+     */
+    private int greeting5() {
+      if (in.remaining() < 2) {
+        return NEED_MORE;
+      }
+      int nmethods = in.get(in.position() + 1) & 0xff;
+      if (in.remaining() < 2 + nmethods) {
+        return NEED_MORE;
+      }
+      in.position(in.position() + 2);
+      boolean noauth = false;
+      for (int i = 0; i < nmethods; i++) {
+        if (in.get() == 0) {
+          noauth = true;
+        }
+      }
+      out.put((byte) 5);
+      if (!noauth) {
+        out.put((byte) 0xff); // NO ACCEPTABLE METHODS
+        return FAILED;
+      }
+      out.put((byte) 0); // NO AUTHENTICATION REQUIRED
+      state = STATE_SOCKS5_REQUEST;
+      return NEED_MORE;
+    }
+
+    /*
+     * +----+-----+-------+------+----------+----------+ |VER | CMD | RSV | ATYP | DST.ADDR |
+     * DST.PORT | +----+-----+-------+------+----------+----------+ | 1 | 1 | X'00' | 1 | Variable |
+     * 2 | +----+-----+-------+------+----------+----------+
+     */
+    private int request5() {
+      if (in.remaining() < 5) {
+        return NEED_MORE;
+      }
+      int p = in.position();
+      int cmd = in.get(p + 1) & 0xff;
+      int atyp = in.get(p + 3) & 0xff;
+      int addrlen;
+      switch (atyp) {
+        case 1: // IP V4 address
+          addrlen = 4;
+          break;
+        case 3: // DOMAINNAME
+          addrlen = 1 + (in.get(p + 4) & 0xff);
+          break;
+        case 4: // IP V6 address
+          addrlen = 16;
+          break;
+        default:
+          reply5(8); // Address type not supported
+          return FAILED;
+      }
+      if (in.remaining() < 4 + addrlen + 2) {
+        return NEED_MORE;
+      }
+      if ((in.get(p) & 0xff) != 5) {
+        reply5(1); // general SOCKS server failure
+        return FAILED;
+      }
+      if (cmd != 1) {
+        reply5(7); // Command not supported
+        return FAILED;
+      }
+      in.position(p + 4);
+      if (atyp == 3) {
+        byte[] name = new byte[in.get() & 0xff];
+        in.get(name);
+        host = Util.byte2str(name);
+      } else {
+        byte[] addr = new byte[addrlen];
+        in.get(addr);
+        host = toHostAddress(addr);
+      }
+      port = ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+      if (host == null) {
+        reply5(1);
+        return FAILED;
+      }
+      reply5(0);
+      return DONE;
+    }
+
+    private void reply5(int rep) {
+      out.put((byte) 5);
+      out.put((byte) rep);
+      out.put((byte) 0);
+      out.put((byte) 1); // IP V4 address
+      out.put(new byte[4 + 2]); // BND.ADDR, BND.PORT
+    }
+
+    /*
+     * +----+----+----+----+----+----+----+----+----+----+....+----+ | VN | CD | DSTPORT | DSTIP |
+     * USERID |NULL| +----+----+----+----+----+----+----+----+----+----+....+----+ 1 1 2 4 variable
+     * 1
+     *
+     * SOCKS4A: if DSTIP is 0.0.0.x with x non-zero, the domain name follows the USERID, terminated
+     * by another NULL.
+     */
+    private int request4() {
+      if (in.remaining() < 9) {
+        return NEED_MORE;
+      }
+      int p = in.position();
+      int userid_end = indexOfNull(p + 8);
+      if (userid_end < 0) {
+        return NEED_MORE;
+      }
+      byte[] addr = new byte[4];
+      for (int i = 0; i < 4; i++) {
+        addr[i] = in.get(p + 4 + i);
+      }
+      boolean socks4a = addr[0] == 0 && addr[1] == 0 && addr[2] == 0 && addr[3] != 0;
+      int end = userid_end;
+      if (socks4a) {
+        end = indexOfNull(userid_end + 1);
+        if (end < 0) {
+          return NEED_MORE;
+        }
+      }
+
+      int cmd = in.get(p + 1) & 0xff;
+      int _port = ((in.get(p + 2) & 0xff) << 8) | (in.get(p + 3) & 0xff);
+      if (socks4a) {
+        byte[] name = new byte[end - (userid_end + 1)];
+        for (int i = 0; i < name.length; i++) {
+          name[i] = in.get(userid_end + 1 + i);
+        }
+        host = Util.byte2str(name);
+      } else {
+        host = toHostAddress(addr);
+      }
+      port = _port;
+      in.position(end + 1);
+
+      if (cmd != 1 || host == null || host.isEmpty()) {
+        reply4(91); // request rejected or failed
+        return FAILED;
+      }
+      reply4(90); // request granted
+      return DONE;
+    }
+
+    private void reply4(int cd) {
+      out.put((byte) 0);
+      out.put((byte) cd);
+      out.put(new byte[2 + 4]); // DSTPORT, DSTIP
+    }
+
+    private int indexOfNull(int from) {
+      for (int i = from; i < in.limit(); i++) {
+        if (in.get(i) == 0) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String toHostAddress(byte[] addr) {
+      try {
+        return InetAddress.getByAddress(addr).getHostAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a command on many hosts, with a bounded number of commands running at the same time.
+ *
+ * <p>
+ * At most {@link #getMaxConcurrency()} commands run at any time, and at most
+ * {@link #getMaxPerHost()} on one host. A few threads connect the sessions and open the exec
+ * channels; a running command holds no thread of its own, as its output is handed to the
+ * {@link FanoutListener} by the session, and its completion is noticed when its channel is closed.
+ * Each connected session still has its reader thread, so the threads are bounded by the number of
+ * connected sessions, not by the number of hosts.
+ * </p>
+ *
+ * <p>
+ * The session of a host is shared by the commands running on it, and kept connected once they are
+ * done, so that the next command on the host is started without connecting again. Up to
+ * {@link #getMaxIdleSessions()} idle sessions are kept; the one idle the longest is disconnected
+ * when there are more.
+ * </p>
+ *
+ * <pre>
+ * try (FanoutExecutor fanout = new FanoutExecutor(jsch)) {
+ *   fanout.setMaxConcurrency(500);
+ *   fanout.setCommandTimeout(60000);
+ *   fanout.run(hosts, "uptime", listener).join();
+ * }
+ * </pre>
+ */
+public class FanoutExecutor implements AutoCloseable {
+
+  /** Creates the sessions, which are not connected yet, of the hosts. */
+  public interface SessionFactory {
+    Session newSession(String host) throws JSchException;
+  }
+
+  private final SessionFactory factory;
+
+  private int maxConcurrency = 64;
+  private int maxPerHost = 1;
+  private int maxIdleSessions = 64;
+  private int connectThreads = 16;
+  private int connectTimeout = 30000;
+  private long commandTimeout = 0;
+
+  // guarded by this
+  private final ArrayDeque<Task> queue = new ArrayDeque<>();
+  private final Map<String, Host> hosts = new HashMap<>();
+  private final LinkedHashMap<String, Host> idle = new LinkedHashMap<>();
+  private int running = 0;
+  private boolean closed = false;
+  private ThreadPoolExecutor connector = null;
+  private ScheduledThreadPoolExecutor timer = null;
+
+  /**
+   * Creates an executor which connects to hosts given as <code>[user@]host[:port]</code>, with the
+   * identities, known hosts and configuration of <code>jsch</code>.
+   */
+  public FanoutExecutor(JSch jsch) {
+    this(host -> newSession(jsch, host));
+  }
+
+  /**
+   * @param factory creates the sessions of the hosts, with their user, port, credentials and
+   *        configuration
+   */
+  public FanoutExecutor(SessionFactory factory) {
+    this.factory = factory;
+  }
+
+  /** Sets how many commands may run at the same time, 64 by default. */
+  public synchronized void setMaxConcurrency(int maxConcurrency) {
+    this.maxConcurrency = positive("setMaxConcurrency", maxConcurrency);
+  }
+
+  public synchronized int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Sets how many commands may run on one host at the same time, over channels of one session, 1 by
+   * default.
+   */
+  public synchronized void setMaxPerHost(int maxPerHost) {
+    this.maxPerHost = positive("setMaxPerHost", maxPerHost);
+  }
+
+  public synchronized int getMaxPerHost() {
+    return maxPerHost;
+  }
+
+  /**
+   * Sets how many sessions with no command running are kept connected, 64 by default;
+   * <code>0</code> disconnects every session once its commands are done.
+   */
+  public synchronized void setMaxIdleSessions(int maxIdleSessions) {
+    if (maxIdleSessions < 0) {
+      throw new IllegalArgumentException(
+          "setMaxIdleSessions: " + maxIdleSessions + " must not be negative.");
+    }
+    this.maxIdleSessions = maxIdleSessions;
+  }
+
+  public synchronized int getMaxIdleSessions() {
+    return maxIdleSessions;
+  }
+
+  /**
+   * Sets how many threads connect sessions and open channels at the same time, 16 by default. It
+   * has to be set before the first command is run.
+   */
+  public synchronized void setConnectThreads(int connectThreads) {
+    this.connectThreads = positive("setConnectThreads", connectThreads);
+  }
+
+  public synchronized int getConnectThreads() {
+    return connectThreads;
+  }
+
+  /**
+   * Sets the timeout for connecting the session of a host and opening a channel, in milliseconds,
+   * 30000 by default; <code>0</code> means no timeout.
+   */
+  public synchronized void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public synchronized int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets how long a command may run on a host, from the moment its channel is open, in
+   * milliseconds; its channel is closed once it is over. The default <code>0</code> means no
+   * timeout.
+   */
+  public synchronized void setCommandTimeout(long commandTimeout) {
+    this.commandTimeout = commandTimeout;
+  }
+
+  public synchronized long getCommandTimeout() {
+    return commandTimeout;
+  }
+
+  private static int positive(String name, int value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException(name + ": " + value + " must be greater than 0.");
+    }
+    return value;
+  }
+
+  /**
+   * Runs <code>command</code> on every host of <code>hosts</code>, and passes its output and its
+   * outcome to <code>listener</code>. The commands are queued behind those of earlier calls which
+   * have not been started yet.
+   *
+   * @return a future which is completed once the command has completed on every host
+   */
+  public CompletableFuture<Void> run(Collection<String> hosts, String command,
+      FanoutListener listener) {
+    Run run = new Run(hosts.size());
+    List<Task> rejected = new ArrayList<>();
+    synchronized (this) {
+      for (String host : hosts) {
+        Task task = new Task(run, host, command, listener);
+        if (closed) {
+          rejected.add(task);
+        } else {
+          queue.addLast(task);
+        }
+      }
+      pump();
+    }
+    for (Task task : rejected) {
+      task.fail(new JSchException("the executor is closed"));
+    }
+    if (hosts.isEmpty()) {
+      run.complete(null);
+    }
+    return run;
+  }
+
+  /** Starts queued commands as long as the limits allow. */
+  private void pump() {
+    while (running < maxConcurrency && !queue.isEmpty()) {
+      Task task = queue.pollFirst();
+      Host host = hosts.computeIfAbsent(task.host, Host::new);
+      if (host.running >= maxPerHost) {
+        host.waiting.addLast(task);
+        continue;
+      }
+      host.running++;
+      running++;
+      idle.remove(host.name);
+      task.owner = host;
+      connector().execute(() -> start(task));
+    }
+  }
+
+  private ThreadPoolExecutor connector() {
+    if (connector == null) {
+      connector = new ThreadPoolExecutor(connectThreads, connectThreads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), daemon("Fanout connect thread"));
+      connector.allowCoreThreadTimeOut(true);
+    }
+    return connector;
+  }
+
+  private synchronized ScheduledThreadPoolExecutor timer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, daemon("Fanout timer thread"));
+      timer.setRemoveOnCancelPolicy(true);
+    }
+    return timer;
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return r -> {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** Connects the session of the task's host if needed, and starts the command. */
+  private void start(Task task) {
+    Host host = task.owner;
+    ChannelExec channel = null;
+    try {
+      if (isClosed()) {
+        // queued on the connect threads before the executor was closed
+        throw new JSchException("the executor is closed");
+      }
+      Session session = host.session(this);
+      Channel _channel = session.openChannel("exec");
+      if (_channel == null) {
+        throw new JSchException("failed to open an exec channel");
+      }
+      channel = (ChannelExec) _channel;
+      channel.setCommand(task.command);
+      channel.setOutputStream(new Output(task, false));
+      channel.setExtOutputStream(new Output(task, true));
+      task.channel = channel;
+      channel.connect(getConnectTimeout());
+      // the command gets no input
+      channel.eof();
+      task.started(getCommandTimeout());
+    } catch (JSchException | RuntimeException e) {
+      if (channel != null) {
+        channel.disconnect();
+      }
+      host.drop();
+      task.fail(
+          e instanceof JSchException ? (JSchException) e : new JSchException(e.toString(), e));
+    }
+  }
+
+  /** Releases the limits held by a completed task, and starts the next ones. */
+  private void done(Task task) {
+    Host host = task.owner;
+    List<Session> evicted = new ArrayList<>();
+    synchronized (this) {
+      if (host == null) {
+        return;
+      }
+      running--;
+      host.running--;
+      if (!host.waiting.isEmpty()) {
+        queue.addFirst(host.waiting.pollFirst());
+      }
+      if (host.running == 0 && host.waiting.isEmpty()) {
+        Session session = host.connected();
+        if (closed) {
+          hosts.remove(host.name);
+          Session _session = host.take();
+          if (_session != null) {
+            evicted.add(_session);
+          }
+        } else if (session == null) {
+          hosts.remove(host.name);
+        } else {
+          idle.put(host.name, host);
+          Iterator<Host> i = idle.values().iterator();
+          while (idle.size() > maxIdleSessions && i.hasNext()) {
+            Host eldest = i.next();
+            i.remove();
+            hosts.remove(eldest.name);
+            Session _session = eldest.take();
+            if (_session != null) {
+              evicted.add(_session);
+            }
+          }
+        }
+      }
+      pump();
+    }
+    for (Session session : evicted) {
+      session.disconnect();
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Disconnects every session, fails the commands which have not been started yet, and stops the
+   * threads of this executor. The commands which are running fail as their sessions are
+   * disconnected.
+   */
+  @Override
+  public void close() {
+    List<Task> pending = new ArrayList<>();
+    List<Host> all;
+    synchronized (this) {
+      closed = true;
+      pending.addAll(queue);
+      queue.clear();
+      for (Host host : hosts.values()) {
+        pending.addAll(host.waiting);
+        host.waiting.clear();
+      }
+      all = new ArrayList<>(hosts.values());
+      idle.clear();
+      if (connector != null) {
+        connector.shutdown();
+      }
+    }
+    for (Task task : pending) {
+      task.fail(new JSchException("the executor is closed"));
+    }
+    for (Host host : all) {
+      Session session = host.take();
+      if (session != null) {
+        session.disconnect();
+      }
+    }
+    synchronized (this) {
+      if (timer != null) {
+        timer.shutdown();
+      }
+    }
+  }
+
+  /** Creates the session of <code>[user@]host[:port]</code>. */
+  static Session newSession(JSch jsch, String spec) throws JSchException {
+    String user = null;
+    String host = spec;
+    int port = 22;
+    int at = host.lastIndexOf('@');
+    if (at >= 0) {
+      user = host.substring(0, at);
+      host = host.substring(at + 1);
+    }
+    int colon = host.lastIndexOf(':');
+    int bracket = host.lastIndexOf(']');
+    if (colon > bracket && (bracket >= 0 || host.indexOf(':') == colon)) {
+      try {
+        port = Integer.parseInt(host.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new JSchException("invalid port: " + spec);
+      }
+      host = host.substring(0, colon);
+    }
+    if (host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+    return jsch.getSession(user, host, port);
+  }
+
+  /** The session of a host, and the commands on it. */
+  private static class Host {
+    final String name;
+    // guarded by the executor
+    final ArrayDeque<Task> waiting = new ArrayDeque<>();
+    int running = 0;
+    // only replaced while holding the lock of this host
+    private volatile Session session = null;
+
+    Host(String name) {
+      this.name = name;
+    }
+
+    /** Returns the connected session, connecting a new one if there is none. */
+    synchronized Session session(FanoutExecutor executor) throws JSchException {
+      Session _session = session;
+      if (_session != null && _session.isConnected()) {
+        return _session;
+      }
+      // close() takes the session of this host once it has been marked closed, so no session is
+      // connected after that
+      if (executor.isClosed()) {
+        throw new JSchException("the executor is closed");
+      }
+      _session = executor.factory.newSession(name);
+      _session.connect(executor.getConnectTimeout());
+      session = _session;
+      return _session;
+    }
+
+    /** Returns the session if it is still connected. */
+    Session connected() {
+      Session _session = session;
+      return _session != null && _session.isConnected() ? _session : null;
+    }
+
+    /** Drops a session which is no longer connected. */
+    synchronized void drop() {
+      if (session != null && !session.isConnected()) {
+        session = null;
+      }
+    }
+
+    /** Takes the session away, once no command may run on this host. */
+    synchronized Session take() {
+      Session _session = session;
+      session = null;
+      return _session;
+    }
+  }
+
+  /** The completion of one call of {@link FanoutExecutor#run}. */
+  private static class Run extends CompletableFuture<Void> {
+    private int remaining;
+
+    Run(int hosts) {
+      this.remaining = hosts;
+    }
+
+    void done() {
+      boolean last;
+      synchronized (this) {
+        last = --remaining == 0;
+      }
+      if (last) {
+        complete(null);
+      }
+    }
+  }
+
+  /** A command on one host. */
+  private class Task {
+    final Run run;
+    final String host;
+    final String command;
+    final FanoutListener listener;
+    Host owner = null;
+    volatile ChannelExec channel = null;
+
+    // guarded by this
+    private boolean started = false;
+    private boolean closed = false;
+    private boolean timedOut = false;
+    private boolean done = false;
+    private ScheduledFuture<?> timeout = null;
+
+    Task(Run run, String host, String command, FanoutListener listener) {
+      this.run = run;
+      this.host = host;
+      this.command = command;
+      this.listener = listener;
+    }
+
+    /** Called once the channel is open, which may be after it has been closed already. */
+    void started(long millis) {
+      synchronized (this) {
+        started = true;
+        if (!closed) {
+          if (millis > 0) {
+            timeout = timer().schedule(this::timeout, millis, TimeUnit.MILLISECONDS);
+          }
+          return;
+        }
+      }
+      finish();
+    }
+
+    /** Called once the channel is closed, after all of its output has been passed on. */
+    void closed() {
+      synchronized (this) {
+        closed = true;
+        if (!started) {
+          return;
+        }
+      }
+      finish();
+    }
+
+    private void timeout() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        timedOut = true;
+      }
+      ChannelExec _channel = channel;
+      if (_channel != null) {
+        _channel.disconnect();
+      }
+    }
+
+    private void finish() {
+      ChannelExec _channel = channel;
+      int status = _channel == null ? -1 : _channel.getExitStatus();
+      JSchException failure = null;
+      synchronized (this) {
+        if (timedOut) {
+          failure = new JSchException("timeout: the command has not completed in time");
+        }
+      }
+      if (failure == null && status == -1 && _channel != null) {
+        Session session = owner.connected();
+        if (session == null) {
+          failure = new JSchException("session is down");
+        }
+      }
+      complete(status, failure);
+    }
+
+    void fail(JSchException failure) {
+      complete(-1, failure);
+    }
+
+    private void complete(int status, JSchException failure) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+        if (timeout != null) {
+          timeout.cancel(false);
+        }
+      }
+      try {
+        listener.completed(host, status, failure);
+      } catch (RuntimeException e) {
+        // the other hosts go on
+      }
+      done(this);
+      run.done();
+    }
+  }
+
+  /** Passes the output of a command to the listener, and its end to the task. */
+  private static class Output extends OutputStream {
+    private final Task task;
+    private final boolean stderr;
+    private boolean closed = false;
+
+    Output(Task task, boolean stderr) {
+      this.task = task;
+      this.stderr = stderr;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      try {
+        if (stderr) {
+          task.listener.stderr(task.host, b, off, len);
+        } else {
+          task.listener.stdout(task.host, b, off, len);
+        }
+      } catch (RuntimeException e) {
+        // the output is dropped, but the command goes on
+      }
+    }
+
+    @Override
+    public void close() {
+      // the standard output is closed on EOF, before the exit status may have arrived, and the
+      // standard error once the channel is closed, after the data received before
+      if (stderr && !closed) {
+        closed = true;
+        task.closed();
+      }
+    }
+  }
+}
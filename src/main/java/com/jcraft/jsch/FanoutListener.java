@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * Receives the output and the outcome of a command run on many hosts by a {@link FanoutExecutor}.
+ * It may be called on any thread, and for several hosts at the same time, so it has to be thread
+ * safe; the calls for one command on one host are made one after another, in order.
+ *
+ * @see FanoutExecutor
+ */
+public interface FanoutListener {
+
+  /**
+   * Called with data the command has written to its standard output.
+   *
+   * @param host the host, as given to the executor
+   * @param data the buffer holding the data, which is only valid during the call
+   * @param off the offset of the data in <code>data</code>
+   * @param len the length of the data
+   */
+  default void stdout(String host, byte[] data, int off, int len) {}
+
+  /**
+   * Called with data the command has written to its standard error.
+   *
+   * @param host the host, as given to the executor
+   * @param data the buffer holding the data, which is only valid during the call
+   * @param off the offset of the data in <code>data</code>
+   * @param len the length of the data
+   */
+  default void stderr(String host, byte[] data, int off, int len) {}
+
+  /**
+   * Called once the command has completed on <code>host</code>, after all of its output.
+   *
+   * @param host the host, as given to the executor
+   * @param exitStatus the exit status of the command, or <code>-1</code> if there is none
+   * @param failure why the command could not be run or has not completed, like a failure to connect
+   *        or a timeout, or <code>null</code>
+   */
+  void completed(String host, int exitStatus, JSchException failure);
+}
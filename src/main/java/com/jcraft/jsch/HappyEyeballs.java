@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * This file depends on following documents, - RFC 8305 Happy Eyeballs Version 2: Better
+ * Connectivity Using Concurrency
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Establishes a TCP connection to a host name that may resolve to several addresses.
+ *
+ * <p>
+ * The resolved addresses are interleaved by address family and connection attempts are started one
+ * after another, each one <code>jsch.connection_attempt_delay</code> milliseconds (default 250)
+ * after the previous one or immediately once the previous one has failed. The first socket that
+ * connects is returned and every other attempt is abandoned, so a dead address only costs the
+ * attempt delay instead of the whole connect timeout.
+ * </p>
+ *
+ * <p>
+ * Resolved addresses are kept in a JVM-wide cache for <code>jsch.address_cache_ttl</code>
+ * milliseconds (default 30000, <code>0</code> disables the cache). An entry is dropped as soon as
+ * none of its addresses could be connected to.
+ * </p>
+ */
+final class HappyEyeballs {
+
+  static final long ATTEMPT_DELAY =
+      parse(Util.getSystemProperty("jsch.connection_attempt_delay"), 250L);
+  static final long CACHE_TTL = parse(Util.getSystemProperty("jsch.address_cache_ttl"), 30000L);
+
+  private static final int CACHE_SIZE = 256;
+
+  private static final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+  private HappyEyeballs() {}
+
+  static Socket connect(String host, int port, int timeout, ThreadFactory factory, int bufferSize)
+      throws JSchException {
+    InetAddress[] addresses;
+    try {
+      addresses = resolve(host);
+    } catch (UnknownHostException e) {
+      throw new JSchException(e.toString(), e);
+    }
+    List<InetSocketAddress> targets = new ArrayList<>();
+    for (InetAddress address : sort(addresses)) {
+      targets.add(new InetSocketAddress(address, port));
+    }
+    try {
+      return connect(targets, timeout, ATTEMPT_DELAY, factory, bufferSize);
+    } catch (JSchException e) {
+      cache.remove(host);
+      throw e;
+    }
+  }
+
+  static Socket connect(List<InetSocketAddress> targets, int timeout, long delay,
+      ThreadFactory factory) throws JSchException {
+    return connect(targets, timeout, delay, factory, 0);
+  }
+
+  /**
+   * Connects to the first reachable address of <code>targets</code>.
+   *
+   * @param bufferSize if positive, SO_RCVBUF and SO_SNDBUF are set to this value before connecting,
+   *        so that a large enough TCP window scale is negotiated
+   */
+  static Socket connect(List<InetSocketAddress> targets, int timeout, long delay,
+      ThreadFactory factory, int bufferSize) throws JSchException {
+    if (targets.size() == 1) {
+      Socket socket = newSocket(bufferSize);
+      try {
+        socket.connect(targets.get(0), timeout);
+        return socket;
+      } catch (Exception e) {
+        close(socket);
+        throw failure(e);
+      }
+    }
+    return new Race(targets, timeout, delay, factory, bufferSize).run();
+  }
+
+  private static Socket newSocket(int bufferSize) throws JSchException {
+    Socket socket = new Socket();
+    if (bufferSize > 0) {
+      try {
+        socket.setReceiveBufferSize(bufferSize);
+        socket.setSendBufferSize(bufferSize);
+      } catch (IOException e) {
+        close(socket);
+        throw new JSchException(e.toString(), e);
+      }
+    }
+    return socket;
+  }
+
+  static InetAddress[] resolve(String host) throws UnknownHostException {
+    if (CACHE_TTL <= 0) {
+      return InetAddress.getAllByName(host);
+    }
+    long now = System.currentTimeMillis();
+    CacheEntry entry = cache.get(host);
+    if (entry != null && entry.expires - now > 0) {
+      return entry.addresses;
+    }
+    InetAddress[] addresses = InetAddress.getAllByName(host);
+    if (cache.size() >= CACHE_SIZE) {
+      expire(now);
+    }
+    if (cache.size() < CACHE_SIZE) {
+      cache.put(host, new CacheEntry(addresses, now + CACHE_TTL));
+    }
+    return addresses;
+  }
+
+  static void clearCache() {
+    cache.clear();
+  }
+
+  /**
+   * Interleaves the given addresses by family, starting with the family of the first address as
+   * suggested by RFC 8305 section 4.
+   */
+  static List<InetAddress> sort(InetAddress[] addresses) {
+    List<InetAddress> first = new ArrayList<>();
+    List<InetAddress> second = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      if ((address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address)) {
+        first.add(address);
+      } else {
+        second.add(address);
+      }
+    }
+    List<InetAddress> result = new ArrayList<>(addresses.length);
+    for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+      if (i < first.size())
+        result.add(first.get(i));
+      if (i < second.size())
+        result.add(second.get(i));
+    }
+    return result;
+  }
+
+  private static void expire(long now) {
+    Iterator<CacheEntry> i = cache.values().iterator();
+    while (i.hasNext()) {
+      if (i.next().expires - now <= 0) {
+        i.remove();
+      }
+    }
+  }
+
+  private static JSchException failure(Exception e) {
+    String message =
+        e instanceof SocketTimeoutException ? "timeout: socket is not established" : e.toString();
+    return new JSchException(message, e);
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    } catch (Exception ignore) {
+    }
+  }
+
+  private static long parse(String value, long def) {
+    if (value == null) {
+      return def;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return def;
+    }
+  }
+
+  private static class CacheEntry {
+    final InetAddress[] addresses;
+    final long expires;
+
+    CacheEntry(InetAddress[] addresses, long expires) {
+      this.addresses = addresses;
+      this.expires = expires;
+    }
+  }
+
+  private static class Race {
+    private final List<InetSocketAddress> targets;
+    private final int timeout;
+    private final long delay;
+    private final ThreadFactory factory;
+    private final int bufferSize;
+
+    private final List<Socket> pending = new ArrayList<>();
+    private Socket winner;
+    private Exception lastException;
+    private int running;
+    private int failed;
+    private boolean done;
+
+    Race(List<InetSocketAddress> targets, int timeout, long delay, ThreadFactory factory,
+        int bufferSize) {
+      this.targets = targets;
+      this.timeout = timeout;
+      this.delay = delay;
+      this.factory = factory;
+      this.bufferSize = bufferSize;
+    }
+
+    synchronized Socket run() throws JSchException {
+      long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+      int next = 0;
+      try {
+        while (true) {
+          if (next < targets.size()) {
+            start(targets.get(next++), deadline);
+          }
+
+          int _failed = failed;
+          long started = System.currentTimeMillis();
+          while (winner == null && failed == _failed) {
+            long now = System.currentTimeMillis();
+            long wait = 0;
+            if (next < targets.size()) {
+              wait = delay - (now - started);
+              if (wait <= 0)
+                break;
+            }
+            if (deadline != 0) {
+              if (deadline - now <= 0)
+                throw failure(new SocketTimeoutException("connect timed out"));
+              wait = wait == 0 ? deadline - now : Math.min(wait, deadline - now);
+            }
+            if (running == 0 && next >= targets.size())
+              break;
+            wait(wait);
+          }
+
+          if (winner != null) {
+            return winner;
+          }
+          if (running == 0 && next >= targets.size()) {
+            throw failure(lastException);
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new JSchException(e.toString(), e);
+      } finally {
+        done = true;
+        for (Socket socket : pending) {
+          close(socket);
+        }
+        pending.clear();
+      }
+    }
+
+    private void start(InetSocketAddress target, long deadline) throws JSchException {
+      Socket socket = newSocket(bufferSize);
+      int _timeout = deadline == 0 ? 0 : (int) Math.max(1, deadline - System.currentTimeMillis());
+      Thread thread = factory.newThread(() -> attempt(socket, target, _timeout));
+      if (thread == null) {
+        throw new JSchException("failed to create a thread for connecting to " + target);
+      }
+      thread.setName("Connect thread " + target);
+      thread.setDaemon(true);
+      pending.add(socket);
+      running++;
+      thread.start();
+    }
+
+    private void attempt(Socket socket, InetSocketAddress target, int _timeout) {
+      Exception e = null;
+      try {
+        if (target.isUnresolved()) {
+          throw new UnknownHostException(target.getHostString());
+        }
+        socket.connect(target, _timeout);
+      } catch (IOException | RuntimeException ee) {
+        e = ee;
+      }
+      synchronized (this) {
+        running--;
+        if (e == null && winner == null && !done) {
+          winner = socket;
+          pending.remove(socket);
+        } else {
+          if (e != null) {
+            lastException = e;
+            failed++;
+          }
+          pending.remove(socket);
+          close(socket);
+        }
+        notifyAll();
+      }
+    }
+  }
+}
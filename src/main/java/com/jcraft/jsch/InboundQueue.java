@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Holds the data, EOF and close received for a channel until they have been delivered to the
+ * consumer of the channel, so that the session's reader thread never blocks on a slow consumer. The
+ * delivery runs on a thread of the given executor, one task at a time per channel.
+ *
+ * <p>
+ * The data is returned to the local window of the channel only after it has been delivered, so the
+ * queue never holds more than the maximum local window size unless the remote side ignores the
+ * window.
+ * </p>
+ */
+class InboundQueue implements Runnable {
+  static final int DATA = 0;
+  static final int EXTENDED_DATA = 1;
+  static final int EOF = 2;
+  static final int CLOSE = 3;
+
+  private static class Entry {
+    final int type;
+    final byte[] data;
+
+    Entry(int type, byte[] data) {
+      this.type = type;
+      this.data = data;
+    }
+  }
+
+  private final Channel channel;
+  private final Executor executor;
+  private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+  private long size = 0;
+  private boolean running = false;
+  private boolean broken = false;
+
+  InboundQueue(Channel channel, Executor executor) {
+    this.channel = channel;
+    this.executor = executor;
+  }
+
+  void add(int type, byte[] foo, int s, int l) throws IOException {
+    synchronized (this) {
+      if (broken) {
+        return;
+      }
+      byte[] data = null;
+      if (type == DATA || type == EXTENDED_DATA) {
+        // twice the window, as the window may have been returned before the remote side saw it
+        if (size + l > 2L * channel.lwsize_max + channel.lmpsize) {
+          throw new IOException("the remote side has sent more data than the local window allows");
+        }
+        data = Arrays.copyOfRange(foo, s, s + l);
+        size += l;
+      }
+      entries.addLast(new Entry(type, data));
+      if (running) {
+        return;
+      }
+      running = true;
+    }
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        running = false;
+      }
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Entry entry;
+      synchronized (this) {
+        entry = entries.pollFirst();
+        if (entry == null) {
+          running = false;
+          return;
+        }
+      }
+      try {
+        switch (entry.type) {
+          case DATA:
+            channel.write(entry.data, 0, entry.data.length);
+            break;
+          case EXTENDED_DATA:
+            channel.write_ext(entry.data, 0, entry.data.length);
+            break;
+          case EOF:
+            channel.eof_remote();
+            break;
+          default:
+            channel.disconnect();
+            break;
+        }
+      } catch (Exception e) {
+        synchronized (this) {
+          broken = true;
+          entries.clear();
+          size = 0;
+          running = false;
+        }
+        try {
+          channel.disconnect();
+        } catch (Exception ee) {
+        }
+        return;
+      }
+      if (entry.data != null) {
+        synchronized (this) {
+          size -= entry.data.length;
+        }
+        channel.delivered(entry.data.length, entry.type == EXTENDED_DATA);
+      }
+    }
+  }
+}
@@ -255,6 +255,13 @@ public class JSch {
     config.put("enable_auth_none", Util.getSystemProperty("jsch.enable_auth_none", "yes"));
     config.put("use_sftp_write_flush_workaround",
         Util.getSystemProperty("jsch.use_sftp_write_flush_workaround", "yes"));
+    config.put("sftp_max_requests", Util.getSystemProperty("jsch.sftp_max_requests", "64"));
+    config.put("sftp_max_request_size",
+        Util.getSystemProperty("jsch.sftp_max_request_size", "261120"));
+    config.put("sftp_cache_ttl", Util.getSystemProperty("jsch.sftp_cache_ttl", "0"));
+    config.put("sftp_cache_size", Util.getSystemProperty("jsch.sftp_cache_size", "1024"));
+    config.put("sftp_sync_block_size",
+        Util.getSystemProperty("jsch.sftp_sync_block_size", "1048576"));
 
     config.put("CheckCiphers",
         Util.getSystemProperty("jsch.check_ciphers", "chacha20-poly1305@openssh.com"));
@@ -266,6 +273,17 @@ public class JSch {
     config.put("FingerprintHash", Util.getSystemProperty("jsch.fingerprint_hash", "sha256"));
 
     config.put("MaxAuthTries", Util.getSystemProperty("jsch.max_auth_tries", "6"));
+
+    config.put("window_policy",
+        Util.getSystemProperty("jsch.window_policy", "com.jcraft.jsch.DefaultWindowPolicy"));
+    config.put("window_adjust_threshold",
+        Util.getSystemProperty("jsch.window_adjust_threshold", "50"));
+    config.put("window_adjust_min", Util.getSystemProperty("jsch.window_adjust_min", "32768"));
+    config.put("window_auto_tuning", Util.getSystemProperty("jsch.window_auto_tuning", "no"));
+    config.put("window_size_max", Util.getSystemProperty("jsch.window_size_max", "16777216"));
+    config.put("rate_limit", Util.getSystemProperty("jsch.rate_limit", "0"));
+    config.put("channel_rate_limit", Util.getSystemProperty("jsch.channel_rate_limit", "0"));
+    config.put("rate_limit_group", Util.getSystemProperty("jsch.rate_limit_group", ""));
     config.put("ClearAllForwardings", "no");
     /*
      * host_certificate_to_key_fallback: Controls behavior when host certificate validation fails. -
@@ -70,6 +70,7 @@ import java.util.stream.Stream;
  * <li>ServerAliveInterval</li>
  * <li>LocalForward</li>
  * <li>RemoteForward</li>
+ * <li>DynamicForward</li>
  * <li>ClearAllForwardings</li>
  * <li>CASignatureAlgorithms</li>
  * </ul>
@@ -90,7 +90,7 @@ class PortWatcher {
     synchronized (pool) {
       for (int i = 0; i < pool.size(); i++) {
         PortWatcher p = pool.elementAt(i);
-        if (p.session == session) {
+        if (p.session == session && !(p instanceof DynamicPortWatcher)) {
           foo.addElement(p.lport + ":" + p.host + ":" + p.rport);
         }
       }
@@ -102,6 +102,23 @@ class PortWatcher {
     return bar;
   }
 
+  static String[] getDynamicPortForwarding(Session session) {
+    Vector<String> foo = new Vector<>();
+    synchronized (pool) {
+      for (int i = 0; i < pool.size(); i++) {
+        PortWatcher p = pool.elementAt(i);
+        if (p.session == session && p instanceof DynamicPortWatcher) {
+          foo.addElement(p.boundaddress.getHostAddress() + ":" + p.lport);
+        }
+      }
+    }
+    String[] bar = new String[foo.size()];
+    for (int i = 0; i < foo.size(); i++) {
+      bar[i] = foo.elementAt(i);
+    }
+    return bar;
+  }
+
   static PortWatcher getPort(Session session, String address, int lport) throws JSchException {
     InetAddress addr;
     try {
@@ -145,12 +162,30 @@ class PortWatcher {
     return pw;
   }
 
-  static void delPort(Session session, String address, int lport) throws JSchException {
+  static PortWatcher addDynamicPort(Session session, String address, int lport)
+      throws JSchException {
     address = normalize(address);
+    if (getPort(session, address, lport) != null) {
+      throw new JSchException(
+          "PortForwardingD: local port " + address + ":" + lport + " is already registered.");
+    }
+    PortWatcher pw = new DynamicPortWatcher(session, address, lport);
+    pool.addElement(pw);
+    return pw;
+  }
+
+  static void delPort(Session session, String address, int lport, boolean dynamic)
+      throws JSchException {
+    address = normalize(address);
+    String prefix = dynamic ? "PortForwardingD" : "PortForwardingL";
     PortWatcher pw = getPort(session, address, lport);
     if (pw == null) {
       throw new JSchException(
-          "PortForwardingL: local port " + address + ":" + lport + " is not registered.");
+          prefix + ": local port " + address + ":" + lport + " is not registered.");
+    }
+    if ((pw instanceof DynamicPortWatcher) != dynamic) {
+      throw new JSchException(prefix + ": local port " + address + ":" + lport + " is registered"
+          + (dynamic ? " for local" : " for dynamic") + " port forwarding.");
     }
     pw.delete();
     pool.removeElement(pw);
@@ -174,6 +209,11 @@ class PortWatcher {
     }
   }
 
+  PortWatcher(Session session, int lport) {
+    this.session = session;
+    this.lport = lport;
+  }
+
   PortWatcher(Session session, String address, int lport, String host, int rport,
       ServerSocketFactory factory) throws JSchException {
     this.session = session;
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate at which data is transferred, with a token bucket which allows a burst of data
+ * after a pause.
+ *
+ * <p>
+ * A limiter may be set on a {@link Channel}, on a {@link Session}, or shared by several sessions as
+ * a JVM-wide {@link #getGroup(String) group}, and every limit which applies is enforced. The data
+ * of a channel is counted as it is written, and the data an SFTP channel reads as it is requested,
+ * so that a limiter caps what it is given in both directions together.
+ * </p>
+ *
+ * <p>
+ * The bucket is kept as the time at which it will be full again, which a transfer moves on with a
+ * single compare-and-set; a thread only sleeps once the data taken exceeds the burst by a
+ * millisecond's worth, so that the overhead stays low at high rates.
+ * </p>
+ */
+public final class RateLimiter {
+  private static final long MIN_SLEEP = 1000000L;
+  private static final long MIN_BURST = 64 * 1024;
+
+  private static final Map<String, RateLimiter> groups = new ConcurrentHashMap<>();
+
+  private volatile long rate;
+  private volatile long burst;
+  // the time at which the bucket is full again
+  private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+  /**
+   * Creates a limiter with a burst of a tenth of a second's worth of data, but at least 64 KiB.
+   *
+   * @param rate the rate in bytes per second, or <code>0</code> for no limit
+   */
+  public RateLimiter(long rate) {
+    this(rate, 0);
+  }
+
+  /**
+   * @param rate the rate in bytes per second, or <code>0</code> for no limit
+   * @param burst the data which may be transferred at once after a pause, or <code>0</code> for the
+   *        default
+   */
+  public RateLimiter(long rate, long burst) {
+    setRate(rate, burst);
+  }
+
+  /**
+   * Returns the limiter the sessions whose <code>rate_limit_group</code> is <code>name</code>
+   * share, which has no limit until its rate is set.
+   */
+  public static RateLimiter getGroup(String name) {
+    return groups.computeIfAbsent(name, k -> new RateLimiter(0));
+  }
+
+  public void setRate(long rate) {
+    setRate(rate, 0);
+  }
+
+  /**
+   * Changes the rate and the burst, which applies to the data taken from now on.
+   *
+   * @see #RateLimiter(long, long)
+   */
+  public void setRate(long rate, long burst) {
+    if (rate < 0 || burst < 0) {
+      throw new IllegalArgumentException("setRate: " + rate + ", " + burst);
+    }
+    this.burst = burst > 0 ? burst : Math.max(MIN_BURST, rate / 10);
+    this.rate = rate;
+  }
+
+  public long getRate() {
+    return rate;
+  }
+
+  public long getBurst() {
+    return burst;
+  }
+
+  /**
+   * Takes <code>n</code> bytes from the bucket, and waits until the rate allows them. An interrupt
+   * ends the wait, and is left pending.
+   */
+  public void acquire(long n) {
+    long rate = this.rate;
+    if (rate <= 0 || n <= 0) {
+      return;
+    }
+    long cost = (long) (n * 1e9 / rate);
+    long capacity = (long) (burst * 1e9 / rate);
+    long now = System.nanoTime();
+    long t;
+    long _full;
+    do {
+      t = full.get();
+      _full = (t - now > 0 ? t : now) + cost;
+    } while (!full.compareAndSet(t, _full));
+    long wait = _full - now - capacity;
+    if (wait < MIN_SLEEP) {
+      return;
+    }
+    long deadline = now + wait;
+    while (!Thread.currentThread().isInterrupted()) {
+      long left = deadline - System.nanoTime();
+      if (left <= 0) {
+        break;
+      }
+      LockSupport.parkNanos(this, left);
+    }
+  }
+}
@@ -0,0 +1,843 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies files with the SCP protocol, by running <code>scp -t</code> or <code>scp -f</code> on the
+ * remote side over exec channels of a session.
+ *
+ * <p>
+ * The headers of the protocol are read from a buffer, and the data of the files is streamed between
+ * the channel and a {@link FileChannel} in large blocks. Directories are copied with
+ * {@link #setRecursive(boolean)}, and modification and access times and permissions are preserved
+ * with {@link #setPreserveTimes(boolean)}, like the <code>-r</code> and <code>-p</code> options of
+ * <code>scp</code>.
+ * </p>
+ *
+ * <p>
+ * Every file costs one round trip for its header and one for its data, so many small files are
+ * copied much faster with {@link #setParallelism(int)} greater than one, over as many exec channels
+ * at the same time. An upload then creates the directories first over one channel, and the files
+ * are spread over the channels; the sources of a download are spread over the channels, each one
+ * with its own command.
+ * </p>
+ */
+public class ScpClient {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private final Session session;
+  private boolean recursive = false;
+  private boolean preserveTimes = false;
+  private int parallelism = 1;
+
+  /**
+   * @param session the connected session the exec channels are opened on
+   */
+  public ScpClient(Session session) {
+    this.session = session;
+  }
+
+  /** Sets whether directories are copied with their contents, like <code>scp -r</code>. */
+  public void setRecursive(boolean recursive) {
+    this.recursive = recursive;
+  }
+
+  public boolean isRecursive() {
+    return recursive;
+  }
+
+  /**
+   * Sets whether the modification and access times and the permissions of the files are preserved,
+   * like <code>scp -p</code>.
+   */
+  public void setPreserveTimes(boolean preserveTimes) {
+    this.preserveTimes = preserveTimes;
+  }
+
+  public boolean isPreserveTimes() {
+    return preserveTimes;
+  }
+
+  /**
+   * Sets the number of exec channels a transfer of several files may use at the same time. The
+   * default is <code>1</code>.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException(
+          "setParallelism: " + parallelism + " must be greater than 0.");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Copies the local file or directory <code>src</code> to <code>dst</code> on the remote side. If
+   * <code>dst</code> is an existing directory, the copy is created in it.
+   */
+  public void put(String src, String dst) throws JSchException {
+    put(Collections.singletonList(src), dst);
+  }
+
+  /**
+   * Copies the local files or directories <code>srcs</code> to <code>dst</code> on the remote side,
+   * which has to be a directory if there are several sources.
+   */
+  public void put(List<String> srcs, String dst) throws JSchException {
+    if (srcs.isEmpty()) {
+      return;
+    }
+    List<File> files = new ArrayList<>();
+    for (String src : srcs) {
+      File file = new File(src);
+      if (!file.exists()) {
+        throw new JSchException(src + ": No such file or directory");
+      }
+      if (file.isDirectory() && !recursive) {
+        throw new JSchException(src + ": not a regular file");
+      }
+      files.add(file);
+    }
+    try {
+      if (parallelism == 1 || (files.size() == 1 && files.get(0).isFile())) {
+        try (Link link = open("-t", files.size() > 1, dst)) {
+          for (File file : files) {
+            if (file.isDirectory()) {
+              sendDirectory(link, file, file.getName(), true, preserveTimes);
+            } else {
+              sendFile(link, file, file.getName());
+            }
+          }
+        }
+      } else if (files.size() == 1) {
+        // dst is created as the copy of the directory, unless it is a directory already
+        String name = files.get(0).getName();
+        if (isDirectory(dst)) {
+          putParallel(files, Collections.singletonList(name), dst);
+        } else {
+          putParallel(files, Collections.singletonList(basename(dst)), parent(dst));
+        }
+      } else {
+        List<String> names = new ArrayList<>();
+        for (File file : files) {
+          names.add(file.getName());
+        }
+        putParallel(files, names, dst);
+      }
+    } catch (IOException e) {
+      throw new JSchException(e.toString(), e);
+    }
+  }
+
+  /**
+   * Copies <code>size</code> bytes read from <code>src</code> to the file <code>dst</code> on the
+   * remote side.
+   */
+  public void put(InputStream src, long size, String dst) throws JSchException {
+    try (Link link = open("-t", false, dst)) {
+      send(link, Channels.newChannel(src), size, 0644, basename(dst));
+    } catch (IOException e) {
+      throw new JSchException(e.toString(), e);
+    }
+  }
+
+  /**
+   * Copies the remote file or directory <code>src</code> to the local <code>dst</code>. If
+   * <code>dst</code> is an existing directory, the copy is created in it.
+   */
+  public void get(String src, String dst) throws JSchException {
+    get(Collections.singletonList(src), dst);
+  }
+
+  /**
+   * Copies the remote files or directories <code>srcs</code> to the local directory
+   * <code>dst</code>, or to <code>dst</code> if there is one source.
+   */
+  public void get(List<String> srcs, String dst) throws JSchException {
+    if (srcs.isEmpty()) {
+      return;
+    }
+    File target = new File(dst);
+    if (srcs.size() > 1 && !target.isDirectory()) {
+      throw new JSchException(dst + ": Not a directory");
+    }
+    // one command per source, as not every server takes several
+    Iterator<String> tasks = srcs.iterator();
+    run(Math.min(parallelism, srcs.size()), () -> {
+      String src;
+      while ((src = next(tasks)) != null) {
+        try (Link link = open("-f", false, src)) {
+          receive(link, src, target, null);
+        }
+      }
+    });
+  }
+
+  /** Copies the remote file <code>src</code> to <code>dst</code>. */
+  public void get(String src, OutputStream dst) throws JSchException {
+    try (Link link = open("-f", false, src)) {
+      receive(link, src, null, Channels.newChannel(dst));
+    } catch (IOException e) {
+      throw new JSchException(e.toString(), e);
+    }
+  }
+
+  /**
+   * Copies <code>files</code> into the existing remote directory <code>base</code> under the given
+   * names, the directories over one channel and then the files over up to {@link #parallelism}
+   * channels.
+   */
+  private void putParallel(List<File> files, List<String> names, String base)
+      throws JSchException, IOException {
+    List<Upload> uploads = new ArrayList<>();
+    boolean directories = false;
+    for (int i = 0; i < files.size(); i++) {
+      if (files.get(i).isDirectory()) {
+        directories = true;
+        collect(files.get(i), new ArrayList<>(Collections.singletonList(names.get(i))), uploads);
+      } else {
+        uploads.add(new Upload(files.get(i), Collections.emptyList(), names.get(i)));
+      }
+    }
+    if (directories) {
+      putDirectories(files, names, base, false);
+    }
+
+    Iterator<Upload> tasks = uploads.iterator();
+    run(Math.min(parallelism, uploads.size()), () -> {
+      try (Link link = open("-t", true, base)) {
+        List<String> dirs = new ArrayList<>();
+        Upload upload;
+        while ((upload = next(tasks)) != null) {
+          int common = 0;
+          while (common < dirs.size() && common < upload.dirs.size()
+              && dirs.get(common).equals(upload.dirs.get(common))) {
+            common++;
+          }
+          while (dirs.size() > common) {
+            link.send("E\n");
+            dirs.remove(dirs.size() - 1);
+          }
+          for (String dir : upload.dirs.subList(common, upload.dirs.size())) {
+            link.send("D0755 0 " + dir + "\n");
+            dirs.add(dir);
+          }
+          sendFile(link, upload.file, upload.name);
+        }
+        while (!dirs.isEmpty()) {
+          link.send("E\n");
+          dirs.remove(dirs.size() - 1);
+        }
+      }
+    });
+
+    // writing the files has changed the times of the directories
+    if (directories && preserveTimes) {
+      putDirectories(files, names, base, true);
+    }
+  }
+
+  /** Sends the directories among <code>files</code>, without the files in them. */
+  private void putDirectories(List<File> files, List<String> names, String base, boolean times)
+      throws JSchException, IOException {
+    try (Link link = open("-t", true, base)) {
+      for (int i = 0; i < files.size(); i++) {
+        if (files.get(i).isDirectory()) {
+          sendDirectory(link, files.get(i), names.get(i), false, times);
+        }
+      }
+    }
+  }
+
+  /** Adds the files below <code>dir</code>, which is copied to <code>dirs</code>. */
+  private static void collect(File dir, List<String> dirs, List<Upload> uploads) {
+    for (File file : list(dir)) {
+      if (file.isDirectory()) {
+        dirs.add(file.getName());
+        collect(file, dirs, uploads);
+        dirs.remove(dirs.size() - 1);
+      } else if (file.isFile()) {
+        uploads.add(new Upload(file, new ArrayList<>(dirs), file.getName()));
+      }
+    }
+  }
+
+  /** Returns whether <code>path</code> is a directory on the remote side. */
+  private boolean isDirectory(String path) throws JSchException, IOException {
+    // with -d, scp -t fails at once unless its target is a directory
+    try (Link link = start("-t", true, path)) {
+      return link.status() == null;
+    }
+  }
+
+  /** Runs <code>task</code> on <code>n</code> threads, this one included. */
+  private void run(int n, Task task) throws JSchException {
+    Throwable[] failure = new Throwable[1];
+    Runnable runner = () -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        synchronized (failure) {
+          if (failure[0] == null) {
+            failure[0] = e;
+          }
+        }
+      }
+    };
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i < n; i++) {
+      Thread thread = session.getThreadFactory().newThread(runner);
+      thread.setName("Scp thread " + session.getHost());
+      if (session.daemon_thread) {
+        thread.setDaemon(session.daemon_thread);
+      }
+      thread.start();
+      threads.add(thread);
+    }
+    runner.run();
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JSchException(e.toString(), e);
+    }
+    synchronized (failure) {
+      if (failure[0] instanceof JSchException) {
+        throw (JSchException) failure[0];
+      }
+      if (failure[0] != null) {
+        throw new JSchException(failure[0].toString(), failure[0]);
+      }
+    }
+  }
+
+  private static <T> T next(Iterator<T> tasks) {
+    synchronized (tasks) {
+      return tasks.hasNext() ? tasks.next() : null;
+    }
+  }
+
+  private interface Task {
+    void run() throws JSchException, IOException;
+  }
+
+  /** A file to upload, and the directories it is put in below the target of the command. */
+  private static class Upload {
+    final File file;
+    final List<String> dirs;
+    final String name;
+
+    Upload(File file, List<String> dirs, String name) {
+      this.file = file;
+      this.dirs = dirs;
+      this.name = name;
+    }
+  }
+
+  void sendDirectory(Link link, File dir, String name, boolean files, boolean times)
+      throws JSchException, IOException {
+    if (times) {
+      sendTimes(link, dir);
+    }
+    link.send("D" + octal(mode(dir)) + " 0 " + name + "\n");
+    for (File file : list(dir)) {
+      if (file.isDirectory()) {
+        sendDirectory(link, file, file.getName(), files, times);
+      } else if (files && file.isFile()) {
+        sendFile(link, file, file.getName());
+      }
+    }
+    link.send("E\n");
+  }
+
+  private void sendFile(Link link, File file, String name) throws JSchException, IOException {
+    if (preserveTimes) {
+      sendTimes(link, file);
+    }
+    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      send(link, fc, fc.size(), mode(file), name);
+    }
+  }
+
+  private static void send(Link link, ReadableByteChannel src, long size, int mode, String name)
+      throws JSchException, IOException {
+    link.send("C" + octal(mode) + " " + size + " " + name + "\n");
+    byte[] buf = new byte[BUFFER_SIZE];
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    long remaining = size;
+    while (remaining > 0) {
+      bb.clear();
+      if (remaining < buf.length) {
+        bb.limit((int) remaining);
+      }
+      int n = src.read(bb);
+      if (n < 0) {
+        throw new JSchException(name + ": file has shrunk");
+      }
+      link.out.write(buf, 0, n);
+      remaining -= n;
+    }
+    link.out.write(0);
+    link.out.flush();
+    link.check();
+  }
+
+  private static void sendTimes(Link link, File file) throws JSchException, IOException {
+    BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    link.send("T" + attrs.lastModifiedTime().to(TimeUnit.SECONDS) + " 0 "
+        + attrs.lastAccessTime().to(TimeUnit.SECONDS) + " 0\n");
+  }
+
+  /**
+   * Receives files from <code>scp -f</code>, into <code>target</code> or the directory
+   * <code>target</code>, or into <code>stream</code>.
+   *
+   * @param src the remote path which has been requested; unless the copy is recursive, the name of
+   *        every file received has to match its last component, so that the server cannot choose
+   *        which local file is written
+   */
+  void receive(Link link, String src, File target, WritableByteChannel stream)
+      throws JSchException, IOException {
+    boolean targetIsDirectory = target != null && target.isDirectory();
+    byte[] pattern = recursive ? null : Util.str2byte(basename(src));
+    ArrayDeque<Dir> dirs = new ArrayDeque<>();
+    FileTime[] times = null;
+    String warning = null;
+    link.ack();
+    while (true) {
+      int c = link.read();
+      if (c == -1) {
+        break;
+      }
+      String line = link.readLine();
+      if (c == 1) {
+        // the source goes on with the next file, like a missing one
+        if (warning == null) {
+          warning = line;
+        }
+        continue;
+      } else if (c == 2) {
+        throw new JSchException("scp: " + line);
+      } else if (c == 'T') {
+        times = parseTimes(line);
+        link.ack();
+        continue;
+      } else if (c == 'E') {
+        if (dirs.isEmpty()) {
+          throw protocolError(c, line);
+        }
+        Dir dir = dirs.pop();
+        if (dir.times != null) {
+          setTimes(dir.file.toPath(), dir.times);
+        }
+        link.ack();
+        continue;
+      } else if (c != 'C' && c != 'D') {
+        throw protocolError(c, line);
+      }
+
+      String[] fields = line.split(" ", 3);
+      if (fields.length != 3 || fields[0].length() != 4) {
+        throw protocolError(c, line);
+      }
+      int mode;
+      long size;
+      try {
+        mode = Integer.parseInt(fields[0], 8);
+        size = Long.parseLong(fields[1]);
+      } catch (NumberFormatException e) {
+        throw protocolError(c, line);
+      }
+      String name = fields[2];
+      if (!SftpMirror.isSafeName(name) || size < 0) {
+        throw new JSchException("scp: invalid file name or size: " + line);
+      }
+      if (pattern != null && !Util.glob(pattern, Util.str2byte(name))) {
+        throw new JSchException("scp: " + name + ": file name does not match the request");
+      }
+
+      if (stream != null) {
+        if (c == 'D') {
+          throw new JSchException("scp: " + name + ": not a regular file");
+        }
+        link.ack();
+        link.transferTo(stream, size);
+        link.check();
+        link.ack();
+        continue;
+      }
+
+      File file = dirs.isEmpty() ? (targetIsDirectory ? new File(target, name) : target)
+          : new File(dirs.peek().file, name);
+      Path path = file.toPath();
+      if (c == 'D') {
+        if (!recursive) {
+          throw new JSchException("scp: " + name + ": received a directory without recursion");
+        }
+        if (file.exists() && !file.isDirectory()) {
+          throw new JSchException(file + ": Not a directory");
+        }
+        if (!file.exists()) {
+          Files.createDirectory(path);
+        }
+        if (preserveTimes) {
+          setMode(path, mode);
+        }
+        dirs.push(new Dir(file, times));
+        times = null;
+        link.ack();
+        continue;
+      }
+
+      try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        link.ack();
+        link.transferTo(fc, size);
+      }
+      link.check();
+      if (times != null) {
+        setTimes(path, times);
+      }
+      if (preserveTimes) {
+        setMode(path, mode);
+      }
+      times = null;
+      link.ack();
+    }
+    if (!dirs.isEmpty()) {
+      throw new JSchException("scp: unexpected end of the stream");
+    }
+    if (warning != null) {
+      throw new JSchException("scp: " + warning);
+    }
+  }
+
+  private static class Dir {
+    final File file;
+    final FileTime[] times;
+
+    Dir(File file, FileTime[] times) {
+      this.file = file;
+      this.times = times;
+    }
+  }
+
+  private static JSchException protocolError(int c, String line) {
+    return new JSchException("scp: protocol error: " + (char) c + line);
+  }
+
+  /** Parses "mtime 0 atime 0" of a T header. */
+  private static FileTime[] parseTimes(String line) throws JSchException {
+    String[] fields = line.split(" ");
+    try {
+      if (fields.length == 4) {
+        return new FileTime[] {FileTime.from(Long.parseLong(fields[0]), TimeUnit.SECONDS),
+            FileTime.from(Long.parseLong(fields[2]), TimeUnit.SECONDS)};
+      }
+    } catch (NumberFormatException e) {
+    }
+    throw protocolError('T', line);
+  }
+
+  private static void setTimes(Path path, FileTime[] times) throws IOException {
+    Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(times[0], times[1],
+        null);
+  }
+
+  private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+  private static int mode(File file) {
+    try {
+      int mode = 0;
+      for (PosixFilePermission permission : Files.getPosixFilePermissions(file.toPath())) {
+        mode |= 0400 >> permission.ordinal();
+      }
+      return mode;
+    } catch (UnsupportedOperationException | IOException e) {
+      return file.isDirectory() || file.canExecute() ? 0755 : 0644;
+    }
+  }
+
+  private static void setMode(Path path, int mode) throws IOException {
+    Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+    for (PosixFilePermission permission : PERMISSIONS) {
+      if ((mode & (0400 >> permission.ordinal())) != 0) {
+        permissions.add(permission);
+      }
+    }
+    try {
+      Files.setPosixFilePermissions(path, permissions);
+    } catch (UnsupportedOperationException e) {
+    }
+  }
+
+  private static String octal(int mode) {
+    String s = Integer.toOctalString(mode & 07777);
+    return "0000".substring(s.length()) + s;
+  }
+
+  private static List<File> list(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    Arrays.sort(files);
+    return Arrays.asList(files);
+  }
+
+  static String basename(String path) {
+    String p = trim(path);
+    return p.substring(p.lastIndexOf('/') + 1);
+  }
+
+  static String parent(String path) {
+    String p = trim(path);
+    int i = p.lastIndexOf('/');
+    return i < 0 ? "." : i == 0 ? "/" : p.substring(0, i);
+  }
+
+  private static String trim(String path) {
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(0, end);
+  }
+
+  /** Quotes <code>path</code> for the remote shell, unless it is made of safe characters only. */
+  static String quote(String path) {
+    boolean safe = !path.isEmpty();
+    for (int i = 0; i < path.length() && safe; i++) {
+      char c = path.charAt(i);
+      safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || "_-+./:@,%=".indexOf(c) >= 0;
+    }
+    return safe ? path : "'" + path.replace("'", "'\"'\"'") + "'";
+  }
+
+  /**
+   * Starts scp with the given mode, <code>-t</code> or <code>-f</code>, and for <code>-t</code>
+   * waits until it is ready.
+   */
+  private Link open(String mode, boolean directory, String path) throws JSchException, IOException {
+    Link link = start(mode, directory, path);
+    if (mode.equals("-t")) {
+      try {
+        link.check();
+      } catch (JSchException | IOException e) {
+        link.close();
+        throw e;
+      }
+    }
+    return link;
+  }
+
+  private Link start(String mode, boolean directory, String path)
+      throws JSchException, IOException {
+    StringBuilder command = new StringBuilder("scp");
+    if (recursive) {
+      command.append(" -r");
+    }
+    if (preserveTimes) {
+      command.append(" -p");
+    }
+    if (directory) {
+      command.append(" -d");
+    }
+    command.append(' ').append(mode).append(' ').append(quote(path));
+    Channel channel = session.openChannel("exec");
+    if (channel == null) {
+      throw new JSchException("failed to open an exec channel");
+    }
+    ChannelExec exec = (ChannelExec) channel;
+    exec.setCommand(command.toString());
+    Link link = new Link(exec, exec.getInputStream(), exec.getOutputStream());
+    try {
+      exec.connect();
+    } catch (JSchException e) {
+      link.close();
+      throw e;
+    }
+    return link;
+  }
+
+  /** The streams of an exec channel running scp, with the input buffered for the headers. */
+  static class Link implements AutoCloseable {
+    final ChannelExec channel;
+    final InputStream in;
+    final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int lim = 0;
+
+    Link(ChannelExec channel, InputStream in, OutputStream out) {
+      this.channel = channel;
+      this.in = in;
+      this.out = out;
+    }
+
+    int read() throws IOException {
+      if (pos == lim && !fill()) {
+        return -1;
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+      int n = in.read(buf, 0, buf.length);
+      if (n <= 0) {
+        return false;
+      }
+      pos = 0;
+      lim = n;
+      return true;
+    }
+
+    /** Reads up to the next newline, which is dropped. */
+    String readLine() throws IOException, JSchException {
+      byte[] line = null;
+      int length = 0;
+      while (true) {
+        if (pos == lim && !fill()) {
+          throw new JSchException("scp: unexpected end of the stream");
+        }
+        int start = pos;
+        while (pos < lim && buf[pos] != '\n') {
+          pos++;
+        }
+        int n = pos - start;
+        if (length + n > MAX_LINE_LENGTH) {
+          throw new JSchException("scp: header is too long");
+        }
+        if (line == null && pos < lim) {
+          pos++;
+          return Util.byte2str(buf, start, n);
+        }
+        line = line == null ? new byte[Math.max(256, n)] : line;
+        if (length + n > line.length) {
+          line = Arrays.copyOf(line, Math.max(length + n, line.length * 2));
+        }
+        System.arraycopy(buf, start, line, length, n);
+        length += n;
+        if (pos < lim) {
+          pos++;
+          return Util.byte2str(line, 0, length);
+        }
+      }
+    }
+
+    /** Writes <code>size</code> bytes of file data to <code>dst</code>. */
+    void transferTo(WritableByteChannel dst, long size) throws IOException, JSchException {
+      long remaining = size;
+      while (remaining > 0) {
+        if (pos == lim && !fill()) {
+          throw new JSchException("scp: unexpected end of the stream");
+        }
+        int n = (int) Math.min(lim - pos, remaining);
+        ByteBuffer bb = ByteBuffer.wrap(buf, pos, n);
+        while (bb.hasRemaining()) {
+          dst.write(bb);
+        }
+        pos += n;
+        remaining -= n;
+      }
+    }
+
+    /** Returns the error the other side has answered with, or <code>null</code>. */
+    String status() throws IOException, JSchException {
+      int c = read();
+      if (c == 0) {
+        return null;
+      }
+      if (c == -1) {
+        return "unexpected end of the stream";
+      }
+      String message = readLine();
+      return c == 1 || c == 2 ? message : (char) c + message;
+    }
+
+    /** Fails unless the other side has answered with success. */
+    void check() throws IOException, JSchException {
+      String error = status();
+      if (error != null) {
+        throw new JSchException("scp: " + error);
+      }
+    }
+
+    void send(String header) throws IOException, JSchException {
+      out.write(Util.str2byte(header));
+      out.flush();
+      check();
+    }
+
+    void ack() throws IOException {
+      out.write(0);
+      out.flush();
+    }
+
+    @Override
+    public void close() {
+      try {
+        out.close();
+      } catch (IOException e) {
+      }
+      channel.disconnect();
+    }
+  }
+}
@@ -40,7 +40,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -180,6 +186,25 @@ public class Session {
 
   private ThreadFactory threadFactory = Thread::new;
 
+  volatile WindowAdjuster windowAdjuster = null;
+
+  private volatile RateLimiter rateLimiter = null;
+  private volatile RateLimiter groupRateLimiter = null;
+  private long channelRateLimit = 0;
+  private ExecutorService deliveryExecutor = null;
+  private final Object deliveryLock = new Object();
+  private byte[] batch = null;
+
+  // send time of the keepalive whose reply will be used to estimate the round-trip time
+  private volatile long probe_sent = 0;
+  private volatile long rtt = 0;
+
+  // the global requests which want a reply, in the order they have been written, which is the
+  // order the server replies in
+  private final ConcurrentLinkedDeque<PendingGlobalRequest> globalRequests =
+      new ConcurrentLinkedDeque<>();
+  private final Object globalRequestLock = new Object();
+
   private boolean disconnectingChannels = false;
   private final List<Channel> channels = new ArrayList<>();
   private final ReadWriteLock channelsLock = new ReentrantReadWriteLock();
@@ -223,7 +248,17 @@ public class Session {
         throw new JSchException(e.toString(), e);
       }
     }
+    WindowPolicy windowPolicy;
+    try {
+      Class<? extends WindowPolicy> c =
+          Class.forName(getConfig("window_policy")).asSubclass(WindowPolicy.class);
+      windowPolicy = c.getDeclaredConstructor().newInstance();
+      windowPolicy.init(this);
+    } catch (Exception e) {
+      throw new JSchException(e.toString(), e);
+    }
     Packet.setRandom(random);
+    initRateLimits();
 
     if (getLogger().isEnabled(Logger.INFO)) {
       getLogger().log(Logger.INFO, "Connecting to " + host + " port " + port);
@@ -236,7 +271,14 @@ public class Session {
         InputStream in;
         OutputStream out;
         if (socket_factory == null) {
-          socket = Util.createSocket(host, port, connectTimeout);
+          int bufferSize = 0;
+          if (getConfig("window_auto_tuning").equals("yes")) {
+            try {
+              bufferSize = Integer.parseInt(getConfig("window_size_max"));
+            } catch (NumberFormatException e) {
+            }
+          }
+          socket = Util.createSocket(host, port, connectTimeout, getThreadFactory(), bufferSize);
           in = socket.getInputStream();
           out = socket.getOutputStream();
         } else {
@@ -545,6 +587,14 @@ public class Session {
           }
           connectThread.start();
 
+          windowAdjuster = new WindowAdjuster(this, windowPolicy);
+          Thread tmp = getThreadFactory().newThread(windowAdjuster::run);
+          tmp.setName("Window adjuster thread " + host + " session");
+          if (daemon_thread) {
+            tmp.setDaemon(daemon_thread);
+          }
+          tmp.start();
+
           requestPortForwarding();
         } else {
           // The session has been already down and
@@ -1148,6 +1198,9 @@ public class Session {
       Channel channel = createChannel(type);
       if (channel != null) {
         channel.init();
+        if (channelRateLimit > 0) {
+          channel.setRateLimiter(new RateLimiter(channelRateLimit));
+        }
         if (channel instanceof ChannelSession) {
           applyConfigChannel((ChannelSession) channel);
         }
@@ -1753,6 +1806,7 @@ public class Session {
   }
 
   /* synchronized */ void write(Packet packet, Channel c, int length) throws Exception {
+    c.throttle(length);
     long t = getTimeout();
     while (true) {
       if (in_kex) {
@@ -1767,12 +1821,14 @@ public class Session {
       }
       synchronized (c) {
         if (c.rwsize < length) {
+          long waiting = System.nanoTime();
           try {
             c.notifyme++;
             c.wait(100);
           } catch (InterruptedException e) {
           } finally {
             c.notifyme--;
+            c.windowStall += System.nanoTime() - waiting;
           }
         }
 
@@ -1865,6 +1921,59 @@ public class Session {
     _write(packet);
   }
 
+  /**
+   * Writes the given channel packets with a single write to the socket. The packet of a channel,
+   * which has already been closed, is skipped.
+   */
+  void write(Packet[] packets, Channel[] channels, int count) throws Exception {
+    long t = getTimeout();
+    while (in_kex) {
+      if (t > 0L && (System.currentTimeMillis() - kex_start_time) > t && !in_prompt) {
+        throw new JSchException("timeout in waiting for rekeying process.");
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+      } ;
+    }
+
+    boolean initialKex = this.initialKex;
+    boolean enable_strict_kex = this.enable_strict_kex;
+    boolean require_strict_kex = this.require_strict_kex;
+
+    synchronized (lock) {
+      if (io == null) {
+        return;
+      }
+      int len = 0;
+      for (int i = 0; i < count; i++) {
+        // Channel#close() marks the channel before writing SSH_MSG_CHANNEL_CLOSE under this lock,
+        // so nothing is sent for the channel after its SSH_MSG_CHANNEL_CLOSE.
+        if (channels[i].close) {
+          continue;
+        }
+        Packet packet = packets[i];
+        encode(packet);
+        int foo = packet.buffer.index;
+        if (batch == null || batch.length < len + foo) {
+          byte[] tmp = new byte[Math.max(len + foo, batch == null ? 1024 : batch.length * 2)];
+          if (batch != null) {
+            System.arraycopy(batch, 0, tmp, 0, len);
+          }
+          batch = tmp;
+        }
+        System.arraycopy(packet.buffer.buffer, 0, batch, len, foo);
+        len += foo;
+        if (++seqo == 0 && (enable_strict_kex || require_strict_kex) && initialKex) {
+          throw new JSchStrictKexException("outgoing sequence number wrapped during initial KEX");
+        }
+      }
+      if (len > 0) {
+        io.put(batch, 0, len);
+      }
+    }
+  }
+
   private void _write(Packet packet) throws Exception {
     boolean initialKex = this.initialKex;
     boolean doStrictKex = this.doStrictKex;
@@ -1962,28 +2071,15 @@ public class Session {
               break;
             }
 
+            // never blocks; window adjusts, if any, will be sent by windowAdjuster
             try {
-              channel.write(foo, start[0], length[0]);
+              channel.deliver(foo, start[0], length[0], false);
             } catch (Exception e) {
               // System.err.println(e);
               try {
                 channel.disconnect();
               } catch (Exception ee) {
               }
-              break;
-            }
-            int len = length[0];
-            channel.setLocalWindowSize(channel.lwsize - len);
-            if (channel.lwsize < channel.lwsize_max / 2) {
-              packet.reset();
-              buf.putByte((byte) SSH_MSG_CHANNEL_WINDOW_ADJUST);
-              buf.putInt(channel.getRecipient());
-              buf.putInt(channel.lwsize_max - channel.lwsize);
-              synchronized (channel) {
-                if (!channel.close)
-                  write(packet);
-              }
-              channel.setLocalWindowSize(channel.lwsize_max);
             }
             break;
 
@@ -2003,20 +2099,13 @@ public class Session {
               break;
             }
 
-            channel.write_ext(foo, start[0], length[0]);
-
-            len = length[0];
-            channel.setLocalWindowSize(channel.lwsize - len);
-            if (channel.lwsize < channel.lwsize_max / 2) {
-              packet.reset();
-              buf.putByte((byte) SSH_MSG_CHANNEL_WINDOW_ADJUST);
-              buf.putInt(channel.getRecipient());
-              buf.putInt(channel.lwsize_max - channel.lwsize);
-              synchronized (channel) {
-                if (!channel.close)
-                  write(packet);
+            try {
+              channel.deliver(foo, start[0], length[0], true);
+            } catch (Exception e) {
+              try {
+                channel.disconnect();
+              } catch (Exception ee) {
               }
-              channel.setLocalWindowSize(channel.lwsize_max);
             }
             break;
 
@@ -2039,7 +2128,7 @@ public class Session {
             if (channel != null) {
               // channel.eof_remote=true;
               // channel.eof();
-              channel.eof_remote();
+              channel.receiveEof();
             }
             /*
              * packet.reset(); buf.putByte((byte)SSH_MSG_CHANNEL_EOF);
@@ -2053,7 +2142,7 @@ public class Session {
             channel = getChannelById(i);
             if (channel != null) {
               // channel.close();
-              channel.disconnect();
+              channel.receiveClose();
             }
             /*
              * if(Channel.pool.size()==0){ thread=null; }
@@ -2188,16 +2277,7 @@ public class Session {
             break;
           case SSH_MSG_REQUEST_FAILURE:
           case SSH_MSG_REQUEST_SUCCESS:
-            Thread t = grr.getThread();
-            if (t != null) {
-              grr.setReply(msgType == SSH_MSG_REQUEST_SUCCESS ? 1 : 0);
-              if (msgType == SSH_MSG_REQUEST_SUCCESS && grr.getPort() == 0) {
-                buf.getInt();
-                buf.getShort();
-                grr.setPort(buf.getInt());
-              }
-              t.interrupt();
-            }
+            globalRequestReply(msgType, buf);
             break;
           default:
             // System.err.println("Session.run: unsupported type "+msgType);
@@ -2225,6 +2305,32 @@ public class Session {
     isConnected = false;
   }
 
+  /**
+   * Returns the executor used to deliver channel data to consumers which may block, see
+   * {@link InboundQueue}. Its threads are created with {@link #getThreadFactory()} on demand, and
+   * terminate after being idle for a minute.
+   */
+  Executor getDeliveryExecutor() throws JSchException {
+    synchronized (deliveryLock) {
+      if (deliveryExecutor == null) {
+        if (!isConnected) {
+          throw new JSchException("session is down");
+        }
+        ThreadFactory factory = getThreadFactory();
+        deliveryExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), r -> {
+              Thread t = factory.newThread(r);
+              t.setName("Delivery thread " + host + " session");
+              if (daemon_thread) {
+                t.setDaemon(daemon_thread);
+              }
+              return t;
+            });
+      }
+      return deliveryExecutor;
+    }
+  }
+
   void delChannel(Channel c) {
     Lock l = channelsLock.writeLock();
     l.lock();
@@ -2284,6 +2390,17 @@ public class Session {
       }
     }
     thread = null;
+    WindowAdjuster adjuster = windowAdjuster;
+    if (adjuster != null) {
+      adjuster.stop();
+      windowAdjuster = null;
+    }
+    synchronized (deliveryLock) {
+      if (deliveryExecutor != null) {
+        deliveryExecutor.shutdown();
+        deliveryExecutor = null;
+      }
+    }
     try {
       if (io != null) {
         if (io.in != null)
@@ -2450,6 +2567,106 @@ public class Session {
     return pw.lport;
   }
 
+  /**
+   * Registers the dynamic port forwarding for loop-back interface. A SOCKS4/SOCKS5 server will be
+   * listening at <code>lport</code>, and each CONNECT request will be forwarded through a
+   * <code>direct-tcpip</code> channel. If <code>lport</code> is <code>0</code>, the tcp port will
+   * be allocated.
+   *
+   * @param lport local port for dynamic port forwarding
+   * @return an allocated local TCP port number
+   * @see #setPortForwardingD(String bind_address, int lport, int connectTimeout)
+   */
+  public int setPortForwardingD(int lport) throws JSchException {
+    return setPortForwardingD("127.0.0.1", lport);
+  }
+
+  /**
+   * Registers the dynamic port forwarding. If <code>bind_address</code> is an empty string or
+   * <code>"*"</code>, the port should be available from all interfaces. If
+   * <code>bind_address</code> is <code>"localhost"</code> or <code>null</code>, the listening port
+   * will be bound for local use only. If <code>lport</code> is <code>0</code>, the tcp port will be
+   * allocated.
+   *
+   * @param bind_address bind address for dynamic port forwarding
+   * @param lport local port for dynamic port forwarding
+   * @return an allocated local TCP port number
+   * @see #setPortForwardingD(String bind_address, int lport, int connectTimeout)
+   */
+  public int setPortForwardingD(String bind_address, int lport) throws JSchException {
+    return setPortForwardingD(bind_address, lport, 0);
+  }
+
+  /**
+   * Registers the dynamic port forwarding. A SOCKS4/SOCKS5 server will be listening at
+   * <code>lport</code>, and each CONNECT request will be forwarded through a
+   * <code>direct-tcpip</code> channel. If <code>bind_address</code> is an empty string or
+   * <code>"*"</code>, the port should be available from all interfaces. If
+   * <code>bind_address</code> is <code>"localhost"</code> or <code>null</code>, the listening port
+   * will be bound for local use only. If <code>lport</code> is <code>0</code>, the tcp port will be
+   * allocated.
+   *
+   * @param bind_address bind address for dynamic port forwarding
+   * @param lport local port for dynamic port forwarding
+   * @param connectTimeout timeout for establishing each forwarded connection
+   * @return an allocated local TCP port number
+   */
+  public int setPortForwardingD(String bind_address, int lport, int connectTimeout)
+      throws JSchException {
+    PortWatcher pw = PortWatcher.addDynamicPort(this, bind_address, lport);
+    pw.setConnectTimeout(connectTimeout);
+    Thread tmp = getThreadFactory().newThread(pw::run);
+    tmp.setName("DynamicPortWatcher Thread for " + host);
+    if (daemon_thread) {
+      tmp.setDaemon(daemon_thread);
+    }
+    tmp.start();
+    return pw.lport;
+  }
+
+  /**
+   * Registers the dynamic port forwarding. The argument should be in the format like
+   * "[bind_address:]port", which is from DynamicForward command of ~/.ssh/config .
+   *
+   * @param conf configuration of dynamic port forwarding
+   * @return an assigned port number
+   * @see #setPortForwardingD(String bind_address, int lport)
+   */
+  public int setPortForwardingD(String conf) throws JSchException {
+    Forwarding f = parseDynamicForwarding(conf);
+    return setPortForwardingD(f.bind_address, f.port);
+  }
+
+  /**
+   * Cancels the dynamic port forwarding assigned at local TCP port <code>lport</code> on loopback
+   * interface.
+   *
+   * @param lport local TCP port
+   */
+  public void delPortForwardingD(int lport) throws JSchException {
+    delPortForwardingD("127.0.0.1", lport);
+  }
+
+  /**
+   * Cancels the dynamic port forwarding assigned at local TCP port <code>lport</code> on
+   * <code>bind_address</code> interface.
+   *
+   * @param bind_address bind_address of network interfaces
+   * @param lport local TCP port
+   */
+  public void delPortForwardingD(String bind_address, int lport) throws JSchException {
+    PortWatcher.delPort(this, bind_address, lport, true);
+  }
+
+  /**
+   * Lists the registered dynamic port forwarding.
+   *
+   * @return a list of "bind_address:lport"
+   */
+  public String[] getPortForwardingD() throws JSchException {
+    return PortWatcher.getDynamicPortForwarding(this);
+  }
+
   /**
    * Cancels the local port forwarding assigned at local TCP port <code>lport</code> on loopback
    * interface.
@@ -2468,7 +2685,7 @@ public class Session {
    * @param lport local TCP port
    */
   public void delPortForwardingL(String bind_address, int lport) throws JSchException {
-    PortWatcher.delPort(this, bind_address, lport);
+    PortWatcher.delPort(this, bind_address, lport, false);
   }
 
   /**
@@ -2672,6 +2889,36 @@ public class Session {
     return f;
   }
 
+  /**
+   * The given argument may be "[bind_address:]port", which is from DynamicForward command of
+   * ~/.ssh/config .
+   */
+  Forwarding parseDynamicForwarding(String conf) throws JSchException {
+    String org = conf;
+    conf = conf.trim();
+    Forwarding f = new Forwarding();
+    try {
+      int i = conf.lastIndexOf(":");
+      if (i != -1) {
+        f.port = Integer.parseInt(conf.substring(i + 1));
+        conf = conf.substring(0, i);
+        if (conf.startsWith("[") && conf.endsWith("]"))
+          conf = conf.substring(1, conf.length() - 1);
+        if (conf.length() == 0 || conf.equals("*"))
+          conf = "0.0.0.0";
+        if (conf.equals("localhost"))
+          conf = "127.0.0.1";
+        f.bind_address = conf;
+      } else {
+        f.port = Integer.parseInt(conf);
+        f.bind_address = "127.0.0.1";
+      }
+    } catch (NumberFormatException e) {
+      throw new JSchException("parseDynamicForwarding: " + org, e);
+    }
+    return f;
+  }
+
   /**
    * Registers the local port forwarding. The argument should be in the format like
    * "[bind_address:]port:host:hostport". If <code>bind_address</code> is an empty string or
@@ -2731,13 +2978,28 @@ public class Session {
     }
   }
 
+  /**
+   * A global request waiting for its reply: a round-trip probe, the request of {@link #grr}, or a
+   * keepalive whose reply is ignored.
+   */
+  private static class PendingGlobalRequest {
+    // the time the probe has been sent, or 0 if this is not a probe
+    final long probeSent;
+
+    PendingGlobalRequest(long probeSent) {
+      this.probeSent = probeSent;
+    }
+  }
+
   private static class GlobalRequestReply {
     private Thread thread = null;
+    private PendingGlobalRequest request = null;
     private int reply = -1;
     private int port = 0;
 
-    void setThread(Thread thread) {
+    void setThread(Thread thread, PendingGlobalRequest request) {
       this.thread = thread;
+      this.request = request;
       this.reply = -1;
     }
 
@@ -2745,6 +3007,10 @@ public class Session {
       return thread;
     }
 
+    PendingGlobalRequest getRequest() {
+      return request;
+    }
+
     void setReply(int reply) {
       this.reply = reply;
     }
@@ -2764,6 +3030,47 @@ public class Session {
 
   private GlobalRequestReply grr = new GlobalRequestReply();
 
+  /**
+   * Writes a global request which wants a reply, and queues <code>request</code> for its reply.
+   * Requests are written and queued under one lock, so that the queue has them in the order of
+   * their replies.
+   */
+  private void writeGlobalRequest(Packet packet, PendingGlobalRequest request) throws Exception {
+    synchronized (globalRequestLock) {
+      globalRequests.addLast(request);
+      try {
+        write(packet);
+      } catch (Exception e) {
+        globalRequests.removeLastOccurrence(request);
+        throw e;
+      }
+    }
+  }
+
+  /** Hands the reply to a global request to the request it belongs to. */
+  void globalRequestReply(int msgType, Buffer buf) {
+    PendingGlobalRequest request = globalRequests.pollFirst();
+    if (request == null) {
+      return;
+    }
+    if (request.probeSent != 0) {
+      probe_sent = 0;
+      updateRoundTripTime(System.nanoTime() - request.probeSent);
+      return;
+    }
+    Thread t = grr.getThread();
+    // the reply to a request which has timed out is dropped
+    if (t != null && grr.getRequest() == request) {
+      grr.setReply(msgType == SSH_MSG_REQUEST_SUCCESS ? 1 : 0);
+      if (msgType == SSH_MSG_REQUEST_SUCCESS && grr.getPort() == 0) {
+        buf.getInt();
+        buf.getShort();
+        grr.setPort(buf.getInt());
+      }
+      t.interrupt();
+    }
+  }
+
   private int _setPortForwardingR(String bind_address, int rport) throws JSchException {
     synchronized (grr) {
       Buffer buf = new Buffer(200); // ??
@@ -2771,7 +3078,8 @@ public class Session {
 
       String address_to_bind = ChannelForwardedTCPIP.normalize(bind_address);
 
-      grr.setThread(Thread.currentThread());
+      PendingGlobalRequest request = new PendingGlobalRequest(0);
+      grr.setThread(Thread.currentThread(), request);
       grr.setPort(rport);
 
       try {
@@ -2786,9 +3094,9 @@ public class Session {
         buf.putByte((byte) 1);
         buf.putString(Util.str2byte(address_to_bind));
         buf.putInt(rport);
-        write(packet);
+        writeGlobalRequest(packet, request);
       } catch (Exception e) {
-        grr.setThread(null);
+        grr.setThread(null, null);
         throw new JSchException(e.toString(), e);
       }
 
@@ -2802,7 +3110,7 @@ public class Session {
         count++;
         reply = grr.getReply();
       }
-      grr.setThread(null);
+      grr.setThread(null, null);
       if (reply != 1) {
         throw new JSchException("remote port forwarding failed for listen port " + rport);
       }
@@ -2892,6 +3200,7 @@ public class Session {
     }
   }
 
+  @SuppressWarnings("deprecation")
   private Channel createChannel(String type) {
     Channel channel = null;
     if (type.equals("session")) {
@@ -2917,6 +3226,7 @@ public class Session {
     }
     if (type.equals("sftp")) {
       ChannelSftp sftp = new ChannelSftp();
+      // no longer has any effect, but is still reported by getUseWriteFlushWorkaround()
       boolean useWriteFlushWorkaround = getConfig("use_sftp_write_flush_workaround").equals("yes");
       sftp.setUseWriteFlushWorkaround(useWriteFlushWorkaround);
       channel = sftp;
@@ -3121,7 +3431,38 @@ public class Session {
     buf.putByte((byte) SSH_MSG_GLOBAL_REQUEST);
     buf.putString(keepalivemsg);
     buf.putByte((byte) 1);
-    write(packet);
+    long sent = 0;
+    if (probe_sent == 0 && !in_kex && "yes".equals(getConfig("window_auto_tuning"))) {
+      sent = probe_sent = System.nanoTime();
+    }
+    writeGlobalRequest(packet, new PendingGlobalRequest(sent));
+  }
+
+  /**
+   * Sends a keepalive message to measure the round-trip time, unless a measurement is already in
+   * progress.
+   */
+  void sendRoundTripProbe() throws Exception {
+    long sent = probe_sent;
+    if ((sent != 0 && System.nanoTime() - sent < 60000000000L) || in_kex) {
+      return;
+    }
+    probe_sent = 0;
+    sendKeepAliveMsg();
+  }
+
+  private void updateRoundTripTime(long sample) {
+    long _rtt = rtt;
+    // smoothed like TCP's SRTT, RFC 6298
+    rtt = _rtt == 0 ? sample : _rtt + (sample - _rtt) / 8;
+  }
+
+  /**
+   * Returns the smoothed round-trip time in nanoseconds measured with keepalive messages, or
+   * <code>0</code> if it has not been measured yet.
+   */
+  long getRoundTripTime() {
+    return rtt;
   }
 
   private static final byte[] nomoresessions = Util.str2byte("no-more-sessions@openssh.com");
@@ -3208,6 +3549,52 @@ public class Session {
     this.daemon_thread = enable;
   }
 
+  /**
+   * Sets the limiter of the data transferred on all channels of this session, which applies in
+   * addition to the limits of each channel and of the session's <code>rate_limit_group</code>. If
+   * none is set, <code>rate_limit</code> gives the session a limiter of its own when it connects.
+   *
+   * @param rateLimiter the limiter, or <code>null</code> for none
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  private void initRateLimits() {
+    long rate = parseRate("rate_limit");
+    if (rateLimiter == null && rate > 0) {
+      rateLimiter = new RateLimiter(rate);
+    }
+    channelRateLimit = parseRate("channel_rate_limit");
+    String group = getConfig("rate_limit_group");
+    groupRateLimiter = group == null || group.isEmpty() ? null : RateLimiter.getGroup(group);
+  }
+
+  private long parseRate(String key) {
+    String value = getConfig(key);
+    try {
+      return value == null ? 0 : Math.max(0, Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Waits until the limits of this session and its group allow <code>n</code> more bytes. */
+  void throttle(long n) {
+    RateLimiter _rateLimiter = rateLimiter;
+    if (_rateLimiter != null) {
+      _rateLimiter.acquire(n);
+    }
+    _rateLimiter = groupRateLimiter;
+    if (_rateLimiter != null) {
+      _rateLimiter.acquire(n);
+    }
+  }
+
   private String[] checkCiphers(String ciphers) {
     if (ciphers == null || ciphers.length() == 0)
       return null;
@@ -3656,6 +4043,13 @@ public class Session {
         setPortForwardingR(values[i]);
       }
     }
+
+    values = config.getValues("DynamicForward");
+    if (values != null) {
+      for (int i = 0; i < values.length; i++) {
+        setPortForwardingD(values[i]);
+      }
+    }
   }
 
   private void checkConfig(ConfigRepository.Config config, String key) {
@@ -200,6 +200,19 @@ public class SftpATTRS {
     return attr;
   }
 
+  SftpATTRS copy() {
+    SftpATTRS attr = new SftpATTRS();
+    attr.flags = flags;
+    attr.size = size;
+    attr.uid = uid;
+    attr.gid = gid;
+    attr.permissions = permissions;
+    attr.atime = atime;
+    attr.mtime = mtime;
+    attr.extended = extended == null ? null : extended.clone();
+    return attr;
+  }
+
   int length() {
     int len = 4;
 
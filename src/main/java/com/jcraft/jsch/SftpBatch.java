@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+/**
+ * Applies many changes of remote files with pipelined requests, instead of waiting for the response
+ * to each request before sending the next one.
+ *
+ * <p>
+ * Requests for different files may be processed by a server in any order, so requests which depend
+ * on each other, like the creation of a directory and of a file in it, are sent in separate rounds.
+ * </p>
+ */
+final class SftpBatch {
+  // the number of requests which are outstanding at the same time
+  static final int WINDOW = 1024;
+
+  // the number of directories listed at the same time over one channel
+  private static final int LIST_BATCH = 32;
+
+  private SftpBatch() {}
+
+  /**
+   * Sends the requests of <code>n</code> items, with up to {@link #WINDOW} requests outstanding.
+   *
+   * @return the failure of each item, or <code>null</code> for the items which have succeeded
+   */
+  static SftpException[] pipeline(int n, IntFunction<CompletableFuture<?>> request) {
+    SftpException[] failures = new SftpException[n];
+    ArrayDeque<CompletableFuture<?>> outstanding = new ArrayDeque<>();
+    int done = 0;
+    for (int i = 0; i < n; i++) {
+      if (outstanding.size() >= WINDOW) {
+        failures[done++] = failure(outstanding.pollFirst());
+      }
+      outstanding.addLast(request.apply(i));
+    }
+    while (done < n) {
+      failures[done++] = failure(outstanding.pollFirst());
+    }
+    return failures;
+  }
+
+  private static SftpException failure(CompletableFuture<?> future) {
+    try {
+      SftpDispatcher.await(future);
+      return null;
+    } catch (SftpException e) {
+      return e;
+    }
+  }
+
+  private static boolean lost(SftpException e) {
+    return e.id == ChannelSftp.SSH_FX_CONNECTION_LOST || e.id == ChannelSftp.SSH_FX_NO_CONNECTION;
+  }
+
+  /**
+   * Applies <code>ops</code>, first reading the attributes of the files for the operations which
+   * need them.
+   */
+  static List<SftpException> applyAll(ChannelSftp channel, List<SftpOp> ops) {
+    int n = ops.size();
+    SftpATTRS[] current = new SftpATTRS[n];
+    List<Integer> stats = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      if (ops.get(i).needsStat()) {
+        stats.add(i);
+      }
+    }
+    SftpException[] failures = new SftpException[n];
+    SftpException[] statFailures = pipeline(stats.size(), j -> {
+      int i = stats.get(j);
+      return channel.statAsync(ops.get(i).getPath()).thenAccept(attrs -> current[i] = attrs);
+    });
+    for (int j = 0; j < stats.size(); j++) {
+      failures[stats.get(j)] = statFailures[j];
+    }
+
+    List<Integer> sends = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      if (failures[i] == null) {
+        sends.add(i);
+      }
+    }
+    SftpException[] sendFailures = pipeline(sends.size(), j -> {
+      int i = sends.get(j);
+      return ops.get(i).send(channel, current[i]);
+    });
+    for (int j = 0; j < sends.size(); j++) {
+      failures[sends.get(j)] = sendFailures[j];
+    }
+    return Arrays.asList(failures);
+  }
+
+  /**
+   * Creates the directory <code>path</code> and its missing parents. The directories are created
+   * with pipelined requests, which succeed for the missing directories if the server processes them
+   * in order; those which have failed are then checked, and created one after another if they do
+   * not exist.
+   */
+  static void mkdirs(ChannelSftp channel, String path) throws SftpException {
+    String _path = channel.asyncPath(path);
+    List<String> dirs = new ArrayList<>();
+    for (int i = _path.indexOf('/', 1); i > 0; i = _path.indexOf('/', i + 1)) {
+      dirs.add(_path.substring(0, i));
+    }
+    if (_path.length() > 1 && !_path.endsWith("/")) {
+      dirs.add(_path);
+    }
+
+    SftpException[] failures = pipeline(dirs.size(), i -> channel.mkdirAsync(dirs.get(i)));
+    List<Integer> failed = new ArrayList<>();
+    for (int i = 0; i < dirs.size(); i++) {
+      if (failures[i] != null) {
+        if (lost(failures[i])) {
+          throw failures[i];
+        }
+        failed.add(i);
+      }
+    }
+    SftpATTRS[] attrs = new SftpATTRS[dirs.size()];
+    SftpException[] missing = pipeline(failed.size(), j -> {
+      int i = failed.get(j);
+      return channel.statAsync(dirs.get(i)).thenAccept(a -> attrs[i] = a);
+    });
+    for (int j = 0; j < failed.size(); j++) {
+      int i = failed.get(j);
+      if (missing[j] == null) {
+        if (!attrs[i].isDir()) {
+          throw new SftpException(ChannelSftp.SSH_FX_FAILURE, dirs.get(i) + " is not a directory");
+        }
+        continue;
+      }
+      if (lost(missing[j])) {
+        throw missing[j];
+      }
+      // the request may have been processed before the one for the parent
+      SftpDispatcher.await(channel.mkdirAsync(dirs.get(i)));
+    }
+  }
+
+  /**
+   * Removes <code>path</code> and, if it is a directory, everything below it. Symbolic links are
+   * removed, not followed. The tree is listed one level after another, then all files are removed
+   * and then the directories, deepest first. Every file and directory which can be removed is
+   * removed; a directory which cannot be listed is left alone with everything below it. The first
+   * failure is thrown with the other ones as suppressed exceptions.
+   */
+  static void rmRecursive(ChannelSftp channel, String path) throws SftpException {
+    String _path = channel.asyncPath(path);
+    SftpATTRS attrs = SftpDispatcher.await(channel.lstatAsync(_path));
+    if (!attrs.isDir()) {
+      SftpDispatcher.await(channel.rmAsync(_path));
+      return;
+    }
+
+    List<SftpException> failures = new ArrayList<>();
+    List<List<String>> levels = new ArrayList<>();
+    List<String> files = new ArrayList<>();
+    List<String> level = Collections.singletonList(_path);
+    while (!level.isEmpty()) {
+      SftpException[] unlisted = new SftpException[level.size()];
+      List<List<LsEntry>> listings = list(Collections.singletonList(channel), level, unlisted);
+      collect(failures, level, unlisted);
+      List<String> listed = new ArrayList<>();
+      List<String> next = new ArrayList<>();
+      for (int i = 0; i < level.size(); i++) {
+        if (unlisted[i] != null) {
+          continue;
+        }
+        String parent = level.get(i);
+        listed.add(parent);
+        for (LsEntry entry : listings.get(i)) {
+          String name = entry.getFilename();
+          if (name.equals(".") || name.equals("..")) {
+            continue;
+          }
+          String child = parent.endsWith("/") ? parent + name : parent + "/" + name;
+          if (entry.getAttrs().isDir()) {
+            next.add(child);
+          } else {
+            files.add(child);
+          }
+        }
+      }
+      levels.add(listed);
+      level = next;
+    }
+
+    collect(failures, files, pipeline(files.size(), i -> channel.rmAsync(files.get(i))));
+    for (int i = levels.size() - 1; i >= 0; i--) {
+      List<String> dirs = levels.get(i);
+      collect(failures, dirs, pipeline(dirs.size(), j -> channel.rmdirAsync(dirs.get(j))));
+    }
+    if (!failures.isEmpty()) {
+      SftpException e = failures.get(0);
+      for (int i = 1; i < failures.size(); i++) {
+        e.addSuppressed(failures.get(i));
+      }
+      throw e;
+    }
+  }
+
+  private static void collect(List<SftpException> failures, List<String> paths,
+      SftpException[] results) throws SftpException {
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] != null) {
+        if (lost(results[i])) {
+          throw results[i];
+        }
+        failures.add(new SftpException(results[i].id, paths.get(i) + ": " + results[i].getMessage(),
+            results[i]));
+      }
+    }
+  }
+
+  /**
+   * Lists the remote directories <code>dirs</code>, with the directories of a batch opened and read
+   * by pipelined requests spread over the channels.
+   */
+  static List<List<LsEntry>> list(List<ChannelSftp> channels, List<String> dirs)
+      throws SftpException {
+    return list(channels, dirs, null);
+  }
+
+  /**
+   * Lists the remote directories <code>dirs</code> like {@link #list(List, List)}, but a directory
+   * which cannot be opened or read gets an empty listing, and its failure in <code>failures</code>,
+   * unless the channel has been lost.
+   *
+   * @param failures the failure of each directory, or <code>null</code> to throw the first one
+   */
+  static List<List<LsEntry>> list(List<ChannelSftp> channels, List<String> dirs,
+      SftpException[] failures) throws SftpException {
+    List<List<LsEntry>> listings = new ArrayList<>();
+    int batch = channels.get(0).limits().openHandles(LIST_BATCH) * channels.size();
+    for (int start = 0; start < dirs.size(); start += batch) {
+      int n = Math.min(batch, dirs.size() - start);
+      List<CompletableFuture<SftpHandle>> opens = new ArrayList<>();
+      for (int j = 0; j < n; j++) {
+        ChannelSftp channel = channels.get(j % channels.size());
+        opens.add(channel.opendirAsync(dirs.get(start + j)));
+      }
+      SftpHandle[] handles = new SftpHandle[n];
+      SftpException failure = null;
+      int open = 0;
+      for (int j = 0; j < n; j++) {
+        listings.add(new ArrayList<>());
+        try {
+          handles[j] = SftpDispatcher.await(opens.get(j));
+          open++;
+        } catch (SftpException e) {
+          if (failures != null && !lost(e)) {
+            failures[start + j] = e;
+          } else if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      try {
+        if (failure != null) {
+          throw failure;
+        }
+        // read all open directories, one SSH_FXP_READDIR per directory at a time
+        List<CompletableFuture<List<LsEntry>>> reads = new ArrayList<>();
+        while (open > 0) {
+          reads.clear();
+          for (int j = 0; j < n; j++) {
+            reads.add(handles[j] == null ? null
+                : channels.get(j % channels.size()).readdirAsync(handles[j]));
+          }
+          for (int j = 0; j < n; j++) {
+            if (reads.get(j) == null) {
+              continue;
+            }
+            List<LsEntry> entries;
+            try {
+              entries = SftpDispatcher.await(reads.get(j));
+            } catch (SftpException e) {
+              if (failures == null || lost(e)) {
+                throw e;
+              }
+              failures[start + j] = e;
+              listings.get(start + j).clear();
+              entries = null;
+            }
+            if (entries == null) {
+              channels.get(j % channels.size()).closeAsync(handles[j]);
+              handles[j] = null;
+              open--;
+            } else {
+              listings.get(start + j).addAll(entries);
+            }
+          }
+        }
+      } finally {
+        for (int j = 0; j < n; j++) {
+          if (handles[j] != null) {
+            channels.get(j % channels.size()).closeAsync(handles[j]);
+          }
+        }
+      }
+    }
+    return listings;
+  }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A channel for random access to a remote file, which stays open on one handle.
+ *
+ * <p>
+ * The file is read in blocks, which are kept in a small cache. While the reads move on from block
+ * to block, the following blocks are read ahead, twice as many after each block up to
+ * {@link ChannelSftp#getBulkRequests()} of them; a read elsewhere stops the read-ahead, so that
+ * seeking around a file only costs the blocks which are actually read.
+ * </p>
+ *
+ * <p>
+ * Writes are not waited for. Consecutive writes are gathered into one SSH_FXP_WRITE as long as it
+ * fits in one packet, and up to {@link ChannelSftp#getBulkRequests()} requests are outstanding. A
+ * failed write is reported by the next call which writes, flushes or closes the channel. Reads of
+ * the channel see the data written before them.
+ * </p>
+ *
+ * <p>
+ * The methods of this class may be called by several threads, but the channel's position is shared
+ * by all of them, as with {@link java.nio.channels.FileChannel}.
+ * </p>
+ *
+ * @see ChannelSftp#openChannel(String, java.nio.file.OpenOption...)
+ */
+public class SftpByteChannel implements SeekableByteChannel {
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int MIN_CACHED_BLOCKS = 32;
+
+  private final ChannelSftp channel;
+  private final SftpHandle handle;
+  private final boolean readable;
+  private final boolean writable;
+  private final boolean append;
+
+  private final int blockSize;
+  private final int maxReadAhead;
+  private final int maxWrites;
+  private final int maxBlocks;
+
+  // the cached blocks, least recently used first
+  private final Map<Long, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+  private final ArrayDeque<CompletableFuture<Void>> writes = new ArrayDeque<>();
+
+  private long position = 0;
+  private long size;
+  private boolean closed = false;
+  private Runnable onClose = null;
+
+  // the block read last, and how many blocks after it are read ahead
+  private long lastBlock = -1;
+  private int readAhead = 0;
+
+  // the data of the writes which have not been sent yet
+  private final byte[] pending;
+  private long pendingOffset = 0;
+  private int pendingLength = 0;
+
+  private static class Block {
+    final long offset;
+    final byte[] data;
+    final CompletableFuture<Integer> future;
+    int count = -1;
+
+    Block(long offset, byte[] data, CompletableFuture<Integer> future) {
+      this.offset = offset;
+      this.data = data;
+      this.future = future;
+    }
+  }
+
+  SftpByteChannel(ChannelSftp channel, SftpHandle handle, boolean readable, boolean writable,
+      boolean append, long size) throws SftpException {
+    this.channel = channel;
+    this.handle = handle;
+    this.readable = readable;
+    this.writable = writable;
+    this.append = append;
+    this.size = size;
+    this.blockSize = Math.max(1024, channel.limits().readLength(BLOCK_SIZE));
+    this.maxReadAhead = channel.getBulkRequests();
+    this.maxWrites = channel.getBulkRequests();
+    this.pending = new byte[writable ? channel.dispatcher().maxWriteLength(handle) : 0];
+    this.maxBlocks = Math.max(MIN_CACHED_BLOCKS, 2 * maxReadAhead);
+  }
+
+  /** Sets an action which is run once the channel has been closed. */
+  void onClose(Runnable onClose) {
+    this.onClose = onClose;
+  }
+
+  /** Returns the remote path of the file. */
+  public String getPath() {
+    return handle.getPath();
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    int n = _read(dst, position);
+    if (n > 0) {
+      position += n;
+    }
+    return n;
+  }
+
+  /**
+   * Reads at <code>position</code>, without changing the position of the channel.
+   *
+   * @return the number of bytes read, or <code>-1</code> if <code>position</code> is at or beyond
+   *         the end of the file
+   */
+  public synchronized int read(ByteBuffer dst, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("negative position: " + position);
+    }
+    return _read(dst, position);
+  }
+
+  private int _read(ByteBuffer dst, long position) throws IOException {
+    checkOpen();
+    if (!readable) {
+      throw new NonReadableChannelException();
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    try {
+      // the server processes the requests for a handle in order, so the reads see these writes
+      sendPending();
+      int total = 0;
+      while (dst.hasRemaining()) {
+        long index = position / blockSize;
+        readAhead(index);
+        Block block = block(index);
+        int count = count(index, block);
+        int off = (int) (position - block.offset);
+        if (off >= count) {
+          break;
+        }
+        int n = Math.min(dst.remaining(), count - off);
+        dst.put(block.data, off, n);
+        position += n;
+        total += n;
+        if (count < blockSize) {
+          break;
+        }
+      }
+      return total == 0 ? -1 : total;
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  /** Adapts the read-ahead to a read of the block <code>index</code>, and starts it. */
+  private void readAhead(long index) {
+    if (index == lastBlock) {
+      return;
+    }
+    if (index == lastBlock + 1) {
+      readAhead = readAhead == 0 ? 1 : Math.min(maxReadAhead, readAhead * 2);
+    } else {
+      readAhead = 0;
+    }
+    lastBlock = index;
+    long end = (size + blockSize - 1) / blockSize;
+    for (long i = index + 1; i <= index + readAhead && i < end; i++) {
+      if (!blocks.containsKey(i)) {
+        blocks.put(i, fetch(i));
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Drops the least recently used blocks beyond the size of the cache, but not the ones being read
+   * ahead, which have not been used yet.
+   */
+  private void evict() {
+    Iterator<Long> i = blocks.keySet().iterator();
+    while (blocks.size() > maxBlocks && i.hasNext()) {
+      long index = i.next();
+      if (index < lastBlock || index > lastBlock + readAhead) {
+        i.remove();
+      }
+    }
+  }
+
+  private Block block(long index) {
+    Block block = blocks.get(index);
+    if (block == null) {
+      block = fetch(index);
+      blocks.put(index, block);
+      evict();
+    }
+    return block;
+  }
+
+  private Block fetch(long index) {
+    long offset = index * blockSize;
+    byte[] data = new byte[blockSize];
+    return new Block(offset, data, channel.readAsync(handle, offset, data, 0, blockSize));
+  }
+
+  /** Waits for a block, and returns the number of bytes it holds. */
+  private int count(long index, Block block) throws SftpException {
+    if (block.count >= 0) {
+      return block.count;
+    }
+    try {
+      int n = SftpDispatcher.await(block.future);
+      int count = Math.max(n, 0);
+      // the server may return less than requested before the end of the file
+      while (n > 0 && count < blockSize && block.offset + count < size) {
+        n = SftpDispatcher.await(
+            channel.readAsync(handle, block.offset + count, block.data, count, blockSize - count));
+        if (n > 0) {
+          count += n;
+        }
+      }
+      block.count = count;
+      return count;
+    } catch (SftpException e) {
+      blocks.remove(index);
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    if (append) {
+      position = size;
+    }
+    int n = _write(src, position);
+    position += n;
+    return n;
+  }
+
+  /** Writes at <code>position</code>, without changing the position of the channel. */
+  public synchronized int write(ByteBuffer src, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("negative position: " + position);
+    }
+    return _write(src, position);
+  }
+
+  private int _write(ByteBuffer src, long position) throws IOException {
+    checkOpen();
+    if (!writable) {
+      throw new NonWritableChannelException();
+    }
+    int n = src.remaining();
+    if (n == 0) {
+      return 0;
+    }
+    try {
+      drop(position, position + n);
+      if (pendingLength > 0
+          && (position != pendingOffset + pendingLength || pendingLength + n > pending.length)) {
+        sendPending();
+      }
+      if (n >= pending.length) {
+        byte[] b;
+        int off;
+        if (src.hasArray()) {
+          b = src.array();
+          off = src.arrayOffset() + src.position();
+          src.position(src.limit());
+        } else {
+          b = new byte[n];
+          off = 0;
+          src.get(b);
+        }
+        send(position, b, off, n);
+      } else {
+        if (pendingLength == 0) {
+          pendingOffset = position;
+        }
+        src.get(pending, pendingLength, n);
+        pendingLength += n;
+      }
+      size = Math.max(size, position + n);
+      return n;
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  /** Drops the cached blocks which overlap the bytes from <code>from</code> to <code>to</code>. */
+  private void drop(long from, long to) {
+    blocks.keySet().removeIf(i -> i * blockSize < to && (i + 1) * blockSize > from);
+  }
+
+  private void sendPending() throws SftpException {
+    if (pendingLength > 0) {
+      int n = pendingLength;
+      pendingLength = 0;
+      send(pendingOffset, pending, 0, n);
+    }
+  }
+
+  private void send(long offset, byte[] b, int off, int len) throws SftpException {
+    // the data is copied into the request before writeAsync returns
+    writes.addLast(channel.writeAsync(handle, offset, b, off, len));
+    while (!writes.isEmpty() && (writes.size() > maxWrites || writes.peekFirst().isDone())) {
+      SftpDispatcher.await(writes.pollFirst());
+    }
+  }
+
+  /** Sends the pending writes, and waits for every write to be acknowledged. */
+  public synchronized void flush() throws IOException {
+    checkOpen();
+    try {
+      _flush();
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  private void _flush() throws SftpException {
+    SftpException failure = null;
+    try {
+      sendPending();
+    } catch (SftpException e) {
+      failure = e;
+    }
+    failure = awaitWrites(failure);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Waits for every write, and returns the first failure. */
+  private SftpException awaitWrites(SftpException failure) {
+    while (!writes.isEmpty()) {
+      try {
+        SftpDispatcher.await(writes.pollFirst());
+      } catch (SftpException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    return failure;
+  }
+
+  @Override
+  public synchronized long position() throws IOException {
+    checkOpen();
+    return position;
+  }
+
+  @Override
+  public synchronized SftpByteChannel position(long newPosition) throws IOException {
+    checkOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("negative position: " + newPosition);
+    }
+    position = newPosition;
+    return this;
+  }
+
+  /** Returns the size of the file, as the server has it once the pending writes are done. */
+  @Override
+  public synchronized long size() throws IOException {
+    checkOpen();
+    try {
+      _flush();
+      size = SftpDispatcher.await(channel.fstatAsync(handle)).getSize();
+      return size;
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  @Override
+  public synchronized SftpByteChannel truncate(long newSize) throws IOException {
+    checkOpen();
+    if (newSize < 0) {
+      throw new IllegalArgumentException("negative size: " + newSize);
+    }
+    if (!writable) {
+      throw new NonWritableChannelException();
+    }
+    try {
+      if (newSize < size()) {
+        SftpATTRS attrs = new SftpATTRS();
+        attrs.setSIZE(newSize);
+        SftpDispatcher.await(channel.setStatAsync(handle.getPath(), attrs));
+        drop(newSize, Long.MAX_VALUE);
+        size = newSize;
+      }
+      position = Math.min(position, newSize);
+      return this;
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Sends the pending writes and closes the handle, reporting the first write that failed. The
+   * close is sent without waiting for the writes, which the server answers before it.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    blocks.clear();
+    SftpException failure = null;
+    try {
+      sendPending();
+    } catch (SftpException e) {
+      failure = e;
+    }
+    CompletableFuture<Void> closing = channel.closeAsync(handle);
+    failure = awaitWrites(failure);
+    try {
+      SftpDispatcher.await(closing);
+    } catch (SftpException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    if (onClose != null) {
+      onClose.run();
+    }
+    if (failure != null) {
+      throw new IOException(failure.toString(), failure);
+    }
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the attributes, canonical paths and directory listings a {@link ChannelSftp} has read, for
+ * a limited time and up to a number of entries, dropping the least recently used entries first.
+ *
+ * <p>
+ * A path which does not exist is cached as well, so that checking that the destination of an upload
+ * is not a directory does not cost a round trip per file. The entries of a path are dropped when
+ * the channel changes it, and the listing of its parent directory with them, but the attributes of
+ * the parent directory are kept. Changes made by other clients are only seen once the entries have
+ * expired.
+ * </p>
+ */
+class SftpCache {
+  // the largest directory whose listing is cached
+  static final int MAX_LISTING = 10000;
+
+  // the kinds of entries, prepended to the path of the key
+  private static final char ATTRS = 'a';
+  private static final char REALPATH = 'r';
+  private static final char LISTING = 'l';
+
+  // the attributes of a path which does not exist
+  private static final Object MISSING = new Object();
+
+  private final long ttl;
+  private final Map<String, CacheEntry> entries;
+
+  private static class CacheEntry {
+    final Object value;
+    final long expires;
+
+    CacheEntry(Object value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * @param ttl how long an entry is kept, in milliseconds
+   * @param size the maximum number of entries
+   */
+  SftpCache(long ttl, int size) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  private synchronized Object get(char kind, String path) {
+    String key = kind + path;
+    CacheEntry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires - System.nanoTime() <= 0) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  private synchronized void put(char kind, String path, Object value) {
+    entries.put(kind + path, new CacheEntry(value, System.nanoTime() + ttl * 1000000L));
+  }
+
+  /**
+   * Returns the cached attributes of <code>path</code>.
+   *
+   * @throws SftpException {@link ChannelSftp#SSH_FX_NO_SUCH_FILE} if <code>path</code> is cached as
+   *         missing
+   */
+  SftpATTRS attrs(String path) throws SftpException {
+    Object value = get(ATTRS, path);
+    if (value == MISSING) {
+      throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file");
+    }
+    // the callers may change the attributes they get
+    return value == null ? null : ((SftpATTRS) value).copy();
+  }
+
+  void putAttrs(String path, SftpATTRS attrs) {
+    put(ATTRS, path, attrs.copy());
+  }
+
+  void putMissing(String path) {
+    put(ATTRS, path, MISSING);
+  }
+
+  byte[] realpath(String path) {
+    return (byte[]) get(REALPATH, path);
+  }
+
+  void putRealpath(String path, byte[] realpath) {
+    put(REALPATH, path, realpath);
+  }
+
+  /** Returns the cached file names of the directory <code>path</code>. */
+  @SuppressWarnings("unchecked")
+  List<byte[]> listing(String path) {
+    return (List<byte[]>) get(LISTING, path);
+  }
+
+  void putListing(String path, List<byte[]> names) {
+    put(LISTING, path, names);
+  }
+
+  /** Drops the entries of <code>path</code>, which has been changed. */
+  synchronized void invalidate(String path) {
+    entries.remove(ATTRS + path);
+    entries.remove(REALPATH + path);
+    entries.remove(LISTING + path);
+    entries.remove(LISTING + parent(path));
+  }
+
+  /**
+   * Drops the entries of <code>path</code> and of every path below it, as <code>path</code> has
+   * been removed or renamed.
+   */
+  synchronized void invalidateTree(String path) {
+    invalidate(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    Iterator<String> i = entries.keySet().iterator();
+    while (i.hasNext()) {
+      if (i.next().startsWith(prefix, 1)) {
+        i.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  static String parent(String path) {
+    int i = path.lastIndexOf('/');
+    if (i < 0) {
+      return "";
+    }
+    return i == 0 ? "/" : path.substring(0, i);
+  }
+}
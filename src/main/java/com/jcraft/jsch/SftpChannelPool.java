@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The SFTP channels of a {@link SftpFileSystem}, which are opened on its session as they are
+ * needed, up to a maximum number.
+ *
+ * <p>
+ * Asynchronous requests may be sent on a channel by any number of threads at the same time, so
+ * {@link #channel()} shares the channels, returning the one with the fewest requests outstanding,
+ * and only opens another one when all of them are busy. The synchronous methods of
+ * {@link ChannelSftp} need a channel for themselves, which {@link #acquire()} lends until it is
+ * given back with {@link #release(ChannelSftp)}. A channel which has been disconnected is dropped.
+ * </p>
+ */
+final class SftpChannelPool {
+  private final Session session;
+  private final int max;
+
+  private final List<ChannelSftp> channels = new ArrayList<>();
+  private final Set<ChannelSftp> acquired = new HashSet<>();
+  private boolean closed = false;
+
+  SftpChannelPool(Session session, int max) {
+    if (max <= 0) {
+      throw new IllegalArgumentException("SftpChannelPool: " + max);
+    }
+    this.session = session;
+    this.max = max;
+  }
+
+  /** Returns a channel for asynchronous requests. */
+  synchronized ChannelSftp channel() throws SftpException {
+    prune();
+    ChannelSftp best = null;
+    int least = Integer.MAX_VALUE;
+    for (ChannelSftp channel : channels) {
+      int n = channel.dispatcher().outstanding();
+      if (n < least) {
+        best = channel;
+        least = n;
+      }
+    }
+    if (best == null || (least > 0 && channels.size() < max)) {
+      best = open();
+    }
+    return best;
+  }
+
+  /**
+   * Returns a channel for synchronous requests, waiting for one to be released if all of them are
+   * in use.
+   */
+  synchronized ChannelSftp acquire() throws SftpException {
+    while (true) {
+      prune();
+      for (ChannelSftp channel : channels) {
+        if (!acquired.contains(channel)) {
+          acquired.add(channel);
+          return channel;
+        }
+      }
+      if (channels.size() < max) {
+        ChannelSftp channel = open();
+        acquired.add(channel);
+        return channel;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+      }
+    }
+  }
+
+  synchronized void release(ChannelSftp channel) {
+    acquired.remove(channel);
+    notifyAll();
+  }
+
+  /** Disconnects every channel. */
+  void close() {
+    List<ChannelSftp> _channels;
+    synchronized (this) {
+      closed = true;
+      _channels = new ArrayList<>(channels);
+      channels.clear();
+      acquired.clear();
+      notifyAll();
+    }
+    for (ChannelSftp channel : _channels) {
+      channel.disconnect();
+    }
+  }
+
+  private void prune() throws SftpException {
+    if (closed) {
+      throw new SftpException(ChannelSftp.SSH_FX_NO_CONNECTION, "The file system is closed.");
+    }
+    channels.removeIf(channel -> {
+      if (channel.isConnected()) {
+        return false;
+      }
+      acquired.remove(channel);
+      return true;
+    });
+  }
+
+  private ChannelSftp open() throws SftpException {
+    try {
+      ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+      channel.connect();
+      channels.add(channel);
+      return channel;
+    } catch (JSchException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_NO_CONNECTION, e.toString(), e);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The entries of a remote directory, read with several SSH_FXP_READDIR requests outstanding by a
+ * {@link SftpLsIterator}. The attributes which come with the entries are put in the cache of the
+ * file system.
+ */
+final class SftpDirectoryStream implements DirectoryStream<Path> {
+  private final SftpFileSystem fs;
+  private final SftpPath dir;
+  private final SftpLsIterator entries;
+  private final Filter<? super Path> filter;
+  private boolean iterated = false;
+  private volatile boolean closed = false;
+
+  SftpDirectoryStream(SftpFileSystem fs, SftpPath dir, SftpLsIterator entries,
+      Filter<? super Path> filter) {
+    this.fs = fs;
+    this.dir = dir;
+    this.entries = entries;
+    this.filter = filter;
+  }
+
+  @Override
+  public synchronized Iterator<Path> iterator() {
+    if (closed) {
+      throw new IllegalStateException("Directory stream is closed");
+    }
+    if (iterated) {
+      throw new IllegalStateException("Iterator already obtained");
+    }
+    iterated = true;
+    return new Iterator<Path>() {
+      private Path next;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          next = fetch();
+        }
+        return next != null;
+      }
+
+      @Override
+      public Path next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Path result = next;
+        next = null;
+        return result;
+      }
+    };
+  }
+
+  private Path fetch() {
+    while (!closed) {
+      LsEntry entry;
+      try {
+        synchronized (entries) {
+          entry = closed ? null : entries.fetch();
+        }
+      } catch (SftpException e) {
+        throw new DirectoryIteratorException(SftpFileSystem.io(e, dir));
+      }
+      if (entry == null) {
+        return null;
+      }
+      String name = entry.getFilename();
+      if (name.equals(".") || name.equals("..")) {
+        continue;
+      }
+      SftpPath path = dir.resolve(name);
+      fs.cache(path, entry.getAttrs());
+      try {
+        if (filter == null || filter.accept(path)) {
+          return path;
+        }
+      } catch (IOException e) {
+        throw new DirectoryIteratorException(e);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      // waits for a read of the iterator which is in progress
+      synchronized (entries) {
+        entries.close();
+      }
+    } catch (SftpException e) {
+      throw SftpFileSystem.io(e, dir);
+    }
+  }
+}
@@ -0,0 +1,750 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Reads every response of a multiplexed {@link ChannelSftp} and hands it to the request it answers,
+ * so that any number of threads may have requests outstanding on the channel at the same time.
+ *
+ * <p>
+ * Requests sent through this class get ids with the highest bit set and are answered by completing
+ * a {@link CompletableFuture}. Responses to any other id belong to the synchronous methods of
+ * {@link ChannelSftp}, which keep reading them, in order, from {@link #getInputStream()}.
+ * </p>
+ */
+class SftpDispatcher implements Runnable {
+  private static final byte SSH_FXP_OPEN = 3;
+  private static final byte SSH_FXP_CLOSE = 4;
+  private static final byte SSH_FXP_READ = 5;
+  private static final byte SSH_FXP_WRITE = 6;
+  private static final byte SSH_FXP_LSTAT = 7;
+  private static final byte SSH_FXP_FSTAT = 8;
+  private static final byte SSH_FXP_SETSTAT = 9;
+  private static final byte SSH_FXP_OPENDIR = 11;
+  private static final byte SSH_FXP_READDIR = 12;
+  private static final byte SSH_FXP_REMOVE = 13;
+  private static final byte SSH_FXP_MKDIR = 14;
+  private static final byte SSH_FXP_RMDIR = 15;
+  private static final byte SSH_FXP_STAT = 17;
+  private static final byte SSH_FXP_RENAME = 18;
+  private static final byte SSH_FXP_EXTENDED = (byte) 200;
+  private static final byte SSH_FXP_STATUS = 101;
+  private static final byte SSH_FXP_HANDLE = 102;
+  private static final byte SSH_FXP_DATA = 103;
+  private static final byte SSH_FXP_NAME = 104;
+  private static final byte SSH_FXP_ATTRS = 105;
+  private static final int SSH_FXP_EXTENDED_REPLY = 201;
+
+  private static final int MAX_MSG_LENGTH = 256 * 1024;
+  /**
+   * The longest data an SSH_FXP_DATA reply may carry, after its length, type, request id and data
+   * length, so that it does not exceed the longest message the dispatcher accepts.
+   */
+  static final int MAX_DATA_LENGTH = MAX_MSG_LENGTH - 13;
+
+  private final ChannelSftp channel;
+  private final InputStream in;
+  private final PacketInputStream legacy = new PacketInputStream();
+  private final Map<Integer, Reply<?>> replies = new ConcurrentHashMap<>();
+  private final AtomicInteger ids = new AtomicInteger();
+  private final byte[] head = new byte[9];
+
+  private volatile boolean closed = false;
+  private Thread thread;
+
+  SftpDispatcher(ChannelSftp channel, InputStream in) {
+    this.channel = channel;
+    this.in = in;
+  }
+
+  /** Returns the stream of the responses to the synchronous requests. */
+  InputStream getInputStream() {
+    return legacy;
+  }
+
+  void start(Thread thread) {
+    this.thread = thread;
+    thread.start();
+  }
+
+  void stop() {
+    closed = true;
+    Thread _thread = thread;
+    if (_thread != null) {
+      _thread.interrupt();
+    }
+  }
+
+  CompletableFuture<SftpATTRS> stat(byte[] path, boolean follow) {
+    return request(new Attrs(), follow ? SSH_FXP_STAT : SSH_FXP_LSTAT, 4 + path.length,
+        buf -> buf.putString(path));
+  }
+
+  CompletableFuture<SftpATTRS> fstat(SftpHandle handle) {
+    return request(new Attrs(), SSH_FXP_FSTAT, 4 + handle.handle.length,
+        buf -> buf.putString(handle.handle));
+  }
+
+  CompletableFuture<SftpHandle> open(byte[] path, String name, int pflags) {
+    return request(new Handle(name, false), SSH_FXP_OPEN, 12 + path.length, buf -> {
+      buf.putString(path);
+      buf.putInt(pflags);
+      buf.putInt(0); // attrs
+    });
+  }
+
+  CompletableFuture<SftpHandle> opendir(byte[] path, String name) {
+    return request(new Handle(name, true), SSH_FXP_OPENDIR, 4 + path.length,
+        buf -> buf.putString(path));
+  }
+
+  CompletableFuture<Void> mkdir(byte[] path) {
+    return request(new Status(), SSH_FXP_MKDIR, 8 + path.length, buf -> {
+      buf.putString(path);
+      buf.putInt(0); // attrs
+    });
+  }
+
+  CompletableFuture<Void> rmdir(byte[] path) {
+    return request(new Status(), SSH_FXP_RMDIR, 4 + path.length, buf -> buf.putString(path));
+  }
+
+  CompletableFuture<Void> remove(byte[] path) {
+    return request(new Status(), SSH_FXP_REMOVE, 4 + path.length, buf -> buf.putString(path));
+  }
+
+  CompletableFuture<Void> setstat(byte[] path, SftpATTRS attrs) {
+    return request(new Status(), SSH_FXP_SETSTAT, 4 + path.length + attrs.length(), buf -> {
+      buf.putString(path);
+      attrs.dump(buf);
+    });
+  }
+
+  /**
+   * Sends SSH_FXP_RENAME, or posix-rename@openssh.com if <code>posix</code> is <code>true</code>.
+   */
+  CompletableFuture<Void> rename(byte[] oldpath, byte[] newpath, boolean posix) {
+    if (!posix) {
+      return request(new Status(), SSH_FXP_RENAME, 8 + oldpath.length + newpath.length, buf -> {
+        buf.putString(oldpath);
+        buf.putString(newpath);
+      });
+    }
+    byte[] extension = Util.str2byte("posix-rename@openssh.com");
+    return request(new Status(), SSH_FXP_EXTENDED,
+        12 + extension.length + oldpath.length + newpath.length, buf -> {
+          buf.putString(extension);
+          buf.putString(oldpath);
+          buf.putString(newpath);
+        });
+  }
+
+  /** Copies a range of <code>from</code> to <code>to</code> with the "copy-data" extension. */
+  CompletableFuture<Void> copyData(SftpHandle from, long offset, long length, SftpHandle to,
+      long toOffset) {
+    byte[] extension = Util.str2byte("copy-data");
+    return request(new Status(), SSH_FXP_EXTENDED,
+        36 + extension.length + from.handle.length + to.handle.length, buf -> {
+          buf.putString(extension);
+          buf.putString(from.handle);
+          buf.putLong(offset);
+          buf.putLong(length);
+          buf.putString(to.handle);
+          buf.putLong(toOffset);
+        });
+  }
+
+  /** Copies the file <code>src</code> to <code>dst</code> with the "copy-file" extension. */
+  CompletableFuture<Void> copyFile(byte[] src, byte[] dst, boolean overwrite) {
+    byte[] extension = Util.str2byte("copy-file");
+    return request(new Status(), SSH_FXP_EXTENDED, 13 + extension.length + src.length + dst.length,
+        buf -> {
+          buf.putString(extension);
+          buf.putString(src);
+          buf.putString(dst);
+          buf.putByte((byte) (overwrite ? 1 : 0));
+        });
+  }
+
+  /**
+   * Hashes a range of a file with the "check-file-handle" extension, or with "check-file-name" if
+   * <code>target</code> is a path instead of a handle.
+   */
+  CompletableFuture<SftpFileHashes> checkFile(byte[] target, boolean handle, String algorithms,
+      long offset, long length, int blockSize) {
+    byte[] extension = Util.str2byte(handle ? "check-file-handle" : "check-file-name");
+    byte[] _algorithms = Util.str2byte(algorithms);
+    return request(new FileHashes(offset, blockSize), SSH_FXP_EXTENDED,
+        32 + extension.length + target.length + _algorithms.length, buf -> {
+          buf.putString(extension);
+          buf.putString(target);
+          buf.putString(_algorithms);
+          buf.putLong(offset);
+          buf.putLong(length);
+          buf.putInt(blockSize);
+        });
+  }
+
+  CompletableFuture<Void> close(SftpHandle handle) {
+    return request(new Status(), SSH_FXP_CLOSE, 4 + handle.handle.length,
+        buf -> buf.putString(handle.handle));
+  }
+
+  CompletableFuture<Integer> read(SftpHandle handle, long offset, byte[] b, int off, int len) {
+    // the data is counted against the rate limits when it is requested
+    channel.throttle(len);
+    return request(new Data(b, off, len), SSH_FXP_READ, 16 + handle.handle.length, buf -> {
+      buf.putString(handle.handle);
+      buf.putLong(offset);
+      buf.putInt(len);
+    });
+  }
+
+  CompletableFuture<Void> write(SftpHandle handle, long offset, byte[] b, int off, int len) {
+    int max = maxWriteLength(handle);
+    if (len <= max) {
+      return write0(handle, offset, b, off, len);
+    }
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+    while (len > 0) {
+      int n = Math.min(len, max);
+      writes.add(write0(handle, offset, b, off, n));
+      offset += n;
+      off += n;
+      len -= n;
+    }
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private CompletableFuture<Void> write0(SftpHandle handle, long offset, byte[] b, int off,
+      int len) {
+    return request(new Status(), SSH_FXP_WRITE, 16 + handle.handle.length + len, buf -> {
+      buf.putString(handle.handle);
+      buf.putLong(offset);
+      buf.putString(b, off, len);
+    });
+  }
+
+  /**
+   * Sends <code>len</code> bytes of the local file <code>src</code> from <code>position</code>,
+   * which are read straight into the packets.
+   */
+  CompletableFuture<Void> write(SftpHandle handle, long offset, FileChannel src, long position,
+      int len) {
+    return write(handle, offset, len, (skip, b, off, n) -> {
+      ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+      while (bb.hasRemaining()) {
+        if (src.read(bb, position + skip + (bb.position() - off)) < 0) {
+          throw new EOFException("the file has shrunk below " + (position + len));
+        }
+      }
+    });
+  }
+
+  /** Copies <code>len</code> bytes from <code>skip</code> bytes into a source to a packet. */
+  private interface Source {
+    void copy(int skip, byte[] b, int off, int len) throws IOException;
+  }
+
+  private CompletableFuture<Void> write(SftpHandle handle, long offset, int len, Source src) {
+    int max = maxWriteLength(handle);
+    if (len <= max) {
+      return write0(handle, offset, src, 0, len);
+    }
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+    for (int skip = 0; skip < len; skip += max) {
+      writes.add(write0(handle, offset + skip, src, skip, Math.min(len - skip, max)));
+    }
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private CompletableFuture<Void> write0(SftpHandle handle, long offset, Source src, int skip,
+      int len) {
+    return request(new Status(), SSH_FXP_WRITE, 16 + handle.handle.length + len, buf -> {
+      buf.putString(handle.handle);
+      buf.putLong(offset);
+      buf.putInt(len);
+      try {
+        src.copy(skip, buf.buffer, buf.index, len);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      buf.skip(len);
+    });
+  }
+
+  /** Returns the largest amount of data which fits in one SSH_FXP_WRITE the server accepts. */
+  int maxWriteLength(SftpHandle handle) {
+    int margin = 32;
+    try {
+      margin = channel.getSession().getBufferMargin();
+    } catch (JSchException e) {
+    }
+    int max = Math.max(1, channel.rmpsize - (5 + 13 + 21 + handle.handle.length + margin));
+    return channel.limits().writeLength(max, handle.handle.length);
+  }
+
+  CompletableFuture<List<LsEntry>> readdir(SftpHandle handle) {
+    return request(new Names(), SSH_FXP_READDIR, 4 + handle.handle.length,
+        buf -> buf.putString(handle.handle));
+  }
+
+  /**
+   * Sends SSH_FXP_READDIR, whose SSH_FXP_NAME response is not decoded.
+   *
+   * @return the response positioned at the count of its entries, or <code>null</code> at the end of
+   *         the directory
+   */
+  CompletableFuture<Buffer> readdirPage(SftpHandle handle) {
+    return request(new Page(), SSH_FXP_READDIR, 4 + handle.handle.length,
+        buf -> buf.putString(handle.handle));
+  }
+
+  /**
+   * Sends a request whose fields after the request id take <code>length</code> bytes and are
+   * written by <code>body</code>.
+   */
+  <T> CompletableFuture<T> request(Reply<T> reply, byte type, int length, Consumer<Buffer> body) {
+    int id = register(reply);
+    if (id == 0) {
+      return reply;
+    }
+    try {
+      Buffer buf = new Buffer(5 + 14 + length + channel.getSession().getBufferMargin());
+      Packet packet = new Packet(buf);
+      packet.reset();
+      channel.putHEAD(buf, type, 5 + length);
+      buf.putInt(id);
+      body.accept(buf);
+      channel.send(packet, 9 + length);
+      reply.sent = System.nanoTime();
+    } catch (UncheckedIOException e) {
+      // the body could not be read, and nothing has been sent
+      replies.remove(id);
+      IOException cause = e.getCause();
+      reply.completeExceptionally(
+          new SftpException(ChannelSftp.SSH_FX_FAILURE, cause.toString(), cause));
+    } catch (Exception e) {
+      replies.remove(id);
+      reply.completeExceptionally(
+          new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, e.toString(), e));
+    }
+    return reply;
+  }
+
+  /**
+   * Allocates a request id for <code>reply</code>, or fails it and returns <code>0</code> if no
+   * more responses will be read.
+   */
+  int register(Reply<?> reply) {
+    int id = 0x80000000 | (ids.getAndIncrement() & 0x7fffffff);
+    replies.put(id, reply);
+    if (closed) {
+      replies.remove(id);
+      reply.completeExceptionally(lost(null));
+      return 0;
+    }
+    return id;
+  }
+
+  /** Returns the number of asynchronous requests which have not been answered yet. */
+  int outstanding() {
+    return replies.size();
+  }
+
+  @Override
+  public void run() {
+    Exception cause = null;
+    try {
+      while (!closed) {
+        fill(head, 0, 9);
+        int length = getInt(head, 0) - 5;
+        int type = head[4] & 0xff;
+        int id = getInt(head, 5);
+        if (length < 0 || length > MAX_MSG_LENGTH) {
+          throw new IOException("Received message is too long: " + length);
+        }
+        if (id >= 0) {
+          byte[] packet = new byte[9 + length];
+          System.arraycopy(head, 0, packet, 0, 9);
+          fill(packet, 9, length);
+          legacy.add(packet);
+          continue;
+        }
+        Reply<?> reply = replies.remove(id);
+        if (reply == null) {
+          skip(length);
+          continue;
+        }
+        reply.received = System.nanoTime();
+        SftpTransferStats stats = channel.transferStats;
+        if (stats != null && reply.sent != 0) {
+          stats.rtt(reply.received - reply.sent);
+        }
+        reply.receive(type, length);
+      }
+    } catch (Exception e) {
+      cause = e;
+    } finally {
+      closed = true;
+      legacy.close();
+      for (Integer id : replies.keySet()) {
+        Reply<?> reply = replies.remove(id);
+        if (reply != null) {
+          reply.completeExceptionally(lost(cause));
+        }
+      }
+    }
+  }
+
+  /** Waits for <code>future</code>, unwrapping the {@link SftpException} it has failed with. */
+  static <T> T await(CompletableFuture<T> future) throws SftpException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SftpException)
+        throw (SftpException) cause;
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, cause.toString(), cause);
+    }
+  }
+
+  /**
+   * Returns the {@link System#nanoTime()} at which the response to <code>future</code> has started
+   * to arrive, or the current time if it is not known.
+   */
+  static long received(CompletableFuture<?> future) {
+    if (future instanceof Reply) {
+      long received = ((Reply<?>) future).received;
+      if (received != 0) {
+        return received;
+      }
+    }
+    return System.nanoTime();
+  }
+
+  private static SftpException lost(Exception cause) {
+    if (cause == null) {
+      return new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "channel is closed");
+    }
+    return new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, cause.toString(), cause);
+  }
+
+  private void fill(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int i = in.read(b, off, len);
+      if (i <= 0) {
+        throw new IOException("inputstream is closed");
+      }
+      off += i;
+      len -= i;
+    }
+  }
+
+  private void skip(long len) throws IOException {
+    byte[] b = new byte[(int) Math.min(len, 8192)];
+    while (len > 0) {
+      int n = (int) Math.min(len, b.length);
+      fill(b, 0, n);
+      len -= n;
+    }
+  }
+
+  private static int getInt(byte[] b, int i) {
+    return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8)
+        | (b[i + 3] & 0xff);
+  }
+
+  private Buffer payload(int length) throws IOException {
+    Buffer buf = new Buffer(Math.max(length, 1));
+    fill(buf.buffer, 0, length);
+    buf.index = length;
+    return buf;
+  }
+
+  private SftpException status(Buffer buf) {
+    int i = buf.getInt();
+    return new SftpException(i, channel.sftpStatusMessage(buf, i));
+  }
+
+  /**
+   * The answer to one request. It must read exactly the <code>length</code> bytes following the
+   * request id, and is completed on the dispatcher's thread.
+   */
+  abstract class Reply<T> extends CompletableFuture<T> {
+    volatile long sent = 0;
+    volatile long received = 0;
+
+    void receive(int type, int length) throws IOException {
+      Buffer buf = payload(length);
+      try {
+        complete(decode(type, buf));
+      } catch (SftpException e) {
+        completeExceptionally(e);
+      } catch (RuntimeException e) {
+        completeExceptionally(new SftpException(ChannelSftp.SSH_FX_BAD_MESSAGE, e.toString(), e));
+      }
+    }
+
+    abstract T decode(int type, Buffer buf) throws SftpException;
+
+    SftpException unexpected(int type, Buffer buf) {
+      if (type == SSH_FXP_STATUS) {
+        return status(buf);
+      }
+      return new SftpException(ChannelSftp.SSH_FX_BAD_MESSAGE, "unexpected response: " + type);
+    }
+  }
+
+  class Status extends Reply<Void> {
+    @Override
+    Void decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_STATUS) {
+        int i = buf.getInt();
+        if (i == ChannelSftp.SSH_FX_OK) {
+          return null;
+        }
+        throw new SftpException(i, channel.sftpStatusMessage(buf, i));
+      }
+      throw unexpected(type, buf);
+    }
+  }
+
+  class Attrs extends Reply<SftpATTRS> {
+    @Override
+    SftpATTRS decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_ATTRS) {
+        return SftpATTRS.getATTR(buf);
+      }
+      throw unexpected(type, buf);
+    }
+  }
+
+  class Handle extends Reply<SftpHandle> {
+    private final String path;
+    private final boolean directory;
+
+    Handle(String path, boolean directory) {
+      this.path = path;
+      this.directory = directory;
+    }
+
+    @Override
+    SftpHandle decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_HANDLE) {
+        return new SftpHandle(buf.getString(), path, directory);
+      }
+      throw unexpected(type, buf);
+    }
+  }
+
+  class Names extends Reply<List<LsEntry>> {
+    @Override
+    List<LsEntry> decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_STATUS) {
+        int i = buf.getInt();
+        if (i == ChannelSftp.SSH_FX_EOF) {
+          return null;
+        }
+        throw new SftpException(i, channel.sftpStatusMessage(buf, i));
+      }
+      if (type != SSH_FXP_NAME) {
+        throw unexpected(type, buf);
+      }
+      int count = buf.getInt();
+      List<LsEntry> entries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] filename = buf.getString();
+        byte[] longname = channel.server_version <= 3 ? buf.getString() : null;
+        SftpATTRS attrs = SftpATTRS.getATTR(buf);
+        entries.add(channel.toLsEntry(filename, longname, attrs));
+      }
+      return entries;
+    }
+  }
+
+  class Page extends Reply<Buffer> {
+    @Override
+    Buffer decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_STATUS) {
+        int i = buf.getInt();
+        if (i == ChannelSftp.SSH_FX_EOF) {
+          return null;
+        }
+        throw new SftpException(i, channel.sftpStatusMessage(buf, i));
+      }
+      if (type != SSH_FXP_NAME) {
+        throw unexpected(type, buf);
+      }
+      return buf;
+    }
+  }
+
+  class FileHashes extends Reply<SftpFileHashes> {
+    private final long offset;
+    private final int blockSize;
+
+    FileHashes(long offset, int blockSize) {
+      this.offset = offset;
+      this.blockSize = blockSize;
+    }
+
+    @Override
+    SftpFileHashes decode(int type, Buffer buf) throws SftpException {
+      if (type != SSH_FXP_EXTENDED_REPLY) {
+        throw unexpected(type, buf);
+      }
+      buf.getString(); // "check-file"
+      String algorithm = Util.byte2str(buf.getString());
+      byte[] hashes = new byte[buf.getLength()];
+      buf.getByte(hashes);
+      return new SftpFileHashes(algorithm, offset, blockSize, hashes);
+    }
+  }
+
+  /** Reads the data of SSH_FXP_DATA directly into the caller's array. */
+  class Data extends Reply<Integer> {
+    private final byte[] b;
+    private final int off;
+    private final int len;
+
+    Data(byte[] b, int off, int len) {
+      this.b = b;
+      this.off = off;
+      this.len = len;
+    }
+
+    @Override
+    void receive(int type, int length) throws IOException {
+      if (type != SSH_FXP_DATA || length < 4) {
+        super.receive(type, length);
+        return;
+      }
+      byte[] foo = new byte[4];
+      fill(foo, 0, 4);
+      int n = getInt(foo, 0);
+      if (n < 0 || n > length - 4) {
+        throw new IOException("invalid SSH_FXP_DATA: " + n);
+      }
+      int m = Math.min(n, len);
+      fill(b, off, m);
+      skip(length - 4 - m);
+      complete(m);
+    }
+
+    @Override
+    Integer decode(int type, Buffer buf) throws SftpException {
+      if (type == SSH_FXP_STATUS) {
+        int i = buf.getInt();
+        if (i == ChannelSftp.SSH_FX_EOF) {
+          return -1;
+        }
+        throw new SftpException(i, channel.sftpStatusMessage(buf, i));
+      }
+      throw unexpected(type, buf);
+    }
+  }
+
+  /** The responses to the synchronous requests, in the order they have been received. */
+  static class PacketInputStream extends InputStream {
+    private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+    private byte[] current = null;
+    private int pos = 0;
+    private int available = 0;
+    private boolean eof = false;
+
+    synchronized void add(byte[] packet) {
+      packets.addLast(packet);
+      available += packet.length;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+      eof = true;
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (current == null || pos == current.length) {
+        current = packets.pollFirst();
+        pos = 0;
+        if (current == null) {
+          if (eof) {
+            return -1;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+          }
+        }
+      }
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(current, pos, b, off, n);
+      pos += n;
+      available -= n;
+      return n;
+    }
+
+    @Override
+    public synchronized int available() {
+      return available;
+    }
+  }
+}
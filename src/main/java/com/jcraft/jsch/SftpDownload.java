@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Downloads an open remote file with several SSH_FXP_READ requests outstanding, accepting the
+ * responses in whatever order the server sends them.
+ *
+ * <p>
+ * {@link #transferTo(FileChannel, long)} writes every chunk at its own position as soon as it has
+ * arrived, so the file has holes until the transfer has completed. {@link #read(byte[], int, int)}
+ * and {@link #transferTo(OutputStream)} deliver the data in order; the outstanding requests act as
+ * the reorder buffer, so a response which arrives early waits in its own buffer until the data
+ * before it has been delivered.
+ * </p>
+ *
+ * <p>
+ * How many requests are outstanding, and how large they are, is decided by a
+ * {@link SftpFlowControl}. A larger request size is tried with a single request first, as a request
+ * the server answers in part costs another round trip for its rest; the size of the requests is
+ * capped at the most the server has returned for one of them.
+ * </p>
+ */
+class SftpDownload {
+  private final SftpDispatcher dispatcher;
+  private final SftpHandle handle;
+  private final SftpFlowControl flow;
+  private final SftpProgressMonitor monitor;
+
+  // outstanding requests, in the order of their offsets
+  private final ArrayDeque<Chunk> requests = new ArrayDeque<>();
+  private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+  private long next;
+  private long eof;
+
+  // the largest request size the server has answered in full, and whether a larger one is tried
+  private int confirmed;
+  private boolean probing = false;
+  private boolean cancelled = false;
+
+  // the chunk being read by read(byte[], int, int)
+  private Chunk current = null;
+  private int position = 0;
+
+  // the offset up to which transferTo(FileChannel, long) has written the data without a gap
+  private long written;
+
+  SftpDownload(SftpDispatcher dispatcher, SftpHandle handle, long offset, SftpFlowControl flow,
+      SftpProgressMonitor monitor) {
+    this(dispatcher, handle, offset, Long.MAX_VALUE, flow, monitor);
+  }
+
+  /**
+   * @param end the offset up to which the file is downloaded, unless it ends before
+   */
+  SftpDownload(SftpDispatcher dispatcher, SftpHandle handle, long offset, long end,
+      SftpFlowControl flow, SftpProgressMonitor monitor) {
+    this.dispatcher = dispatcher;
+    this.handle = handle;
+    this.next = offset;
+    this.eof = end;
+    this.flow = flow;
+    this.monitor = monitor;
+    this.confirmed = flow.chunk();
+  }
+
+  private static class Chunk {
+    final long offset;
+    final int length;
+    final byte[] data;
+    // whether this chunk is the rest of a chunk the server has returned in part
+    final boolean rest;
+    // whether this chunk tries a larger request size
+    boolean probe = false;
+    long sent;
+    CompletableFuture<Integer> future;
+    int count;
+
+    Chunk(long offset, int length, byte[] data, boolean rest) {
+      this.offset = offset;
+      this.length = length;
+      this.data = data;
+      this.rest = rest;
+    }
+  }
+
+  private Chunk issue(long offset, int length, boolean rest) {
+    byte[] data = buffers.pollFirst();
+    if (data == null || data.length < length) {
+      data = new byte[length];
+    }
+    Chunk c = new Chunk(offset, length, data, rest);
+    c.sent = System.nanoTime();
+    c.future = dispatcher.read(handle, offset, data, 0, length);
+    return c;
+  }
+
+  private Chunk issue() {
+    int chunk = (int) Math.min(flow.chunk(), eof - next);
+    boolean probe = false;
+    if (chunk > confirmed) {
+      if (probing) {
+        chunk = confirmed;
+      } else {
+        probing = probe = true;
+      }
+    }
+    Chunk c = issue(next, chunk, false);
+    c.probe = probe;
+    next += chunk;
+    return c;
+  }
+
+  private void fill() {
+    while (requests.size() < flow.depth() && next < eof && !cancelled) {
+      requests.addLast(issue());
+    }
+  }
+
+  private void await(Chunk c) throws SftpException {
+    c.count = SftpDispatcher.await(c.future);
+    flow.completed(c.sent, SftpDispatcher.received(c.future), Math.max(0, c.count));
+  }
+
+  /**
+   * Accounts for a chunk which has arrived, and requests the rest of it if the server returned less
+   * than requested before the end of the file.
+   *
+   * @return <code>false</code> if the chunk is at or beyond the end of the file
+   */
+  private boolean arrived(Chunk c, boolean first) {
+    if (c.probe) {
+      probing = false;
+      if (c.count == c.length) {
+        confirmed = c.length;
+      }
+    }
+    if (c.count < 0) {
+      eof = Math.min(eof, c.offset);
+      return false;
+    }
+    if (c.count < c.length && c.offset + c.count < eof) {
+      if (!c.rest) {
+        // the server does not return more than this at once
+        flow.limitChunk(c.count);
+      }
+      Chunk rest = issue(c.offset + c.count, c.length - c.count, true);
+      if (first) {
+        requests.addFirst(rest);
+      } else {
+        requests.addLast(rest);
+      }
+    }
+    return true;
+  }
+
+  private boolean count(int n) {
+    if (monitor != null && n > 0 && !monitor.count(n)) {
+      cancelled = true;
+    }
+    return !cancelled;
+  }
+
+  /**
+   * Reads the data in order.
+   *
+   * @return the number of bytes read, or <code>-1</code> at the end of the file or once the
+   *         progress monitor has cancelled the transfer
+   */
+  int read(byte[] d, int s, int len) throws IOException {
+    try {
+      return _read(d, s, len);
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  private int _read(byte[] d, int s, int len) throws SftpException {
+    if (len == 0) {
+      return 0;
+    }
+    while (current == null || position == current.count) {
+      if (current != null) {
+        buffers.addLast(current.data);
+        current = null;
+      }
+      if (cancelled) {
+        return -1;
+      }
+      fill();
+      Chunk c = requests.pollFirst();
+      if (c == null) {
+        return -1;
+      }
+      await(c);
+      if (!arrived(c, true)) {
+        // every later request is beyond the end of the file as well
+        requests.clear();
+        return -1;
+      }
+      current = c;
+      position = 0;
+    }
+    int n = Math.min(len, current.count - position);
+    System.arraycopy(current.data, position, d, s, n);
+    position += n;
+    count(n);
+    return n;
+  }
+
+  /** Writes the data to <code>out</code> in order. */
+  void transferTo(OutputStream out) throws IOException, SftpException {
+    while (!cancelled) {
+      fill();
+      Chunk c = requests.pollFirst();
+      if (c == null) {
+        return;
+      }
+      await(c);
+      if (!arrived(c, true)) {
+        requests.clear();
+        return;
+      }
+      out.write(c.data, 0, c.count);
+      buffers.addLast(c.data);
+      count(c.count);
+    }
+  }
+
+  /**
+   * Writes every chunk to <code>out</code> at its offset plus <code>delta</code>, in the order the
+   * responses arrive.
+   */
+  void transferTo(FileChannel out, long delta) throws IOException, SftpException {
+    transferTo(out, delta, false);
+  }
+
+  /**
+   * Writes every chunk to <code>out</code> at its offset plus <code>delta</code>, in the order the
+   * responses arrive.
+   *
+   * @param truncate whether <code>out</code> is cut back to the data written without a gap if the
+   *        transfer fails or is cancelled, so that a transfer resumed at its size leaves no hole
+   */
+  void transferTo(FileChannel out, long delta, boolean truncate) throws IOException, SftpException {
+    written = next;
+    try {
+      _transferTo(out, delta);
+    } catch (IOException | SftpException | RuntimeException e) {
+      if (truncate) {
+        try {
+          out.truncate(written + delta);
+        } catch (IOException ee) {
+          e.addSuppressed(ee);
+        }
+      }
+      throw e;
+    }
+    if (cancelled && truncate) {
+      out.truncate(written + delta);
+    }
+  }
+
+  private void _transferTo(FileChannel out, long delta) throws IOException, SftpException {
+    BlockingQueue<Chunk> arrivals = new LinkedBlockingQueue<>();
+    int outstanding = 0;
+    // the chunks written beyond the offset written, their ends by their offsets
+    TreeMap<Long, Long> beyond = new TreeMap<>();
+    while (true) {
+      while (outstanding < flow.depth() && next < eof && !cancelled) {
+        watch(issue(), arrivals);
+        outstanding++;
+      }
+      if (outstanding == 0 || cancelled) {
+        return;
+      }
+      Chunk c;
+      try {
+        c = arrivals.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.toString());
+      }
+      outstanding--;
+      await(c);
+      if (!arrived(c, false)) {
+        continue;
+      }
+      while (!requests.isEmpty()) {
+        watch(requests.pollFirst(), arrivals);
+        outstanding++;
+      }
+      ByteBuffer bb = ByteBuffer.wrap(c.data, 0, c.count);
+      long p = c.offset + delta;
+      while (bb.hasRemaining()) {
+        p += out.write(bb, p);
+      }
+      buffers.addLast(c.data);
+      if (c.offset == written) {
+        written += c.count;
+        Long end;
+        while ((end = beyond.remove(written)) != null) {
+          written = end;
+        }
+      } else {
+        beyond.put(c.offset, c.offset + c.count);
+      }
+      count(c.count);
+    }
+  }
+
+  private static void watch(Chunk c, BlockingQueue<Chunk> arrivals) {
+    c.future.whenComplete((n, e) -> arrivals.add(c));
+  }
+}
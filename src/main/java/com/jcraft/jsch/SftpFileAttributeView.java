@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The "basic" and "posix" attribute views of a file of a {@link SftpFileSystem}. Changing an
+ * attribute sends one SSH_FXP_SETSTAT, which follows symbolic links.
+ */
+final class SftpFileAttributeView implements PosixFileAttributeView {
+  private static final String[] BASIC = {"lastModifiedTime", "lastAccessTime", "creationTime",
+      "size", "isRegularFile", "isDirectory", "isSymbolicLink", "isOther", "fileKey"};
+  private static final String[] POSIX = {"owner", "group", "permissions"};
+
+  private final SftpFileSystem fs;
+  private final SftpPath path;
+  private final boolean follow;
+  private final String name;
+
+  SftpFileAttributeView(SftpPath path, boolean follow, String name) {
+    this.fs = path.getFileSystem();
+    this.path = path;
+    this.follow = follow;
+    this.name = name;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public SftpFileAttributes readAttributes() throws IOException {
+    return fs.attributes(path, follow);
+  }
+
+  @Override
+  public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+      throws IOException {
+    if (lastModifiedTime == null && lastAccessTime == null) {
+      return;
+    }
+    if (lastModifiedTime == null || lastAccessTime == null) {
+      SftpFileAttributes attrs = readAttributes();
+      if (lastModifiedTime == null) {
+        lastModifiedTime = attrs.lastModifiedTime();
+      } else {
+        lastAccessTime = attrs.lastAccessTime();
+      }
+    }
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.setACMODTIME((int) lastAccessTime.to(TimeUnit.SECONDS),
+        (int) lastModifiedTime.to(TimeUnit.SECONDS));
+    setStat(attrs);
+  }
+
+  @Override
+  public UserPrincipal getOwner() throws IOException {
+    return readAttributes().owner();
+  }
+
+  @Override
+  public void setOwner(UserPrincipal owner) throws IOException {
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.setUIDGID(id(owner), readAttributes().getAttrs().getGId());
+    setStat(attrs);
+  }
+
+  @Override
+  public void setGroup(GroupPrincipal group) throws IOException {
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.setUIDGID(readAttributes().getAttrs().getUId(), id(group));
+    setStat(attrs);
+  }
+
+  @Override
+  public void setPermissions(Set<PosixFilePermission> perms) throws IOException {
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.setPERMISSIONS(SftpFileAttributes.mode(perms));
+    setStat(attrs);
+  }
+
+  private void setStat(SftpATTRS attrs) throws IOException {
+    try {
+      SftpDispatcher.await(fs.channel().setStatAsync(path.toAbsolutePath().toString(), attrs));
+    } catch (SftpException e) {
+      throw SftpFileSystem.io(e, path);
+    } finally {
+      fs.invalidate(path);
+    }
+  }
+
+  private static int id(UserPrincipal principal) {
+    if (principal instanceof SftpFileAttributes.Principal) {
+      return ((SftpFileAttributes.Principal) principal).getId();
+    }
+    try {
+      return Integer.parseInt(principal.getName());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("not a numeric id: " + principal.getName());
+    }
+  }
+
+  /**
+   * Reads the attributes given as for
+   * {@link java.nio.file.Files#readAttributes(java.nio.file.Path, String, java.nio.file.LinkOption...)},
+   * without the name of the view.
+   */
+  Map<String, Object> readAttributes(String attributes) throws IOException {
+    SftpFileAttributes attrs = readAttributes();
+    boolean posix = name.equals("posix");
+    Map<String, Object> result = new HashMap<>();
+    for (String attribute : attributes.split(",")) {
+      if (attribute.equals("*")) {
+        for (String a : BASIC) {
+          result.put(a, get(attrs, a));
+        }
+        if (posix) {
+          for (String a : POSIX) {
+            result.put(a, get(attrs, a));
+          }
+        }
+        continue;
+      }
+      check(attribute);
+      result.put(attribute, get(attrs, attribute));
+    }
+    return result;
+  }
+
+  private void check(String attribute) {
+    if (!Arrays.asList(BASIC).contains(attribute)
+        && !(name.equals("posix") && Arrays.asList(POSIX).contains(attribute))) {
+      throw new IllegalArgumentException("'" + attribute + "' not recognized");
+    }
+  }
+
+  private static Object get(SftpFileAttributes attrs, String attribute) {
+    switch (attribute) {
+      case "lastModifiedTime":
+        return attrs.lastModifiedTime();
+      case "lastAccessTime":
+        return attrs.lastAccessTime();
+      case "creationTime":
+        return attrs.creationTime();
+      case "size":
+        return attrs.size();
+      case "isRegularFile":
+        return attrs.isRegularFile();
+      case "isDirectory":
+        return attrs.isDirectory();
+      case "isSymbolicLink":
+        return attrs.isSymbolicLink();
+      case "isOther":
+        return attrs.isOther();
+      case "owner":
+        return attrs.owner();
+      case "group":
+        return attrs.group();
+      case "permissions":
+        return attrs.permissions();
+      default:
+        return null;
+    }
+  }
+
+  /** Sets one attribute as for {@link java.nio.file.Files#setAttribute}. */
+  @SuppressWarnings("unchecked")
+  void setAttribute(String attribute, Object value) throws IOException {
+    check(attribute);
+    switch (attribute) {
+      case "lastModifiedTime":
+        setTimes((FileTime) value, null, null);
+        break;
+      case "lastAccessTime":
+        setTimes(null, (FileTime) value, null);
+        break;
+      case "creationTime":
+        // as with setTimes, SFTP has no creation time to set
+        break;
+      case "owner":
+        setOwner((UserPrincipal) value);
+        break;
+      case "group":
+        setGroup((GroupPrincipal) value);
+        break;
+      case "permissions":
+        setPermissions((Set<PosixFilePermission>) value);
+        break;
+      default:
+        throw new IllegalArgumentException("'" + attribute + "' cannot be set");
+    }
+  }
+}
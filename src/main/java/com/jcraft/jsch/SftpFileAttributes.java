@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The attributes of a file of a {@link SftpFileSystem}, as read from its {@link SftpATTRS}. SFTP
+ * has no creation time, so the last modification time stands in for it. The owner and the group are
+ * named by their numeric ids.
+ */
+final class SftpFileAttributes implements PosixFileAttributes {
+  private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+  private final SftpATTRS attrs;
+
+  SftpFileAttributes(SftpATTRS attrs) {
+    this.attrs = attrs;
+  }
+
+  SftpATTRS getAttrs() {
+    return attrs;
+  }
+
+  @Override
+  public FileTime lastModifiedTime() {
+    return time(attrs.getMTime());
+  }
+
+  @Override
+  public FileTime lastAccessTime() {
+    return time(attrs.getATime());
+  }
+
+  @Override
+  public FileTime creationTime() {
+    return lastModifiedTime();
+  }
+
+  @Override
+  public boolean isRegularFile() {
+    return attrs.isReg();
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return attrs.isDir();
+  }
+
+  @Override
+  public boolean isSymbolicLink() {
+    return attrs.isLink();
+  }
+
+  @Override
+  public boolean isOther() {
+    return !isRegularFile() && !isDirectory() && !isSymbolicLink();
+  }
+
+  @Override
+  public long size() {
+    return attrs.getSize();
+  }
+
+  @Override
+  public Object fileKey() {
+    return null;
+  }
+
+  @Override
+  public UserPrincipal owner() {
+    return new Principal(attrs.getUId(), false);
+  }
+
+  @Override
+  public GroupPrincipal group() {
+    return new Principal(attrs.getGId(), true);
+  }
+
+  @Override
+  public Set<PosixFilePermission> permissions() {
+    return permissions(attrs.getPermissions());
+  }
+
+  private static FileTime time(int seconds) {
+    return FileTime.from(Integer.toUnsignedLong(seconds), TimeUnit.SECONDS);
+  }
+
+  /** Returns the permissions of the mode bits <code>mode</code>. */
+  static Set<PosixFilePermission> permissions(int mode) {
+    Set<PosixFilePermission> result = EnumSet.noneOf(PosixFilePermission.class);
+    // OWNER_READ is 0400, and each of the following permissions is the next lower bit
+    for (int i = 0; i < PERMISSIONS.length; i++) {
+      if ((mode & (0400 >> i)) != 0) {
+        result.add(PERMISSIONS[i]);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the mode bits of <code>permissions</code>. */
+  static int mode(Set<PosixFilePermission> permissions) {
+    int mode = 0;
+    for (PosixFilePermission permission : permissions) {
+      mode |= 0400 >> permission.ordinal();
+    }
+    return mode;
+  }
+
+  /** A user or group, named by its numeric id. */
+  static final class Principal implements GroupPrincipal {
+    private final int id;
+    private final boolean group;
+
+    Principal(int id, boolean group) {
+      this.id = id;
+      this.group = group;
+    }
+
+    int getId() {
+      return id;
+    }
+
+    @Override
+    public String getName() {
+      return Integer.toString(id);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Principal && ((Principal) other).id == id
+          && ((Principal) other).group == group;
+    }
+
+    @Override
+    public int hashCode() {
+      return group ? ~id : id;
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+  }
+}
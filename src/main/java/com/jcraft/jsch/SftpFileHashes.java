@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.Arrays;
+
+/**
+ * The hashes a server has computed over a range of a file, in reply to a "check-file-handle" or
+ * "check-file-name" request.
+ *
+ * <p>
+ * With a block size of <code>0</code> there is one hash over the whole range, otherwise one for
+ * every block of the range, the last of which may be shorter.
+ * </p>
+ *
+ * @see ChannelSftp#checkFile(String, String, long, long, int)
+ */
+public final class SftpFileHashes {
+  private final String algorithm;
+  private final long offset;
+  private final int blockSize;
+  private final byte[] hashes;
+  private final int hashLength;
+
+  SftpFileHashes(String algorithm, long offset, int blockSize, byte[] hashes) {
+    this.algorithm = algorithm;
+    this.offset = offset;
+    this.blockSize = blockSize;
+    int length = hashLength(algorithm);
+    if (length > 0 && isPrefixed(hashes, length)) {
+      hashes = strip(hashes, length);
+    }
+    this.hashes = hashes;
+    this.hashLength = length > 0 && hashes.length % length == 0 ? length : hashes.length;
+  }
+
+  /**
+   * Returns whether every hash is preceded by its length, as some servers send them, instead of
+   * being concatenated.
+   */
+  private static boolean isPrefixed(byte[] hashes, int length) {
+    if (hashes.length == 0 || hashes.length % (4 + length) != 0) {
+      return false;
+    }
+    for (int i = 0; i < hashes.length; i += 4 + length) {
+      if (hashes[i] != 0 || hashes[i + 1] != 0 || hashes[i + 2] != 0 || hashes[i + 3] != length) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] strip(byte[] hashes, int length) {
+    int count = hashes.length / (4 + length);
+    byte[] result = new byte[count * length];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(hashes, i * (4 + length) + 4, result, i * length, length);
+    }
+    return result;
+  }
+
+  /** Returns the algorithm the server has chosen, e.g. <code>sha256</code>. */
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /** Returns the offset of the first block. */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** Returns the size of the blocks, or <code>0</code> if there is one hash over the range. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** Returns the number of hashes. */
+  public int getCount() {
+    return hashLength == 0 ? 0 : hashes.length / hashLength;
+  }
+
+  /** Returns the hash of the block <code>i</code>. */
+  public byte[] getHash(int i) {
+    if (i < 0 || i >= getCount()) {
+      throw new IndexOutOfBoundsException("hash " + i + " of " + getCount());
+    }
+    return Arrays.copyOfRange(hashes, i * hashLength, (i + 1) * hashLength);
+  }
+
+  /** Returns whether the hash of the block <code>i</code> is <code>hash</code>. */
+  boolean matches(int i, byte[] hash) {
+    if (i >= getCount() || hash.length != hashLength) {
+      return false;
+    }
+    for (int j = 0; j < hashLength; j++) {
+      if (hashes[i * hashLength + j] != hash[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the length of the hashes of <code>algorithm</code>, or 0 if it is not known. */
+  static int hashLength(String algorithm) {
+    switch (algorithm) {
+      case "md5":
+        return 16;
+      case "sha1":
+        return 20;
+      case "sha224":
+        return 28;
+      case "sha256":
+        return 32;
+      case "sha384":
+        return 48;
+      case "sha512":
+        return 64;
+      case "crc32":
+        return 4;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the name of <code>algorithm</code> for {@link java.security.MessageDigest}, or
+   * <code>null</code> if there is none.
+   */
+  static String digestName(String algorithm) {
+    switch (algorithm) {
+      case "md5":
+        return "MD5";
+      case "sha1":
+        return "SHA-1";
+      case "sha224":
+        return "SHA-224";
+      case "sha256":
+        return "SHA-256";
+      case "sha384":
+        return "SHA-384";
+      case "sha512":
+        return "SHA-512";
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A remote file system reached over the SFTP channels of one {@link Session}, as created by
+ * {@link SftpFileSystemProvider}.
+ *
+ * <p>
+ * Every operation sends asynchronous requests on one of the channels of the file system, which are
+ * opened as they are needed, up to a number given when the file system is created, so that several
+ * threads may use the file system at the same time without waiting for each other, e.g. to walk
+ * several subtrees in parallel. Only the few operations for which SFTP has no asynchronous request,
+ * such as reading a symbolic link, take a channel for themselves.
+ * </p>
+ *
+ * <p>
+ * The attributes read from the server, including those returned with the entries of a directory
+ * stream, are cached for a short time, so that {@link java.nio.file.Files#walk} and
+ * {@link java.nio.file.Files#isDirectory} do not cost a round trip per file. Changes made through
+ * this file system drop the entries they affect; changes made by other clients are only seen once
+ * the entries have expired.
+ * </p>
+ */
+public class SftpFileSystem extends FileSystem {
+  static final int CACHE_SIZE = 10000;
+
+  // the status codes of later versions of the protocol, which some version 3 servers return
+  static final int SSH_FX_FILE_ALREADY_EXISTS = 11;
+  static final int SSH_FX_DIR_NOT_EMPTY = 18;
+  static final int SSH_FX_NOT_A_DIRECTORY = 19;
+
+  private static final Set<String> VIEWS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList("basic", "posix")));
+
+  private final SftpFileSystemProvider provider;
+  private final Session session;
+  private final boolean ownsSession;
+  private final SftpChannelPool pool;
+  private final SftpCache cache;
+  private final SftpPath defaultDirectory;
+  private volatile boolean open = true;
+
+  SftpFileSystem(SftpFileSystemProvider provider, Session session, boolean ownsSession,
+      int channels, long cacheTtl) throws IOException {
+    this.provider = provider;
+    this.session = session;
+    this.ownsSession = ownsSession;
+    this.pool = new SftpChannelPool(session, channels);
+    this.cache = cacheTtl > 0 ? new SftpCache(cacheTtl, CACHE_SIZE) : null;
+    ChannelSftp channel = null;
+    try {
+      channel = pool.acquire();
+      this.defaultDirectory = new SftpPath(this, channel.getHome());
+    } catch (SftpException e) {
+      pool.close();
+      throw new IOException(e.toString(), e);
+    } finally {
+      if (channel != null) {
+        pool.release(channel);
+      }
+    }
+  }
+
+  @Override
+  public SftpFileSystemProvider provider() {
+    return provider;
+  }
+
+  /** Returns the session this file system uses. */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * Closes the channels of this file system, and disconnects its session if it has been connected
+   * by {@link SftpFileSystemProvider}. Byte channels and directory streams which are still open
+   * fail from now on.
+   */
+  @Override
+  public void close() {
+    if (!open) {
+      return;
+    }
+    open = false;
+    provider.remove(this);
+    pool.close();
+    if (ownsSession) {
+      session.disconnect();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return false;
+  }
+
+  @Override
+  public String getSeparator() {
+    return "/";
+  }
+
+  @Override
+  public Iterable<Path> getRootDirectories() {
+    return Collections.singletonList(new SftpPath(this, "/"));
+  }
+
+  @Override
+  public Iterable<FileStore> getFileStores() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public Set<String> supportedFileAttributeViews() {
+    return VIEWS;
+  }
+
+  @Override
+  public SftpPath getPath(String first, String... more) {
+    StringBuilder sb = new StringBuilder(first);
+    for (String name : more) {
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(name);
+    }
+    return new SftpPath(this, sb.toString());
+  }
+
+  /**
+   * Returns a matcher for the <code>glob:</code> or <code>regex:</code> syntax of
+   * {@link FileSystem#getPathMatcher(String)}.
+   */
+  @Override
+  public PathMatcher getPathMatcher(String syntaxAndPattern) {
+    int i = syntaxAndPattern.indexOf(':');
+    if (i <= 0) {
+      throw new IllegalArgumentException(syntaxAndPattern);
+    }
+    String syntax = syntaxAndPattern.substring(0, i);
+    String pattern = syntaxAndPattern.substring(i + 1);
+    String regex;
+    if (syntax.equalsIgnoreCase("glob")) {
+      regex = globToRegex(pattern);
+    } else if (syntax.equalsIgnoreCase("regex")) {
+      regex = pattern;
+    } else {
+      throw new UnsupportedOperationException("Syntax '" + syntax + "' not recognized");
+    }
+    Pattern compiled = Pattern.compile(regex);
+    return path -> compiled.matcher(path.toString()).matches();
+  }
+
+  /**
+   * Translates a glob into a regular expression: <code>*</code> matches within a name,
+   * <code>**</code> across names, <code>?</code> one character of a name, <code>[...]</code> a
+   * character class and <code>{a,b}</code> one of several subpatterns.
+   */
+  static String globToRegex(String glob) {
+    StringBuilder sb = new StringBuilder();
+    boolean inGroup = false;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      switch (c) {
+        case '*':
+          if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+            sb.append(".*");
+            i++;
+          } else {
+            sb.append("[^/]*");
+          }
+          break;
+        case '?':
+          sb.append("[^/]");
+          break;
+        case '[':
+          int end = glob.indexOf(']', i + 1);
+          if (end < 0) {
+            throw new PatternSyntaxException("Missing ']'", glob, i);
+          }
+          sb.append('[');
+          int j = i + 1;
+          if (glob.charAt(j) == '!') {
+            sb.append('^');
+            j++;
+          }
+          for (; j < end; j++) {
+            char k = glob.charAt(j);
+            if (k == '\\' || k == '[' || k == '&' || (k == '^' && j == i + 1)) {
+              sb.append('\\');
+            }
+            sb.append(k);
+          }
+          sb.append(']');
+          i = end;
+          break;
+        case '{':
+          if (inGroup) {
+            throw new PatternSyntaxException("Cannot nest groups", glob, i);
+          }
+          inGroup = true;
+          sb.append("(?:");
+          break;
+        case '}':
+          if (inGroup) {
+            inGroup = false;
+            sb.append(')');
+          } else {
+            sb.append("\\}");
+          }
+          break;
+        case ',':
+          sb.append(inGroup ? "|" : ",");
+          break;
+        case '\\':
+          if (i + 1 < glob.length()) {
+            sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+          } else {
+            sb.append("\\\\");
+          }
+          break;
+        default:
+          if ("^$.|+()".indexOf(c) >= 0) {
+            sb.append('\\');
+          }
+          sb.append(c);
+      }
+    }
+    if (inGroup) {
+      throw new PatternSyntaxException("Missing '}'", glob, glob.length());
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public UserPrincipalLookupService getUserPrincipalLookupService() {
+    throw new UnsupportedOperationException("getUserPrincipalLookupService");
+  }
+
+  @Override
+  public WatchService newWatchService() {
+    throw new UnsupportedOperationException("newWatchService");
+  }
+
+  String getUserInfo() {
+    return session.getUserName();
+  }
+
+  String getHost() {
+    return session.getHost();
+  }
+
+  int getPort() {
+    return session.getPort();
+  }
+
+  SftpPath getDefaultDirectory() {
+    return defaultDirectory;
+  }
+
+  /** Returns a channel for asynchronous requests. */
+  ChannelSftp channel() throws IOException {
+    checkOpen();
+    try {
+      return pool.channel();
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  /** Returns a channel for synchronous requests, which must be given back with release. */
+  ChannelSftp acquire() throws IOException {
+    checkOpen();
+    try {
+      return pool.acquire();
+    } catch (SftpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  void release(ChannelSftp channel) {
+    pool.release(channel);
+  }
+
+  private void checkOpen() {
+    if (!open) {
+      throw new ClosedFileSystemException();
+    }
+  }
+
+  /**
+   * Returns the attributes of <code>path</code>, from the cache if they are there.
+   *
+   * @param follow whether symbolic links are followed
+   */
+  SftpFileAttributes attributes(SftpPath path, boolean follow) throws IOException {
+    String _path = path.toAbsolutePath().toString();
+    SftpCache _cache = cache;
+    try {
+      // the cache holds the attributes of the paths themselves, not of the targets of links
+      SftpATTRS attrs = _cache == null ? null : _cache.attrs(_path);
+      if (attrs == null || (follow && attrs.isLink())) {
+        ChannelSftp channel = channel();
+        attrs = SftpDispatcher.await(follow ? channel.statAsync(_path) : channel.lstatAsync(_path));
+        if (_cache != null && !follow) {
+          _cache.putAttrs(_path, attrs);
+        }
+      }
+      return new SftpFileAttributes(attrs);
+    } catch (SftpException e) {
+      if (_cache != null && !follow && e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+        _cache.putMissing(_path);
+      }
+      throw io(e, path);
+    }
+  }
+
+  /** Caches the attributes of <code>path</code> read with a directory. */
+  void cache(SftpPath path, SftpATTRS attrs) {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.putAttrs(path.toAbsolutePath().toString(), attrs);
+    }
+  }
+
+  /** Drops the cached attributes of <code>path</code>, which has been changed. */
+  void invalidate(SftpPath path) {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.invalidate(path.toAbsolutePath().toString());
+    }
+  }
+
+  /** Drops the cached attributes of <code>path</code> and everything below it. */
+  void invalidateTree(SftpPath path) {
+    SftpCache _cache = cache;
+    if (_cache != null) {
+      _cache.invalidateTree(path.toAbsolutePath().toString());
+    }
+  }
+
+  SftpPath toRealPath(SftpPath path, boolean follow) throws IOException {
+    SftpPath absolute = path.toAbsolutePath();
+    if (!follow) {
+      attributes(absolute, false);
+      return absolute.normalize();
+    }
+    ChannelSftp channel = acquire();
+    try {
+      SftpPath real = new SftpPath(this, channel.realpath(absolute.toString()));
+      attributes(real, true);
+      return real;
+    } catch (SftpException e) {
+      throw io(e, path);
+    } finally {
+      release(channel);
+    }
+  }
+
+  static boolean follow(LinkOption... options) {
+    for (LinkOption option : options) {
+      if (option == LinkOption.NOFOLLOW_LINKS) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static IOException io(SftpException e, Path path) {
+    return io(e, path, null);
+  }
+
+  /** Translates the status of a failed request into the exception java.nio.file throws. */
+  static IOException io(SftpException e, Path path, Path other) {
+    String file = path == null ? null : path.toString();
+    String otherFile = other == null ? null : other.toString();
+    FileSystemException result;
+    switch (e.id) {
+      case ChannelSftp.SSH_FX_NO_SUCH_FILE:
+        result = new NoSuchFileException(file, otherFile, null);
+        break;
+      case ChannelSftp.SSH_FX_PERMISSION_DENIED:
+        result = new AccessDeniedException(file, otherFile, null);
+        break;
+      case SSH_FX_FILE_ALREADY_EXISTS:
+        result = new FileAlreadyExistsException(file, otherFile, null);
+        break;
+      case SSH_FX_DIR_NOT_EMPTY:
+        result = new DirectoryNotEmptyException(file);
+        break;
+      case SSH_FX_NOT_A_DIRECTORY:
+        result = new NotDirectoryException(file);
+        break;
+      default:
+        result = new FileSystemException(file, otherFile, e.getMessage());
+    }
+    result.initCause(e);
+    return result;
+  }
+}
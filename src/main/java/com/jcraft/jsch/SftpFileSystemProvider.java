@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link FileSystemProvider} for <code>sftp://</code> URIs, which makes the files of an SSH
+ * server available as {@link Path}s.
+ *
+ * <p>
+ * A file system is created for the user, host and port of a URI with
+ * {@link java.nio.file.FileSystems#newFileSystem(URI, Map)}, and is then found by
+ * {@link java.nio.file.Paths#get(URI)} until it is closed, with the URI it was created with or one
+ * naming the user of its session. The environment may hold:
+ * </p>
+ * <ul>
+ * <li><code>session</code>: a connected {@link Session} to use; otherwise a session is created with
+ * the {@link JSch} given as <code>jsch</code> or a new one, authenticated with
+ * <code>password</code> or the identities of the {@link JSch}, connected, and disconnected when the
+ * file system is closed</li>
+ * <li><code>channels</code>: the maximum number of SFTP channels the file system opens on the
+ * session (default 4)</li>
+ * <li><code>cacheTtl</code>: how long the attributes read from the server are cached, in
+ * milliseconds (default 5000, <code>0</code> disables the cache)</li>
+ * </ul>
+ *
+ * <p>
+ * Files are read and written through {@link SftpByteChannel}s, copies of files within the file
+ * system are done by the server where it supports it, and directories are read with several
+ * requests outstanding. Symbolic links, file stores and watch services are not supported.
+ * </p>
+ *
+ * @see SftpFileSystem
+ */
+public class SftpFileSystemProvider extends FileSystemProvider {
+  /** The environment key of the {@link Session} a file system uses. */
+  public static final String SESSION = "session";
+  /** The environment key of the {@link JSch} a session is created with. */
+  public static final String JSCH = "jsch";
+  /** The environment key of the password a session is created with. */
+  public static final String PASSWORD = "password";
+  /** The environment key of the maximum number of channels of a file system. */
+  public static final String CHANNELS = "channels";
+  /** The environment key of how long attributes are cached, in milliseconds. */
+  public static final String CACHE_TTL = "cacheTtl";
+
+  private static final int DEFAULT_PORT = 22;
+  private static final int DEFAULT_CHANNELS = 4;
+  private static final long DEFAULT_CACHE_TTL = 5000;
+
+  private final Map<String, SftpFileSystem> fileSystems = new HashMap<>();
+  // the keys of the file systems which are being created, whose sessions are connected outside the
+  // lock on fileSystems
+  private final Set<String> creating = new HashSet<>();
+
+  public SftpFileSystemProvider() {}
+
+  @Override
+  public String getScheme() {
+    return "sftp";
+  }
+
+  @Override
+  public SftpFileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+    checkUri(uri);
+    Session session = (Session) env.get(SESSION);
+    String key = key(uri, null);
+    synchronized (fileSystems) {
+      if (fileSystems.containsKey(key) || !creating.add(key)) {
+        throw new FileSystemAlreadyExistsException(key);
+      }
+    }
+    try {
+      boolean owned = session == null;
+      try {
+        if (session == null) {
+          session = connect(uri, env);
+        } else if (!session.isConnected()) {
+          session.connect();
+        }
+      } catch (JSchException e) {
+        throw new IOException(e.toString(), e);
+      }
+      SftpFileSystem fs;
+      try {
+        int channels = (int) number(env, CHANNELS, DEFAULT_CHANNELS);
+        long cacheTtl = number(env, CACHE_TTL, DEFAULT_CACHE_TTL);
+        fs = new SftpFileSystem(this, session, owned, channels, cacheTtl);
+      } catch (IOException | RuntimeException e) {
+        if (owned) {
+          session.disconnect();
+        }
+        throw e;
+      }
+      synchronized (fileSystems) {
+        fileSystems.put(key, fs);
+        // the URIs of its paths name the user of the session, and have to find it too
+        fileSystems.putIfAbsent(key(uri, session), fs);
+      }
+      return fs;
+    } finally {
+      synchronized (fileSystems) {
+        creating.remove(key);
+      }
+    }
+  }
+
+  private static Session connect(URI uri, Map<String, ?> env) throws JSchException {
+    JSch jsch = (JSch) env.get(JSCH);
+    if (jsch == null) {
+      jsch = new JSch();
+    }
+    Session session = jsch.getSession(user(uri), uri.getHost(), port(uri));
+    Object password = env.get(PASSWORD);
+    if (password instanceof String) {
+      session.setPassword(Util.str2byte((String) password));
+    } else if (password instanceof byte[]) {
+      session.setPassword((byte[]) password);
+    }
+    session.connect();
+    return session;
+  }
+
+  @Override
+  public SftpFileSystem getFileSystem(URI uri) {
+    checkUri(uri);
+    synchronized (fileSystems) {
+      SftpFileSystem fs = fileSystems.get(key(uri, null));
+      if (fs == null) {
+        throw new FileSystemNotFoundException(uri.toString());
+      }
+      return fs;
+    }
+  }
+
+  @Override
+  public SftpPath getPath(URI uri) {
+    String path = uri.getPath();
+    return getFileSystem(uri).getPath(path == null || path.isEmpty() ? "/" : path);
+  }
+
+  void remove(SftpFileSystem fs) {
+    synchronized (fileSystems) {
+      fileSystems.values().removeIf(v -> v == fs);
+    }
+  }
+
+  private void checkUri(URI uri) {
+    if (!getScheme().equalsIgnoreCase(uri.getScheme())) {
+      throw new IllegalArgumentException("URI scheme is not '" + getScheme() + "': " + uri);
+    }
+    if (uri.getHost() == null) {
+      throw new IllegalArgumentException("URI has no host: " + uri);
+    }
+  }
+
+  private static String user(URI uri) {
+    String userInfo = uri.getUserInfo();
+    if (userInfo == null) {
+      return null;
+    }
+    int i = userInfo.indexOf(':');
+    return i < 0 ? userInfo : userInfo.substring(0, i);
+  }
+
+  private static int port(URI uri) {
+    return uri.getPort() == -1 ? DEFAULT_PORT : uri.getPort();
+  }
+
+  private static String key(URI uri, Session session) {
+    String user = user(uri);
+    if (user == null && session != null) {
+      user = session.getUserName();
+    }
+    return (user == null ? "" : user + "@") + uri.getHost() + ":" + port(uri);
+  }
+
+  private static long number(Map<String, ?> env, String key, long def) {
+    Object value = env.get(key);
+    if (value == null) {
+      return def;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    try {
+      return Long.parseLong(value.toString().trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(key + ": " + value);
+    }
+  }
+
+  private static SftpPath toSftpPath(Path path) {
+    if (!(path instanceof SftpPath)) {
+      throw new ProviderMismatchException();
+    }
+    return (SftpPath) path;
+  }
+
+  private static String absolute(SftpPath path) {
+    return path.toAbsolutePath().toString();
+  }
+
+  /**
+   * Opens a file as an {@link SftpByteChannel}. Attributes to create the file with are not
+   * supported.
+   */
+  @Override
+  public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+      FileAttribute<?>... attrs) throws IOException {
+    SftpPath _path = toSftpPath(path);
+    if (attrs.length > 0) {
+      throw new UnsupportedOperationException("file attributes are not supported");
+    }
+    SftpFileSystem fs = _path.getFileSystem();
+    boolean write =
+        options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+    if (write) {
+      fs.invalidate(_path);
+    }
+    try {
+      SftpByteChannel channel =
+          fs.channel()._openChannel(absolute(_path), options.toArray(new OpenOption[0]));
+      if (write) {
+        channel.onClose(() -> fs.invalidate(_path));
+      }
+      return channel;
+    } catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_OP_UNSUPPORTED) {
+        throw new UnsupportedOperationException(e.getMessage());
+      }
+      throw SftpFileSystem.io(e, path);
+    }
+  }
+
+  @Override
+  public DirectoryStream<Path> newDirectoryStream(Path dir,
+      DirectoryStream.Filter<? super Path> filter) throws IOException {
+    SftpPath _dir = toSftpPath(dir);
+    SftpFileSystem fs = _dir.getFileSystem();
+    ChannelSftp channel = fs.channel();
+    SftpHandle handle;
+    try {
+      handle = SftpDispatcher.await(channel.opendirAsync(absolute(_dir)));
+    } catch (SftpException e) {
+      if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE && exists(_dir, true)
+          && !fs.attributes(_dir, true).isDirectory()) {
+        throw new NotDirectoryException(dir.toString());
+      }
+      throw SftpFileSystem.io(e, dir);
+    }
+    try {
+      return new SftpDirectoryStream(fs, _dir,
+          new SftpLsIterator(channel, handle, null, false, channel.getBulkRequests()), filter);
+    } catch (SftpException e) {
+      channel.closeAsync(handle);
+      throw SftpFileSystem.io(e, dir);
+    }
+  }
+
+  @Override
+  public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+    SftpPath _dir = toSftpPath(dir);
+    if (attrs.length > 0) {
+      throw new UnsupportedOperationException("file attributes are not supported");
+    }
+    SftpFileSystem fs = _dir.getFileSystem();
+    fs.invalidate(_dir);
+    try {
+      SftpDispatcher.await(fs.channel().mkdirAsync(absolute(_dir)));
+    } catch (SftpException e) {
+      // version 3 servers answer SSH_FX_FAILURE if the file exists
+      if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE && exists(_dir, false)) {
+        throw new FileAlreadyExistsException(dir.toString());
+      }
+      throw SftpFileSystem.io(e, dir);
+    } finally {
+      fs.invalidate(_dir);
+    }
+  }
+
+  @Override
+  public void delete(Path path) throws IOException {
+    SftpPath _path = toSftpPath(path);
+    SftpFileSystem fs = _path.getFileSystem();
+    boolean directory = fs.attributes(_path, false).isDirectory();
+    ChannelSftp channel = fs.channel();
+    try {
+      if (directory) {
+        SftpDispatcher.await(channel.rmdirAsync(absolute(_path)));
+      } else {
+        SftpDispatcher.await(channel.rmAsync(absolute(_path)));
+      }
+    } catch (SftpException e) {
+      fs.invalidateTree(_path);
+      if (directory && e.id == ChannelSftp.SSH_FX_FAILURE && !isEmpty(_path)) {
+        throw new DirectoryNotEmptyException(path.toString());
+      }
+      throw SftpFileSystem.io(e, path);
+    }
+    fs.invalidateTree(_path);
+  }
+
+  private boolean isEmpty(SftpPath dir) throws IOException {
+    try (DirectoryStream<Path> entries = newDirectoryStream(dir, null)) {
+      return !entries.iterator().hasNext();
+    } catch (NoSuchFileException e) {
+      return true;
+    }
+  }
+
+  private static boolean exists(SftpPath path, boolean follow) throws IOException {
+    path.getFileSystem().invalidate(path);
+    try {
+      path.getFileSystem().attributes(path, follow);
+      return true;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copies a file within one file system. The data of a regular file is copied by the server if it
+   * supports the "copy-file" or "copy-data" extension, and read and written back otherwise.
+   */
+  @Override
+  public void copy(Path source, Path target, CopyOption... options) throws IOException {
+    SftpPath src = toSftpPath(source);
+    SftpPath dst = toSftpPath(target);
+    boolean replace = false;
+    boolean copyAttributes = false;
+    boolean follow = true;
+    for (CopyOption option : options) {
+      if (option == StandardCopyOption.REPLACE_EXISTING) {
+        replace = true;
+      } else if (option == StandardCopyOption.COPY_ATTRIBUTES) {
+        copyAttributes = true;
+      } else if (option == LinkOption.NOFOLLOW_LINKS) {
+        follow = false;
+      } else {
+        throw new UnsupportedOperationException("unsupported option: " + option);
+      }
+    }
+    SftpFileSystem fs = src.getFileSystem();
+    if (dst.getFileSystem() != fs) {
+      throw new ProviderMismatchException();
+    }
+    SftpFileAttributes attrs = fs.attributes(src, follow);
+    if (isSameFile(src, dst)) {
+      return;
+    }
+    prepareTarget(dst, replace);
+    try {
+      if (attrs.isDirectory()) {
+        createDirectory(dst);
+      } else if (attrs.isSymbolicLink()) {
+        throw new UnsupportedOperationException("copying a symbolic link is not supported");
+      } else {
+        fs.channel()._copyFile(absolute(src), absolute(dst), false);
+      }
+    } catch (SftpException e) {
+      throw SftpFileSystem.io(e, source, target);
+    } finally {
+      fs.invalidate(dst);
+    }
+    if (copyAttributes) {
+      SftpFileAttributeView view = new SftpFileAttributeView(dst, true, "posix");
+      view.setPermissions(attrs.permissions());
+      view.setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+  }
+
+  /**
+   * Moves a file within one file system with SSH_FXP_RENAME, or posix-rename@openssh.com if the
+   * server supports it, which replaces an existing target atomically.
+   */
+  @Override
+  public void move(Path source, Path target, CopyOption... options) throws IOException {
+    SftpPath src = toSftpPath(source);
+    SftpPath dst = toSftpPath(target);
+    boolean replace = false;
+    boolean atomic = false;
+    for (CopyOption option : options) {
+      if (option == StandardCopyOption.REPLACE_EXISTING) {
+        replace = true;
+      } else if (option == StandardCopyOption.ATOMIC_MOVE) {
+        atomic = true;
+      } else if (option != StandardCopyOption.COPY_ATTRIBUTES
+          && option != LinkOption.NOFOLLOW_LINKS) {
+        throw new UnsupportedOperationException("unsupported option: " + option);
+      }
+    }
+    SftpFileSystem fs = src.getFileSystem();
+    if (dst.getFileSystem() != fs) {
+      throw new ProviderMismatchException();
+    }
+    fs.attributes(src, false);
+    if (isSameFile(src, dst)) {
+      return;
+    }
+    if (!atomic) {
+      prepareTarget(dst, replace);
+    }
+    try {
+      SftpDispatcher.await(fs.channel().renameAsync(absolute(src), absolute(dst)));
+    } catch (SftpException e) {
+      throw SftpFileSystem.io(e, source, target);
+    } finally {
+      fs.invalidateTree(src);
+      fs.invalidateTree(dst);
+    }
+  }
+
+  /** Fails if <code>target</code> exists, unless it may be replaced, in which case deletes it. */
+  private void prepareTarget(SftpPath target, boolean replace) throws IOException {
+    if (!exists(target, false)) {
+      return;
+    }
+    if (!replace) {
+      throw new FileAlreadyExistsException(target.toString());
+    }
+    delete(target);
+  }
+
+  @Override
+  public boolean isSameFile(Path path, Path path2) throws IOException {
+    if (path.equals(path2)) {
+      return true;
+    }
+    if (!(path2 instanceof SftpPath) || path.getFileSystem() != path2.getFileSystem()) {
+      return false;
+    }
+    SftpPath a = toSftpPath(path);
+    SftpPath b = (SftpPath) path2;
+    if (a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize())) {
+      return true;
+    }
+    if (!exists(b, true)) {
+      return false;
+    }
+    return a.toRealPath().equals(b.toRealPath());
+  }
+
+  @Override
+  public boolean isHidden(Path path) {
+    Path name = toSftpPath(path).getFileName();
+    return name != null && name.toString().startsWith(".");
+  }
+
+  @Override
+  public FileStore getFileStore(Path path) {
+    throw new UnsupportedOperationException("getFileStore");
+  }
+
+  /**
+   * Checks that the file exists. Whether it may be read, written or executed is only known to the
+   * server, which checks it when the file is used.
+   */
+  @Override
+  public void checkAccess(Path path, AccessMode... modes) throws IOException {
+    SftpPath _path = toSftpPath(path);
+    _path.getFileSystem().attributes(_path, true);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type,
+      LinkOption... options) {
+    SftpPath _path = toSftpPath(path);
+    boolean follow = SftpFileSystem.follow(options);
+    if (type == BasicFileAttributeView.class) {
+      return (V) new SftpFileAttributeView(_path, follow, "basic");
+    }
+    if (type == PosixFileAttributeView.class) {
+      return (V) new SftpFileAttributeView(_path, follow, "posix");
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+      LinkOption... options) throws IOException {
+    SftpPath _path = toSftpPath(path);
+    if (type != BasicFileAttributes.class && type != PosixFileAttributes.class) {
+      throw new UnsupportedOperationException("unsupported attributes: " + type.getName());
+    }
+    return (A) _path.getFileSystem().attributes(_path, SftpFileSystem.follow(options));
+  }
+
+  @Override
+  public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+      throws IOException {
+    return view(path, attributes, options).readAttributes(attributes(attributes));
+  }
+
+  @Override
+  public void setAttribute(Path path, String attribute, Object value, LinkOption... options)
+      throws IOException {
+    view(path, attribute, options).setAttribute(attributes(attribute), value);
+  }
+
+  private static SftpFileAttributeView view(Path path, String attributes, LinkOption... options) {
+    int i = attributes.indexOf(':');
+    String name = i < 0 ? "basic" : attributes.substring(0, i);
+    if (!name.equals("basic") && !name.equals("posix")) {
+      throw new UnsupportedOperationException("View '" + name + "' not available");
+    }
+    return new SftpFileAttributeView(toSftpPath(path), SftpFileSystem.follow(options), name);
+  }
+
+  private static String attributes(String attributes) {
+    return attributes.substring(attributes.indexOf(':') + 1);
+  }
+}
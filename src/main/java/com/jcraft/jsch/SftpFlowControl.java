@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * Decides how many SFTP read or write requests a transfer keeps outstanding, and how large they
+ * are.
+ *
+ * <p>
+ * The round trip time of every request and the throughput of every round trip are measured. Like
+ * TCP slow start, the number of requests is doubled every round trip as long as the throughput
+ * keeps growing by a quarter. From then on, twice the bandwidth-delay product, the recent maximum
+ * throughput times the minimum round trip time, is kept in flight: on a fast local network a few
+ * requests are enough, while a long fat link gets as many as allowed. Once the maximum number of
+ * requests is reached, the request size is doubled instead, up to its maximum. The number of
+ * requests never drops below the initial one, which also absorbs the jitter of the server's
+ * response times.
+ * </p>
+ *
+ * <p>
+ * An instance is used by one transfer, on one thread.
+ * </p>
+ */
+class SftpFlowControl {
+  // the minimum round trip time expires, so that a route change is noticed
+  private static final long MIN_RTT_LIFETIME = 10_000_000_000L;
+
+  private final boolean adaptive;
+  private final int minDepth;
+  private final int maxDepth;
+  private final SftpPipelineMonitor monitor;
+
+  private int depth;
+  private int chunk;
+  private int maxChunk;
+
+  private boolean slowStart = true;
+  private long minRtt = 0;
+  private long minRttStamp = 0;
+  private long srtt = 0;
+  private double goodput = 0;
+
+  private long roundStart = 0;
+  private long roundBytes = 0;
+
+  /**
+   * @param adaptive if <code>false</code>, <code>depth</code> and <code>chunk</code> are kept, and
+   *        only the monitor is updated
+   */
+  SftpFlowControl(int depth, int maxDepth, int chunk, int maxChunk, boolean adaptive,
+      SftpPipelineMonitor monitor) {
+    this.maxDepth = Math.max(1, adaptive ? maxDepth : depth);
+    this.depth = Math.max(1, Math.min(depth, this.maxDepth));
+    this.minDepth = this.depth;
+    this.maxChunk = Math.max(1, adaptive ? maxChunk : chunk);
+    this.chunk = Math.max(1, Math.min(chunk, this.maxChunk));
+    this.adaptive = adaptive;
+    this.monitor = monitor;
+  }
+
+  /** Returns the number of requests which may be outstanding. */
+  int depth() {
+    return depth;
+  }
+
+  /** Returns the number of bytes to request at once. */
+  int chunk() {
+    return chunk;
+  }
+
+  /** Caps the request size, e.g. at the most the server has returned for one request. */
+  void limitChunk(int max) {
+    if (max > 0 && max < maxChunk) {
+      maxChunk = max;
+      chunk = Math.min(chunk, max);
+    }
+  }
+
+  /**
+   * Accounts for a request which has been answered.
+   *
+   * @param sent the {@link System#nanoTime()} at which the request was sent
+   * @param received the {@link System#nanoTime()} at which the response was received
+   * @param bytes the number of bytes transferred by the request
+   */
+  void completed(long sent, long received, int bytes) {
+    if (!adaptive && monitor == null) {
+      return;
+    }
+    long rtt = Math.max(1, received - sent);
+    if (minRtt == 0 || rtt < minRtt || received - minRttStamp > MIN_RTT_LIFETIME) {
+      minRtt = rtt;
+      minRttStamp = received;
+    }
+    srtt = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8;
+
+    if (roundStart == 0) {
+      roundStart = sent;
+    }
+    roundBytes += bytes;
+    long elapsed = received - roundStart;
+    if (elapsed < srtt) {
+      return;
+    }
+    double sample = roundBytes * 1e9 / elapsed;
+    roundStart = received;
+    roundBytes = 0;
+
+    if (adaptive) {
+      adapt(sample);
+    } else {
+      goodput = sample;
+    }
+    if (monitor != null) {
+      monitor.update(depth, chunk, srtt, minRtt, (long) goodput);
+    }
+  }
+
+  private void adapt(double sample) {
+    if (slowStart) {
+      if (sample > goodput * 1.25) {
+        goodput = sample;
+        grow(2L * depth);
+        return;
+      }
+      slowStart = false;
+    }
+    goodput = Math.max(sample, goodput * 0.9);
+    double inflight = 2 * goodput * minRtt / 1e9;
+    long target = (long) Math.ceil(inflight / chunk) + 1;
+    grow(target);
+  }
+
+  private void grow(long target) {
+    while (target > maxDepth && chunk < maxChunk) {
+      int _chunk = (int) Math.min(maxChunk, 2L * chunk);
+      target = (target * chunk + _chunk - 1) / _chunk;
+      chunk = _chunk;
+    }
+    depth = (int) Math.max(minDepth, Math.min(maxDepth, target));
+  }
+}
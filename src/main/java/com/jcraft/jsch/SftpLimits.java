@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * The limits a server announces in reply to a <code>limits@openssh.com</code> request. A limit of
+ * <code>0</code> is unknown, and leaves the value it is applied to as it is.
+ */
+final class SftpLimits {
+  static final SftpLimits NONE = new SftpLimits(0, 0, 0, 0);
+
+  /** The size of SSH_FXP_WRITE without the handle and the data. */
+  private static final int WRITE_OVERHEAD = 4 + 1 + 4 + 4 + 8 + 4;
+
+  final long maxPacketLength;
+  final long maxReadLength;
+  final long maxWriteLength;
+  final long maxOpenHandles;
+
+  SftpLimits(long maxPacketLength, long maxReadLength, long maxWriteLength, long maxOpenHandles) {
+    this.maxPacketLength = maxPacketLength;
+    this.maxReadLength = maxReadLength;
+    this.maxWriteLength = maxWriteLength;
+    this.maxOpenHandles = maxOpenHandles;
+  }
+
+  static SftpLimits getLimits(Buffer buf) {
+    long maxPacketLength = buf.getLong();
+    long maxReadLength = buf.getLong();
+    long maxWriteLength = buf.getLong();
+    long maxOpenHandles = buf.getLong();
+    return new SftpLimits(maxPacketLength, maxReadLength, maxWriteLength, maxOpenHandles);
+  }
+
+  /** Returns <code>len</code>, capped at the most the server returns for one SSH_FXP_READ. */
+  int readLength(int len) {
+    return cap(len, maxReadLength);
+  }
+
+  /**
+   * Returns <code>len</code>, capped at the most the server accepts for one SSH_FXP_WRITE to a
+   * handle of <code>handleLength</code> bytes.
+   */
+  int writeLength(int len, int handleLength) {
+    len = cap(len, maxWriteLength);
+    if (maxPacketLength > 0) {
+      len = cap(len, Math.max(1, maxPacketLength - WRITE_OVERHEAD - handleLength));
+    }
+    return len;
+  }
+
+  /** Returns <code>n</code>, capped at the number of handles the server lets a client open. */
+  int openHandles(int n) {
+    return cap(n, maxOpenHandles);
+  }
+
+  private static int cap(int value, long limit) {
+    return limit > 0 && limit < value ? (int) limit : value;
+  }
+
+  @Override
+  public String toString() {
+    return "packet=" + maxPacketLength + " read=" + maxReadLength + " write=" + maxWriteLength
+        + " handles=" + maxOpenHandles;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Returns the entries of a remote directory as they are read, with several SSH_FXP_READDIR requests
+ * outstanding.
+ *
+ * <p>
+ * The SSH_FXP_NAME responses are kept undecoded until their entries are consumed, and a new request
+ * is only sent when a response has been taken, so no more than the outstanding responses are held
+ * in memory however large the directory is. The requests for one handle are processed by the server
+ * in the order they are sent, so the responses are consumed in that order.
+ * </p>
+ *
+ * @see ChannelSftp#lsIterator(String)
+ */
+public class SftpLsIterator implements Iterator<LsEntry>, AutoCloseable {
+  private final ChannelSftp channel;
+  private final SftpDispatcher dispatcher;
+  private final SftpHandle handle;
+  private final byte[] pattern;
+  private final boolean wildcard;
+  private final int depth;
+
+  private final ArrayDeque<CompletableFuture<Buffer>> requests = new ArrayDeque<>();
+  private boolean eof = false;
+  private boolean closed = false;
+
+  // the response whose entries are being consumed, and the number of its entries not read yet
+  private Buffer page = null;
+  private int count = 0;
+
+  private LsEntry next = null;
+
+  SftpLsIterator(ChannelSftp channel, SftpHandle handle, byte[] pattern, boolean wildcard,
+      int depth) throws SftpException {
+    this.channel = channel;
+    this.dispatcher = channel.dispatcher();
+    this.handle = handle;
+    this.pattern = pattern;
+    this.wildcard = wildcard;
+    this.depth = Math.max(1, depth);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      try {
+        next = fetch();
+      } catch (SftpException e) {
+        throw new UncheckedIOException(new IOException(e.toString(), e));
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public LsEntry next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    LsEntry entry = next;
+    next = null;
+    return entry;
+  }
+
+  /**
+   * Returns the next entry, or <code>null</code> after the last one, when the directory has been
+   * closed.
+   */
+  LsEntry fetch() throws SftpException {
+    if (next != null) {
+      LsEntry entry = next;
+      next = null;
+      return entry;
+    }
+    while (!closed) {
+      if (count > 0) {
+        count--;
+        byte[] filename = page.getString();
+        byte[] longname = channel.server_version <= 3 ? page.getString() : null;
+        SftpATTRS attrs = SftpATTRS.getATTR(page);
+        if (channel.matches(pattern, wildcard, filename)) {
+          return channel.toLsEntry(filename, longname, attrs);
+        }
+        continue;
+      }
+      page = null;
+      if (eof) {
+        close();
+        break;
+      }
+      while (requests.size() < depth) {
+        requests.addLast(dispatcher.readdirPage(handle));
+      }
+      Buffer buf;
+      try {
+        buf = SftpDispatcher.await(requests.pollFirst());
+      } catch (SftpException e) {
+        closeQuietly();
+        throw e;
+      }
+      if (buf == null) {
+        // the responses to the other outstanding requests are past the end as well
+        eof = true;
+        continue;
+      }
+      page = buf;
+      count = buf.getInt();
+    }
+    return null;
+  }
+
+  /**
+   * Closes the directory. The responses to outstanding requests are discarded when they arrive.
+   */
+  @Override
+  public void close() throws SftpException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    page = null;
+    count = 0;
+    next = null;
+    requests.clear();
+    SftpDispatcher.await(dispatcher.close(handle));
+  }
+
+  void closeQuietly() {
+    try {
+      close();
+    } catch (SftpException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Copies a directory tree to or from a remote host over several SFTP channels at the same time.
+ *
+ * <p>
+ * The tree is listed first, the remote directories of one level by pipelined SSH_FXP_OPENDIR and
+ * SSH_FXP_READDIR requests, and the missing directories are created with pipelined SSH_FXP_MKDIR
+ * requests. The files are then transferred by {@link #getFilesPerChannel()} threads per channel, so
+ * that many small files are transferred concurrently instead of paying a round trip for each open
+ * and close one after another, while large files are read or written with pipelined requests. Files
+ * which already exist are overwritten. Symbolic links are not followed into directories.
+ * </p>
+ *
+ * <p>
+ * Files and directories may be selected with glob patterns, in which <code>*</code> matches any
+ * characters but <code>/</code>, <code>**</code> any characters and <code>?</code> one character
+ * but <code>/</code>. A pattern which contains a <code>/</code> is matched against the path
+ * relative to the copied directory, any other pattern against the name. A directory which matches
+ * an exclude pattern is not copied. A file is copied if it does not match an exclude pattern and,
+ * if there are include patterns, matches one of them.
+ * </p>
+ *
+ * <p>
+ * The progress monitor is initialized with the total size of the selected files, and counts the
+ * bytes of all files. If a channel is lost, the file it has been transferring is copied again over
+ * another channel. The channels must be connected, and must not be used for anything else during a
+ * transfer.
+ * </p>
+ */
+public class SftpMirror {
+  private final List<ChannelSftp> channels;
+  private int filesPerChannel = 4;
+  private final List<Pattern> includes = new ArrayList<>();
+  private final List<Pattern> excludes = new ArrayList<>();
+
+  /**
+   * @param channels the connected channels the files are transferred over
+   */
+  public SftpMirror(List<ChannelSftp> channels) {
+    if (channels.isEmpty()) {
+      throw new IllegalArgumentException("no channels");
+    }
+    this.channels = new ArrayList<>(channels);
+  }
+
+  /**
+   * Sets the number of files which are transferred at the same time over each channel. The default
+   * is 4, and it is capped at the number of handles a server announces it lets a client open.
+   */
+  public void setFilesPerChannel(int filesPerChannel) {
+    if (filesPerChannel <= 0) {
+      throw new IllegalArgumentException(
+          "setFilesPerChannel: " + filesPerChannel + " must be greater than 0.");
+    }
+    this.filesPerChannel = filesPerChannel;
+  }
+
+  public int getFilesPerChannel() {
+    return filesPerChannel;
+  }
+
+  /** Returns the number of files per channel, capped at the handles the servers let us open. */
+  private int filesPerChannel() {
+    int n = filesPerChannel;
+    for (ChannelSftp channel : channels) {
+      n = channel.limits().openHandles(n);
+    }
+    return n;
+  }
+
+  /** Copies only the files which match <code>pattern</code>, or another include pattern. */
+  public void addInclude(String pattern) {
+    includes.add(compile(pattern));
+  }
+
+  /** Does not copy the files and directories which match <code>pattern</code>. */
+  public void addExclude(String pattern) {
+    excludes.add(compile(pattern));
+  }
+
+  /** Translates a glob pattern into a regular expression. */
+  static Pattern compile(String glob) {
+    StringBuilder sb = new StringBuilder();
+    if (glob.indexOf('/') < 0) {
+      sb.append("(?:.*/)?");
+    }
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        i++;
+        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+          // "**/" also matches no directory at all
+          i++;
+          sb.append("(?:.*/)?");
+        } else {
+          sb.append(".*");
+        }
+      } else if (c == '*') {
+        sb.append("[^/]*");
+      } else if (c == '?') {
+        sb.append("[^/]");
+      } else {
+        sb.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(sb.toString());
+  }
+
+  private static boolean matches(List<Pattern> patterns, String path) {
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(path).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the directory at the relative <code>path</code> is copied. */
+  boolean acceptDirectory(String path) {
+    return !matches(excludes, path);
+  }
+
+  /** Returns whether the file at the relative <code>path</code> is copied. */
+  boolean acceptFile(String path) {
+    return !matches(excludes, path) && (includes.isEmpty() || matches(includes, path));
+  }
+
+  private static class FileTask {
+    final String path;
+    final long size;
+
+    FileTask(String path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+  }
+
+  public void put(String src, String dst) throws SftpException {
+    put(src, dst, null);
+  }
+
+  /**
+   * Copies the local directory <code>src</code> into the remote directory <code>dst</code>, which
+   * is created if it does not exist.
+   *
+   * @param src the local directory
+   * @param dst the remote directory
+   * @param monitor progress monitor, which may be <code>null</code>
+   */
+  public void put(String src, String dst, SftpProgressMonitor monitor) throws SftpException {
+    ChannelSftp first = channels.get(0);
+    String _src = SftpParallelTransfer.localPath(first, src);
+    String _dst = SftpParallelTransfer.remotePath(first, dst);
+    Path root = new File(_src).toPath();
+    if (!Files.isDirectory(root)) {
+      throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, _src + " is not a directory");
+    }
+
+    // the directories and the files to copy
+    List<String> dirs = new ArrayList<>();
+    List<FileTask> files = new ArrayList<>();
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          String path = relative(root, dir);
+          if (path.isEmpty()) {
+            return FileVisitResult.CONTINUE;
+          }
+          if (!acceptDirectory(path)) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          dirs.add(path);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          String path = relative(root, file);
+          if (Files.isRegularFile(file) && acceptFile(path)) {
+            files.add(new FileTask(path, Files.size(file)));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+
+    mkdirs(_dst, dirs);
+
+    if (monitor != null) {
+      monitor.init(SftpProgressMonitor.PUT, _src, _dst, total(files));
+    }
+    SftpWorkers<FileTask> transfer =
+        new SftpWorkers<FileTask>(channels, filesPerChannel(), files, monitor) {
+          @Override
+          Worker<FileTask> worker(ChannelSftp channel) {
+            return new Worker<FileTask>() {
+              private final List<CompletableFuture<Void>> closes = new ArrayList<>();
+
+              @Override
+              public void run(FileTask task, SftpProgressMonitor monitor)
+                  throws IOException, SftpException {
+                int pflags = ChannelSftp.SSH_FXF_WRITE | ChannelSftp.SSH_FXF_CREAT
+                    | ChannelSftp.SSH_FXF_TRUNC;
+                try (FileChannel in = FileChannel.open(new File(root.toFile(), task.path).toPath(),
+                    StandardOpenOption.READ)) {
+                  SftpHandle handle =
+                      SftpDispatcher.await(channel.openAsync(_dst + "/" + task.path, pflags));
+                  try {
+                    new SftpUpload(channel.dispatcher(), handle, 0,
+                        channel.writeFlowControl(handle), monitor).transferFrom(in, 0, in.size());
+                  } finally {
+                    closes.add(channel.closeAsync(handle));
+                  }
+                }
+              }
+
+              @Override
+              public void close() throws SftpException {
+                for (CompletableFuture<Void> close : closes) {
+                  SftpDispatcher.await(close);
+                }
+              }
+            };
+          }
+        };
+    transfer.run();
+    if (monitor != null) {
+      monitor.end();
+    }
+  }
+
+  public void get(String src, String dst) throws SftpException {
+    get(src, dst, null);
+  }
+
+  /**
+   * Copies the remote directory <code>src</code> into the local directory <code>dst</code>, which
+   * is created if it does not exist.
+   *
+   * @param src the remote directory
+   * @param dst the local directory
+   * @param monitor progress monitor, which may be <code>null</code>
+   */
+  public void get(String src, String dst, SftpProgressMonitor monitor) throws SftpException {
+    ChannelSftp first = channels.get(0);
+    String _src = SftpParallelTransfer.remotePath(first, src);
+    String _dst = SftpParallelTransfer.localPath(first, dst);
+    SftpATTRS attrs = SftpDispatcher.await(first.statAsync(_src));
+    if (!attrs.isDir()) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, _src + " is not a directory");
+    }
+
+    // list the tree one level after another
+    List<String> dirs = new ArrayList<>();
+    List<FileTask> files = new ArrayList<>();
+    List<String> level = new ArrayList<>();
+    level.add("");
+    while (!level.isEmpty()) {
+      List<String> paths = new ArrayList<>();
+      for (String dir : level) {
+        paths.add(dir.isEmpty() ? _src : _src + "/" + dir);
+      }
+      List<List<LsEntry>> listings = SftpBatch.list(channels, paths);
+      List<String> next = new ArrayList<>();
+      for (int i = 0; i < level.size(); i++) {
+        String parent = level.get(i);
+        for (LsEntry entry : listings.get(i)) {
+          String name = entry.getFilename();
+          if (name.equals(".") || name.equals("..")) {
+            continue;
+          }
+          if (!isSafeName(name)) {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                "invalid file name in the listing of " + paths.get(i) + ": " + name);
+          }
+          String path = parent.isEmpty() ? name : parent + "/" + name;
+          SftpATTRS a = entry.getAttrs();
+          if (a.isDir() && acceptDirectory(path)) {
+            next.add(path);
+          } else if (a.isReg() && acceptFile(path)) {
+            files.add(new FileTask(path, a.getSize()));
+          }
+        }
+      }
+      dirs.addAll(next);
+      level = next;
+    }
+
+    File root = new File(_dst);
+    try {
+      Files.createDirectories(root.toPath());
+      for (String dir : dirs) {
+        Files.createDirectories(local(root, dir));
+      }
+    } catch (IOException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+
+    if (monitor != null) {
+      monitor.init(SftpProgressMonitor.GET, _src, _dst, total(files));
+    }
+    SftpWorkers<FileTask> transfer =
+        new SftpWorkers<FileTask>(channels, filesPerChannel(), files, monitor) {
+          @Override
+          Worker<FileTask> worker(ChannelSftp channel) {
+            SftpFlowControl flow = channel.readFlowControl();
+            return new Worker<FileTask>() {
+              private final List<CompletableFuture<Void>> closes = new ArrayList<>();
+
+              @Override
+              public void run(FileTask task, SftpProgressMonitor monitor)
+                  throws IOException, SftpException {
+                try (FileChannel fc =
+                    FileChannel.open(local(root, task.path), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                  SftpHandle handle = SftpDispatcher
+                      .await(channel.openAsync(_src + "/" + task.path, ChannelSftp.SSH_FXF_READ));
+                  try {
+                    // the size of the listing, so that no read is sent beyond the end of the file
+                    new SftpDownload(channel.dispatcher(), handle, 0, task.size, flow, monitor)
+                        .transferTo(fc, 0);
+                  } finally {
+                    closes.add(channel.closeAsync(handle));
+                  }
+                }
+              }
+
+              @Override
+              public void close() throws SftpException {
+                for (CompletableFuture<Void> close : closes) {
+                  SftpDispatcher.await(close);
+                }
+              }
+            };
+          }
+        };
+    transfer.run();
+    if (monitor != null) {
+      monitor.end();
+    }
+  }
+
+  /**
+   * Creates <code>dst</code> and the directories below it, with the directories of one level
+   * created by pipelined requests spread over the channels. A directory which already exists is
+   * accepted.
+   */
+  void mkdirs(String dst, List<String> dirs) throws SftpException {
+    List<List<String>> levels = new ArrayList<>();
+    levels.add(new ArrayList<>());
+    levels.get(0).add(dst);
+    for (String dir : dirs) {
+      int depth = depth(dir);
+      while (levels.size() <= depth) {
+        levels.add(new ArrayList<>());
+      }
+      levels.get(depth).add(dst + "/" + dir);
+    }
+    for (List<String> level : levels) {
+      List<CompletableFuture<Void>> mkdirs = new ArrayList<>();
+      for (int j = 0; j < level.size(); j++) {
+        mkdirs.add(channels.get(j % channels.size()).mkdirAsync(level.get(j)));
+      }
+      List<CompletableFuture<SftpATTRS>> stats = new ArrayList<>();
+      List<SftpException> failures = new ArrayList<>();
+      for (int j = 0; j < level.size(); j++) {
+        try {
+          SftpDispatcher.await(mkdirs.get(j));
+        } catch (SftpException e) {
+          if (e.id == ChannelSftp.SSH_FX_CONNECTION_LOST
+              || e.id == ChannelSftp.SSH_FX_NO_CONNECTION) {
+            throw e;
+          }
+          stats.add(channels.get(j % channels.size()).statAsync(level.get(j)));
+          failures.add(e);
+        }
+      }
+      for (int j = 0; j < stats.size(); j++) {
+        SftpATTRS attrs;
+        try {
+          attrs = SftpDispatcher.await(stats.get(j));
+        } catch (SftpException e) {
+          throw failures.get(j);
+        }
+        if (!attrs.isDir()) {
+          throw failures.get(j);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether a name listed by the server can be used as the name of a local file, so that a
+   * server cannot make a download write outside of its target directory.
+   */
+  static boolean isSafeName(String name) {
+    return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0
+        && (File.separatorChar != '\\' || name.indexOf('\\') < 0);
+  }
+
+  /** Resolves <code>path</code> below <code>root</code>, which it must not escape. */
+  static Path local(File root, String path) throws SftpException {
+    Path base = root.toPath().toAbsolutePath().normalize();
+    Path local = new File(root, path).toPath().toAbsolutePath().normalize();
+    if (!local.startsWith(base) || local.equals(base)) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "invalid file name: " + path);
+    }
+    return local;
+  }
+
+  private static int depth(String path) {
+    int depth = 1;
+    for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+      depth++;
+    }
+    return depth;
+  }
+
+  private static String relative(Path root, Path path) {
+    StringBuilder sb = new StringBuilder();
+    for (Path name : root.relativize(path)) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(name.toString());
+    }
+    return sb.toString();
+  }
+
+  private static long total(List<FileTask> files) {
+    long total = 0;
+    for (FileTask file : files) {
+      total += file.size;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A change of a remote file or directory, to be applied with other ones by
+ * {@link ChannelSftp#applyAll(java.util.List)}.
+ *
+ * <p>
+ * The paths are not globbed, and a relative path is resolved against the current remote directory
+ * when the operation is applied.
+ * </p>
+ */
+public final class SftpOp {
+  private static final int MKDIR = 0;
+  private static final int RM = 1;
+  private static final int RMDIR = 2;
+  private static final int RENAME = 3;
+  private static final int SETSTAT = 4;
+  private static final int CHMOD = 5;
+  private static final int CHOWN = 6;
+  private static final int CHGRP = 7;
+  private static final int MTIME = 8;
+
+  private static final String[] NAMES =
+      {"mkdir", "rm", "rmdir", "rename", "setStat", "chmod", "chown", "chgrp", "setMtime"};
+
+  private final int type;
+  private final String path;
+  private final String newpath;
+  private final SftpATTRS attrs;
+  private final int value;
+
+  private SftpOp(int type, String path, String newpath, SftpATTRS attrs, int value) {
+    this.type = type;
+    this.path = path;
+    this.newpath = newpath;
+    this.attrs = attrs;
+    this.value = value;
+  }
+
+  public static SftpOp mkdir(String path) {
+    return new SftpOp(MKDIR, path, null, null, 0);
+  }
+
+  public static SftpOp rm(String path) {
+    return new SftpOp(RM, path, null, null, 0);
+  }
+
+  public static SftpOp rmdir(String path) {
+    return new SftpOp(RMDIR, path, null, null, 0);
+  }
+
+  public static SftpOp rename(String oldpath, String newpath) {
+    return new SftpOp(RENAME, oldpath, newpath, null, 0);
+  }
+
+  /** Sets the attributes whose flags are set in <code>attrs</code>. */
+  public static SftpOp setStat(String path, SftpATTRS attrs) {
+    return new SftpOp(SETSTAT, path, null, attrs.copy(), 0);
+  }
+
+  public static SftpOp chmod(int permissions, String path) {
+    return new SftpOp(CHMOD, path, null, null, permissions);
+  }
+
+  public static SftpOp chown(int uid, String path) {
+    return new SftpOp(CHOWN, path, null, null, uid);
+  }
+
+  public static SftpOp chgrp(int gid, String path) {
+    return new SftpOp(CHGRP, path, null, null, gid);
+  }
+
+  public static SftpOp setMtime(String path, int mtime) {
+    return new SftpOp(MTIME, path, null, null, mtime);
+  }
+
+  /** Returns the path this operation changes, or the old path of a rename. */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns whether the current attributes of the file are needed, as this operation only changes a
+   * part of an attribute which is sent as a whole.
+   */
+  boolean needsStat() {
+    return type == CHOWN || type == CHGRP || type == MTIME;
+  }
+
+  /**
+   * Sends the request of this operation.
+   *
+   * @param current the current attributes of the file, if {@link #needsStat()}
+   */
+  CompletableFuture<Void> send(ChannelSftp channel, SftpATTRS current) {
+    SftpATTRS attr = new SftpATTRS();
+    switch (type) {
+      case MKDIR:
+        return channel.mkdirAsync(path);
+      case RM:
+        return channel.rmAsync(path);
+      case RMDIR:
+        return channel.rmdirAsync(path);
+      case RENAME:
+        return channel.renameAsync(path, newpath);
+      case SETSTAT:
+        return channel.setStatAsync(path, attrs);
+      case CHMOD:
+        attr.setPERMISSIONS(value);
+        break;
+      case CHOWN:
+        attr.setUIDGID(value, current.getGId());
+        break;
+      case CHGRP:
+        attr.setUIDGID(current.getUId(), value);
+        break;
+      default:
+        attr.setACMODTIME(current.getATime(), value);
+        break;
+    }
+    return channel.setStatAsync(path, attr);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(NAMES[type]);
+    if (type == CHMOD) {
+      sb.append(' ').append(Integer.toOctalString(value));
+    } else if (type == CHOWN || type == CHGRP || type == MTIME) {
+      sb.append(' ').append(value);
+    }
+    sb.append(' ').append(path);
+    if (newpath != null) {
+      sb.append(' ').append(newpath);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The stream returned by {@link ChannelSftp#put(String)}, which writes to an open remote file.
+ *
+ * <p>
+ * Small writes are gathered into one SSH_FXP_WRITE as large as fits in one packet, and larger
+ * writes are sent in requests of that size. Up to {@link ChannelSftp#getBulkRequests()} requests
+ * are outstanding, and their acknowledgements are taken as soon as they arrive, so a failed write
+ * is reported by the next call which writes, flushes or closes the stream. {@link #flush()} sends
+ * the gathered data and waits for every write to be acknowledged.
+ * </p>
+ */
+class SftpOutputStream extends OutputStream {
+  private final ChannelSftp channel;
+  private final SftpHandle handle;
+  private final SftpProgressMonitor monitor;
+  private final Runnable onClose;
+  private final int maxWrites;
+  private final ArrayDeque<CompletableFuture<Void>> writes = new ArrayDeque<>();
+
+  // the data of the writes which have not been sent yet
+  private final byte[] pending;
+  private int pendingLength = 0;
+
+  private long offset;
+  private SftpException failure = null;
+  private boolean closed = false;
+  private final byte[] one = new byte[1];
+
+  /**
+   * @param offset the offset of the file the stream writes at
+   * @param onClose run once the handle has been closed
+   */
+  SftpOutputStream(ChannelSftp channel, SftpHandle handle, long offset, SftpProgressMonitor monitor,
+      Runnable onClose) throws SftpException {
+    this.channel = channel;
+    this.handle = handle;
+    this.offset = offset;
+    this.monitor = monitor;
+    this.onClose = onClose;
+    this.maxWrites = channel.getBulkRequests();
+    this.pending = new byte[channel.dispatcher().maxWriteLength(handle)];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    one[0] = (byte) b;
+    write(one, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    check();
+    try {
+      int s = off;
+      int n = len;
+      if (pendingLength > 0 && pendingLength + n > pending.length) {
+        // fill the gathered request up, so that every request is a full one
+        int k = pending.length - pendingLength;
+        System.arraycopy(b, s, pending, pendingLength, k);
+        pendingLength += k;
+        s += k;
+        n -= k;
+        sendPending();
+      }
+      // the data is copied into the request before writeAsync returns
+      while (n >= pending.length) {
+        send(b, s, pending.length);
+        s += pending.length;
+        n -= pending.length;
+      }
+      System.arraycopy(b, s, pending, pendingLength, n);
+      pendingLength += n;
+    } catch (SftpException e) {
+      throw fail(e);
+    }
+    if (monitor != null && !monitor.count(len)) {
+      close();
+      throw new IOException("canceled");
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    check();
+    try {
+      sendPending();
+      while (!writes.isEmpty()) {
+        SftpDispatcher.await(writes.pollFirst());
+      }
+    } catch (SftpException e) {
+      throw fail(e);
+    }
+  }
+
+  /**
+   * Sends the gathered data and closes the handle, reporting the first write that failed. The close
+   * is sent without waiting for the writes, which the server answers before it.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (failure == null) {
+        sendPending();
+      }
+    } catch (SftpException e) {
+      failure = e;
+    }
+    CompletableFuture<Void> closing = channel.closeAsync(handle);
+    while (!writes.isEmpty()) {
+      try {
+        SftpDispatcher.await(writes.pollFirst());
+      } catch (SftpException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    try {
+      SftpDispatcher.await(closing);
+    } catch (SftpException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    if (onClose != null) {
+      onClose.run();
+    }
+    if (monitor != null) {
+      monitor.end();
+    }
+    if (failure != null) {
+      throw new IOException(failure.toString(), failure);
+    }
+  }
+
+  private void sendPending() throws SftpException {
+    if (pendingLength > 0) {
+      int n = pendingLength;
+      pendingLength = 0;
+      send(pending, 0, n);
+    }
+  }
+
+  private void send(byte[] b, int off, int len) throws SftpException {
+    while (!writes.isEmpty() && (writes.size() >= maxWrites || writes.peekFirst().isDone())) {
+      SftpDispatcher.await(writes.pollFirst());
+    }
+    writes.addLast(channel.writeAsync(handle, offset, b, off, len));
+    offset += len;
+  }
+
+  private void check() throws IOException {
+    if (closed) {
+      throw new IOException("stream already closed");
+    }
+    if (failure != null) {
+      throw new IOException(failure.toString(), failure);
+    }
+  }
+
+  private IOException fail(SftpException e) {
+    failure = e;
+    return new IOException(e.toString(), e);
+  }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transfers a single file over several SFTP channels at the same time.
+ *
+ * <p>
+ * The file is split into segments of {@link #getSegmentSize()} bytes, which are transferred by as
+ * many threads as there are channels, each one reading or writing its segments at their offsets
+ * with pipelined requests, and writing or reading the local file at the same offsets. The channels
+ * may belong to one session, so that the transfer is not limited by the window of one channel and a
+ * server which handles the requests of a channel with one thread, or to several sessions to the
+ * same host, so that it is not limited by one TCP connection either.
+ * </p>
+ *
+ * <p>
+ * If a channel is lost, the segment it has been transferring is started again on another channel,
+ * and the transfer goes on with the remaining channels. Any other failure stops the whole transfer.
+ * </p>
+ *
+ * <p>
+ * With a {@link #setJournalDirectory(String) journal directory}, the segments a transfer has
+ * completed are recorded on disk, so that a transfer which has been interrupted, even by the end of
+ * the process, only transfers the missing segments when it is started again with the same files.
+ * </p>
+ *
+ * <p>
+ * The channels must be connected, and must not be used for anything else during a transfer.
+ * </p>
+ */
+public class SftpParallelTransfer {
+  private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+  // the name of SftpTransferJournal.DIGEST for the "check-file-handle" extension
+  private static final String CHECK_FILE_ALGORITHM = "sha256";
+
+  private final List<ChannelSftp> channels;
+  private long segmentSize = 32 * 1024 * 1024;
+  private String journalDirectory = null;
+  private boolean journalHashes = false;
+
+  /**
+   * @param channels the connected channels the file is transferred over
+   */
+  public SftpParallelTransfer(List<ChannelSftp> channels) {
+    if (channels.isEmpty()) {
+      throw new IllegalArgumentException("no channels");
+    }
+    this.channels = new ArrayList<>(channels);
+  }
+
+  /**
+   * Sets the size of the segments the file is split into. The default is 32 MiB. A file smaller
+   * than that per channel is split into one segment per channel, of at least 1 MiB.
+   *
+   * @param segmentSize the size of the segments in bytes
+   */
+  public void setSegmentSize(long segmentSize) {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException(
+          "setSegmentSize: " + segmentSize + " must be greater than 0.");
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  public long getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Keeps a journal of every transfer in <code>directory</code>, which records the segments that
+   * have been completed. A transfer started again with the same files, while the journal is there,
+   * only transfers the segments which are not recorded; the journal is started over if the source
+   * has changed its size or modification time in between, or if the destination no longer reaches
+   * the end of the recorded segments, and removed once the transfer is complete. A destination
+   * which has been replaced by another file at least as long is only noticed with
+   * {@link #setJournalHashes(boolean)}. A local segment is written through to the disk before it is
+   * recorded.
+   *
+   * @param directory the directory of the journals, or <code>null</code>, the default, to keep none
+   */
+  public void setJournalDirectory(String directory) {
+    this.journalDirectory = directory;
+  }
+
+  public String getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * Sets whether the journal records a SHA-256 hash of every segment. A recorded segment with a
+   * hash is only skipped if the destination still has the same data there, and transferred again
+   * otherwise. For a download that is checked against the local file, and for an upload the server
+   * hashes the segment with the "check-file-handle" extension; a server without the extension gets
+   * every recorded segment again. The default is <code>false</code>.
+   */
+  public void setJournalHashes(boolean journalHashes) {
+    this.journalHashes = journalHashes;
+  }
+
+  public boolean getJournalHashes() {
+    return journalHashes;
+  }
+
+  public void get(String src, String dst) throws SftpException {
+    get(src, dst, null);
+  }
+
+  /**
+   * Downloads the remote file <code>src</code> into the local file <code>dst</code>, which is
+   * overwritten.
+   *
+   * @param src the remote file
+   * @param dst the local file
+   * @param monitor progress monitor, which may be <code>null</code>
+   */
+  public void get(String src, String dst, SftpProgressMonitor monitor) throws SftpException {
+    ChannelSftp first = channels.get(0);
+    src = remotePath(first, src);
+    dst = localPath(first, dst);
+    SftpATTRS attrs = SftpDispatcher.await(first.statAsync(src));
+    if (attrs.isDir()) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, src + " is a directory");
+    }
+    long size = attrs.getSize();
+    if (monitor != null) {
+      monitor.init(SftpProgressMonitor.GET, src, dst, size);
+    }
+    try (
+        FileChannel fc = FileChannel.open(new File(dst).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.READ);
+        SftpTransferJournal journal = journal("get", first, src, dst, size, attrs.getMTime())) {
+      if (journal != null) {
+        checkDestination(journal, fc.size());
+      }
+      String _src = src;
+      List<Segment> segments = split(size, segmentSize, channels.size(), journal);
+      skipped(size, segments, monitor);
+      SftpWorkers<Segment> transfer = new SftpWorkers<Segment>(channels, 1, segments, monitor) {
+        @Override
+        Worker<Segment> worker(ChannelSftp channel) throws SftpException {
+          SftpHandle handle =
+              SftpDispatcher.await(channel.openAsync(_src, ChannelSftp.SSH_FXF_READ));
+          SftpFlowControl flow = channel.readFlowControl();
+          return new Worker<Segment>() {
+            @Override
+            public void run(Segment segment, SftpProgressMonitor monitor)
+                throws IOException, SftpException {
+              if (verified(fc, segment, monitor)) {
+                return;
+              }
+              Counter counter = new Counter(monitor);
+              new SftpDownload(channel.dispatcher(), handle, segment.offset, segment.end, flow,
+                  counter).transferTo(fc, 0);
+              if (journal != null && counter.count == segment.end - segment.offset) {
+                fc.force(false);
+                record(journal, fc, segment);
+              }
+            }
+
+            @Override
+            public void close() {
+              channel.closeAsync(handle);
+            }
+          };
+        }
+      };
+      if (transfer.run()) {
+        if (fc.size() > size) {
+          fc.truncate(size);
+        }
+        if (journal != null) {
+          journal.delete();
+        }
+      }
+    } catch (IOException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    if (monitor != null) {
+      monitor.end();
+    }
+  }
+
+  public void put(String src, String dst) throws SftpException {
+    put(src, dst, null);
+  }
+
+  /**
+   * Uploads the local file <code>src</code> into the remote file <code>dst</code>, which is
+   * overwritten.
+   *
+   * @param src the local file
+   * @param dst the remote file
+   * @param monitor progress monitor, which may be <code>null</code>
+   */
+  public void put(String src, String dst, SftpProgressMonitor monitor) throws SftpException {
+    ChannelSftp first = channels.get(0);
+    src = localPath(first, src);
+    dst = remotePath(first, dst);
+    File srcFile = new File(src);
+    try (FileChannel fc = FileChannel.open(srcFile.toPath(), StandardOpenOption.READ);
+        SftpTransferJournal journal =
+            journal("put", first, src, dst, fc.size(), srcFile.lastModified())) {
+      long size = fc.size();
+      if (monitor != null) {
+        monitor.init(SftpProgressMonitor.PUT, src, dst, size);
+      }
+      int pflags = ChannelSftp.SSH_FXF_WRITE | ChannelSftp.SSH_FXF_CREAT;
+      if (journal != null && !journal.ranges().isEmpty()) {
+        checkDestination(journal, remoteSize(first, dst));
+      }
+      if (journal == null || journal.ranges().isEmpty()) {
+        // truncate the file once, before the segments are written
+        SftpHandle handle =
+            SftpDispatcher.await(first.openAsync(dst, pflags | ChannelSftp.SSH_FXF_TRUNC));
+        SftpDispatcher.await(first.closeAsync(handle));
+      } else if (journalHashes) {
+        // the server only hashes a handle which has been opened for reading
+        pflags |= ChannelSftp.SSH_FXF_READ;
+      }
+      int _pflags = pflags;
+
+      String _dst = dst;
+      List<Segment> segments = split(size, segmentSize, channels.size(), journal);
+      skipped(size, segments, monitor);
+      SftpWorkers<Segment> transfer = new SftpWorkers<Segment>(channels, 1, segments, monitor) {
+        @Override
+        Worker<Segment> worker(ChannelSftp channel) throws SftpException {
+          SftpHandle handle = SftpDispatcher.await(channel.openAsync(_dst, _pflags));
+          SftpFlowControl flow = channel.writeFlowControl(handle);
+          return new Worker<Segment>() {
+            @Override
+            public void run(Segment segment, SftpProgressMonitor monitor)
+                throws IOException, SftpException {
+              if (uploaded(channel, handle, segment, monitor)) {
+                return;
+              }
+              Counter counter = new Counter(monitor);
+              new SftpUpload(channel.dispatcher(), handle, segment.offset, flow, counter)
+                  .transferFrom(fc, segment.offset, segment.end);
+              if (journal != null && counter.count == segment.end - segment.offset) {
+                record(journal, fc, segment);
+              }
+            }
+
+            @Override
+            public void close() throws SftpException {
+              SftpDispatcher.await(channel.closeAsync(handle));
+            }
+          };
+        }
+      };
+      if (transfer.run() && journal != null) {
+        journal.delete();
+      }
+    } catch (IOException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    if (monitor != null) {
+      monitor.end();
+    }
+  }
+
+  static String remotePath(ChannelSftp channel, String path) throws SftpException {
+    if (path.startsWith("/")) {
+      return path;
+    }
+    String cwd = channel.pwd();
+    return cwd.endsWith("/") ? cwd + path : cwd + "/" + path;
+  }
+
+  static String localPath(ChannelSftp channel, String path) {
+    File file = new File(path);
+    if (file.isAbsolute() || channel.lpwd() == null) {
+      return path;
+    }
+    return new File(channel.lpwd(), path).getPath();
+  }
+
+  /**
+   * Opens the journal of a transfer in the journal directory, or returns <code>null</code> if no
+   * journal is kept.
+   */
+  private SftpTransferJournal journal(String op, ChannelSftp channel, String src, String dst,
+      long size, long mtime) throws IOException, SftpException {
+    if (journalDirectory == null) {
+      return null;
+    }
+    Session session;
+    try {
+      session = channel.getSession();
+    } catch (JSchException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    String transfer = op + "\n" + session.getUserName() + "@" + session.getHost() + ":"
+        + session.getPort() + "\n" + src + "\n" + dst;
+    File file = new File(journalDirectory, op + "-" + SftpTransferJournal.name(transfer));
+    return SftpTransferJournal.open(file.toPath(), transfer + "\n" + size + "\n" + mtime);
+  }
+
+  /**
+   * Starts the journal over if the destination, of <code>length</code> bytes, is shorter than the
+   * recorded segments reach, since it has been removed or truncated since they were recorded.
+   */
+  static void checkDestination(SftpTransferJournal journal, long length) throws IOException {
+    if (length < journal.end()) {
+      journal.reset();
+    }
+  }
+
+  /** Returns the size of the remote file <code>path</code>, or <code>-1</code> if it is missing. */
+  private static long remoteSize(ChannelSftp channel, String path) throws SftpException {
+    try {
+      return SftpDispatcher.await(channel.statAsync(path)).getSize();
+    } catch (SftpException e) {
+      if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+        throw e;
+      }
+      return -1;
+    }
+  }
+
+  private void record(SftpTransferJournal journal, FileChannel fc, Segment segment)
+      throws IOException {
+    byte[] hash = journalHashes ? SftpTransferJournal.hash(fc, segment.offset, segment.end) : null;
+    journal.record(segment.offset, segment.end, hash);
+  }
+
+  /**
+   * Checks a segment the journal has recorded with a hash against the local file, and counts it as
+   * transferred if it has the same data.
+   */
+  private static boolean verified(FileChannel fc, Segment segment, SftpProgressMonitor monitor)
+      throws IOException {
+    if (segment.hash == null) {
+      return false;
+    }
+    try {
+      if (!Arrays.equals(segment.hash, SftpTransferJournal.hash(fc, segment.offset, segment.end))) {
+        return false;
+      }
+    } catch (EOFException e) {
+      return false;
+    }
+    monitor.count(segment.end - segment.offset);
+    return true;
+  }
+
+  /**
+   * Has the server hash a segment the journal has recorded with a hash, and counts it as
+   * transferred if the remote file has the same data there. The recorded hash is the one of the
+   * source, which the journal has pinned by its size and modification time.
+   */
+  static boolean uploaded(ChannelSftp channel, SftpHandle handle, Segment segment,
+      SftpProgressMonitor monitor) throws SftpException {
+    if (segment.hash == null) {
+      return false;
+    }
+    SftpFileHashes remote;
+    try {
+      remote = SftpDispatcher.await(channel.checkFileAsync(handle, CHECK_FILE_ALGORITHM,
+          segment.offset, segment.end - segment.offset, 0));
+    } catch (SftpException e) {
+      if (e.id != ChannelSftp.SSH_FX_OP_UNSUPPORTED && e.id != ChannelSftp.SSH_FX_EOF) {
+        throw e;
+      }
+      return false;
+    }
+    if (!CHECK_FILE_ALGORITHM.equals(remote.getAlgorithm()) || remote.getCount() != 1
+        || !remote.matches(0, segment.hash)) {
+      return false;
+    }
+    monitor.count(segment.end - segment.offset);
+    return true;
+  }
+
+  /** Counts the segments the journal has recorded without a hash as transferred. */
+  private static void skipped(long size, List<Segment> segments, SftpProgressMonitor monitor) {
+    long skipped = size;
+    for (Segment segment : segments) {
+      skipped -= segment.end - segment.offset;
+    }
+    if (monitor != null && skipped > 0) {
+      monitor.count(skipped);
+    }
+  }
+
+  static class Segment {
+    final long offset;
+    final long end;
+    // the hash the journal has recorded for this segment, which has been transferred
+    final byte[] hash;
+
+    Segment(long offset, long end) {
+      this(offset, end, null);
+    }
+
+    Segment(long offset, long end, byte[] hash) {
+      this.offset = offset;
+      this.end = end;
+      this.hash = hash;
+    }
+  }
+
+  /** Splits <code>size</code> bytes into segments for <code>n</code> channels. */
+  static List<Segment> split(long size, long segmentSize, int n) {
+    return split(size, segmentSize, n, Collections.emptyList());
+  }
+
+  private static List<Segment> split(long size, long segmentSize, int n,
+      SftpTransferJournal journal) {
+    return split(size, segmentSize, n,
+        journal == null ? Collections.emptyList() : journal.ranges());
+  }
+
+  /**
+   * Splits the bytes of <code>size</code> which are not in the <code>done</code> ranges into
+   * segments for <code>n</code> channels. A done range with a hash becomes a segment of its own,
+   * whose data is checked before it is transferred again.
+   *
+   * @param done the ranges the journal has recorded, in the order of their offsets
+   */
+  static List<Segment> split(long size, long segmentSize, int n,
+      List<SftpTransferJournal.Range> done) {
+    long length = Math.min(segmentSize, Math.max(MIN_SEGMENT_SIZE, (size + n - 1) / n));
+    List<Segment> segments = new ArrayList<>();
+    long next = 0;
+    for (SftpTransferJournal.Range range : done) {
+      long offset = Math.max(next, range.offset);
+      long end = Math.min(size, range.end);
+      if (offset >= end) {
+        continue;
+      }
+      addSegments(next, offset, length, segments);
+      if (range.hash != null) {
+        // a range only partly beyond what has been seen cannot be checked
+        if (offset == range.offset && end == range.end) {
+          segments.add(new Segment(offset, end, range.hash));
+        } else {
+          addSegments(offset, end, length, segments);
+        }
+      }
+      next = end;
+    }
+    addSegments(next, size, length, segments);
+    return segments;
+  }
+
+  private static void addSegments(long offset, long end, long length, List<Segment> segments) {
+    for (; offset < end; offset += length) {
+      segments.add(new Segment(offset, Math.min(end, offset + length)));
+    }
+  }
+
+  /** Counts the bytes a segment has transferred. */
+  private static class Counter implements SftpProgressMonitor {
+    private final SftpProgressMonitor monitor;
+    long count = 0;
+
+    Counter(SftpProgressMonitor monitor) {
+      this.monitor = monitor;
+    }
+
+    @Override
+    public void init(int op, String src, String dest, long max) {}
+
+    @Override
+    public boolean count(long n) {
+      count += n;
+      return monitor.count(n);
+    }
+
+    @Override
+    public void end() {}
+  }
+}
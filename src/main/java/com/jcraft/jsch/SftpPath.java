@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path of a {@link SftpFileSystem}, with the syntax of a Unix path: names separated by
+ * <code>/</code>, and absolute if it starts with <code>/</code>. Redundant slashes are dropped.
+ */
+public final class SftpPath implements Path {
+  private static final String[] NO_NAMES = new String[0];
+
+  private final SftpFileSystem fs;
+  private final String path;
+  private volatile String[] names;
+
+  SftpPath(SftpFileSystem fs, String path) {
+    this.fs = fs;
+    this.path = normalizeSlashes(path);
+  }
+
+  static String normalizeSlashes(String path) {
+    StringBuilder sb = new StringBuilder(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '\0') {
+        throw new InvalidPathException(path, "Nul character not allowed");
+      }
+      if (c == '/' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '/') {
+        continue;
+      }
+      sb.append(c);
+    }
+    if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+      sb.setLength(sb.length() - 1);
+    }
+    return sb.toString();
+  }
+
+  private String[] names() {
+    String[] _names = names;
+    if (_names == null) {
+      if (path.equals("/")) {
+        _names = NO_NAMES;
+      } else if (path.isEmpty()) {
+        _names = new String[] {""};
+      } else {
+        _names = (isAbsolute() ? path.substring(1) : path).split("/");
+      }
+      names = _names;
+    }
+    return _names;
+  }
+
+  private SftpPath of(boolean absolute, List<String> names) {
+    return new SftpPath(fs, (absolute ? "/" : "") + String.join("/", names));
+  }
+
+  private SftpPath check(Path other) {
+    if (!(other instanceof SftpPath)) {
+      throw new ProviderMismatchException();
+    }
+    return (SftpPath) other;
+  }
+
+  @Override
+  public SftpFileSystem getFileSystem() {
+    return fs;
+  }
+
+  @Override
+  public boolean isAbsolute() {
+    return path.startsWith("/");
+  }
+
+  @Override
+  public SftpPath getRoot() {
+    return isAbsolute() ? new SftpPath(fs, "/") : null;
+  }
+
+  @Override
+  public SftpPath getFileName() {
+    String[] _names = names();
+    if (_names.length == 0) {
+      return null;
+    }
+    if (_names.length == 1 && !isAbsolute()) {
+      return this;
+    }
+    return new SftpPath(fs, _names[_names.length - 1]);
+  }
+
+  @Override
+  public SftpPath getParent() {
+    String[] _names = names();
+    if (_names.length == 0 || (_names.length == 1 && !isAbsolute())) {
+      return null;
+    }
+    int i = path.lastIndexOf('/');
+    return new SftpPath(fs, i == 0 ? "/" : path.substring(0, i));
+  }
+
+  @Override
+  public int getNameCount() {
+    return names().length;
+  }
+
+  @Override
+  public SftpPath getName(int index) {
+    String[] _names = names();
+    if (index < 0 || index >= _names.length) {
+      throw new IllegalArgumentException("getName: " + index);
+    }
+    return new SftpPath(fs, _names[index]);
+  }
+
+  @Override
+  public SftpPath subpath(int beginIndex, int endIndex) {
+    String[] _names = names();
+    if (beginIndex < 0 || beginIndex >= _names.length || endIndex > _names.length
+        || beginIndex >= endIndex) {
+      throw new IllegalArgumentException("subpath: " + beginIndex + ", " + endIndex);
+    }
+    return of(false, Arrays.asList(_names).subList(beginIndex, endIndex));
+  }
+
+  @Override
+  public boolean startsWith(Path other) {
+    if (!(other instanceof SftpPath) || other.getFileSystem() != fs) {
+      return false;
+    }
+    SftpPath _other = (SftpPath) other;
+    if (_other.isAbsolute() != isAbsolute()) {
+      return false;
+    }
+    String[] a = names();
+    String[] b = _other.names();
+    if (b.length > a.length || (_other.path.isEmpty() && !path.isEmpty())) {
+      return false;
+    }
+    for (int i = 0; i < b.length; i++) {
+      if (!a[i].equals(b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean startsWith(String other) {
+    return startsWith(new SftpPath(fs, other));
+  }
+
+  @Override
+  public boolean endsWith(Path other) {
+    if (!(other instanceof SftpPath) || other.getFileSystem() != fs) {
+      return false;
+    }
+    SftpPath _other = (SftpPath) other;
+    if (_other.isAbsolute()) {
+      return equals(_other);
+    }
+    String[] a = names();
+    String[] b = _other.names();
+    if (b.length > a.length || (_other.path.isEmpty() && !path.isEmpty())) {
+      return false;
+    }
+    for (int i = 0; i < b.length; i++) {
+      if (!a[a.length - b.length + i].equals(b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endsWith(String other) {
+    return endsWith(new SftpPath(fs, other));
+  }
+
+  @Override
+  public SftpPath normalize() {
+    List<String> result = new ArrayList<>();
+    for (String name : names()) {
+      if (name.equals(".") || name.isEmpty()) {
+        continue;
+      }
+      if (name.equals("..")) {
+        if (!result.isEmpty() && !result.get(result.size() - 1).equals("..")) {
+          result.remove(result.size() - 1);
+          continue;
+        }
+        if (isAbsolute()) {
+          // there is nothing above the root
+          continue;
+        }
+      }
+      result.add(name);
+    }
+    return of(isAbsolute(), result);
+  }
+
+  @Override
+  public SftpPath resolve(Path other) {
+    SftpPath _other = check(other);
+    if (_other.isAbsolute()) {
+      return _other;
+    }
+    if (_other.path.isEmpty()) {
+      return this;
+    }
+    if (path.isEmpty()) {
+      return _other;
+    }
+    return new SftpPath(fs, path + "/" + _other.path);
+  }
+
+  @Override
+  public SftpPath resolve(String other) {
+    return resolve(new SftpPath(fs, other));
+  }
+
+  @Override
+  public SftpPath resolveSibling(String other) {
+    return resolveSibling(new SftpPath(fs, other));
+  }
+
+  @Override
+  public SftpPath resolveSibling(Path other) {
+    SftpPath parent = getParent();
+    return parent == null ? check(other) : parent.resolve(other);
+  }
+
+  @Override
+  public SftpPath relativize(Path other) {
+    SftpPath _other = check(other);
+    if (_other.isAbsolute() != isAbsolute()) {
+      throw new IllegalArgumentException("'other' is different type of Path");
+    }
+    if (equals(_other)) {
+      return new SftpPath(fs, "");
+    }
+    String[] a = path.isEmpty() ? NO_NAMES : names();
+    String[] b = _other.path.isEmpty() ? NO_NAMES : _other.names();
+    int common = 0;
+    while (common < a.length && common < b.length && a[common].equals(b[common])) {
+      common++;
+    }
+    List<String> result = new ArrayList<>();
+    for (int i = common; i < a.length; i++) {
+      result.add("..");
+    }
+    result.addAll(Arrays.asList(b).subList(common, b.length));
+    return of(false, result);
+  }
+
+  @Override
+  public URI toUri() {
+    try {
+      return new URI("sftp", fs.getUserInfo(), fs.getHost(), fs.getPort(), toAbsolutePath().path,
+          null, null);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e.toString(), e);
+    }
+  }
+
+  @Override
+  public SftpPath toAbsolutePath() {
+    return isAbsolute() ? this : fs.getDefaultDirectory().resolve(this);
+  }
+
+  /**
+   * Returns the canonical path the server resolves this path to, following symbolic links unless
+   * {@link LinkOption#NOFOLLOW_LINKS} is given. The file must exist.
+   */
+  @Override
+  public SftpPath toRealPath(LinkOption... options) throws IOException {
+    return fs.toRealPath(this, SftpFileSystem.follow(options));
+  }
+
+  @Override
+  public File toFile() {
+    throw new UnsupportedOperationException("toFile");
+  }
+
+  @Override
+  public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+      WatchEvent.Modifier... modifiers) {
+    throw new UnsupportedOperationException("register");
+  }
+
+  @Override
+  public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+    throw new UnsupportedOperationException("register");
+  }
+
+  @Override
+  public Iterator<Path> iterator() {
+    List<Path> result = new ArrayList<>();
+    for (int i = 0; i < getNameCount(); i++) {
+      result.add(getName(i));
+    }
+    return result.iterator();
+  }
+
+  @Override
+  public int compareTo(Path other) {
+    return path.compareTo(((SftpPath) other).path);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof SftpPath && ((SftpPath) other).fs == fs
+        && ((SftpPath) other).path.equals(path);
+  }
+
+  @Override
+  public int hashCode() {
+    return path.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
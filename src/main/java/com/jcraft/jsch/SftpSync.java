@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transfers only the blocks of a file which differ between the local and the remote copy, for
+ * {@link ChannelSftp#SYNC}.
+ *
+ * <p>
+ * The server hashes the blocks of its copy with the "check-file-handle" extension, while the local
+ * copy is hashed by as many threads as there are processors. Blocks with equal hashes are counted
+ * as transferred; runs of differing blocks, and whatever one copy has beyond the end of the other,
+ * are transferred with pipelined requests, and the destination is truncated to the size of the
+ * source. If the server cannot hash the file, the whole file is transferred.
+ * </p>
+ */
+final class SftpSync {
+  static final String ALGORITHMS = "sha256,sha1,md5";
+
+  // the smallest block size the extension allows
+  static final int MIN_BLOCK_SIZE = 256;
+  // at most 2048 hashes of up to 64 bytes are requested at once
+  private static final int BLOCKS_PER_REQUEST = 2048;
+  // the number of blocks a hashing thread takes at a time
+  private static final int BLOCKS_PER_TASK = 16;
+  // the most hashes kept for one file; the block size grows for files with more blocks
+  private static final long MAX_BLOCKS = 1 << 22;
+
+  private SftpSync() {}
+
+  static void put(ChannelSftp channel, FileChannel src, String dst, int blockSize,
+      SftpProgressMonitor monitor) throws IOException, SftpException {
+    // the server reads the file to hash it
+    int pflags = ChannelSftp.SSH_FXF_READ | ChannelSftp.SSH_FXF_WRITE | ChannelSftp.SSH_FXF_CREAT;
+    SftpHandle handle = SftpDispatcher.await(channel.openAsync(dst, pflags));
+    try {
+      long size = src.size();
+      long remoteSize = SftpDispatcher.await(channel.fstatAsync(handle)).getSize();
+      Monitor _monitor = new Monitor(monitor);
+      List<long[]> ranges = changes(channel, handle, src, size, remoteSize, blockSize, _monitor);
+      SftpFlowControl flow = channel.writeFlowControl(handle);
+      for (long[] range : ranges) {
+        if (_monitor.cancelled) {
+          break;
+        }
+        new SftpUpload(channel.dispatcher(), handle, range[0], flow, _monitor).transferFrom(src,
+            range[0], range[1]);
+      }
+      if (!_monitor.cancelled && remoteSize > size) {
+        SftpATTRS attrs = new SftpATTRS();
+        attrs.setSIZE(size);
+        SftpDispatcher.await(channel.setStatAsync(dst, attrs));
+      }
+    } catch (IOException | SftpException | RuntimeException e) {
+      channel.closeAsync(handle);
+      throw e;
+    }
+    SftpDispatcher.await(channel.closeAsync(handle));
+  }
+
+  static void get(ChannelSftp channel, String src, FileChannel dst, int blockSize,
+      SftpProgressMonitor monitor) throws IOException, SftpException {
+    SftpHandle handle = SftpDispatcher.await(channel.openAsync(src, ChannelSftp.SSH_FXF_READ));
+    try {
+      long size = SftpDispatcher.await(channel.fstatAsync(handle)).getSize();
+      long localSize = dst.size();
+      Monitor _monitor = new Monitor(monitor);
+      List<long[]> ranges = changes(channel, handle, dst, size, localSize, blockSize, _monitor);
+      SftpFlowControl flow = channel.readFlowControl();
+      for (long[] range : ranges) {
+        if (_monitor.cancelled) {
+          break;
+        }
+        new SftpDownload(channel.dispatcher(), handle, range[0], range[1], flow, _monitor)
+            .transferTo(dst, 0);
+      }
+      if (!_monitor.cancelled && localSize > size) {
+        dst.truncate(size);
+      }
+    } finally {
+      channel.closeAsync(handle);
+    }
+  }
+
+  /**
+   * Returns the ranges of the source of <code>size</code> bytes which have to be transferred to a
+   * destination of <code>destSize</code> bytes, and counts the blocks which are equal.
+   */
+  private static List<long[]> changes(ChannelSftp channel, SftpHandle handle, FileChannel local,
+      long size, long destSize, int blockSize, Monitor monitor) throws IOException, SftpException {
+    long length = Math.min(size, destSize);
+    blockSize = blockSize(length, blockSize);
+    List<long[]> ranges = new ArrayList<>();
+    boolean[] changed = changed(channel, handle, local, length, blockSize);
+    if (changed == null) {
+      add(ranges, 0, length);
+    } else {
+      for (int i = 0; i < changed.length; i++) {
+        long offset = (long) i * blockSize;
+        long end = Math.min(length, offset + blockSize);
+        if (changed[i]) {
+          add(ranges, offset, end);
+        } else if (!monitor.count(end - offset)) {
+          break;
+        }
+      }
+    }
+    add(ranges, length, size);
+    return ranges;
+  }
+
+  /** Adds the range from <code>offset</code> to <code>end</code>, joining it to the last one. */
+  private static void add(List<long[]> ranges, long offset, long end) {
+    if (offset >= end) {
+      return;
+    }
+    long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+    if (last != null && last[1] == offset) {
+      last[1] = end;
+    } else {
+      ranges.add(new long[] {offset, end});
+    }
+  }
+
+  static int blockSize(long length, int blockSize) {
+    blockSize = Math.max(MIN_BLOCK_SIZE, blockSize);
+    long blocks = (length + blockSize - 1) / blockSize;
+    if (blocks > MAX_BLOCKS) {
+      blockSize = (int) Math.min(Integer.MAX_VALUE, (length + MAX_BLOCKS - 1) / MAX_BLOCKS);
+    }
+    return blockSize;
+  }
+
+  /**
+   * Compares the first <code>length</code> bytes of the local and the remote file block by block.
+   *
+   * @return whether each block differs, or <code>null</code> if the server cannot hash the file
+   */
+  private static boolean[] changed(ChannelSftp channel, SftpHandle handle, FileChannel local,
+      long length, int blockSize) throws IOException, SftpException {
+    if (length == 0) {
+      return new boolean[0];
+    }
+    int blocks = (int) ((length + blockSize - 1) / blockSize);
+    List<CompletableFuture<SftpFileHashes>> requests = new ArrayList<>();
+    for (int i = 0; i < blocks; i += BLOCKS_PER_REQUEST) {
+      long offset = (long) i * blockSize;
+      long n = Math.min(length - offset, (long) BLOCKS_PER_REQUEST * blockSize);
+      requests.add(channel.checkFileAsync(handle, ALGORITHMS, offset, n, blockSize));
+    }
+    String digest;
+    try {
+      digest = SftpFileHashes.digestName(SftpDispatcher.await(requests.get(0)).getAlgorithm());
+    } catch (SftpException e) {
+      if (e.id != ChannelSftp.SSH_FX_OP_UNSUPPORTED) {
+        throw e;
+      }
+      digest = null;
+    }
+    if (digest == null) {
+      return null;
+    }
+
+    Session session;
+    try {
+      session = channel.getSession();
+    } catch (JSchException e) {
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    byte[][] hashes = hash(session, local, length, blockSize, digest);
+    boolean[] changed = new boolean[blocks];
+    for (int r = 0; r < requests.size(); r++) {
+      SftpFileHashes remote = SftpDispatcher.await(requests.get(r));
+      for (int j = 0; j < BLOCKS_PER_REQUEST && r * BLOCKS_PER_REQUEST + j < blocks; j++) {
+        int i = r * BLOCKS_PER_REQUEST + j;
+        changed[i] = !remote.matches(j, hashes[i]);
+      }
+    }
+    return changed;
+  }
+
+  /** Hashes the blocks of the first <code>length</code> bytes of <code>fc</code> in parallel. */
+  static byte[][] hash(Session session, FileChannel fc, long length, int blockSize, String digest)
+      throws IOException {
+    int blocks = (int) ((length + blockSize - 1) / blockSize);
+    byte[][] hashes = new byte[blocks][];
+    int tasks = (blocks + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+    AtomicInteger next = new AtomicInteger();
+    IOException[] failure = new IOException[1];
+    Runnable hasher = () -> {
+      try {
+        MessageDigest md = MessageDigest.getInstance(digest);
+        ByteBuffer bb = ByteBuffer.allocate(Math.min(blockSize, 64 * 1024));
+        int task;
+        while ((task = next.getAndIncrement()) < tasks) {
+          for (int i = task * BLOCKS_PER_TASK; i < Math.min(blocks,
+              (task + 1) * BLOCKS_PER_TASK); i++) {
+            long position = (long) i * blockSize;
+            long end = Math.min(length, position + blockSize);
+            while (position < end) {
+              bb.clear();
+              bb.limit((int) Math.min(bb.capacity(), end - position));
+              int n = fc.read(bb, position);
+              if (n < 0) {
+                throw new EOFException("the file has been truncated");
+              }
+              bb.flip();
+              md.update(bb);
+              position += n;
+            }
+            hashes[i] = md.digest();
+          }
+        }
+      } catch (IOException | NoSuchAlgorithmException e) {
+        synchronized (failure) {
+          if (failure[0] == null) {
+            failure[0] = e instanceof IOException ? (IOException) e : new IOException(e);
+          }
+        }
+        next.set(tasks);
+      }
+    };
+
+    int n = Math.min(tasks, Runtime.getRuntime().availableProcessors());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i < n; i++) {
+      Thread thread = session.getThreadFactory().newThread(hasher);
+      thread.setName("Sftp hash thread " + session.getHost());
+      if (session.daemon_thread) {
+        thread.setDaemon(session.daemon_thread);
+      }
+      thread.start();
+      threads.add(thread);
+    }
+    // this thread hashes as well, and the others stop once every task has been taken
+    hasher.run();
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      next.set(tasks);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+    synchronized (failure) {
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+    }
+    return hashes;
+  }
+
+  /** Remembers whether the transfer has been cancelled. */
+  private static class Monitor implements SftpProgressMonitor {
+    private final SftpProgressMonitor monitor;
+    volatile boolean cancelled = false;
+
+    Monitor(SftpProgressMonitor monitor) {
+      this.monitor = monitor;
+    }
+
+    @Override
+    public void init(int op, String src, String dest, long max) {}
+
+    @Override
+    public boolean count(long count) {
+      if (monitor != null && !monitor.count(count)) {
+        cancelled = true;
+      }
+      return !cancelled;
+    }
+
+    @Override
+    public void end() {}
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Records on disk which ranges of a transfer are complete, so that a transfer which has been
+ * interrupted, even by the end of the process, goes on with the ranges which are missing.
+ *
+ * <p>
+ * The journal starts with a header describing the transfer, followed by a record for every range
+ * which has been completed, optionally with a SHA-256 hash of its data. Every record is checked by
+ * a CRC-32 and written through to the disk before the next one; a record torn by a crash is dropped
+ * when the journal is opened again, as is the whole journal if it describes another transfer, or
+ * another version of the source.
+ * </p>
+ */
+final class SftpTransferJournal implements Closeable {
+  static final String DIGEST = "SHA-256";
+
+  private static final int MAGIC = 0x4a534a31;
+  private static final int RECORD = 8 + 8 + 1;
+
+  /** A range which has been completed, and the hash of its data if it has been recorded. */
+  static final class Range {
+    final long offset;
+    final long end;
+    final byte[] hash;
+
+    Range(long offset, long end, byte[] hash) {
+      this.offset = offset;
+      this.end = end;
+      this.hash = hash;
+    }
+  }
+
+  private final Path path;
+  private final FileChannel fc;
+  private final TreeMap<Long, Range> ranges;
+  private final long headerLength;
+  private long position;
+  private boolean closed = false;
+
+  private SftpTransferJournal(Path path, FileChannel fc, TreeMap<Long, Range> ranges,
+      long headerLength, long position) {
+    this.path = path;
+    this.fc = fc;
+    this.ranges = ranges;
+    this.headerLength = headerLength;
+    this.position = position;
+  }
+
+  /**
+   * Opens the journal at <code>path</code>, keeping the ranges it has recorded if it has been
+   * written for the same <code>transfer</code>, or starting it over.
+   *
+   * @param transfer a description of the transfer, which includes whatever identifies the version
+   *        of its source
+   */
+  static SftpTransferJournal open(Path path, String transfer) throws IOException {
+    FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      byte[] header = header(transfer);
+      TreeMap<Long, Range> ranges = new TreeMap<>();
+      long position = read(fc, header, ranges);
+      if (position < 0) {
+        ranges.clear();
+        fc.truncate(0);
+        write(fc, ByteBuffer.wrap(header), 0);
+        position = header.length;
+      } else {
+        // drop a record torn by a crash
+        fc.truncate(position);
+      }
+      fc.force(false);
+      return new SftpTransferJournal(path, fc, ranges, header.length, position);
+    } catch (IOException | RuntimeException e) {
+      fc.close();
+      throw e;
+    }
+  }
+
+  private static byte[] header(String transfer) {
+    byte[] b = Util.str2byte(transfer);
+    ByteBuffer bb = ByteBuffer.allocate(4 + 4 + b.length + 4);
+    bb.putInt(MAGIC);
+    bb.putInt(b.length);
+    bb.put(b);
+    bb.putInt(crc(bb.array(), 0, bb.position()));
+    return bb.array();
+  }
+
+  /**
+   * Reads the records of a journal which starts with <code>header</code> into <code>ranges</code>,
+   * where a range which has been recorded again replaces the earlier record.
+   *
+   * @return the length of the valid records, or <code>-1</code> if the journal starts with another
+   *         header
+   */
+  private static long read(FileChannel fc, byte[] header, TreeMap<Long, Range> ranges)
+      throws IOException {
+    long size = fc.size();
+    if (size < header.length) {
+      return -1;
+    }
+    ByteBuffer bb = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+    while (bb.hasRemaining()) {
+      if (fc.read(bb, bb.position()) < 0) {
+        break;
+      }
+    }
+    bb.flip();
+    byte[] b = new byte[header.length];
+    bb.get(b);
+    if (!Arrays.equals(b, header)) {
+      return -1;
+    }
+    while (bb.remaining() >= RECORD + 4) {
+      int start = bb.position();
+      long offset = bb.getLong();
+      long end = bb.getLong();
+      int length = bb.get() & 0xff;
+      if (bb.remaining() < length + 4) {
+        bb.position(start);
+        break;
+      }
+      byte[] hash = null;
+      if (length > 0) {
+        hash = new byte[length];
+        bb.get(hash);
+      }
+      if (bb.getInt() != crc(bb.array(), start, RECORD + length) || offset < 0 || end < offset) {
+        bb.position(start);
+        break;
+      }
+      ranges.put(offset, new Range(offset, end, hash));
+    }
+    return bb.position();
+  }
+
+  /** Returns the ranges recorded before the journal was opened, in the order of their offsets. */
+  List<Range> ranges() {
+    return new ArrayList<>(ranges.values());
+  }
+
+  /**
+   * Returns the end of the furthest range recorded before the journal was opened, or <code>0</code>
+   * if none has been recorded.
+   */
+  long end() {
+    long end = 0;
+    for (Range range : ranges.values()) {
+      end = Math.max(end, range.end);
+    }
+    return end;
+  }
+
+  /**
+   * Drops every recorded range, so that the whole transfer is done again, e.g. because the
+   * destination has lost data the journal has recorded as complete.
+   */
+  synchronized void reset() throws IOException {
+    if (closed) {
+      throw new IOException("the journal is closed");
+    }
+    ranges.clear();
+    fc.truncate(headerLength);
+    fc.force(false);
+    position = headerLength;
+  }
+
+  /**
+   * Records that the range from <code>offset</code> to <code>end</code> is complete, once its data
+   * has been written through.
+   *
+   * @param hash the hash of the range, or <code>null</code>
+   */
+  synchronized void record(long offset, long end, byte[] hash) throws IOException {
+    if (closed) {
+      throw new IOException("the journal is closed");
+    }
+    int length = hash == null ? 0 : hash.length;
+    ByteBuffer bb = ByteBuffer.allocate(RECORD + length + 4);
+    bb.putLong(offset);
+    bb.putLong(end);
+    bb.put((byte) length);
+    if (hash != null) {
+      bb.put(hash);
+    }
+    bb.putInt(crc(bb.array(), 0, bb.position()));
+    bb.flip();
+    write(fc, bb, position);
+    fc.force(false);
+    position += bb.limit();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      fc.close();
+    }
+  }
+
+  /** Closes and removes the journal, once the transfer is complete. */
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(path);
+  }
+
+  /** Returns the name of the journal of <code>transfer</code> in a directory of journals. */
+  static String name(String transfer) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    byte[] b = digest().digest(Util.str2byte(transfer));
+    for (int i = 0; i < 16; i++) {
+      sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b[i] & 0xf, 16));
+    }
+    return sb.append(".journal").toString();
+  }
+
+  private static MessageDigest digest() throws IOException {
+    try {
+      return MessageDigest.getInstance(DIGEST);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+
+  /** Returns the SHA-256 hash of the bytes from <code>offset</code> to <code>end</code>. */
+  static byte[] hash(FileChannel fc, long offset, long end) throws IOException {
+    MessageDigest md = digest();
+    ByteBuffer bb = ByteBuffer.allocate((int) Math.min(end - offset, 64 * 1024));
+    while (offset < end) {
+      bb.clear();
+      bb.limit((int) Math.min(bb.capacity(), end - offset));
+      int n = fc.read(bb, offset);
+      if (n < 0) {
+        throw new EOFException("the file has been truncated");
+      }
+      bb.flip();
+      md.update(bb);
+      offset += n;
+    }
+    return md.digest();
+  }
+
+  private static void write(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+    while (bb.hasRemaining()) {
+      position += fc.write(bb, position);
+    }
+  }
+
+  private static int crc(byte[] b, int off, int len) {
+    CRC32 crc = new CRC32();
+    crc.update(b, off, len);
+    return (int) crc.getValue();
+  }
+}
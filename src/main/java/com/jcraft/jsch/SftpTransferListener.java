@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * Receives the statistics of an SFTP transfer, as sampled by a {@link SftpTransferStats}. It is
+ * called on a thread shared by all sampled transfers, never on the thread running the transfer, and
+ * should return quickly.
+ *
+ * @see SftpTransferStats
+ */
+public interface SftpTransferListener {
+
+  /**
+   * Called once per sampling interval while the transfer is running, and once more after it has
+   * ended.
+   *
+   * @param stats the statistics of the transfer
+   */
+  void sample(SftpTransferStats stats);
+
+  /**
+   * Called once when no byte has been transferred for the stall timeout of <code>stats</code>. It
+   * is called again only after the transfer has made progress and then stalled anew.
+   *
+   * @param stats the statistics of the transfer
+   * @param millis how long no byte has been transferred, in milliseconds
+   */
+  default void stalled(SftpTransferStats stats, long millis) {}
+}
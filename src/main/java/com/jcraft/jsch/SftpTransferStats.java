@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the statistics of an SFTP transfer, and samples them asynchronously.
+ *
+ * <p>
+ * An instance is passed to a transfer of its channel as the {@link SftpProgressMonitor}. The thread
+ * running the transfer only adds to a few counters; throughput, ETA and stalls are computed every
+ * sampling interval on a thread shared by all instances, which then calls the
+ * {@link SftpTransferListener}:
+ * </p>
+ *
+ * <pre>
+ * SftpTransferStats stats = new SftpTransferStats(sftp, listener, 1000);
+ * sftp.get("big.bin", "big.bin", stats);
+ * </pre>
+ *
+ * <p>
+ * Besides the transferred bytes, the statistics tell where the time is spent:
+ * </p>
+ * <ul>
+ * <li>the round trip times of the requests, which cover the network and the server;</li>
+ * <li>the number of outstanding requests; a transfer stalled with none outstanding is waiting for
+ * the client;</li>
+ * <li>the time spent waiting for the remote window, that is for the server to consume uploaded
+ * data.</li>
+ * </ul>
+ *
+ * <p>
+ * While a transfer is running, the round trip times of every request of the channel are recorded,
+ * and the outstanding requests are those of the channel. If several transfers on the same channel
+ * are sampled at the same time, the round trip times go to the one started last. An instance may be
+ * reused for transfers one after another.
+ * </p>
+ */
+public final class SftpTransferStats implements SftpProgressMonitor {
+
+  private static final long EWMA_WINDOW = TimeUnit.SECONDS.toNanos(5);
+
+  private static ScheduledExecutorService sampler = null;
+
+  private final ChannelSftp channel;
+  private final SftpTransferListener listener;
+  private final long interval;
+  private final ScheduledExecutorService executor;
+  private final LongSupplier clock;
+  private volatile long stallTimeout = 10000;
+
+  // updated by the transfer and the channel
+  private final LongAdder bytes = new LongAdder();
+  // the part of bytes a resumed transfer has skipped, which is left out of the throughput
+  private final LongAdder skipped = new LongAdder();
+  private final AtomicLongArray rtts = new AtomicLongArray(64);
+  private final LongAdder rttSum = new LongAdder();
+  private volatile boolean cancelled = false;
+
+  private volatile int op;
+  private volatile String src;
+  private volatile String dest;
+  private volatile long size = UNKNOWN_SIZE;
+  private volatile long started = 0;
+  private volatile long finished = 0;
+  private long windowStallStart;
+  private ScheduledFuture<?> task = null;
+
+  // updated by the sampler
+  private long sampledAt;
+  private long sampledBytes;
+  private long progressAt;
+  private boolean stallReported;
+  private volatile boolean stalled = false;
+  private volatile long throughput = 0;
+  private volatile double averageThroughput = -1;
+  private volatile int outstanding = 0;
+  private volatile long windowStall = 0;
+
+  /**
+   * Creates statistics which are sampled every second, without a listener; the sampled values are
+   * available from the getters.
+   *
+   * @param channel the channel running the transfers
+   */
+  public SftpTransferStats(ChannelSftp channel) {
+    this(channel, null, 1000);
+  }
+
+  /**
+   * @param channel the channel running the transfers
+   * @param listener the listener, or <code>null</code>
+   * @param interval the sampling interval, in milliseconds
+   */
+  public SftpTransferStats(ChannelSftp channel, SftpTransferListener listener, long interval) {
+    this(channel, listener, interval, null, System::nanoTime);
+  }
+
+  /**
+   * @param executor runs the sampling, or <code>null</code> for the sampler shared by all transfers
+   * @param clock the time in nanoseconds, like {@link System#nanoTime()}
+   */
+  SftpTransferStats(ChannelSftp channel, SftpTransferListener listener, long interval,
+      ScheduledExecutorService executor, LongSupplier clock) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive: " + interval);
+    }
+    this.channel = channel;
+    this.listener = listener;
+    this.interval = interval;
+    this.executor = executor;
+    this.clock = clock;
+  }
+
+  /**
+   * Sets how long no byte may be transferred before the transfer is considered stalled.
+   *
+   * @param millis the stall timeout, in milliseconds; 10000 by default
+   */
+  public void setStallTimeout(long millis) {
+    this.stallTimeout = millis;
+  }
+
+  public long getStallTimeout() {
+    return stallTimeout;
+  }
+
+  /**
+   * Makes the transfer stop at its next chunk, as if a {@link SftpProgressMonitor} had returned
+   * <code>false</code>.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  @Override
+  public void init(int op, String src, String dest, long max) {
+    synchronized (this) {
+      stop();
+      this.op = op;
+      this.src = src;
+      this.dest = dest;
+      this.size = max;
+      bytes.reset();
+      skipped.reset();
+      rttSum.reset();
+      for (int i = 0; i < rtts.length(); i++) {
+        rtts.set(i, 0);
+      }
+      cancelled = false;
+      windowStallStart = channel.windowStall;
+      finished = 0;
+      started = clock.getAsLong();
+      channel.transferStats = this;
+      task =
+          executor().scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    executor().execute(this::reset);
+  }
+
+  @Override
+  public boolean count(long count) {
+    bytes.add(count);
+    return !cancelled;
+  }
+
+  /**
+   * Counts the bytes a resumed transfer has found already there, which count as transferred but not
+   * towards the throughput.
+   */
+  void skip(long count) {
+    skipped.add(count);
+    bytes.add(count);
+  }
+
+  /** Counts the bytes a resumed transfer skips, if the monitor is an instance of this class. */
+  static void skip(SftpProgressMonitor monitor, long count) {
+    if (monitor instanceof SftpTransferStats) {
+      ((SftpTransferStats) monitor).skip(count);
+    } else {
+      monitor.count(count);
+    }
+  }
+
+  /**
+   * Stops sampling a transfer which has failed. The monitor of a failed transfer is not ended, so
+   * this is called by the channel instead, or by the sampler once the channel is closed.
+   */
+  void failed() {
+    end();
+  }
+
+  @Override
+  public void end() {
+    synchronized (this) {
+      if (started == 0 || finished != 0) {
+        return;
+      }
+      finished = clock.getAsLong();
+      stop();
+    }
+    executor().execute(this::sample);
+  }
+
+  private void stop() {
+    if (task != null) {
+      task.cancel(false);
+      task = null;
+    }
+    if (channel.transferStats == this) {
+      channel.transferStats = null;
+    }
+  }
+
+  /** Records the round trip time of a request of the channel. */
+  void rtt(long nanos) {
+    if (nanos > 0) {
+      rtts.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+      rttSum.add(nanos);
+    }
+  }
+
+  private void reset() {
+    sampledAt = progressAt = started;
+    sampledBytes = 0;
+    stallReported = stalled = false;
+    throughput = 0;
+    averageThroughput = -1;
+    outstanding = 0;
+    windowStall = 0;
+  }
+
+  /** Runs on the sampler thread, so that the sampled values need no further locking. */
+  void sample() {
+    long end = finished;
+    long now = end != 0 ? end : clock.getAsLong();
+    long _bytes = bytes.sum() - skipped.sum();
+    long dt = now - sampledAt;
+    if (dt > 0) {
+      long _throughput = (long) ((_bytes - sampledBytes) * 1e9 / dt);
+      double average = averageThroughput;
+      if (average < 0) {
+        average = _throughput;
+      } else {
+        average += (_throughput - average) * (1 - Math.exp(-(double) dt / EWMA_WINDOW));
+      }
+      throughput = _throughput;
+      averageThroughput = average;
+    }
+    if (_bytes != sampledBytes || end != 0) {
+      progressAt = now;
+      stallReported = stalled = false;
+    }
+    sampledAt = now;
+    sampledBytes = _bytes;
+    windowStall = channel.windowStall - windowStallStart;
+    int _outstanding = 0;
+    if (end == 0) {
+      try {
+        _outstanding = channel.dispatcher().outstanding();
+      } catch (SftpException e) {
+        // the channel is closed, so the transfer has failed
+        failed();
+        return;
+      }
+    }
+    outstanding = _outstanding;
+
+    boolean report = false;
+    if (end == 0 && now - progressAt >= TimeUnit.MILLISECONDS.toNanos(stallTimeout)) {
+      stalled = true;
+      report = !stallReported;
+      stallReported = true;
+    }
+    if (listener == null) {
+      return;
+    }
+    try {
+      if (report) {
+        listener.stalled(this, TimeUnit.NANOSECONDS.toMillis(now - progressAt));
+      }
+      listener.sample(this);
+    } catch (RuntimeException e) {
+      // keep sampling
+    }
+  }
+
+  private ScheduledExecutorService executor() {
+    return executor != null ? executor : sampler();
+  }
+
+  private static synchronized ScheduledExecutorService sampler() {
+    if (sampler == null) {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "SFTP transfer sampler");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      sampler = executor;
+    }
+    return sampler;
+  }
+
+  /** Returns {@link SftpProgressMonitor#PUT} or {@link SftpProgressMonitor#GET}. */
+  public int getOperation() {
+    return op;
+  }
+
+  public String getSource() {
+    return src;
+  }
+
+  public String getDestination() {
+    return dest;
+  }
+
+  /** Returns the number of bytes to transfer, or {@link SftpProgressMonitor#UNKNOWN_SIZE}. */
+  public long getSize() {
+    return size;
+  }
+
+  /** Returns the number of bytes transferred so far. */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /** Returns how long the transfer has been running, or has run, in milliseconds. */
+  public long getElapsedMillis() {
+    long _started = started;
+    if (_started == 0) {
+      return 0;
+    }
+    long end = finished;
+    return TimeUnit.NANOSECONDS.toMillis((end != 0 ? end : clock.getAsLong()) - _started);
+  }
+
+  /** Returns whether the transfer is over, because it has completed or failed. */
+  public boolean isDone() {
+    return finished != 0;
+  }
+
+  /**
+   * Returns whether no byte has been transferred for the stall timeout, as of the last sample.
+   */
+  public boolean isStalled() {
+    return stalled;
+  }
+
+  /** Returns the throughput over the last sampling interval, in bytes per second. */
+  public long getThroughput() {
+    return throughput;
+  }
+
+  /**
+   * Returns the exponentially weighted moving average of the throughput, with a time constant of
+   * five seconds, in bytes per second.
+   */
+  public long getAverageThroughput() {
+    return (long) Math.max(0, averageThroughput);
+  }
+
+  /**
+   * Returns the estimated time until the transfer is complete, based on the average throughput, in
+   * milliseconds, or <code>-1</code> if it cannot be estimated.
+   */
+  public long getEta() {
+    if (isDone()) {
+      return 0;
+    }
+    long _size = size;
+    double average = averageThroughput;
+    if (_size < 0 || average <= 0) {
+      return -1;
+    }
+    return (long) (Math.max(0, _size - bytes.sum()) * 1000 / average);
+  }
+
+  /** Returns the number of requests of the channel outstanding, as of the last sample. */
+  public int getOutstandingRequests() {
+    return outstanding;
+  }
+
+  /**
+   * Returns how long the transfer has waited for the server to open the remote window, in
+   * milliseconds, as of the last sample.
+   */
+  public long getWindowStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(windowStall);
+  }
+
+  /** Returns the number of requests whose round trip time has been recorded. */
+  public long getRequests() {
+    long n = 0;
+    for (int i = 0; i < rtts.length(); i++) {
+      n += rtts.get(i);
+    }
+    return n;
+  }
+
+  /** Returns the mean round trip time of the requests, in nanoseconds. */
+  public long getAverageRtt() {
+    long n = getRequests();
+    return n == 0 ? 0 : rttSum.sum() / n;
+  }
+
+  /**
+   * Returns the histogram of the round trip times of the requests. Element <code>i</code> counts
+   * the requests which took from <code>2<sup>i</sup></code> up to <code>2<sup>i+1</sup></code>
+   * nanoseconds.
+   */
+  public long[] getRttHistogram() {
+    long[] histogram = new long[rtts.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = rtts.get(i);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns an upper bound of the given percentile of the round trip times, within a factor of two,
+   * in nanoseconds, or <code>0</code> if none has been recorded.
+   *
+   * @param percentile the percentile, from <code>0</code> to <code>100</code>
+   */
+  public long getRttPercentile(double percentile) {
+    long[] histogram = getRttHistogram();
+    long n = 0;
+    for (long count : histogram) {
+      n += count;
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= Math.max(1, rank)) {
+        return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return "SftpTransferStats[bytes=" + getBytes() + ", size=" + size + ", throughput=" + throughput
+        + ", average=" + getAverageThroughput() + ", eta=" + getEta() + ", outstanding="
+        + outstanding + ", rtt=" + getAverageRtt() + ", windowStall=" + getWindowStallMillis()
+        + "]";
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Uploads a stream to an open remote file with several SSH_FXP_WRITE requests outstanding.
+ *
+ * <p>
+ * How many requests are outstanding, and how large they are, is decided by a
+ * {@link SftpFlowControl}. The data of a request is copied into its packet as soon as it is sent,
+ * so one buffer is enough however many requests are outstanding.
+ * </p>
+ *
+ * <p>
+ * A local file is read straight into the packets instead, with positional reads. It is not mapped
+ * into memory: a mapped file which shrinks under the mapping can crash the copy, and the mapping
+ * holds on to address space until it is garbage collected.
+ * </p>
+ */
+class SftpUpload {
+  private final SftpDispatcher dispatcher;
+  private final SftpHandle handle;
+  private final SftpFlowControl flow;
+  private final SftpProgressMonitor monitor;
+
+  // outstanding requests, in the order they have been sent
+  private final ArrayDeque<Write> requests = new ArrayDeque<>();
+
+  private long offset;
+  private byte[] data = new byte[0];
+
+  SftpUpload(SftpDispatcher dispatcher, SftpHandle handle, long offset, SftpFlowControl flow,
+      SftpProgressMonitor monitor) {
+    this.dispatcher = dispatcher;
+    this.handle = handle;
+    this.offset = offset;
+    this.flow = flow;
+    this.monitor = monitor;
+  }
+
+  private static class Write {
+    final int length;
+    final long sent;
+    final CompletableFuture<Void> future;
+
+    Write(int length, long sent, CompletableFuture<Void> future) {
+      this.length = length;
+      this.sent = sent;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Writes the data of <code>src</code> until its end, or until the progress monitor cancels the
+   * transfer, and waits for every request to be acknowledged.
+   */
+  void transferFrom(InputStream src) throws IOException, SftpException {
+    while (true) {
+      int chunk = flow.chunk();
+      if (data.length < chunk) {
+        data = new byte[chunk];
+      }
+      int count = 0;
+      while (count < chunk) {
+        int n = src.read(data, count, chunk - count);
+        if (n <= 0) {
+          break;
+        }
+        count += n;
+      }
+      if (count == 0) {
+        break;
+      }
+      while (requests.size() >= flow.depth()) {
+        await(requests.pollFirst());
+      }
+      long sent = System.nanoTime();
+      requests.addLast(new Write(count, sent, dispatcher.write(handle, offset, data, 0, count)));
+      offset += count;
+      if (monitor != null && !monitor.count(count)) {
+        break;
+      }
+    }
+    while (!requests.isEmpty()) {
+      await(requests.pollFirst());
+    }
+  }
+
+  /**
+   * Writes the range of the local file <code>src</code> from <code>position</code> to
+   * <code>end</code>, or until the progress monitor cancels the transfer, and waits for every
+   * request to be acknowledged.
+   */
+  void transferFrom(FileChannel src, long position, long end) throws IOException, SftpException {
+    while (position < end) {
+      int chunk = (int) Math.min(flow.chunk(), end - position);
+      while (requests.size() >= flow.depth()) {
+        await(requests.pollFirst());
+      }
+      long sent = System.nanoTime();
+      requests
+          .addLast(new Write(chunk, sent, dispatcher.write(handle, offset, src, position, chunk)));
+      offset += chunk;
+      position += chunk;
+      if (monitor != null && !monitor.count(chunk)) {
+        break;
+      }
+    }
+    while (!requests.isEmpty()) {
+      await(requests.pollFirst());
+    }
+  }
+
+  private void await(Write w) throws SftpException {
+    SftpDispatcher.await(w.future);
+    flow.completed(w.sent, SftpDispatcher.received(w.future), w.length);
+  }
+}
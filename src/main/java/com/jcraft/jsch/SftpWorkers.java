@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs transfer tasks on a pool of SFTP channels, with a number of threads per channel which take
+ * the tasks from a common queue until all of them are done.
+ *
+ * <p>
+ * If a channel is lost, the task it has been running is started again on another channel, and the
+ * remaining channels go on. Any other failure, or the progress monitor cancelling the transfer,
+ * stops every thread. The bytes a task counts again after it has been started over are not passed
+ * to the progress monitor twice.
+ * </p>
+ */
+abstract class SftpWorkers<T> {
+
+  /** Runs the tasks of one thread on one channel. */
+  interface Worker<T> {
+    void run(T task, SftpProgressMonitor monitor) throws IOException, SftpException;
+
+    /** Releases the resources of this worker, once it has run its last task. */
+    void close() throws SftpException;
+  }
+
+  private final List<ChannelSftp> channels;
+  private final int threadsPerChannel;
+  private final SftpProgressMonitor monitor;
+
+  private final ArrayDeque<Task<T>> queue = new ArrayDeque<>();
+  private int running = 0;
+  private boolean cancelled = false;
+  private SftpException failure = null;
+  private SftpException lost = null;
+
+  SftpWorkers(List<ChannelSftp> channels, int threadsPerChannel, Collection<T> tasks,
+      SftpProgressMonitor monitor) {
+    this.channels = channels;
+    this.threadsPerChannel = threadsPerChannel;
+    this.monitor = monitor;
+    for (T task : tasks) {
+      queue.addLast(new Task<>(task));
+    }
+  }
+
+  private static class Task<T> {
+    final T task;
+    // the number of bytes of this task passed to the progress monitor
+    long counted = 0;
+
+    Task(T task) {
+      this.task = task;
+    }
+  }
+
+  /** Creates the worker of a thread running on <code>channel</code>. */
+  abstract Worker<T> worker(ChannelSftp channel) throws SftpException;
+
+  /**
+   * Runs all tasks.
+   *
+   * @return <code>false</code> if the progress monitor has cancelled the transfer
+   */
+  boolean run() throws SftpException {
+    List<Thread> threads = new ArrayList<>();
+    try {
+      for (ChannelSftp channel : channels) {
+        Session session = channel.getSession();
+        for (int i = 0; i < threadsPerChannel; i++) {
+          Thread thread = session.getThreadFactory().newThread(() -> work(channel));
+          thread.setName("Sftp transfer thread " + session.getHost());
+          if (session.daemon_thread) {
+            thread.setDaemon(session.daemon_thread);
+          }
+          thread.start();
+          threads.add(thread);
+        }
+      }
+    } catch (JSchException e) {
+      fail(new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e));
+    }
+    join(threads);
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+      if (cancelled) {
+        return false;
+      }
+      if (!queue.isEmpty()) {
+        throw lost;
+      }
+      return true;
+    }
+  }
+
+  private void join(List<Thread> threads) throws SftpException {
+    boolean interrupted = false;
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          if (!interrupted) {
+            interrupted = true;
+            fail(new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e));
+          }
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void work(ChannelSftp channel) {
+    Worker<T> worker = null;
+    Task<T> task = null;
+    try {
+      worker = worker(channel);
+      while ((task = take()) != null) {
+        worker.run(task.task, new TaskMonitor(task));
+        done(task, null);
+        task = null;
+      }
+    } catch (IOException e) {
+      fail(new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e));
+    } catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_CONNECTION_LOST || e.id == ChannelSftp.SSH_FX_NO_CONNECTION) {
+        done(task, e);
+        task = null;
+      } else {
+        fail(e);
+      }
+    } catch (RuntimeException e) {
+      fail(new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e));
+    } finally {
+      if (task != null) {
+        done(task, null);
+      }
+      if (worker != null) {
+        try {
+          worker.close();
+        } catch (SftpException e) {
+          if (e.id != ChannelSftp.SSH_FX_CONNECTION_LOST
+              && e.id != ChannelSftp.SSH_FX_NO_CONNECTION) {
+            fail(e);
+          }
+        }
+      }
+    }
+  }
+
+  private synchronized Task<T> take() throws SftpException {
+    while (true) {
+      if (failure != null || cancelled) {
+        return null;
+      }
+      Task<T> task = queue.pollFirst();
+      if (task != null) {
+        running++;
+        return task;
+      }
+      if (running == 0) {
+        return null;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+      }
+    }
+  }
+
+  /**
+   * Accounts for a task which has been run, or which has to be run again on another channel if
+   * <code>lost</code> is not <code>null</code>.
+   */
+  private synchronized void done(Task<T> task, SftpException lost) {
+    if (task != null) {
+      running--;
+      if (lost != null) {
+        queue.addFirst(task);
+      }
+    }
+    if (lost != null) {
+      this.lost = lost;
+    }
+    notifyAll();
+  }
+
+  synchronized void fail(SftpException e) {
+    if (failure == null) {
+      failure = e;
+    }
+    notifyAll();
+  }
+
+  private synchronized boolean count(long n) {
+    if (n > 0 && !cancelled && monitor != null && !monitor.count(n)) {
+      cancelled = true;
+      notifyAll();
+    }
+    return !cancelled && failure == null;
+  }
+
+  private class TaskMonitor implements SftpProgressMonitor {
+    private final Task<T> task;
+    private long count = 0;
+
+    TaskMonitor(Task<T> task) {
+      this.task = task;
+    }
+
+    @Override
+    public void init(int op, String src, String dest, long max) {}
+
+    @Override
+    public boolean count(long n) {
+      count += n;
+      long m = count - task.counted;
+      if (m > 0) {
+        task.counted = count;
+      }
+      return SftpWorkers.this.count(m);
+    }
+
+    @Override
+    public void end() {}
+  }
+}
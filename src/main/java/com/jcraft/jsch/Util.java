@@ -30,13 +30,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 class Util {
 
@@ -372,20 +371,17 @@ class Util {
   }
 
   static Socket createSocket(String host, int port, int timeout) throws JSchException {
-    Socket socket = new Socket();
-    try {
-      socket.connect(new InetSocketAddress(host, port), timeout);
-      return socket;
-    } catch (Exception e) {
-      try {
-        socket.close();
-      } catch (Exception ignore) {
-      }
+    return createSocket(host, port, timeout, Thread::new);
+  }
 
-      String message =
-          e instanceof SocketTimeoutException ? "timeout: socket is not established" : e.toString();
-      throw new JSchException(message, e);
-    }
+  static Socket createSocket(String host, int port, int timeout, ThreadFactory factory)
+      throws JSchException {
+    return createSocket(host, port, timeout, factory, 0);
+  }
+
+  static Socket createSocket(String host, int port, int timeout, ThreadFactory factory,
+      int bufferSize) throws JSchException {
+    return HappyEyeballs.connect(host, port, timeout, factory, bufferSize);
   }
 
   static byte[] str2byte(String str, Charset encoding) {
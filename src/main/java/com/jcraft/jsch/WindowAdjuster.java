@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sends SSH_MSG_CHANNEL_WINDOW_ADJUST for the channels of a session. Threads that receive or drain
+ * channel data only queue the channel here; the adjusts are computed by the {@link WindowPolicy}
+ * and written by the thread running {@link #run()}, all queued channels in one write.
+ *
+ * <p>
+ * If <code>window_auto_tuning</code> is <code>yes</code>, the round-trip time is measured with a
+ * keepalive message about once a second while data is flowing, and the local windows of the
+ * channels are grown, up to <code>window_size_max</code> bytes, to cover the bandwidth-delay
+ * product.
+ * </p>
+ *
+ * <p>
+ * If the adjusts cannot be written while the session is still connected, e.g. because a key
+ * exchange takes too long, they are given back to their channels and written again a second later.
+ * </p>
+ */
+class WindowAdjuster {
+  private static final long PROBE_INTERVAL = 1000000000L;
+  private static final long RETRY_INTERVAL = 1000000000L;
+
+  private final Session session;
+  private final WindowPolicy policy;
+  private final ArrayDeque<Channel> queue = new ArrayDeque<>();
+
+  private final boolean autoTuning;
+  private final int windowSizeMax;
+  private long lastProbe = 0;
+
+  private volatile Runnable thread;
+
+  WindowAdjuster(Session session, WindowPolicy policy) {
+    this.session = session;
+    this.policy = policy;
+    this.autoTuning = "yes".equals(session.getConfig("window_auto_tuning"));
+    int foo = 0;
+    try {
+      foo = Integer.parseInt(session.getConfig("window_size_max"));
+    } catch (Exception e) {
+    }
+    this.windowSizeMax = Math.min(foo, Integer.MAX_VALUE / 2);
+  }
+
+  WindowPolicy getPolicy() {
+    return policy;
+  }
+
+  void schedule(Channel channel, int consumed) {
+    if (autoTuning && consumed > 0) {
+      long rtt = session.getRoundTripTime();
+      if (rtt > 0) {
+        channel.tuneLocalWindow(consumed, System.nanoTime(), rtt, windowSizeMax);
+      }
+    }
+    if (channel.adjust_queued || !channel.needsWindowAdjust(policy)) {
+      return;
+    }
+    synchronized (queue) {
+      if (channel.adjust_queued) {
+        return;
+      }
+      channel.adjust_queued = true;
+      queue.addLast(channel);
+      queue.notifyAll();
+    }
+  }
+
+  void run() {
+    thread = this::run;
+    Channel[] channels = new Channel[8];
+    Packet[] packets = new Packet[8];
+    int[] lengths = new int[8];
+    try {
+      while (thread != null && session.isConnected()) {
+        int n = 0;
+        synchronized (queue) {
+          while (queue.isEmpty() && thread != null && session.isConnected()) {
+            queue.wait(1000);
+          }
+          if (channels.length < queue.size()) {
+            channels = new Channel[queue.size()];
+          }
+          while (!queue.isEmpty()) {
+            Channel c = queue.pollFirst();
+            c.adjust_queued = false;
+            channels[n++] = c;
+          }
+        }
+        if (packets.length < n) {
+          Packet[] tmp = new Packet[channels.length];
+          System.arraycopy(packets, 0, tmp, 0, packets.length);
+          packets = tmp;
+          lengths = new int[channels.length];
+        }
+
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+          Channel c = channels[i];
+          channels[i] = null;
+          int recipient = c.getRecipient();
+          if (c.close || recipient == -1) {
+            continue;
+          }
+          int len = c.takeWindowAdjust(policy);
+          if (len <= 0) {
+            continue;
+          }
+          if (packets[count] == null) {
+            packets[count] = new Packet(new Buffer(100));
+          }
+          Packet packet = packets[count];
+          packet.reset();
+          packet.buffer.putByte((byte) Session.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+          packet.buffer.putInt(recipient);
+          packet.buffer.putInt(len);
+          lengths[count] = len;
+          channels[count++] = c;
+        }
+        if (count > 0) {
+          try {
+            session.write(packets, channels, count);
+          } catch (Exception e) {
+            if (thread == null || !session.isConnected()) {
+              throw e;
+            }
+            if (session.getLogger().isEnabled(Logger.WARN)) {
+              session.getLogger().log(Logger.WARN,
+                  "Failed to send window adjusts, retrying: " + e.getMessage(), e);
+            }
+            for (int i = 0; i < count; i++) {
+              channels[i].restoreWindowAdjust(lengths[i]);
+              schedule(channels[i], 0);
+              channels[i] = null;
+            }
+            pause();
+            continue;
+          }
+          if (autoTuning) {
+            long now = System.nanoTime();
+            if (lastProbe == 0 || now - lastProbe >= PROBE_INTERVAL) {
+              lastProbe = now;
+              try {
+                session.sendRoundTripProbe();
+              } catch (Exception e) {
+                if (thread == null || !session.isConnected()) {
+                  throw e;
+                }
+                if (session.getLogger().isEnabled(Logger.WARN)) {
+                  session.getLogger().log(Logger.WARN,
+                      "Failed to send a round-trip probe: " + e.getMessage(), e);
+                }
+              }
+            }
+          }
+        }
+        for (int i = 0; i < count; i++) {
+          channels[i] = null;
+        }
+      }
+    } catch (Exception e) {
+      if (session.getLogger().isEnabled(Logger.DEBUG)) {
+        session.getLogger().log(Logger.DEBUG,
+            "Caught an exception, leaving window adjust loop due to " + e.getMessage(), e);
+      }
+    }
+    thread = null;
+  }
+
+  /** Waits before the adjusts, which could not be written, are tried again. */
+  private void pause() throws InterruptedException {
+    long deadline = System.nanoTime() + RETRY_INTERVAL;
+    synchronized (queue) {
+      long left;
+      while (thread != null && session.isConnected() && (left = deadline - System.nanoTime()) > 0) {
+        queue.wait(Math.max(1, left / 1000000));
+      }
+    }
+  }
+
+  void stop() {
+    thread = null;
+    synchronized (queue) {
+      queue.notifyAll();
+    }
+  }
+}
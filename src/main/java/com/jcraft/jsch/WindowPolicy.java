@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2002-2018 ymnk, JCraft,Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * 3. The names of the authors may not be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL JCRAFT, INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.jcraft.jsch;
+
+/**
+ * Decides when the local window of a channel is replenished with SSH_MSG_CHANNEL_WINDOW_ADJUST.
+ *
+ * <p>
+ * Only bytes that have actually been drained by the consumer of a channel (read from the stream
+ * returned by {@link Channel#getInputStream()}, or written to the stream given to
+ * {@link Channel#setOutputStream(java.io.OutputStream)}) can be returned to the window, so a slow
+ * consumer is never overrun by the remote side. The policy is asked how many of those bytes to
+ * return right now; the adjusts it asks for are sent from a dedicated thread of the session, and
+ * the adjusts of several channels are written together.
+ * </p>
+ *
+ * <p>
+ * The implementation is chosen with the <code>window_policy</code> configuration, which names a
+ * class with a public no-argument constructor.
+ * </p>
+ */
+public interface WindowPolicy {
+
+  /**
+   * Initializes this policy for the given session.
+   *
+   * @param session the session whose channels this policy will be applied to
+   */
+  default void init(Session session) {}
+
+  /**
+   * Returns the number of bytes to add to the local window of a channel.
+   *
+   * @param window the number of bytes the remote side is currently allowed to send
+   * @param windowMax the maximum local window size of the channel
+   * @param consumed the number of bytes drained by the consumer which have not been returned to the
+   *        window yet, always positive
+   * @param packetSize the local maximum packet size of the channel
+   * @return a value between <code>1</code> and <code>consumed</code> to send a window adjust, or
+   *         <code>0</code> to defer it
+   */
+  int adjust(int window, int windowMax, int consumed, int packetSize);
+}
@@ -9,4 +9,6 @@ module com.jcraft.jsch {
   requires static org.bouncycastle.provider;
   requires static org.newsclub.net.unix;
   requires static org.slf4j;
+
+  provides java.nio.file.spi.FileSystemProvider with com.jcraft.jsch.SftpFileSystemProvider;
 }
@@ -0,0 +1,80 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class ChannelSftpTest {
+
+  private static byte[] supported2(String[] attribExtensions, String... extensions) {
+    Buffer buf = new Buffer(1024);
+    for (int i = 0; i < 5; i++) {
+      buf.putInt(0);
+    }
+    buf.putInt(0); // open and block vectors
+    buf.putInt(attribExtensions.length);
+    for (String name : attribExtensions) {
+      buf.putString(name.getBytes(StandardCharsets.UTF_8));
+    }
+    buf.putInt(extensions.length);
+    for (String name : extensions) {
+      buf.putString(name.getBytes(StandardCharsets.UTF_8));
+    }
+    return Arrays.copyOf(buf.buffer, buf.getLength());
+  }
+
+  @Test
+  void supported2ExtensionNames() {
+    assertEquals(Arrays.asList("copy-data", "copy-file"),
+        ChannelSftp.supported2(supported2(new String[] {"acl"}, "copy-data", "copy-file")));
+    assertEquals(Collections.emptyList(), ChannelSftp.supported2(supported2(new String[0])));
+  }
+
+  @Test
+  void supported2Truncated() {
+    byte[] data = supported2(new String[0], "copy-data", "copy-file");
+    assertEquals(Arrays.asList("copy-data"),
+        ChannelSftp.supported2(Arrays.copyOf(data, data.length - 3)));
+    assertEquals(Collections.emptyList(), ChannelSftp.supported2(new byte[3]));
+  }
+
+  @Test
+  void lsWrapsRuntimeExceptions() {
+    SftpException e = assertThrows(SftpException.class,
+        () -> new ChannelSftp().ls("", entry -> ChannelSftp.LsEntrySelector.CONTINUE));
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, e.id);
+    assertInstanceOf(IndexOutOfBoundsException.class, e.getCause());
+  }
+
+  @Test
+  void maxRequestSizeIsLimitedToTheLongestDataReply() {
+    assertEquals(261120, ChannelSftp.maxRequestSize(261120));
+    assertEquals(SftpDispatcher.MAX_DATA_LENGTH, ChannelSftp.maxRequestSize(1024 * 1024));
+    assertEquals(SftpDispatcher.MAX_DATA_LENGTH, ChannelSftp.maxRequestSize(Integer.MAX_VALUE));
+  }
+
+  @Test
+  void copyOntoItselfFails() {
+    boolean[] dispatched = new boolean[1];
+    ChannelSftp channel = new ChannelSftp() {
+      @Override
+      SftpDispatcher dispatcher() {
+        dispatched[0] = true;
+        return new SftpDispatcher(this, new ByteArrayInputStream(new byte[0]));
+      }
+    };
+    SftpException e = assertThrows(SftpException.class, () -> channel.copy("/dir/a", "/dir/a"));
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, e.id);
+    assertTrue(e.getMessage().endsWith("are the same file"), e.getMessage());
+    // the destination must not have been opened, which would truncate the source
+    assertFalse(dispatched[0]);
+  }
+}
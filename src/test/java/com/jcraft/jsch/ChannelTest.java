@@ -0,0 +1,63 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import com.jcraft.jsch.Channel.MyPipedInputStream;
+import com.jcraft.jsch.Channel.PassiveOutputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class ChannelTest {
+
+  @Test
+  void pipeGrowsWhenFullAndWrapped() throws Exception {
+    MyPipedInputStream in = new MyPipedInputStream(8, 64);
+    PassiveOutputStream out = new PassiveOutputStream(in, true);
+    byte[] data = new byte[20];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+
+    // wrap the data around the end of the buffer, and fill it
+    out.write(data, 0, 6);
+    byte[] b = new byte[20];
+    in.read(b, 0, 4);
+    out.write(data, 6, 2);
+    out.write(data, 8, 4);
+
+    // the buffer is full, and has to grow
+    out.write(data, 12, 8);
+
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      int n = 0;
+      while (n < 16) {
+        n += in.read(b, n, 16 - n);
+      }
+    });
+    assertArrayEquals(Arrays.copyOfRange(data, 4, 20), Arrays.copyOf(b, 16));
+  }
+
+  @Test
+  void windowIsLimitedToMaxInputBufferSize() throws Exception {
+    Session session = new JSch().getSession("user", "localhost");
+    ChannelExec unlimited = new ChannelExec();
+    unlimited.setSession(session);
+    unlimited.getInputStream();
+    assertEquals(0x100000, unlimited.lwsize_max);
+
+    session.setConfig("max_input_buffer_size", "" + 0x40000);
+    ChannelExec channel = new ChannelExec();
+    channel.setSession(session);
+    channel.getInputStream();
+    assertEquals(0x40000, channel.lwsize_max);
+    assertEquals(0x40000, channel.lwsize);
+
+    // auto-tuning does not grow the window past it either
+    channel.tuneLocalWindow(0, 1, 1, 0x1000000);
+    channel.tuneLocalWindow(0x40000, 2, 1, 0x1000000);
+    assertEquals(0x40000, channel.lwsize_max);
+  }
+}
@@ -0,0 +1,240 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jcraft.jsch.DynamicPortWatcher.Handshake;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class DynamicPortWatcherTest {
+
+  private static byte[] bytes(int... values) {
+    byte[] b = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      b[i] = (byte) values[i];
+    }
+    return b;
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    int length = 0;
+    for (byte[] a : arrays) {
+      length += a.length;
+    }
+    byte[] result = new byte[length];
+    int i = 0;
+    for (byte[] a : arrays) {
+      System.arraycopy(a, 0, result, i, a.length);
+      i += a.length;
+    }
+    return result;
+  }
+
+  private static byte[] reply(Handshake h) {
+    h.out.flip();
+    byte[] b = new byte[h.out.remaining()];
+    h.out.get(b);
+    h.out.clear();
+    return b;
+  }
+
+  private static int feed(Handshake h, byte[] data) {
+    h.in.put(data);
+    return h.process();
+  }
+
+  @Test
+  void socks5DomainName() {
+    Handshake h = new Handshake();
+    assertEquals(Handshake.NEED_MORE, feed(h, bytes(5, 2, 2, 0)));
+    assertArrayEquals(bytes(5, 0), reply(h));
+
+    byte[] name = "example.com".getBytes(StandardCharsets.UTF_8);
+    byte[] request = concat(bytes(5, 1, 0, 3, name.length), name, bytes(0x01, 0xbb));
+    assertEquals(Handshake.DONE, feed(h, request));
+    assertEquals("example.com", h.host);
+    assertEquals(443, h.port);
+    assertArrayEquals(bytes(5, 0, 0, 1, 0, 0, 0, 0, 0, 0), reply(h));
+    assertEquals(0, h.remaining().length);
+  }
+
+  @Test
+  void socks5Pipelined() {
+    Handshake h = new Handshake();
+    byte[] request = concat(bytes(5, 1, 0), bytes(5, 1, 0, 1, 10, 0, 0, 1, 0, 22),
+        "SSH-2.0-".getBytes(StandardCharsets.UTF_8));
+    assertEquals(Handshake.DONE, feed(h, request));
+    assertEquals("10.0.0.1", h.host);
+    assertEquals(22, h.port);
+    assertArrayEquals(concat(bytes(5, 0), bytes(5, 0, 0, 1, 0, 0, 0, 0, 0, 0)), reply(h));
+    assertArrayEquals("SSH-2.0-".getBytes(StandardCharsets.UTF_8), h.remaining());
+  }
+
+  @Test
+  void socks5Fragmented() {
+    Handshake h = new Handshake();
+    byte[] request = concat(bytes(5, 1, 0), bytes(5, 1, 0, 4), new byte[15], bytes(1, 0, 80));
+    int result = Handshake.NEED_MORE;
+    for (int i = 0; i < request.length; i++) {
+      assertEquals(Handshake.NEED_MORE, result);
+      result = feed(h, new byte[] {request[i]});
+    }
+    assertEquals(Handshake.DONE, result);
+    assertEquals("0:0:0:0:0:0:0:1", h.host);
+    assertEquals(80, h.port);
+  }
+
+  @Test
+  void socks5NoAcceptableMethod() {
+    Handshake h = new Handshake();
+    assertEquals(Handshake.FAILED, feed(h, bytes(5, 1, 2)));
+    assertArrayEquals(bytes(5, 0xff), reply(h));
+  }
+
+  @Test
+  void socks5UnsupportedCommand() {
+    Handshake h = new Handshake();
+    assertEquals(Handshake.FAILED,
+        feed(h, concat(bytes(5, 1, 0), bytes(5, 2, 0, 1, 127, 0, 0, 1, 0, 80))));
+    assertArrayEquals(concat(bytes(5, 0), bytes(5, 7, 0, 1, 0, 0, 0, 0, 0, 0)), reply(h));
+  }
+
+  @Test
+  void socks4() {
+    Handshake h = new Handshake();
+    byte[] request = concat(bytes(4, 1, 0x1f, 0x90, 192, 168, 1, 2),
+        "user".getBytes(StandardCharsets.UTF_8), bytes(0));
+    assertEquals(Handshake.NEED_MORE, feed(h, bytes(4, 1, 0x1f)));
+    assertEquals(Handshake.DONE, feed(h, Arrays.copyOfRange(request, 3, request.length)));
+    assertEquals("192.168.1.2", h.host);
+    assertEquals(8080, h.port);
+    assertArrayEquals(bytes(0, 90, 0, 0, 0, 0, 0, 0), reply(h));
+  }
+
+  @Test
+  void socks4a() {
+    Handshake h = new Handshake();
+    byte[] request = concat(bytes(4, 1, 0, 80, 0, 0, 0, 1), bytes(0),
+        "example.org".getBytes(StandardCharsets.UTF_8), bytes(0));
+    assertEquals(Handshake.DONE, feed(h, request));
+    assertEquals("example.org", h.host);
+    assertEquals(80, h.port);
+  }
+
+  @Test
+  void socks4Bind() {
+    Handshake h = new Handshake();
+    assertEquals(Handshake.FAILED, feed(h, bytes(4, 2, 0, 80, 127, 0, 0, 1, 0)));
+    assertArrayEquals(bytes(0, 91, 0, 0, 0, 0, 0, 0), reply(h));
+  }
+
+  @Test
+  void unknownVersion() {
+    Handshake h = new Handshake();
+    assertEquals(Handshake.FAILED, feed(h, bytes('G', 'E', 'T', ' ')));
+  }
+
+  @Test
+  void oversizedRequest() {
+    Handshake h = new Handshake();
+    byte[] request = new byte[h.in.capacity()];
+    request[0] = 4;
+    request[1] = 1;
+    Arrays.fill(request, 8, request.length, (byte) 'x');
+    assertEquals(Handshake.FAILED, feed(h, request));
+  }
+
+  @Test
+  void openingAChannelDoesNotBlockOtherClients() throws Exception {
+    CountDownLatch opening = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    Session session = new Session(new JSch(), null, null, 0) {
+      @Override
+      Executor getDeliveryExecutor() {
+        return executor;
+      }
+
+      @Override
+      public Channel openChannel(String type) {
+        opening.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    };
+    DynamicPortWatcher pw = new DynamicPortWatcher(session, "127.0.0.1", 0);
+    Thread thread = new Thread(pw::run);
+    thread.setDaemon(true);
+    thread.start();
+    try (Socket first = new Socket("127.0.0.1", pw.lport);
+        Socket second = new Socket("127.0.0.1", pw.lport)) {
+      connect(first);
+      // the first channel is still waiting for the server, which must not hold up the second
+      connect(second);
+      assertTrue(opening.await(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      pw.delete();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void writingWhileAReadIsPending() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+      ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+      try (Socket client = new Socket("127.0.0.1", ssc.socket().getLocalPort());
+          SocketChannel sc = ssc.accept()) {
+        client.setSoTimeout(10000);
+        InputStream in = new DynamicPortWatcher.ChannelInputStream(sc);
+        OutputStream out = new DynamicPortWatcher.ChannelOutputStream(sc);
+        Future<Integer> read = executor.submit(() -> in.read());
+        // let the reader block in read() before writing
+        Thread.sleep(100);
+        Future<?> write = executor.submit(() -> {
+          out.write(bytes(1, 2, 3));
+          return null;
+        });
+        write.get(10, TimeUnit.SECONDS);
+        byte[] b = new byte[3];
+        new DataInputStream(client.getInputStream()).readFully(b);
+        assertArrayEquals(bytes(1, 2, 3), b);
+        client.getOutputStream().write(42);
+        assertEquals(42, read.get(10, TimeUnit.SECONDS).intValue());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void connect(Socket socket) throws Exception {
+    socket.setSoTimeout(10000);
+    OutputStream out = socket.getOutputStream();
+    out.write(concat(bytes(5, 1, 0), bytes(5, 1, 0, 1, 127, 0, 0, 1, 0, 22)));
+    out.flush();
+    byte[] reply = new byte[2 + 10];
+    new DataInputStream(socket.getInputStream()).readFully(reply);
+    assertArrayEquals(concat(bytes(5, 0), bytes(5, 0, 0, 1, 0, 0, 0, 0, 0, 0)), reply);
+  }
+}
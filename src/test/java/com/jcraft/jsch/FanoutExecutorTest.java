@@ -0,0 +1,176 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class FanoutExecutorTest {
+
+  /** Records the outcome of every host. */
+  private static class Outcomes implements FanoutListener {
+    final Map<String, String> failures = new ConcurrentHashMap<>();
+
+    @Override
+    public void completed(String host, int exitStatus, JSchException failure) {
+      assertEquals(-1, exitStatus);
+      failures.merge(host, failure.getMessage(), (a, b) -> a + "," + b);
+    }
+  }
+
+  @Test
+  void boundsConcurrentConnects() throws Exception {
+    AtomicInteger connecting = new AtomicInteger();
+    AtomicInteger peak = new AtomicInteger();
+    Map<String, AtomicInteger> perHost = new ConcurrentHashMap<>();
+    AtomicInteger perHostPeak = new AtomicInteger();
+    FanoutExecutor.SessionFactory factory = host -> {
+      peak.accumulateAndGet(connecting.incrementAndGet(), Math::max);
+      int n = perHost.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+      perHostPeak.accumulateAndGet(n, Math::max);
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      perHost.get(host).decrementAndGet();
+      connecting.decrementAndGet();
+      throw new JSchException("unreachable " + host);
+    };
+
+    List<String> hosts = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      hosts.add("host" + (i % 40));
+    }
+    Outcomes outcomes = new Outcomes();
+    try (FanoutExecutor fanout = new FanoutExecutor(factory)) {
+      fanout.setMaxConcurrency(8);
+      fanout.setConnectThreads(32);
+      fanout.run(hosts, "true", outcomes).get(30, TimeUnit.SECONDS);
+    }
+    assertTrue(peak.get() <= 8, "peak " + peak);
+    assertEquals(1, perHostPeak.get());
+    assertEquals(40, outcomes.failures.size());
+    assertEquals("unreachable host0,unreachable host0,unreachable host0",
+        outcomes.failures.get("host0"));
+    assertEquals("unreachable host39,unreachable host39", outcomes.failures.get("host39"));
+  }
+
+  @Test
+  void closedExecutorRejectsCommands() throws Exception {
+    Outcomes outcomes = new Outcomes();
+    FanoutExecutor fanout = new FanoutExecutor(host -> {
+      throw new JSchException("unexpected");
+    });
+    fanout.close();
+    fanout.run(Arrays.asList("a", "b"), "true", outcomes).get(5, TimeUnit.SECONDS);
+    assertEquals("the executor is closed", outcomes.failures.get("a"));
+    assertEquals("the executor is closed", outcomes.failures.get("b"));
+    assertTrue(fanout.run(Collections.emptyList(), "true", outcomes).isDone());
+  }
+
+  /** Connects once it is let through, and opens no channels. */
+  private static class FakeSession extends Session {
+    final CountDownLatch connect;
+    volatile boolean connected;
+    volatile boolean disconnected;
+
+    FakeSession(String host, CountDownLatch connect) throws JSchException {
+      super(new JSch(), "user", host, 22);
+      this.connect = connect;
+    }
+
+    @Override
+    public void connect(int connectTimeout) throws JSchException {
+      try {
+        connect.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JSchException(e.toString(), e);
+      }
+      connected = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected && !disconnected;
+    }
+
+    @Override
+    public Channel openChannel(String type) throws JSchException {
+      throw new JSchException("no channels");
+    }
+
+    @Override
+    public void disconnect() {
+      disconnected = true;
+    }
+  }
+
+  @Test
+  void closeWhileConnecting() throws Exception {
+    CountDownLatch connect = new CountDownLatch(1);
+    List<FakeSession> sessions = new CopyOnWriteArrayList<>();
+    FanoutExecutor.SessionFactory factory = host -> {
+      FakeSession session = new FakeSession(host, connect);
+      sessions.add(session);
+      return session;
+    };
+
+    Outcomes outcomes = new Outcomes();
+    FanoutExecutor fanout = new FanoutExecutor(factory);
+    fanout.setMaxConcurrency(4);
+    fanout.setConnectThreads(1);
+    fanout.setMaxIdleSessions(8);
+    Future<Void> run = fanout.run(Arrays.asList("a", "b", "c", "d", "e"), "true", outcomes);
+    // "a" is connecting, "b" to "d" are queued on the connect thread, and "e" in the executor
+    Thread closer = new Thread(fanout::close);
+    closer.start();
+    // the queued command fails once the executor is closed
+    fanout.run(Collections.singletonList("probe"), "true", outcomes).get(5, TimeUnit.SECONDS);
+    connect.countDown();
+    closer.join(5000);
+    run.get(5, TimeUnit.SECONDS);
+
+    assertEquals(6, outcomes.failures.size());
+    assertEquals("the executor is closed", outcomes.failures.get("b"));
+    assertEquals("the executor is closed", outcomes.failures.get("d"));
+    assertEquals("the executor is closed", outcomes.failures.get("e"));
+    assertEquals(1, sessions.size());
+    assertTrue(sessions.get(0).disconnected);
+  }
+
+  @Test
+  void parsesHosts() throws Exception {
+    JSch jsch = new JSch();
+    Session session = FanoutExecutor.newSession(jsch, "alice@example.com:2200");
+    assertEquals("alice", session.getUserName());
+    assertEquals("example.com", session.getHost());
+    assertEquals(2200, session.getPort());
+
+    session = FanoutExecutor.newSession(jsch, "[::1]:2222");
+    assertEquals("::1", session.getHost());
+    assertEquals(2222, session.getPort());
+
+    session = FanoutExecutor.newSession(jsch, "fe80::1");
+    assertEquals("fe80::1", session.getHost());
+    assertEquals(22, session.getPort());
+
+    session = FanoutExecutor.newSession(jsch, "example.com");
+    assertEquals(22, session.getPort());
+
+    assertThrows(JSchException.class, () -> FanoutExecutor.newSession(jsch, "host:port"));
+  }
+}
@@ -0,0 +1,75 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class HappyEyeballsTest {
+
+  @AfterEach
+  void clearCache() {
+    HappyEyeballs.clearCache();
+  }
+
+  @Test
+  void sortInterleavesFamilies() throws Exception {
+    InetAddress a1 = InetAddress.getByName("2001:db8::1");
+    InetAddress a2 = InetAddress.getByName("2001:db8::2");
+    InetAddress a3 = InetAddress.getByName("2001:db8::3");
+    InetAddress b1 = InetAddress.getByName("192.0.2.1");
+    InetAddress b2 = InetAddress.getByName("192.0.2.2");
+
+    assertEquals(Arrays.asList(a1, b1, a2, b2, a3),
+        HappyEyeballs.sort(new InetAddress[] {a1, a2, a3, b1, b2}));
+    assertEquals(Arrays.asList(b1, a1, b2, a2, a3),
+        HappyEyeballs.sort(new InetAddress[] {b1, b2, a1, a2, a3}));
+  }
+
+  @Test
+  void connectSkipsRefusedAddress() throws Exception {
+    int closed = unusedPort();
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      List<InetSocketAddress> targets =
+          Arrays.asList(new InetSocketAddress(InetAddress.getLoopbackAddress(), closed),
+              new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+      long start = System.currentTimeMillis();
+      try (Socket socket = HappyEyeballs.connect(targets, 10000, 5000, Thread::new)) {
+        assertTrue(socket.isConnected());
+        assertEquals(server.getLocalPort(), socket.getPort());
+      }
+      // a refused attempt must start the next one without waiting for the attempt delay
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+
+  @Test
+  void connectFailsWhenAllAddressesFail() throws Exception {
+    List<InetSocketAddress> targets =
+        Arrays.asList(new InetSocketAddress(InetAddress.getLoopbackAddress(), unusedPort()),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), unusedPort()));
+    assertThrows(JSchException.class,
+        () -> HappyEyeballs.connect(targets, 10000, 100, Thread::new));
+  }
+
+  @Test
+  void resolveIsCached() throws Exception {
+    InetAddress[] first = HappyEyeballs.resolve("localhost");
+    assertSame(first, HappyEyeballs.resolve("localhost"));
+  }
+
+  private static int unusedPort() throws Exception {
+    try (ServerSocket s = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      return s.getLocalPort();
+    }
+  }
+}
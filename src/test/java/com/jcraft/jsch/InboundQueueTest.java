@@ -0,0 +1,118 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class InboundQueueTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static class BlockingOutputStream extends ByteArrayOutputStream {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.write(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+
+  @Test
+  void slowConsumerDoesNotBlockAdd() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    BlockingOutputStream out = new BlockingOutputStream();
+    channel.setOutputStream(out);
+    InboundQueue queue = new InboundQueue(channel, executor);
+
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 0; i < 4; i++) {
+        queue.add(InboundQueue.DATA, new byte[] {0, (byte) i, 0}, 1, 1);
+      }
+      queue.add(InboundQueue.EOF, null, 0, 0);
+    });
+    assertEquals(4, queue.size());
+    assertEquals(0, channel.takeWindowAdjust(new DefaultWindowPolicy()));
+
+    out.release.countDown();
+    assertTrue(out.closed.await(10, TimeUnit.SECONDS));
+    assertArrayEquals(new byte[] {0, 1, 2, 3}, out.toByteArray());
+    assertEquals(0, queue.size());
+    assertTrue(channel.eof_remote);
+  }
+
+  @Test
+  void dataIsConsumedAfterDelivery() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    BlockingOutputStream out = new BlockingOutputStream();
+    out.release.countDown();
+    channel.setOutputStream(out);
+    InboundQueue queue = new InboundQueue(channel, executor);
+
+    byte[] data = new byte[0x90000];
+    channel.lwsize -= data.length;
+    queue.add(InboundQueue.DATA, data, 0, data.length);
+    queue.add(InboundQueue.EOF, null, 0, 0);
+    assertTrue(out.closed.await(10, TimeUnit.SECONDS));
+
+    assertEquals(0x90000, channel.takeWindowAdjust(new DefaultWindowPolicy()));
+    assertEquals(0x100000, channel.lwsize);
+  }
+
+  @Test
+  void overflowIsRejected() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    BlockingOutputStream out = new BlockingOutputStream();
+    channel.setOutputStream(out);
+    InboundQueue queue = new InboundQueue(channel, executor);
+
+    byte[] data = new byte[channel.lwsize_max];
+    queue.add(InboundQueue.DATA, data, 0, data.length);
+    queue.add(InboundQueue.DATA, data, 0, data.length);
+    assertThrows(IOException.class,
+        () -> queue.add(InboundQueue.DATA, data, 0, channel.lmpsize + 1));
+    out.release.countDown();
+  }
+
+  @Test
+  void pipeHoldsWholeWindow() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    InputStream in = channel.getInputStream();
+    byte[] data = new byte[channel.lmpsize];
+
+    assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      for (int i = 0; i < channel.lwsize_max / data.length; i++) {
+        channel.deliver(data, 0, data.length, false);
+      }
+    });
+    assertEquals(channel.lwsize_max, in.available());
+  }
+}
@@ -0,0 +1,60 @@
+package com.jcraft.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link ChannelSftp} without a server, whose tests override the asynchronous requests they need.
+ * It holds one file in memory for the tests which read or write it, and remembers whether a handle
+ * has been closed.
+ */
+class MockChannelSftp extends ChannelSftp {
+  byte[] file = new byte[0];
+  boolean closed;
+
+  MockChannelSftp() {
+    setRemotePacketSize(32768);
+  }
+
+  @Override
+  SftpDispatcher dispatcher() {
+    return new SftpDispatcher(this, new ByteArrayInputStream(new byte[0]));
+  }
+
+  @Override
+  public CompletableFuture<Void> closeAsync(SftpHandle handle) {
+    closed = true;
+    return CompletableFuture.completedFuture(null);
+  }
+
+  static <T> CompletableFuture<T> failed(int id, String message) {
+    return ChannelSftp.failed(new SftpException(id, message));
+  }
+
+  /** Returns the attributes of a file of the given type, e.g. {@link SftpATTRS#S_IFDIR}. */
+  static SftpATTRS attrs(int type) {
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.flags = SftpATTRS.SSH_FILEXFER_ATTR_PERMISSIONS;
+    attrs.permissions = type | 0755;
+    return attrs;
+  }
+
+  /** Reads from the file like SSH_FXP_READ, and returns <code>-1</code> at its end. */
+  synchronized int readFile(long offset, byte[] b, int off, int len) {
+    if (offset >= file.length) {
+      return -1;
+    }
+    int n = (int) Math.min(len, file.length - offset);
+    System.arraycopy(file, (int) offset, b, off, n);
+    return n;
+  }
+
+  /** Writes to the file like SSH_FXP_WRITE, which extends it as needed. */
+  synchronized void writeFile(long offset, byte[] b, int off, int len) {
+    if (offset + len > file.length) {
+      file = Arrays.copyOf(file, (int) offset + len);
+    }
+    System.arraycopy(b, off, file, (int) offset, len);
+  }
+}
@@ -0,0 +1,74 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+  private static long millis(Runnable r) {
+    long start = System.nanoTime();
+    r.run();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  @Test
+  void burstIsImmediate() {
+    RateLimiter limiter = new RateLimiter(1000, 100_000);
+    assertTrue(millis(() -> limiter.acquire(100_000)) < 100);
+    assertEquals(64 * 1024, new RateLimiter(1000).getBurst());
+    assertEquals(1_000_000, new RateLimiter(10_000_000).getBurst());
+  }
+
+  @Test
+  void rateIsKept() {
+    RateLimiter limiter = new RateLimiter(4_000_000, 100_000);
+    long ms = millis(() -> {
+      for (int i = 0; i < 100; i++) {
+        limiter.acquire(32768);
+      }
+    });
+    // the burst, then the rest at the rate
+    long expected = (100 * 32768 - 100_000) * 1000L / 4_000_000;
+    assertTrue(ms >= expected - 20 && ms < expected + 500, ms + " ms");
+  }
+
+  @Test
+  void threadsShareTheRate() throws Exception {
+    RateLimiter limiter = new RateLimiter(2_000_000, 65536);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < 20; j++) {
+          limiter.acquire(8192);
+        }
+      }));
+    }
+    long ms = millis(() -> {
+      threads.forEach(Thread::start);
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    long expected = (4 * 20 * 8192 - 65536) * 1000L / 2_000_000;
+    assertTrue(ms >= expected - 20 && ms < expected + 500, ms + " ms");
+  }
+
+  @Test
+  void unlimitedAndGroups() {
+    RateLimiter limiter = new RateLimiter(0);
+    assertTrue(millis(() -> limiter.acquire(Long.MAX_VALUE / 2)) < 100);
+    assertSame(RateLimiter.getGroup("backup"), RateLimiter.getGroup("backup"));
+    assertEquals(0, RateLimiter.getGroup("other").getRate());
+    assertThrows(IllegalArgumentException.class, () -> limiter.setRate(-1));
+  }
+}
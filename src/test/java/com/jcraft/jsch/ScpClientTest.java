@@ -0,0 +1,142 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ScpClientTest {
+
+  @TempDir
+  Path dir;
+
+  /** Hands out the input one byte per read, so that every header crosses reads. */
+  private static class Trickle extends ByteArrayInputStream {
+    Trickle(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, 1));
+    }
+  }
+
+  private static ScpClient.Link link(InputStream in, ByteArrayOutputStream out) {
+    return new ScpClient.Link(null, in, out);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  void receivesTreeWithTimes() throws Exception {
+    ScpClient scp = new ScpClient(null);
+    scp.setRecursive(true);
+    scp.setPreserveTimes(true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String stream = "D0755 0 top\n" + "T1577934245 0 1577934245 0\n" + "C0640 5 a.txt\nhello\0"
+        + "D0700 0 sub\n" + "C0644 0 empty\n\0" + "E\n" + "E\n";
+    scp.receive(link(new Trickle(bytes(stream)), out), "top", dir.toFile(), null);
+
+    Path top = dir.resolve("top");
+    assertArrayEquals(bytes("hello"), Files.readAllBytes(top.resolve("a.txt")));
+    assertEquals(FileTime.from(1577934245, TimeUnit.SECONDS),
+        Files.getLastModifiedTime(top.resolve("a.txt")));
+    assertEquals(0, Files.size(top.resolve("sub/empty")));
+    // one acknowledgement to start, one per header, and one after the data of each file
+    assertEquals(10, out.size());
+  }
+
+  @Test
+  void rejectsNamesOutsideTheTarget() throws Exception {
+    ScpClient scp = new ScpClient(null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSchException e = assertThrows(JSchException.class,
+        () -> scp.receive(link(new ByteArrayInputStream(bytes("C0644 1 ../escaped\nx\0")), out),
+            "escaped", dir.toFile(), null));
+    assertTrue(e.getMessage().contains("invalid file name"));
+    assertFalse(new File(dir.toFile().getParentFile(), "escaped").exists());
+
+    e = assertThrows(JSchException.class,
+        () -> scp.receive(link(new ByteArrayInputStream(bytes("D0755 0 d\nE\n")), out), "d",
+            dir.toFile(), null));
+    assertTrue(e.getMessage().contains("without recursion"));
+  }
+
+  @Test
+  void rejectsNamesOtherThanTheRequestedOne() throws Exception {
+    ScpClient scp = new ScpClient(null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSchException e = assertThrows(JSchException.class,
+        () -> scp.receive(link(new ByteArrayInputStream(bytes("C0644 1 .bashrc\nx\0")), out),
+            "dir/foo", dir.toFile(), null));
+    assertTrue(e.getMessage().contains("does not match the request"));
+    assertFalse(Files.exists(dir.resolve(".bashrc")));
+
+    scp.receive(link(new ByteArrayInputStream(bytes("C0644 1 foo\nx\0")), out), "dir/foo",
+        dir.toFile(), null);
+    assertArrayEquals(bytes("x"), Files.readAllBytes(dir.resolve("foo")));
+    scp.receive(link(new ByteArrayInputStream(bytes("C0644 1 b.log\ny\0")), out), "logs/*.log",
+        dir.toFile(), null);
+    assertArrayEquals(bytes("y"), Files.readAllBytes(dir.resolve("b.log")));
+  }
+
+  @Test
+  void reportsWarningsOfTheSource() throws Exception {
+    ScpClient scp = new ScpClient(null);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    JSchException e = assertThrows(JSchException.class,
+        () -> scp.receive(link(new ByteArrayInputStream(bytes("\1scp: nope: missing\n")),
+            new ByteArrayOutputStream()), "nope", null, Channels.newChannel(data)));
+    assertEquals("scp: scp: nope: missing", e.getMessage());
+  }
+
+  @Test
+  void sendsTree() throws Exception {
+    Path top = Files.createDirectory(dir.resolve("top"));
+    Files.write(top.resolve("b.txt"), bytes("bb"));
+    Files.createDirectory(top.resolve("sub"));
+    Files.write(top.resolve("sub/a.txt"), bytes("a"));
+
+    ScpClient scp = new ScpClient(null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // success for each of the 6 headers and 2 files
+    scp.sendDirectory(link(new ByteArrayInputStream(new byte[8]), out), top.toFile(), "copy", true,
+        false);
+    String sent = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    assertTrue(sent.matches("D0[0-7]{3} 0 copy\nC0[0-7]{3} 2 b.txt\nbb\0D0[0-7]{3} 0 sub\n"
+        + "C0[0-7]{3} 1 a.txt\na\0E\nE\n"), sent);
+
+    JSchException e = assertThrows(JSchException.class,
+        () -> scp.sendDirectory(link(new ByteArrayInputStream(bytes("\2denied\n")), out),
+            top.toFile(), "copy", true, false));
+    assertEquals("scp: denied", e.getMessage());
+  }
+
+  @Test
+  void quotesAndSplitsPaths() {
+    assertEquals("dir/file-1.txt", ScpClient.quote("dir/file-1.txt"));
+    assertEquals("'a b'", ScpClient.quote("a b"));
+    assertEquals("'it'\"'\"'s'", ScpClient.quote("it's"));
+    assertEquals("c", ScpClient.basename("/a/b/c/"));
+    assertEquals("/a/b", ScpClient.parent("/a/b/c"));
+    assertEquals("/", ScpClient.parent("/c"));
+    assertEquals(".", ScpClient.parent("c"));
+  }
+}
@@ -1,12 +1,16 @@
 package com.jcraft.jsch;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.jcraft.jsch.JSchTest.TestLogger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -43,6 +47,58 @@ class SessionTest {
     );
   }
 
+  @ParameterizedTest
+  @MethodSource("dynamicForwardConfigs")
+  void parseDynamicForwarding(String sshConfig, String expectedBindAddress) throws JSchException {
+    final Session session = new Session(jsch, null, null, 0);
+    final Session.Forwarding forwarding = session.parseDynamicForwarding(sshConfig);
+    assertEquals(expectedBindAddress, forwarding.bind_address);
+    assertEquals(1080, forwarding.port);
+  }
+
+  private static Stream<Arguments> dynamicForwardConfigs() {
+    return Stream.of(Arguments.of("1080", "127.0.0.1"), // port only
+        Arguments.of("bind_address:1080", "bind_address"), // with bind
+        Arguments.of("localhost:1080", "127.0.0.1"), // localhost
+        Arguments.of(":1080", "0.0.0.0"), // bind is empty
+        Arguments.of("*:1080", "0.0.0.0"), // bind is asterisk
+        Arguments.of("[::1]:1080", "::1") // bracketed IPv6
+    );
+  }
+
+  @Test
+  void parseDynamicForwardingInvalid() throws JSchException {
+    final Session session = new Session(jsch, null, null, 0);
+    assertThrows(JSchException.class, () -> session.parseDynamicForwarding("localhost:socks"));
+  }
+
+  @Test
+  void delPortForwardingChecksTheKind() throws JSchException {
+    final Session session = new Session(jsch, null, null, 0);
+    final int d = session.setPortForwardingD("127.0.0.1", 0);
+    final int l = session.setPortForwardingL("127.0.0.1", 0, "example.com", 80);
+    try {
+      JSchException e = assertThrows(JSchException.class, () -> session.delPortForwardingL(d));
+      assertEquals("PortForwardingL: local port 127.0.0.1:" + d
+          + " is registered for dynamic port forwarding.", e.getMessage());
+      e = assertThrows(JSchException.class, () -> session.delPortForwardingD(l));
+      assertEquals("PortForwardingD: local port 127.0.0.1:" + l
+          + " is registered for local port forwarding.", e.getMessage());
+      assertEquals(1, session.getPortForwardingD().length);
+      assertEquals(1, session.getPortForwardingL().length);
+
+      session.delPortForwardingD(d);
+      session.delPortForwardingL(l);
+      e = assertThrows(JSchException.class, () -> session.delPortForwardingD(d));
+      assertEquals("PortForwardingD: local port 127.0.0.1:" + d + " is not registered.",
+          e.getMessage());
+      assertEquals(0, session.getPortForwardingD().length);
+      assertEquals(0, session.getPortForwardingL().length);
+    } finally {
+      PortWatcher.delPort(session);
+    }
+  }
+
   @Test
   void getPubkeyAcceptedKeyTypes() throws JSchException {
     Session session = new Session(jsch, null, null, 0);
@@ -162,4 +218,72 @@ class SessionTest {
     assertTrue(exception.getMessage().contains("not in the allowed ca_signature_algorithms"),
         "Exception message should indicate algorithm not allowed");
   }
+
+  /** A session which sends nothing, and counts the packets it is asked to write. */
+  private static class Unsent extends Session {
+    final CountDownLatch written = new CountDownLatch(1);
+
+    Unsent() throws JSchException {
+      super(SessionTest.jsch, null, null, 0);
+    }
+
+    @Override
+    void write(Packet packet) {
+      written.countDown();
+    }
+  }
+
+  private static Buffer reply(int port) {
+    Buffer buf = new Buffer(32);
+    buf.putInt(0); // packet length
+    buf.putByte((byte) 0); // padding length
+    buf.putByte((byte) Session.SSH_MSG_REQUEST_SUCCESS);
+    buf.putInt(port);
+    return buf;
+  }
+
+  @Test
+  void keepaliveIsOnlyAProbeWithAutoTuning() throws Exception {
+    Session session = new Unsent();
+    session.setConfig("window_auto_tuning", "no");
+    session.sendKeepAliveMsg();
+    session.globalRequestReply(Session.SSH_MSG_REQUEST_SUCCESS, reply(0));
+    assertEquals(0, session.getRoundTripTime());
+
+    session.setConfig("window_auto_tuning", "yes");
+    session.sendKeepAliveMsg();
+    session.globalRequestReply(Session.SSH_MSG_REQUEST_SUCCESS, reply(0));
+    assertTrue(session.getRoundTripTime() > 0);
+  }
+
+  @Test
+  void probeDoesNotTakeTheReplyOfAPortForwarding() throws Exception {
+    Unsent session = new Unsent();
+    session.setConfig("window_auto_tuning", "yes");
+    JSchException[] failure = new JSchException[1];
+    Thread forwarding = new Thread(() -> {
+      try {
+        session.setPortForwardingR(null, 0, "localhost", 22, null);
+      } catch (JSchException e) {
+        failure[0] = e;
+      }
+    });
+    forwarding.setDaemon(true);
+    forwarding.start();
+    try {
+      assertTrue(session.written.await(5, TimeUnit.SECONDS));
+      // the probe is written after the request for the forwarding, so its reply comes second
+      session.sendKeepAliveMsg();
+      session.globalRequestReply(Session.SSH_MSG_REQUEST_SUCCESS, reply(4242));
+      forwarding.join(5000);
+      assertNull(failure[0]);
+      assertArrayEquals(new String[] {"4242:localhost:22"}, session.getPortForwardingR());
+      assertEquals(0, session.getRoundTripTime());
+
+      session.globalRequestReply(Session.SSH_MSG_REQUEST_SUCCESS, reply(0));
+      assertTrue(session.getRoundTripTime() > 0);
+    } finally {
+      ChannelForwardedTCPIP.delPort(session);
+    }
+  }
 }
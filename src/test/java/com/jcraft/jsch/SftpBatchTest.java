@@ -0,0 +1,177 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class SftpBatchTest {
+
+  @Test
+  void pipelineReportsFailuresPerItem() {
+    int n = SftpBatch.WINDOW * 2 + 3;
+    SftpException failure = new SftpException(ChannelSftp.SSH_FX_PERMISSION_DENIED, "denied");
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    SftpException[] failures = SftpBatch.pipeline(n, i -> {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      if (i % 100 == 7) {
+        future.completeExceptionally(failure);
+      } else {
+        future.complete(null);
+      }
+      futures.add(future);
+      return future;
+    });
+    assertEquals(n, futures.size());
+    for (int i = 0; i < n; i++) {
+      if (i % 100 == 7) {
+        assertSame(failure, failures[i]);
+      } else {
+        assertNull(failures[i]);
+      }
+    }
+  }
+
+  @Test
+  void pipelineKeepsWindowOutstanding() {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    int[] maxOutstanding = {0};
+    SftpBatch.pipeline(SftpBatch.WINDOW * 3, i -> {
+      // including this request
+      int outstanding = 1;
+      for (CompletableFuture<Void> f : futures) {
+        if (!f.isDone()) {
+          outstanding++;
+        }
+      }
+      maxOutstanding[0] = Math.max(maxOutstanding[0], outstanding);
+      // completed once the batch waits for it
+      CompletableFuture<Void> future = new CompletableFuture<Void>() {
+        @Override
+        public Void get() {
+          complete(null);
+          return null;
+        }
+      };
+      futures.add(future);
+      return future;
+    });
+    assertEquals(SftpBatch.WINDOW, maxOutstanding[0]);
+  }
+
+  @Test
+  void opsWhichNeedAttributes() {
+    assertFalse(SftpOp.chmod(0644, "a").needsStat());
+    assertFalse(SftpOp.rename("a", "b").needsStat());
+    assertTrue(SftpOp.chown(1000, "a").needsStat());
+    assertTrue(SftpOp.setMtime("a", 0).needsStat());
+    assertEquals("chmod 644 a", SftpOp.chmod(0644, "a").toString());
+    assertEquals("rename a b", SftpOp.rename("a", "b").toString());
+  }
+
+  /** A tree of files, some of whose directories cannot be listed. */
+  private static class Server extends MockChannelSftp {
+    final Map<String, Set<String>> dirs = new HashMap<>();
+    final Set<String> unreadable = new HashSet<>();
+    final Set<String> listed = new HashSet<>();
+    final List<String> removed = new ArrayList<>();
+
+    void add(String path, boolean dir) {
+      if (dir) {
+        dirs.put(path, new HashSet<>());
+      }
+      int i = path.lastIndexOf('/');
+      if (i > 0) {
+        dirs.get(path.substring(0, i)).add(path.substring(i + 1));
+      }
+    }
+
+    private static SftpATTRS attrs(boolean dir) {
+      return attrs(dir ? SftpATTRS.S_IFDIR : SftpATTRS.S_IFREG);
+    }
+
+    private void remove(String path) {
+      removed.add(path);
+      int i = path.lastIndexOf('/');
+      dirs.get(path.substring(0, i)).remove(path.substring(i + 1));
+    }
+
+    @Override
+    public CompletableFuture<SftpATTRS> lstatAsync(String path) {
+      return CompletableFuture.completedFuture(attrs(dirs.containsKey(path)));
+    }
+
+    @Override
+    public CompletableFuture<SftpHandle> opendirAsync(String path) {
+      if (unreadable.contains(path)) {
+        return failed(SSH_FX_PERMISSION_DENIED, "Permission denied");
+      }
+      return CompletableFuture.completedFuture(new SftpHandle(new byte[4], path, true));
+    }
+
+    @Override
+    public CompletableFuture<List<LsEntry>> readdirAsync(SftpHandle handle) {
+      String path = handle.getPath();
+      if (!listed.add(path)) {
+        return CompletableFuture.completedFuture(null);
+      }
+      List<LsEntry> entries = new ArrayList<>();
+      for (String name : dirs.get(path)) {
+        entries.add(new LsEntry(name, name, attrs(dirs.containsKey(path + "/" + name))));
+      }
+      return CompletableFuture.completedFuture(entries);
+    }
+
+    @Override
+    public CompletableFuture<Void> rmAsync(String path) {
+      remove(path);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> rmdirAsync(String path) {
+      if (!dirs.get(path).isEmpty()) {
+        return failed(SSH_FX_FAILURE, "Directory not empty");
+      }
+      remove(path);
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  @Test
+  void rmRecursiveSkipsDirectoriesWhichCannotBeListed() {
+    Server server = new Server();
+    server.add("/t", true);
+    server.add("/t/a", false);
+    server.add("/t/ok", true);
+    server.add("/t/ok/b", false);
+    server.add("/t/locked", true);
+    server.add("/t/locked/c", false);
+    server.add("/t/locked/sub", true);
+    server.unreadable.add("/t/locked");
+
+    SftpException e = assertThrows(SftpException.class, () -> SftpBatch.rmRecursive(server, "/t"));
+    assertEquals(ChannelSftp.SSH_FX_PERMISSION_DENIED, e.id);
+    assertTrue(e.getMessage().startsWith("/t/locked: "), e.getMessage());
+    // the top directory is not empty
+    assertEquals(1, e.getSuppressed().length);
+    assertTrue(e.getSuppressed()[0].getMessage().startsWith("/t: "));
+
+    assertEquals(new HashSet<>(Arrays.asList("/t/a", "/t/ok/b", "/t/ok")),
+        new HashSet<>(server.removed));
+    assertEquals(new HashSet<>(Arrays.asList("c", "sub")), server.dirs.get("/t/locked"));
+  }
+}
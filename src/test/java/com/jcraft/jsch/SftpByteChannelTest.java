@@ -0,0 +1,123 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class SftpByteChannelTest {
+
+  private final Random random = new Random(42);
+
+  /** Keeps the file in memory, and counts the requests. */
+  private class Server extends MockChannelSftp {
+    int reads;
+    int writes;
+
+    Server(int size) {
+      file = new byte[size];
+      random.nextBytes(file);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Integer> readAsync(SftpHandle handle, long offset,
+        byte[] b, int off, int len) {
+      reads++;
+      return CompletableFuture.completedFuture(readFile(offset, b, off, len));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> writeAsync(SftpHandle handle, long offset, byte[] b,
+        int off, int len) {
+      writes++;
+      writeFile(offset, b, off, len);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<SftpATTRS> fstatAsync(SftpHandle handle) {
+      SftpATTRS attrs = new SftpATTRS();
+      attrs.setSIZE(file.length);
+      return CompletableFuture.completedFuture(attrs);
+    }
+
+    SftpByteChannel open(boolean readable, boolean writable) throws Exception {
+      return new SftpByteChannel(this, new SftpHandle(new byte[4], "/file", false), readable,
+          writable, false, file.length);
+    }
+  }
+
+  @Test
+  void sequentialReadFetchesEachBlockOnce() throws Exception {
+    Server server = new Server(10_000_000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SftpByteChannel channel = server.open(true, false)) {
+      ByteBuffer b = ByteBuffer.allocate(8192);
+      while (channel.read(b) != -1) {
+        out.write(b.array(), 0, b.position());
+        b.clear();
+      }
+    }
+    assertArrayEquals(server.file, out.toByteArray());
+    assertEquals((server.file.length + 65535) / 65536, server.reads);
+    assertTrue(server.closed);
+  }
+
+  @Test
+  void positionalReadLeavesPosition() throws Exception {
+    Server server = new Server(200_000);
+    try (SftpByteChannel channel = server.open(true, false)) {
+      ByteBuffer b = ByteBuffer.allocate(1000);
+      assertEquals(1000, channel.read(b, 65000));
+      assertArrayEquals(Arrays.copyOfRange(server.file, 65000, 66000), b.array());
+      assertEquals(0, channel.position());
+      b.clear();
+      assertEquals(-1, channel.read(b, 200_000));
+      assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+    }
+  }
+
+  @Test
+  void smallWritesAreCoalesced() throws Exception {
+    Server server = new Server(0);
+    byte[] data = new byte[100_000];
+    random.nextBytes(data);
+    SftpByteChannel channel = server.open(true, true);
+    for (int i = 0; i < data.length; i += 100) {
+      channel.write(ByteBuffer.wrap(data, i, 100));
+    }
+    // a read sees the writes before it
+    ByteBuffer b = ByteBuffer.allocate(500);
+    assertEquals(500, channel.read(b, 99_500));
+    assertArrayEquals(Arrays.copyOfRange(data, 99_500, 100_000), b.array());
+    channel.close();
+
+    assertArrayEquals(data, server.file);
+    assertTrue(server.writes < data.length / 100 / 10);
+    assertThrows(ClosedChannelException.class, () -> channel.read(ByteBuffer.allocate(1)));
+  }
+
+  @Test
+  void writeDropsCachedBlocks() throws Exception {
+    Server server = new Server(100_000);
+    try (SftpByteChannel channel = server.open(true, true)) {
+      ByteBuffer b = ByteBuffer.allocate(10);
+      channel.read(b, 1000);
+      channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 1002);
+      b.clear();
+      channel.read(b, 1000);
+      assertEquals(1, b.get(2));
+      assertEquals(3, b.get(4));
+      assertEquals(server.file[1005], b.get(5));
+    }
+  }
+}
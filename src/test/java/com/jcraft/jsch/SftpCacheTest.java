@@ -0,0 +1,92 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class SftpCacheTest {
+
+  private static SftpATTRS attrs(long size) {
+    SftpATTRS attrs = new SftpATTRS();
+    attrs.setSIZE(size);
+    return attrs;
+  }
+
+  @Test
+  void entriesExpire() throws Exception {
+    SftpCache cache = new SftpCache(50, 10);
+    cache.putAttrs("/a", attrs(1));
+    assertEquals(1, cache.attrs("/a").getSize());
+    Thread.sleep(100);
+    assertNull(cache.attrs("/a"));
+  }
+
+  @Test
+  void leastRecentlyUsedEntriesAreDropped() throws Exception {
+    SftpCache cache = new SftpCache(60000, 2);
+    cache.putAttrs("/a", attrs(1));
+    cache.putAttrs("/b", attrs(2));
+    cache.attrs("/a");
+    cache.putAttrs("/c", attrs(3));
+    assertNotNull(cache.attrs("/a"));
+    assertNull(cache.attrs("/b"));
+    assertNotNull(cache.attrs("/c"));
+  }
+
+  @Test
+  void missingPathsAreCached() throws Exception {
+    SftpCache cache = new SftpCache(60000, 10);
+    cache.putMissing("/a");
+    SftpException e = assertThrows(SftpException.class, () -> cache.attrs("/a"));
+    assertEquals(ChannelSftp.SSH_FX_NO_SUCH_FILE, e.id);
+    cache.invalidate("/a");
+    assertNull(cache.attrs("/a"));
+  }
+
+  @Test
+  void attributesAreCopied() throws Exception {
+    SftpCache cache = new SftpCache(60000, 10);
+    SftpATTRS attrs = attrs(1);
+    cache.putAttrs("/a", attrs);
+    attrs.setSIZE(2);
+    cache.attrs("/a").setSIZE(3);
+    assertEquals(1, cache.attrs("/a").getSize());
+  }
+
+  @Test
+  void invalidateDropsParentListing() throws Exception {
+    SftpCache cache = new SftpCache(60000, 10);
+    byte[] name = "b".getBytes(StandardCharsets.UTF_8);
+    cache.putListing("/a", Collections.singletonList(name));
+    cache.putAttrs("/a", attrs(0));
+    cache.putRealpath("/a/b", "/a/b".getBytes(StandardCharsets.UTF_8));
+    assertArrayEquals(name, cache.listing("/a").get(0));
+
+    cache.invalidate("/a/b");
+    assertNull(cache.listing("/a"));
+    assertNull(cache.realpath("/a/b"));
+    // the parent directory itself is still there
+    assertNotNull(cache.attrs("/a"));
+  }
+
+  @Test
+  void invalidateTreeDropsDescendants() throws Exception {
+    SftpCache cache = new SftpCache(60000, 10);
+    cache.putAttrs("/a", attrs(0));
+    cache.putAttrs("/a/b", attrs(1));
+    cache.putAttrs("/a/b/c", attrs(2));
+    cache.putAttrs("/ab", attrs(3));
+
+    cache.invalidateTree("/a");
+    assertNull(cache.attrs("/a"));
+    assertNull(cache.attrs("/a/b"));
+    assertNull(cache.attrs("/a/b/c"));
+    assertNotNull(cache.attrs("/ab"));
+  }
+}
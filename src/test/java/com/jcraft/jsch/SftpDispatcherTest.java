@@ -0,0 +1,416 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+class SftpDispatcherTest {
+
+  private static final int SSH_FXP_OPEN = 3;
+  private static final int SSH_FXP_CLOSE = 4;
+  private static final int SSH_FXP_READ = 5;
+  private static final int SSH_FXP_WRITE = 6;
+  private static final int SSH_FXP_EXTENDED = 200;
+  private static final int SSH_FXP_STATUS = 101;
+  private static final int SSH_FXP_HANDLE = 102;
+  private static final int SSH_FXP_DATA = 103;
+  private static final int SSH_FXP_NAME = 104;
+  private static final int SSH_FXP_ATTRS = 105;
+
+  private final ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+  private void respond(int type, int id, Consumer<Buffer> body) {
+    respond(1024, type, id, body);
+  }
+
+  private void respond(int size, int type, int id, Consumer<Buffer> body) {
+    Buffer buf = new Buffer(size);
+    buf.putInt(0);
+    buf.putByte((byte) type);
+    buf.putInt(id);
+    body.accept(buf);
+    int length = buf.getLength();
+    buf.index = 0;
+    buf.putInt(length - 4);
+    responses.write(buf.buffer, 0, length);
+  }
+
+  // the responses written so far, read once the dispatcher runs
+  private final InputStream in = new InputStream() {
+    private ByteArrayInputStream bytes;
+
+    private ByteArrayInputStream bytes() {
+      if (bytes == null) {
+        bytes = new ByteArrayInputStream(responses.toByteArray());
+      }
+      return bytes;
+    }
+
+    @Override
+    public int read() {
+      return bytes().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      return bytes().read(b, off, len);
+    }
+  };
+
+  private final SftpDispatcher d = new SftpDispatcher(new ChannelSftp(), in);
+
+  @Test
+  void responsesAreDispatchedByRequestId() throws Exception {
+    SftpDispatcher.Attrs attrs = d.new Attrs();
+    byte[] b = new byte[8];
+    SftpDispatcher.Data data = d.new Data(b, 2, 6);
+    int attrsId = d.register(attrs);
+    int dataId = d.register(data);
+
+    respond(SSH_FXP_STATUS, 1, buf -> buf.putInt(0));
+    respond(SSH_FXP_DATA, dataId, buf -> buf.putString(new byte[] {1, 2, 3}));
+    respond(SSH_FXP_ATTRS, attrsId, buf -> {
+      buf.putInt(1); // SSH_FILEXFER_ATTR_SIZE
+      buf.putLong(1234);
+    });
+    respond(SSH_FXP_STATUS, 2, buf -> buf.putInt(1));
+    d.run();
+
+    assertEquals(3, data.get());
+    assertArrayEquals(new byte[] {0, 0, 1, 2, 3, 0, 0, 0}, b);
+    assertEquals(1234, attrs.get().getSize());
+
+    // the responses to the synchronous requests are kept in order
+    InputStream legacy = d.getInputStream();
+    byte[] packet = new byte[13];
+    assertEquals(13, legacy.read(packet));
+    assertEquals(1, packet[8]);
+    assertEquals(13, legacy.read(packet));
+    assertEquals(2, packet[8]);
+    assertEquals(-1, legacy.read());
+  }
+
+  @Test
+  void longestDataReplyIsAccepted() throws Exception {
+    byte[] b = new byte[SftpDispatcher.MAX_DATA_LENGTH];
+    SftpDispatcher.Data data = d.new Data(b, 0, b.length);
+    int id = d.register(data);
+    byte[] reply = new byte[b.length];
+    Arrays.fill(reply, (byte) 7);
+    respond(reply.length + 13, SSH_FXP_DATA, id, buf -> buf.putString(reply));
+    d.run();
+
+    assertEquals(reply.length, data.get());
+    assertArrayEquals(reply, b);
+  }
+
+  @Test
+  void statusIsReported() throws Exception {
+    SftpDispatcher.Attrs attrs = d.new Attrs();
+    SftpDispatcher.Names names = d.new Names();
+    SftpDispatcher.Data data = d.new Data(new byte[4], 0, 4);
+    int attrsId = d.register(attrs);
+    int namesId = d.register(names);
+    int dataId = d.register(data);
+
+    respond(SSH_FXP_STATUS, attrsId, buf -> {
+      buf.putInt(ChannelSftp.SSH_FX_NO_SUCH_FILE);
+      buf.putString("No such file".getBytes(StandardCharsets.UTF_8));
+      buf.putString(new byte[0]);
+    });
+    respond(SSH_FXP_STATUS, namesId, buf -> buf.putInt(ChannelSftp.SSH_FX_EOF));
+    respond(SSH_FXP_STATUS, dataId, buf -> buf.putInt(ChannelSftp.SSH_FX_EOF));
+    d.run();
+
+    ExecutionException e = assertThrows(ExecutionException.class, attrs::get);
+    SftpException cause = assertInstanceOf(SftpException.class, e.getCause());
+    assertEquals(ChannelSftp.SSH_FX_NO_SUCH_FILE, cause.id);
+    assertTrue(cause.getMessage().contains("No such file"));
+    assertNull(names.get());
+    assertEquals(-1, data.get());
+  }
+
+  @Test
+  void namesAreDecoded() throws Exception {
+    SftpDispatcher.Names names = d.new Names();
+    int id = d.register(names);
+
+    respond(SSH_FXP_NAME, id, buf -> {
+      buf.putInt(2);
+      for (String name : Arrays.asList("a", "b")) {
+        buf.putString(name.getBytes(StandardCharsets.UTF_8));
+        buf.putString(("-rw-r--r-- " + name).getBytes(StandardCharsets.UTF_8));
+        buf.putInt(0);
+      }
+    });
+    d.run();
+
+    List<LsEntry> entries = names.get();
+    assertEquals(2, entries.size());
+    assertEquals("b", entries.get(1).getFilename());
+    assertEquals("-rw-r--r-- b", entries.get(1).getLongname());
+  }
+
+  @Test
+  void pagesAreDecodedLazily() throws Exception {
+    SftpDispatcher.Page page = d.new Page();
+    SftpDispatcher.Page end = d.new Page();
+    int id = d.register(page);
+    int endId = d.register(end);
+
+    respond(SSH_FXP_NAME, id, buf -> {
+      buf.putInt(1);
+      buf.putString("a".getBytes(StandardCharsets.UTF_8));
+      buf.putString("-rw-r--r-- a".getBytes(StandardCharsets.UTF_8));
+      buf.putInt(0);
+    });
+    respond(SSH_FXP_STATUS, endId, buf -> buf.putInt(ChannelSftp.SSH_FX_EOF));
+    d.run();
+
+    Buffer buf = page.get();
+    assertEquals(1, buf.getInt());
+    byte[] filename = buf.getString();
+    byte[] longname = buf.getString();
+    LsEntry entry = new ChannelSftp().toLsEntry(filename, longname, SftpATTRS.getATTR(buf));
+    assertEquals("a", entry.getFilename());
+    assertEquals("-rw-r--r-- a", entry.getLongname());
+    assertEquals("-rw-r--r-- a", entry.toString());
+    assertNull(end.get());
+  }
+
+  @Test
+  void outstandingRequestsFailWhenTheChannelCloses() throws Exception {
+    SftpDispatcher.Status status = d.new Status();
+    d.register(status);
+    d.run();
+
+    ExecutionException e = assertThrows(ExecutionException.class, status::get);
+    assertEquals(ChannelSftp.SSH_FX_CONNECTION_LOST, ((SftpException) e.getCause()).id);
+    assertEquals(0, d.register(d.new Status()));
+    assertEquals(0, d.outstanding());
+  }
+
+  /** Records the requests of a dispatcher, which are answered with SSH_FX_OK. */
+  private static class Recorder extends SftpDispatcher {
+    final List<Integer> types = new ArrayList<>();
+    final List<Buffer> bodies = new ArrayList<>();
+
+    Recorder() {
+      super(new ChannelSftp(), new ByteArrayInputStream(new byte[0]));
+    }
+
+    @Override
+    <T> CompletableFuture<T> request(Reply<T> reply, byte type, int length, Consumer<Buffer> body) {
+      Buffer buf = new Buffer(length);
+      body.accept(buf);
+      assertEquals(length, buf.index);
+      types.add(type & 0xff);
+      bodies.add(buf);
+      reply.complete(null);
+      return reply;
+    }
+  }
+
+  private static String str(byte[] b) {
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void copyDataIsEncoded() throws Exception {
+    Recorder r = new Recorder();
+    SftpHandle from = new SftpHandle(new byte[] {1, 2, 3}, "/a", false);
+    SftpHandle to = new SftpHandle(new byte[] {4, 5, 6, 7, 8}, "/b", false);
+    r.copyData(from, 1L << 33, 12345, to, 7).get();
+
+    assertEquals(Arrays.asList(SSH_FXP_EXTENDED), r.types);
+    Buffer buf = r.bodies.get(0);
+    assertEquals("copy-data", str(buf.getString()));
+    assertArrayEquals(from.handle, buf.getString());
+    assertEquals(1L << 33, buf.getLong());
+    assertEquals(12345, buf.getLong());
+    assertArrayEquals(to.handle, buf.getString());
+    assertEquals(7, buf.getLong());
+    assertEquals(0, buf.getLength());
+  }
+
+  @Test
+  void copyFileIsEncoded() throws Exception {
+    Recorder r = new Recorder();
+    byte[] src = "/src/\u00e4".getBytes(StandardCharsets.UTF_8);
+    byte[] dst = "/dst".getBytes(StandardCharsets.UTF_8);
+    r.copyFile(src, dst, true).get();
+    r.copyFile(src, dst, false).get();
+
+    assertEquals(Arrays.asList(SSH_FXP_EXTENDED, SSH_FXP_EXTENDED), r.types);
+    for (int i = 0; i < 2; i++) {
+      Buffer buf = r.bodies.get(i);
+      assertEquals("copy-file", str(buf.getString()));
+      assertArrayEquals(src, buf.getString());
+      assertArrayEquals(dst, buf.getString());
+      assertEquals(i == 0 ? 1 : 0, buf.getByte());
+      assertEquals(0, buf.getLength());
+    }
+  }
+
+  /** Answers requests like a server with its files in memory and without the copy extensions. */
+  private static class Server extends SftpDispatcher {
+    final Map<String, byte[]> files = new HashMap<>();
+    final Map<String, Integer> pflags = new HashMap<>();
+    final List<Integer> types = new ArrayList<>();
+    private final PacketInputStream responses;
+
+    Server(ChannelSftp channel, PacketInputStream responses) {
+      super(channel, responses);
+      this.responses = responses;
+    }
+
+    @Override
+    synchronized <T> CompletableFuture<T> request(Reply<T> reply, byte type, int length,
+        Consumer<Buffer> body) {
+      int id = register(reply);
+      Buffer buf = new Buffer(length);
+      body.accept(buf);
+      assertEquals(length, buf.index);
+      types.add(type & 0xff);
+      switch (type & 0xff) {
+        case SSH_FXP_OPEN: {
+          String path = str(buf.getString());
+          int flags = buf.getInt();
+          pflags.put(path, flags);
+          if (files.containsKey(path) && (flags & ChannelSftp.SSH_FXF_EXCL) != 0) {
+            status(id, ChannelSftp.SSH_FX_FAILURE);
+          } else if (!files.containsKey(path) && (flags & ChannelSftp.SSH_FXF_CREAT) == 0) {
+            status(id, ChannelSftp.SSH_FX_NO_SUCH_FILE);
+          } else {
+            if (!files.containsKey(path) || (flags & ChannelSftp.SSH_FXF_TRUNC) != 0) {
+              files.put(path, new byte[0]);
+            }
+            byte[] handle = path.getBytes(StandardCharsets.UTF_8);
+            respond(SSH_FXP_HANDLE, id, out -> out.putString(handle));
+          }
+          break;
+        }
+        case SSH_FXP_READ: {
+          byte[] file = files.get(str(buf.getString()));
+          int offset = (int) buf.getLong();
+          int len = buf.getInt();
+          if (offset >= file.length) {
+            status(id, ChannelSftp.SSH_FX_EOF);
+          } else {
+            respond(SSH_FXP_DATA, id,
+                out -> out.putString(file, offset, Math.min(len, file.length - offset)));
+          }
+          break;
+        }
+        case SSH_FXP_WRITE: {
+          String path = str(buf.getString());
+          int offset = (int) buf.getLong();
+          byte[] data = buf.getString();
+          byte[] file = files.get(path);
+          if (offset + data.length > file.length) {
+            file = Arrays.copyOf(file, offset + data.length);
+          }
+          System.arraycopy(data, 0, file, offset, data.length);
+          files.put(path, file);
+          status(id, ChannelSftp.SSH_FX_OK);
+          break;
+        }
+        case SSH_FXP_CLOSE:
+          status(id, ChannelSftp.SSH_FX_OK);
+          break;
+        default:
+          status(id, ChannelSftp.SSH_FX_OP_UNSUPPORTED);
+      }
+      return reply;
+    }
+
+    private void status(int id, int status) {
+      respond(SSH_FXP_STATUS, id, out -> out.putInt(status));
+    }
+
+    private void respond(int type, int id, Consumer<Buffer> body) {
+      Buffer buf = new Buffer(65536);
+      buf.putInt(0);
+      buf.putByte((byte) type);
+      buf.putInt(id);
+      body.accept(buf);
+      int length = buf.getLength();
+      buf.index = 0;
+      buf.putInt(length - 4);
+      responses.add(Arrays.copyOf(buf.buffer, length));
+    }
+  }
+
+  @Test
+  void copyFallsBackToPipelinedRequests() throws Exception {
+    ChannelSftp channel = new ChannelSftp() {
+      private final Server server = new Server(this, new SftpDispatcher.PacketInputStream());
+
+      {
+        setRemotePacketSize(32768);
+        Thread thread = new Thread(server, "test dispatcher");
+        thread.setDaemon(true);
+        server.start(thread);
+      }
+
+      @Override
+      SftpDispatcher dispatcher() {
+        return server;
+      }
+
+      @Override
+      SftpFlowControl readFlowControl() {
+        return new SftpFlowControl(4, 4, 1000, 1000, false, null);
+      }
+
+      @Override
+      SftpFlowControl writeFlowControl(SftpHandle handle) {
+        return new SftpFlowControl(4, 4, 1000, 1000, false, null);
+      }
+    };
+    Server server = (Server) channel.dispatcher();
+    byte[] data = new byte[10500];
+    new Random(42).nextBytes(data);
+    server.files.put("/src", data);
+    server.files.put("/dst", new byte[20000]);
+
+    channel._copyFile("/src", "/dst", true);
+    assertArrayEquals(data, server.files.get("/dst"));
+    assertEquals(ChannelSftp.SSH_FXF_READ, (int) server.pflags.get("/src"));
+    assertEquals(ChannelSftp.SSH_FXF_WRITE | ChannelSftp.SSH_FXF_CREAT | ChannelSftp.SSH_FXF_TRUNC,
+        (int) server.pflags.get("/dst"));
+    // 11 chunks are read and written, and the end of the file is read once at least
+    assertEquals(11, server.types.stream().filter(t -> t == SSH_FXP_WRITE).count());
+    assertTrue(server.types.stream().filter(t -> t == SSH_FXP_READ).count() >= 12);
+    assertEquals(2, server.types.stream().filter(t -> t == SSH_FXP_CLOSE).count());
+    assertFalse(server.types.contains(SSH_FXP_EXTENDED));
+
+    SftpException e =
+        assertThrows(SftpException.class, () -> channel._copyFile("/src", "/dst", false));
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, e.id);
+    assertEquals(ChannelSftp.SSH_FXF_WRITE | ChannelSftp.SSH_FXF_CREAT | ChannelSftp.SSH_FXF_EXCL,
+        (int) server.pflags.get("/dst"));
+    // only the source has been opened
+    assertEquals(3, server.types.stream().filter(t -> t == SSH_FXP_CLOSE).count());
+  }
+}
@@ -0,0 +1,168 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpDownloadTest {
+
+  private final byte[] file = new byte[100_000];
+  private final ScheduledExecutorService server = Executors.newScheduledThreadPool(4);
+  private final Random random = new Random(42);
+
+  @TempDir
+  Path tmp;
+
+  SftpDownloadTest() {
+    random.nextBytes(file);
+  }
+
+  @AfterEach
+  void shutdown() {
+    server.shutdownNow();
+  }
+
+  /** Answers reads after a random delay, so the responses arrive out of order, some short. */
+  private final SftpDispatcher dispatcher =
+      new SftpDispatcher(new ChannelSftp(), new ByteArrayInputStream(new byte[0])) {
+        @Override
+        CompletableFuture<Integer> read(SftpHandle handle, long offset, byte[] b, int off,
+            int len) {
+          CompletableFuture<Integer> future = new CompletableFuture<>();
+          int delay;
+          boolean _short;
+          synchronized (random) {
+            delay = random.nextInt(3000);
+            _short = random.nextInt(4) == 0;
+          }
+          server.schedule(() -> {
+            if (offset >= file.length) {
+              future.complete(-1);
+              return;
+            }
+            int n = (int) Math.min(len, file.length - offset);
+            if (_short && n > 1) {
+              n /= 2;
+            }
+            System.arraycopy(file, (int) offset, b, off, n);
+            future.complete(n);
+          }, delay, TimeUnit.MICROSECONDS);
+          return future;
+        }
+      };
+
+  private SftpDownload download(long offset) {
+    return new SftpDownload(dispatcher, new SftpHandle(new byte[4], "file", false), offset,
+        new SftpFlowControl(8, 8, 4096, 4096, false, null), null);
+  }
+
+  @Test
+  void transferToStreamKeepsOrder() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    download(0).transferTo(out);
+    assertArrayEquals(file, out.toByteArray());
+  }
+
+  @Test
+  void transferToFileWritesAtOffsets() throws Exception {
+    Path path = tmp.resolve("file");
+    Files.write(path, new byte[] {1, 2, 3});
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      download(0).transferTo(fc, 3);
+    }
+    byte[] result = Files.readAllBytes(path);
+    assertEquals(file.length + 3, result.length);
+    assertArrayEquals(file, Arrays.copyOfRange(result, 3, result.length));
+  }
+
+  @Test
+  void adaptiveTransferKeepsOrder() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new SftpDownload(dispatcher, new SftpHandle(new byte[4], "file", false), 0,
+        new SftpFlowControl(2, 64, 1024, 65536, true, null), null).transferTo(out);
+    assertArrayEquals(file, out.toByteArray());
+  }
+
+  @Test
+  void readKeepsOrder() throws Exception {
+    SftpDownload download = download(1000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[1500];
+    int n;
+    while ((n = download.read(b, 0, b.length)) != -1) {
+      out.write(b, 0, n);
+    }
+    assertArrayEquals(Arrays.copyOfRange(file, 1000, file.length), out.toByteArray());
+  }
+
+  @Test
+  void monitorCancels() throws Exception {
+    long[] counted = new long[1];
+    SftpProgressMonitor monitor = new SftpProgressMonitor() {
+      @Override
+      public void init(int op, String src, String dest, long max) {}
+
+      @Override
+      public boolean count(long count) {
+        counted[0] += count;
+        return counted[0] < 10000;
+      }
+
+      @Override
+      public void end() {}
+    };
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new SftpDownload(dispatcher, new SftpHandle(new byte[4], "file", false), 0,
+        new SftpFlowControl(8, 8, 4096, 4096, false, null), monitor).transferTo(out);
+    assertEquals(counted[0], out.size());
+    assertArrayEquals(Arrays.copyOf(file, out.size()), out.toByteArray());
+  }
+
+  @Test
+  void cancelledTransferToFileCanBeResumed() throws Exception {
+    long[] counted = new long[1];
+    SftpProgressMonitor monitor = new SftpProgressMonitor() {
+      @Override
+      public void init(int op, String src, String dest, long max) {}
+
+      @Override
+      public boolean count(long count) {
+        counted[0] += count;
+        return counted[0] < 30000;
+      }
+
+      @Override
+      public void end() {}
+    };
+    Path path = tmp.resolve("file");
+    try (FileChannel fc =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      new SftpDownload(dispatcher, new SftpHandle(new byte[4], "file", false), 0,
+          new SftpFlowControl(8, 8, 4096, 4096, false, null), monitor).transferTo(fc, 0, true);
+      // the chunks written beyond one which had not arrived are cut off
+      assertTrue(fc.size() <= counted[0]);
+      assertTrue(fc.size() < file.length);
+      byte[] part = Files.readAllBytes(path);
+      assertArrayEquals(Arrays.copyOf(file, part.length), part);
+
+      download(fc.size()).transferTo(fc, 0, true);
+    }
+    assertArrayEquals(file, Files.readAllBytes(path));
+  }
+}
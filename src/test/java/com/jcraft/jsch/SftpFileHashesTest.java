@@ -0,0 +1,98 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpFileHashesTest {
+
+  @TempDir
+  Path dir;
+
+  private static byte[] hash(int value, int length) {
+    byte[] hash = new byte[length];
+    Arrays.fill(hash, (byte) value);
+    return hash;
+  }
+
+  @Test
+  void concatenatedHashes() {
+    byte[] data = new byte[32];
+    System.arraycopy(hash(1, 16), 0, data, 0, 16);
+    System.arraycopy(hash(2, 16), 0, data, 16, 16);
+    SftpFileHashes hashes = new SftpFileHashes("md5", 0, 1024, data);
+    assertEquals(2, hashes.getCount());
+    assertArrayEquals(hash(2, 16), hashes.getHash(1));
+    assertTrue(hashes.matches(0, hash(1, 16)));
+    assertFalse(hashes.matches(1, hash(1, 16)));
+    assertFalse(hashes.matches(2, hash(1, 16)));
+  }
+
+  @Test
+  void lengthPrefixedHashes() {
+    Buffer buf = new Buffer(64);
+    buf.putString(hash(1, 20));
+    buf.putString(hash(2, 20));
+    byte[] data = Arrays.copyOf(buf.buffer, buf.getLength());
+    SftpFileHashes hashes = new SftpFileHashes("sha1", 0, 1024, data);
+    assertEquals(2, hashes.getCount());
+    assertArrayEquals(hash(1, 20), hashes.getHash(0));
+    assertArrayEquals(hash(2, 20), hashes.getHash(1));
+  }
+
+  @Test
+  void unknownAlgorithm() {
+    SftpFileHashes hashes = new SftpFileHashes("whirlpool", 0, 0, hash(1, 10));
+    assertEquals(1, hashes.getCount());
+    assertArrayEquals(hash(1, 10), hashes.getHash(0));
+  }
+
+  @Test
+  void localBlocksAreHashedInParallel() throws Exception {
+    byte[] data = new byte[100 * 1024 + 17];
+    new Random(1).nextBytes(data);
+    Path file = dir.resolve("data");
+    Files.write(file, data);
+    Session session = new Session(new JSch(), null, null, 0);
+    byte[][] hashes;
+    try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+      hashes = SftpSync.hash(session, fc, data.length - 1000, 256, "SHA-256");
+    }
+    assertEquals((data.length - 1000 + 255) / 256, hashes.length);
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    for (int i = 0; i < hashes.length; i++) {
+      int end = Math.min(data.length - 1000, (i + 1) * 256);
+      assertArrayEquals(md.digest(Arrays.copyOfRange(data, i * 256, end)), hashes[i], "block " + i);
+    }
+  }
+
+  @Test
+  void truncatedLocalFileFails() throws Exception {
+    Path file = dir.resolve("data");
+    Files.write(file, new byte[1000]);
+    Session session = new Session(new JSch(), null, null, 0);
+    try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+      assertThrows(IOException.class, () -> SftpSync.hash(session, fc, 5000, 256, "MD5"));
+    }
+  }
+
+  @Test
+  void blockSizeGrowsForLargeFiles() {
+    assertEquals(SftpSync.MIN_BLOCK_SIZE, SftpSync.blockSize(1000, 1));
+    assertEquals(1 << 20, SftpSync.blockSize(1L << 40, 1 << 20));
+    assertEquals(1 << 20, SftpSync.blockSize(1L << 42, 1 << 10));
+  }
+}
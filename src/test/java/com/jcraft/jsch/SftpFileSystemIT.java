@@ -0,0 +1,335 @@
+package com.jcraft.jsch;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.valfirst.slf4jtest.TestLogger;
+import com.github.valfirst.slf4jtest.TestLoggerFactory;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+import org.testcontainers.images.builder.ImageFromDockerfile;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers
+public class SftpFileSystemIT {
+
+  private static final int timeout = 2000;
+  private static final TestLogger jschLogger = TestLoggerFactory.getTestLogger(JSch.class);
+  private static final TestLogger sshdLogger =
+      TestLoggerFactory.getTestLogger(SftpFileSystemIT.class);
+
+  private Slf4jLogConsumer sshdLogConsumer;
+  private Session session;
+  private SftpFileSystemProvider provider;
+
+  @Container
+  public GenericContainer<?> sshd = new GenericContainer<>(
+      new ImageFromDockerfile().withFileFromClasspath("ssh_host_rsa_key", "docker/ssh_host_rsa_key")
+          .withFileFromClasspath("ssh_host_rsa_key.pub", "docker/ssh_host_rsa_key.pub")
+          .withFileFromClasspath("ssh_host_ecdsa256_key", "docker/ssh_host_ecdsa256_key")
+          .withFileFromClasspath("ssh_host_ecdsa256_key.pub", "docker/ssh_host_ecdsa256_key.pub")
+          .withFileFromClasspath("ssh_host_ecdsa384_key", "docker/ssh_host_ecdsa384_key")
+          .withFileFromClasspath("ssh_host_ecdsa384_key.pub", "docker/ssh_host_ecdsa384_key.pub")
+          .withFileFromClasspath("ssh_host_ecdsa521_key", "docker/ssh_host_ecdsa521_key")
+          .withFileFromClasspath("ssh_host_ecdsa521_key.pub", "docker/ssh_host_ecdsa521_key.pub")
+          .withFileFromClasspath("ssh_host_ed25519_key", "docker/ssh_host_ed25519_key")
+          .withFileFromClasspath("ssh_host_ed25519_key.pub", "docker/ssh_host_ed25519_key.pub")
+          .withFileFromClasspath("ssh_host_dsa_key", "docker/ssh_host_dsa_key")
+          .withFileFromClasspath("ssh_host_dsa_key.pub", "docker/ssh_host_dsa_key.pub")
+          .withFileFromClasspath("sshd_config", "docker/sshd_config")
+          .withFileFromClasspath("authorized_keys", "docker/authorized_keys")
+          .withFileFromClasspath("Dockerfile", "docker/Dockerfile"))
+      .withExposedPorts(22);
+
+  @BeforeAll
+  public static void beforeAll() {
+    JSch.setLogger(new Slf4jLogger());
+  }
+
+  @BeforeEach
+  public void beforeEach() throws Exception {
+    if (sshdLogConsumer == null) {
+      sshdLogConsumer = new Slf4jLogConsumer(sshdLogger);
+      sshd.followOutput(sshdLogConsumer);
+    }
+
+    jschLogger.clearAll();
+    sshdLogger.clearAll();
+
+    session = createSession(createRSAIdentity());
+    session.connect(timeout);
+    provider = new SftpFileSystemProvider();
+  }
+
+  @AfterEach
+  public void afterEach() {
+    if (session != null) {
+      session.disconnect();
+    }
+  }
+
+  @AfterAll
+  public static void afterAll() {
+    JSch.setLogger(null);
+    jschLogger.clearAll();
+    sshdLogger.clearAll();
+  }
+
+  @Test
+  public void testFileSystemIsFoundByUri() throws Exception {
+    URI uri = uri();
+    SftpFileSystem fs = provider.newFileSystem(uri, env(5000));
+    try {
+      assertSame(fs, provider.getFileSystem(uri));
+      assertSame(fs, provider.getFileSystem(URI.create(uri + "root")));
+      // the URIs of paths name the user of the session
+      Path home = fs.getPath("/root");
+      assertEquals("root", home.toUri().getUserInfo());
+      assertEquals(home, provider.getPath(home.toUri()));
+      assertThrows(FileSystemAlreadyExistsException.class,
+          () -> provider.newFileSystem(uri, env(5000)));
+    } finally {
+      fs.close();
+    }
+    assertThrows(FileSystemNotFoundException.class, () -> provider.getFileSystem(uri));
+    assertThrows(FileSystemNotFoundException.class,
+        () -> provider.getPath(fs.getPath("/root").toUri()));
+    // the session was passed in, and is left connected
+    assertTrue(session.isConnected());
+  }
+
+  @Test
+  public void testNewByteChannelOptions() throws Exception {
+    try (SftpFileSystem fs = provider.newFileSystem(uri(), env(5000))) {
+      Path dir = createDirectory(fs, "channel");
+      Path file = dir.resolve("file");
+      try (SeekableByteChannel ch = Files.newByteChannel(file, CREATE_NEW, WRITE)) {
+        ch.write(UTF_8.encode("hello"));
+      }
+      assertThrows(FileAlreadyExistsException.class,
+          () -> Files.newByteChannel(file, CREATE_NEW, WRITE).close());
+      assertThrows(NoSuchFileException.class,
+          () -> Files.newByteChannel(dir.resolve("missing"), WRITE).close());
+      assertThrows(NoSuchFileException.class,
+          () -> Files.newByteChannel(dir.resolve("missing"), READ).close());
+
+      try (SeekableByteChannel ch = Files.newByteChannel(file, APPEND)) {
+        ch.write(UTF_8.encode(" world"));
+      }
+      assertEquals("hello world", read(file));
+
+      try (SeekableByteChannel ch = Files.newByteChannel(file, WRITE)) {
+        ch.position(6);
+        ch.write(UTF_8.encode("WORLD"));
+      }
+      assertEquals("hello WORLD", read(file));
+
+      try (SeekableByteChannel ch = Files.newByteChannel(file, WRITE, TRUNCATE_EXISTING)) {
+        ch.write(UTF_8.encode("bye"));
+      }
+      assertEquals("bye", read(file));
+
+      try (SeekableByteChannel ch = Files.newByteChannel(file, READ)) {
+        assertEquals(3, ch.size());
+        ch.position(1);
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(2, ch.read(buf));
+        assertEquals(-1, ch.read(buf));
+        buf.flip();
+        assertEquals("ye", UTF_8.decode(buf).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testCopyAndMove() throws Exception {
+    try (SftpFileSystem fs = provider.newFileSystem(uri(), env(5000))) {
+      Path dir = createDirectory(fs, "copy");
+      Path a = dir.resolve("a");
+      Path b = dir.resolve("b");
+      Files.write(a, "a".getBytes(UTF_8));
+      Files.write(b, "b".getBytes(UTF_8));
+
+      assertThrows(FileAlreadyExistsException.class, () -> Files.copy(a, b));
+      assertEquals("b", read(b));
+      Files.copy(a, b, REPLACE_EXISTING);
+      assertEquals("a", read(b));
+      assertEquals("a", read(a));
+      assertThrows(UnsupportedOperationException.class, () -> Files.copy(a, b, ATOMIC_MOVE));
+
+      Files.write(b, "b".getBytes(UTF_8));
+      assertThrows(FileAlreadyExistsException.class, () -> Files.move(a, b));
+      assertTrue(Files.exists(a));
+      // replaces the target atomically
+      Files.move(a, b, ATOMIC_MOVE);
+      assertFalse(Files.exists(a));
+      assertEquals("a", read(b));
+      Files.move(b, a, REPLACE_EXISTING);
+      assertFalse(Files.exists(b));
+      assertEquals("a", read(a));
+
+      Path sub = dir.resolve("sub");
+      Files.createDirectory(sub);
+      Files.copy(sub, dir.resolve("sub2"));
+      assertTrue(Files.isDirectory(dir.resolve("sub2")));
+    }
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    try (SftpFileSystem fs = provider.newFileSystem(uri(), env(5000))) {
+      Path dir = createDirectory(fs, "delete");
+      Path sub = dir.resolve("sub");
+      Files.createDirectory(sub);
+      assertThrows(FileAlreadyExistsException.class, () -> Files.createDirectory(sub));
+      Path file = sub.resolve("file");
+      Files.write(file, new byte[1]);
+
+      assertThrows(DirectoryNotEmptyException.class, () -> Files.delete(sub));
+      assertTrue(Files.exists(file));
+      Files.delete(file);
+      Files.delete(sub);
+      assertFalse(Files.exists(sub));
+      assertThrows(NoSuchFileException.class, () -> Files.delete(sub));
+      assertFalse(Files.deleteIfExists(sub));
+    }
+  }
+
+  @Test
+  public void testCacheInvalidation() throws Exception {
+    // the attributes of the paths themselves are cached, not those of the targets of links
+    try (SftpFileSystem fs = provider.newFileSystem(uri(), env(60000))) {
+      Path dir = createDirectory(fs, "cache");
+      Path file = dir.resolve("file");
+      Files.write(file, new byte[10]);
+      assertEquals(10, size(file));
+
+      // a change by another client is not seen while the attributes are cached
+      ChannelSftp sftp = (ChannelSftp) session.openChannel("sftp");
+      sftp.connect(timeout);
+      try {
+        sftp.put(new ByteArrayInputStream(new byte[20]), file.toString());
+      } finally {
+        sftp.disconnect();
+      }
+      assertEquals(10, size(file));
+
+      // changes through the file system are
+      Files.write(file, new byte[30]);
+      assertEquals(30, size(file));
+
+      // the listing fills the cache, which moves and deletes invalidate
+      List<String> names = new ArrayList<>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+        for (Path entry : entries) {
+          names.add(entry.getFileName().toString());
+          assertEquals(30, size(entry));
+        }
+      }
+      assertEquals(1, names.size());
+      Path moved = dir.resolve("moved");
+      Files.move(file, moved);
+      assertFalse(Files.exists(file, NOFOLLOW_LINKS));
+      assertEquals(30, size(moved));
+      Files.copy(moved, file);
+      assertEquals(30, size(file));
+      Files.delete(moved);
+      assertFalse(Files.exists(moved, NOFOLLOW_LINKS));
+      Files.delete(dir.resolve("file"));
+      Files.delete(dir);
+      assertFalse(Files.exists(file, NOFOLLOW_LINKS));
+      assertFalse(Files.exists(dir, NOFOLLOW_LINKS));
+    }
+  }
+
+  private Path createDirectory(SftpFileSystem fs, String name) throws Exception {
+    Path dir = fs.getPath("/root", name);
+    Files.createDirectory(dir);
+    return dir;
+  }
+
+  private static long size(Path file) throws Exception {
+    return Files.readAttributes(file, BasicFileAttributes.class, NOFOLLOW_LINKS).size();
+  }
+
+  private static String read(Path file) throws Exception {
+    return new String(Files.readAllBytes(file), UTF_8);
+  }
+
+  private URI uri() {
+    return URI.create(
+        String.format(Locale.ROOT, "sftp://%s:%d/", sshd.getHost(), sshd.getFirstMappedPort()));
+  }
+
+  private Map<String, Object> env(long cacheTtl) {
+    Map<String, Object> env = new HashMap<>();
+    env.put(SftpFileSystemProvider.SESSION, session);
+    env.put(SftpFileSystemProvider.CACHE_TTL, cacheTtl);
+    return env;
+  }
+
+  private JSch createRSAIdentity() throws Exception {
+    HostKey hostKey = readHostKey(getResourceFile("docker/ssh_host_rsa_key.pub"));
+    JSch ssh = new JSch();
+    ssh.addIdentity(getResourceFile("docker/id_rsa"), getResourceFile("docker/id_rsa.pub"), null);
+    ssh.getHostKeyRepository().add(hostKey, null);
+    return ssh;
+  }
+
+  private HostKey readHostKey(String fileName) throws Exception {
+    List<String> lines = Files.readAllLines(Paths.get(fileName), UTF_8);
+    String[] split = lines.get(0).split("\\s+");
+    String hostname =
+        String.format(Locale.ROOT, "[%s]:%d", sshd.getHost(), sshd.getFirstMappedPort());
+    return new HostKey(hostname, Base64.getDecoder().decode(split[1]));
+  }
+
+  private Session createSession(JSch ssh) throws Exception {
+    Session session = ssh.getSession("root", sshd.getHost(), sshd.getFirstMappedPort());
+    session.setConfig("StrictHostKeyChecking", "yes");
+    session.setConfig("PreferredAuthentications", "publickey");
+    return session;
+  }
+
+  private String getResourceFile(String fileName) {
+    return ResourceUtil.getResourceFile(getClass(), fileName);
+  }
+}
@@ -0,0 +1,77 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class SftpFileSystemProviderTest {
+
+  /** Takes until it is released to connect, and then fails. */
+  private static class SlowSession extends Session {
+    final CountDownLatch connecting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    SlowSession() throws JSchException {
+      super(new JSch(), "user", "slow", 22);
+    }
+
+    @Override
+    public void connect() throws JSchException {
+      connecting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      throw new JSchException("connection refused");
+    }
+  }
+
+  @Test
+  void connectingDoesNotBlockOtherFileSystems() throws Exception {
+    SftpFileSystemProvider provider = new SftpFileSystemProvider();
+    SlowSession session = new SlowSession();
+    URI uri = URI.create("sftp://user@slow/");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> creating = executor.submit(() -> provider.newFileSystem(uri,
+          Collections.singletonMap(SftpFileSystemProvider.SESSION, session)));
+      assertTrue(session.connecting.await(10, TimeUnit.SECONDS));
+
+      assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+        assertThrows(FileSystemNotFoundException.class,
+            () -> provider.getFileSystem(URI.create("sftp://other/")));
+        // the file system which is being created is reserved
+        assertThrows(FileSystemAlreadyExistsException.class,
+            () -> provider.newFileSystem(uri, Collections.emptyMap()));
+      });
+
+      session.release.countDown();
+      ExecutionException e = assertThrows(ExecutionException.class, creating::get);
+      assertInstanceOf(IOException.class, e.getCause());
+      // a failed connection leaves the key free
+      SlowSession again = new SlowSession();
+      again.release.countDown();
+      assertThrows(IOException.class, () -> provider.newFileSystem(uri,
+          Collections.singletonMap(SftpFileSystemProvider.SESSION, again)));
+    } finally {
+      session.release.countDown();
+      executor.shutdownNow();
+    }
+  }
+}
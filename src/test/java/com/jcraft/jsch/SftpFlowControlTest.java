@@ -0,0 +1,77 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class SftpFlowControlTest {
+
+  private static final long MS = 1_000_000L;
+
+  /**
+   * Simulates a link of the given bandwidth and round trip time: the responses to a full round of
+   * requests arrive one round trip later, but not faster than the link allows.
+   */
+  private static void run(SftpFlowControl flow, long rtt, long bytesPerSecond, int rounds) {
+    long now = 1;
+    for (int r = 0; r < rounds; r++) {
+      int depth = flow.depth();
+      int chunk = flow.chunk();
+      long duration = Math.max(rtt, (long) depth * chunk * 1_000_000_000L / bytesPerSecond);
+      for (int i = 0; i < depth; i++) {
+        flow.completed(now, now + rtt + duration * i / depth, chunk);
+      }
+      now += duration;
+    }
+  }
+
+  @Test
+  void growsToBandwidthDelayProduct() {
+    // 10 MB/s at 50 ms: 500 KB in flight, twice that is targeted
+    SftpFlowControl flow = new SftpFlowControl(2, 64, 32768, 32768, true, null);
+    run(flow, 50 * MS, 10_000_000L, 30);
+    int inflight = flow.depth() * flow.chunk();
+    assertTrue(inflight >= 500_000, "in flight: " + inflight);
+    assertTrue(inflight <= 1_200_000, "in flight: " + inflight);
+  }
+
+  @Test
+  void keepsInitialDepthOnFastLink() {
+    SftpFlowControl flow = new SftpFlowControl(16, 64, 32768, 32768, true, null);
+    run(flow, 200_000L, 100_000_000L, 30);
+    assertEquals(16, flow.depth());
+  }
+
+  @Test
+  void growsRequestSizeAtMaximumDepth() {
+    SftpFlowControl flow = new SftpFlowControl(16, 16, 32768, 262144, true, null);
+    run(flow, 100 * MS, 100_000_000L, 30);
+    assertEquals(16, flow.depth());
+    assertEquals(262144, flow.chunk());
+
+    flow.limitChunk(65536);
+    assertEquals(65536, flow.chunk());
+    run(flow, 100 * MS, 100_000_000L, 5);
+    assertEquals(65536, flow.chunk());
+  }
+
+  @Test
+  void fixedReportsToMonitor() {
+    List<long[]> updates = new ArrayList<>();
+    SftpFlowControl flow =
+        new SftpFlowControl(8, 64, 4096, 65536, false, (requests, requestSize, rtt, minRtt,
+            goodput) -> updates.add(new long[] {requests, requestSize, rtt, minRtt, goodput}));
+    run(flow, 20 * MS, 1_000_000L, 10);
+    assertEquals(8, flow.depth());
+    assertEquals(4096, flow.chunk());
+    assertTrue(updates.size() >= 5);
+    long[] last = updates.get(updates.size() - 1);
+    assertEquals(8, last[0]);
+    assertEquals(4096, last[1]);
+    assertEquals(20 * MS, last[3]);
+    assertTrue(last[4] > 0);
+  }
+}
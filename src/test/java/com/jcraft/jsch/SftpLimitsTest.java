@@ -0,0 +1,41 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class SftpLimitsTest {
+
+  @Test
+  void getLimits() {
+    Buffer buf = new Buffer(32);
+    buf.putLong(256 * 1024);
+    buf.putLong(255 * 1024);
+    buf.putLong(128 * 1024);
+    buf.putLong(0);
+    SftpLimits limits = SftpLimits.getLimits(buf);
+    assertEquals(256 * 1024, limits.maxPacketLength);
+    assertEquals(255 * 1024, limits.maxReadLength);
+    assertEquals(128 * 1024, limits.maxWriteLength);
+    assertEquals(0, limits.maxOpenHandles);
+  }
+
+  @Test
+  void unknownLimitsAreNotApplied() {
+    assertEquals(1 << 20, SftpLimits.NONE.readLength(1 << 20));
+    assertEquals(1 << 20, SftpLimits.NONE.writeLength(1 << 20, 4));
+    assertEquals(32, SftpLimits.NONE.openHandles(32));
+  }
+
+  @Test
+  void limitsCapLengths() {
+    SftpLimits limits = new SftpLimits(32768, 16384, 65536, 8);
+    assertEquals(16384, limits.readLength(65536));
+    assertEquals(1024, limits.readLength(1024));
+    // the packet length bounds the write together with the handle and the header
+    assertEquals(32768 - 25 - 4, limits.writeLength(65536, 4));
+    assertEquals(1024, limits.writeLength(1024, 4));
+    assertEquals(8, limits.openHandles(32));
+    assertEquals(4, limits.openHandles(4));
+  }
+}
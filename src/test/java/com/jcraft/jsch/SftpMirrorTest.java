@@ -0,0 +1,189 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpMirrorTest {
+
+  @TempDir
+  Path tmp;
+
+  /** Serves directory listings and records the directories it is asked to create. */
+  private static class Server extends MockChannelSftp {
+    final Map<String, List<String>> listings = new HashMap<>();
+    final Set<String> files = new HashSet<>();
+    final List<String> mkdirs = new ArrayList<>();
+
+    @Override
+    public synchronized CompletableFuture<SftpATTRS> statAsync(String path) {
+      if (listings.containsKey(path)) {
+        return CompletableFuture.completedFuture(attrs(SftpATTRS.S_IFDIR));
+      }
+      if (files.contains(path)) {
+        return CompletableFuture.completedFuture(attrs(SftpATTRS.S_IFREG));
+      }
+      return failed(SSH_FX_NO_SUCH_FILE, path);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> mkdirAsync(String path) {
+      mkdirs.add(path);
+      if (listings.containsKey(path) || files.contains(path)) {
+        return failed(SSH_FX_FAILURE, path);
+      }
+      listings.put(path, new ArrayList<>());
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<SftpHandle> opendirAsync(String path) {
+      return CompletableFuture.completedFuture(new SftpHandle(new byte[4], path, true));
+    }
+
+    @Override
+    public synchronized CompletableFuture<List<LsEntry>> readdirAsync(SftpHandle handle) {
+      List<String> names = listings.put(handle.getPath(), null);
+      if (names == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      List<LsEntry> entries = new ArrayList<>();
+      for (String name : names) {
+        entries.add(new LsEntry(name, name, attrs(SftpATTRS.S_IFREG)));
+      }
+      return CompletableFuture.completedFuture(entries);
+    }
+  }
+
+  private static boolean matches(String glob, String path) {
+    Pattern pattern = SftpMirror.compile(glob);
+    return pattern.matcher(path).matches();
+  }
+
+  @Test
+  void nameGlobMatchesInAnyDirectory() {
+    assertTrue(matches("*.txt", "a.txt"));
+    assertTrue(matches("*.txt", "dir/sub/a.txt"));
+    assertFalse(matches("*.txt", "a.txt.bak"));
+    assertTrue(matches("?.log", "x/1.log"));
+    assertFalse(matches("?.log", "12.log"));
+    assertTrue(matches("a+b(1).txt", "a+b(1).txt"));
+  }
+
+  @Test
+  void pathGlobMatchesRelativePath() {
+    assertTrue(matches("src/*.java", "src/A.java"));
+    assertFalse(matches("src/*.java", "src/main/A.java"));
+    assertFalse(matches("src/*.java", "lib/src/A.java"));
+    assertTrue(matches("src/**/*.java", "src/A.java"));
+    assertTrue(matches("src/**/*.java", "src/main/java/A.java"));
+    assertTrue(matches("**/target", "target"));
+    assertTrue(matches("**/target", "a/b/target"));
+  }
+
+  @Test
+  void includesApplyToFilesOnly() {
+    SftpMirror mirror = new SftpMirror(Collections.singletonList(new ChannelSftp()));
+    mirror.addInclude("*.java");
+    mirror.addExclude("build");
+    mirror.addExclude("*Test.java");
+
+    assertTrue(mirror.acceptDirectory("src"));
+    assertFalse(mirror.acceptDirectory("build"));
+    assertFalse(mirror.acceptDirectory("a/build"));
+    assertTrue(mirror.acceptFile("src/A.java"));
+    assertFalse(mirror.acceptFile("src/ATest.java"));
+    assertFalse(mirror.acceptFile("README"));
+  }
+
+  @Test
+  void safeNames() {
+    assertTrue(SftpMirror.isSafeName("a.txt"));
+    assertTrue(SftpMirror.isSafeName("..a"));
+    assertFalse(SftpMirror.isSafeName(""));
+    assertFalse(SftpMirror.isSafeName("."));
+    assertFalse(SftpMirror.isSafeName(".."));
+    assertFalse(SftpMirror.isSafeName("../a"));
+    assertFalse(SftpMirror.isSafeName("a/b"));
+    assertFalse(SftpMirror.isSafeName("/etc"));
+    assertEquals(File.separatorChar != '\\', SftpMirror.isSafeName("..\\a"));
+  }
+
+  @Test
+  void localPathMustStayBelowRoot() throws Exception {
+    File root = tmp.toFile();
+    assertEquals(tmp.resolve("a").resolve("b").toAbsolutePath().normalize(),
+        SftpMirror.local(root, "a/b"));
+    assertThrows(SftpException.class, () -> SftpMirror.local(root, "../x"));
+    assertThrows(SftpException.class, () -> SftpMirror.local(root, "a/../../x"));
+    assertThrows(SftpException.class, () -> SftpMirror.local(root, "a/.."));
+  }
+
+  @Test
+  void getRejectsNamesWhichEscapeTheTarget() throws Exception {
+    Server server = new Server();
+    server.listings.put("/src", new ArrayList<>(Arrays.asList("ok", "../../.ssh/authorized_keys")));
+    File dst = tmp.resolve("a").resolve("b").toFile();
+
+    SftpMirror mirror = new SftpMirror(Collections.singletonList(server));
+    SftpException e =
+        assertThrows(SftpException.class, () -> mirror.get("/src", dst.getAbsolutePath()));
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, e.id);
+    assertTrue(e.getMessage().contains("../../.ssh/authorized_keys"), e.getMessage());
+    assertFalse(Files.exists(tmp.resolve(".ssh")));
+    assertFalse(dst.exists());
+  }
+
+  @Test
+  void mkdirsCreatesLevelByLevel() throws Exception {
+    Server server = new Server();
+    SftpMirror mirror = new SftpMirror(Arrays.asList(server, server));
+    mirror.mkdirs("/dst", Arrays.asList("a", "a/b", "c", "a/b/d"));
+
+    assertEquals(Arrays.asList("/dst", "/dst/a", "/dst/c", "/dst/a/b", "/dst/a/b/d"),
+        server.mkdirs);
+  }
+
+  @Test
+  void mkdirsAcceptsExistingDirectories() throws Exception {
+    Server server = new Server();
+    server.listings.put("/dst", new ArrayList<>());
+    server.listings.put("/dst/a", new ArrayList<>());
+    SftpMirror mirror = new SftpMirror(Collections.singletonList(server));
+    mirror.mkdirs("/dst", Arrays.asList("a", "a/b"));
+
+    assertEquals(Arrays.asList("/dst", "/dst/a", "/dst/a/b"), server.mkdirs);
+    assertTrue(server.listings.containsKey("/dst/a/b"));
+  }
+
+  @Test
+  void mkdirsFailsOnExistingFile() throws Exception {
+    Server server = new Server();
+    server.listings.put("/dst", new ArrayList<>());
+    server.files.add("/dst/a");
+    SftpMirror mirror = new SftpMirror(Collections.singletonList(server));
+
+    SftpException e =
+        assertThrows(SftpException.class, () -> mirror.mkdirs("/dst", Arrays.asList("a", "a/b")));
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, e.id);
+    assertEquals(Arrays.asList("/dst", "/dst/a"), server.mkdirs);
+  }
+}
@@ -0,0 +1,112 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SftpOutputStreamTest {
+
+  private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** Acknowledges the writes after a delay, and fails the ones beyond <code>limit</code>. */
+  private class Server extends MockChannelSftp {
+    long limit = Long.MAX_VALUE;
+    int writes;
+    int outstanding;
+    int maxOutstanding;
+    boolean invalidated;
+
+    @Override
+    public synchronized CompletableFuture<Void> writeAsync(SftpHandle handle, long offset, byte[] b,
+        int off, int len) {
+      writes++;
+      maxOutstanding = Math.max(maxOutstanding, ++outstanding);
+      if (offset + len > limit) {
+        outstanding--;
+        return failed(SSH_FX_FAILURE, "no space");
+      }
+      writeFile(offset, b, off, len);
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      executor.schedule(() -> {
+        synchronized (this) {
+          outstanding--;
+        }
+        future.complete(null);
+      }, 200, TimeUnit.MICROSECONDS);
+      return future;
+    }
+
+    OutputStream open(long offset) throws Exception {
+      return new SftpOutputStream(this, new SftpHandle(new byte[4], "/file", false), offset, null,
+          () -> invalidated = true);
+    }
+  }
+
+  @Test
+  void smallWritesAreCoalesced() throws Exception {
+    Server server = new Server();
+    byte[] data = new byte[300_000];
+    new Random(42).nextBytes(data);
+    try (OutputStream out = server.open(0)) {
+      for (int i = 0; i < data.length; i += 100) {
+        out.write(data, i, 100);
+      }
+    }
+    assertArrayEquals(data, server.file);
+    int max = server.dispatcher().maxWriteLength(new SftpHandle(new byte[4], "/file", false));
+    assertEquals((data.length + max - 1) / max, server.writes);
+    assertTrue(server.maxOutstanding <= server.getBulkRequests());
+    assertTrue(server.closed);
+    assertTrue(server.invalidated);
+  }
+
+  @Test
+  void largeWritesAreSplitAtOffset() throws Exception {
+    Server server = new Server();
+    byte[] data = new byte[200_000];
+    new Random(42).nextBytes(data);
+    try (OutputStream out = server.open(10)) {
+      out.write(data, 0, 5);
+      out.write(data, 5, data.length - 5);
+      out.flush();
+      assertEquals(0, server.outstanding);
+    }
+    assertArrayEquals(data, Arrays.copyOfRange(server.file, 10, server.file.length));
+    assertTrue(server.maxOutstanding <= server.getBulkRequests());
+  }
+
+  @Test
+  void failedWriteIsReported() throws Exception {
+    Server server = new Server();
+    server.limit = 100_000;
+    OutputStream out = server.open(0);
+    byte[] b = new byte[1000];
+    IOException e = assertThrows(IOException.class, () -> {
+      for (int i = 0; i < 1000; i++) {
+        out.write(b);
+      }
+    });
+    assertEquals(ChannelSftp.SSH_FX_FAILURE, ((SftpException) e.getCause()).id);
+    assertThrows(IOException.class, () -> out.write(b));
+    assertThrows(IOException.class, out::close);
+    assertTrue(server.closed);
+    assertThrows(IOException.class, () -> out.write(1));
+  }
+}
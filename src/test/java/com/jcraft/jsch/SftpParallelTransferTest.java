@@ -0,0 +1,160 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jcraft.jsch.SftpParallelTransfer.Segment;
+import com.jcraft.jsch.SftpTransferJournal.Range;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpParallelTransferTest {
+
+  private static final long MB = 1024 * 1024;
+
+  /** Hashes ranges of <code>data</code>, or does not support "check-file-handle" without it. */
+  private static class Server extends MockChannelSftp {
+    byte[] data;
+    int checks = 0;
+
+    @Override
+    public CompletableFuture<SftpFileHashes> checkFileAsync(SftpHandle handle, String algorithms,
+        long offset, long length, int blockSize) {
+      checks++;
+      if (data == null) {
+        return failed(SSH_FX_OP_UNSUPPORTED, "check-file-handle is not supported");
+      } else if (offset + length > data.length) {
+        return failed(SSH_FX_EOF, "EOF");
+      }
+      return CompletableFuture.completedFuture(new SftpFileHashes(algorithms, offset, blockSize,
+          sha256(Arrays.copyOfRange(data, (int) offset, (int) (offset + length)))));
+    }
+  }
+
+  private static class Counter implements SftpProgressMonitor {
+    long count = 0;
+
+    @Override
+    public void init(int op, String src, String dest, long max) {}
+
+    @Override
+    public boolean count(long n) {
+      count += n;
+      return true;
+    }
+
+    @Override
+    public void end() {}
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  void splitLargeFile() {
+    List<Segment> segments = SftpParallelTransfer.split(200 * MB + 1, 32 * MB, 4);
+    assertEquals(7, segments.size());
+    assertEquals(0, segments.get(0).offset);
+    assertEquals(32 * MB, segments.get(0).end);
+    assertEquals(192 * MB, segments.get(6).offset);
+    assertEquals(200 * MB + 1, segments.get(6).end);
+  }
+
+  @Test
+  void splitSmallFileAcrossChannels() {
+    List<Segment> segments = SftpParallelTransfer.split(10 * MB, 32 * MB, 4);
+    assertEquals(4, segments.size());
+    for (int i = 0; i < segments.size(); i++) {
+      assertEquals(i * (10 * MB / 4), segments.get(i).offset);
+    }
+    assertEquals(10 * MB, segments.get(3).end);
+
+    // but not into segments smaller than 1 MiB
+    assertEquals(2, SftpParallelTransfer.split(MB + 1, 32 * MB, 4).size());
+    assertEquals(0, SftpParallelTransfer.split(0, 32 * MB, 4).size());
+  }
+
+  @Test
+  void splitLeavesOutJournaledRanges() {
+    byte[] hash = {1};
+    List<Range> done = Arrays.asList(new Range(0, 10 * MB, null), new Range(10 * MB, 12 * MB, hash),
+        new Range(20 * MB, 30 * MB, null));
+    List<Segment> segments = SftpParallelTransfer.split(35 * MB, 4 * MB, 4, done);
+    assertEquals(5, segments.size());
+    // the range with a hash is checked before it is transferred again
+    assertEquals(10 * MB, segments.get(0).offset);
+    assertEquals(12 * MB, segments.get(0).end);
+    assertArrayEquals(hash, segments.get(0).hash);
+    assertEquals(12 * MB, segments.get(1).offset);
+    assertEquals(16 * MB, segments.get(1).end);
+    assertNull(segments.get(1).hash);
+    assertEquals(20 * MB, segments.get(2).end);
+    assertEquals(30 * MB, segments.get(3).offset);
+    assertEquals(34 * MB, segments.get(3).end);
+    assertEquals(35 * MB, segments.get(4).end);
+  }
+
+  @Test
+  void journalStartsOverIfTheDestinationIsTooShort(@TempDir Path tmp) throws Exception {
+    Path path = tmp.resolve("j");
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      journal.record(0, 40, null);
+      journal.record(60, 100, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      SftpParallelTransfer.checkDestination(journal, 100);
+      assertEquals(2, journal.ranges().size());
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      // the destination has been truncated, or removed and created again
+      SftpParallelTransfer.checkDestination(journal, 0);
+      assertEquals(0, journal.ranges().size());
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(0, journal.ranges().size());
+    }
+  }
+
+  @Test
+  void uploadedSegmentIsCheckedOnTheServer() throws Exception {
+    byte[] source = new byte[100];
+    Arrays.fill(source, (byte) 'a');
+    Segment segment = new Segment(10, 60, sha256(Arrays.copyOfRange(source, 10, 60)));
+    SftpHandle handle = new SftpHandle(new byte[4], "/file", false);
+    Server server = new Server();
+    Counter counter = new Counter();
+
+    server.data = source.clone();
+    assertTrue(SftpParallelTransfer.uploaded(server, handle, segment, counter));
+    assertEquals(50, counter.count);
+
+    // the remote data differs from the source the hash was recorded from
+    server.data[59] = 'b';
+    assertFalse(SftpParallelTransfer.uploaded(server, handle, segment, counter));
+    // the remote file is shorter than the segment
+    server.data = Arrays.copyOf(source, 30);
+    assertFalse(SftpParallelTransfer.uploaded(server, handle, segment, counter));
+    // the server cannot hash the file, so the segment is sent again
+    server.data = null;
+    assertFalse(SftpParallelTransfer.uploaded(server, handle, segment, counter));
+    assertEquals(50, counter.count);
+    assertEquals(4, server.checks);
+
+    // a segment recorded without a hash is never checked
+    assertFalse(SftpParallelTransfer.uploaded(server, handle, new Segment(10, 60), counter));
+    assertEquals(4, server.checks);
+  }
+}
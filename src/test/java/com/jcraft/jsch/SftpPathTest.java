@@ -0,0 +1,83 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class SftpPathTest {
+
+  private static SftpPath path(String path) {
+    return new SftpPath(null, path);
+  }
+
+  @Test
+  void slashesAreNormalized() {
+    assertEquals("/a/b", path("//a///b/").toString());
+    assertEquals("/", path("/").toString());
+    assertEquals("", path("").toString());
+    assertEquals(2, path("/a/b").getNameCount());
+    assertEquals(0, path("/").getNameCount());
+    assertEquals(1, path("").getNameCount());
+    assertThrows(InvalidPathException.class, () -> path("a\0b"));
+  }
+
+  @Test
+  void names() {
+    SftpPath p = path("/a/b/c");
+    assertTrue(p.isAbsolute());
+    assertEquals("c", p.getFileName().toString());
+    assertEquals("/a/b", p.getParent().toString());
+    assertEquals("/", p.getRoot().toString());
+    assertEquals("b", p.getName(1).toString());
+    assertEquals("b/c", p.subpath(1, 3).toString());
+    assertNull(path("/").getFileName());
+    assertNull(path("a").getParent());
+    assertNull(path("a").getRoot());
+    assertTrue(p.startsWith("/a"));
+    assertFalse(p.startsWith("a"));
+    assertFalse(p.startsWith("/a/bc"));
+    assertTrue(p.endsWith("b/c"));
+    assertFalse(p.endsWith("/b/c"));
+  }
+
+  @Test
+  void resolveAndRelativize() {
+    assertEquals("/a/b/c", path("/a/b/./x/../c").normalize().toString());
+    assertEquals("../a", path("../a").normalize().toString());
+    assertEquals("/a", path("/../a").normalize().toString());
+    assertEquals("/a/b/c", path("/a").resolve("b/c").toString());
+    assertEquals("/c", path("/a").resolve("/c").toString());
+    assertEquals("/a/d", path("/a/b").resolveSibling("d").toString());
+    assertEquals("../d/e", path("/a/b").relativize(path("/a/d/e")).toString());
+    assertEquals("", path("/a").relativize(path("/a")).toString());
+    assertEquals(path("/a/b"), path("/a").resolve(path("/a").relativize(path("/a/b"))));
+  }
+
+  @Test
+  void globToRegex() {
+    Pattern p = Pattern.compile(SftpFileSystem.globToRegex("/d/*.{txt,log}"));
+    assertTrue(p.matcher("/d/a.txt").matches());
+    assertTrue(p.matcher("/d/a.log").matches());
+    assertFalse(p.matcher("/d/e/a.txt").matches());
+    assertFalse(p.matcher("/d/a.bin").matches());
+    p = Pattern.compile(SftpFileSystem.globToRegex("/d/**/[!.]?.c"));
+    assertTrue(p.matcher("/d/e/f/ab.c").matches());
+    assertFalse(p.matcher("/d/e/.b.c").matches());
+    p = Pattern.compile(SftpFileSystem.globToRegex("a+b(c)"));
+    assertTrue(p.matcher("a+b(c)").matches());
+  }
+
+  @Test
+  void permissions() {
+    assertEquals("rwxr-x---",
+        PosixFilePermissions.toString(SftpFileAttributes.permissions(0100750)));
+    assertEquals(0640, SftpFileAttributes.mode(PosixFilePermissions.fromString("rw-r-----")));
+  }
+}
@@ -0,0 +1,113 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.jcraft.jsch.SftpTransferJournal.Range;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpTransferJournalTest {
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  void rangesSurviveReopening() throws Exception {
+    Path path = tmp.resolve("j");
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(0, journal.ranges().size());
+      journal.record(50, 100, new byte[] {1, 2, 3});
+      journal.record(0, 20, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      List<Range> ranges = journal.ranges();
+      assertEquals(2, ranges.size());
+      assertEquals(0, ranges.get(0).offset);
+      assertEquals(20, ranges.get(0).end);
+      assertNull(ranges.get(0).hash);
+      assertEquals(50, ranges.get(1).offset);
+      assertArrayEquals(new byte[] {1, 2, 3}, ranges.get(1).hash);
+      // a range recorded again replaces the earlier record
+      journal.record(50, 100, new byte[] {4});
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(2, journal.ranges().size());
+      assertArrayEquals(new byte[] {4}, journal.ranges().get(1).hash);
+    }
+  }
+
+  @Test
+  void tornRecordIsDropped() throws Exception {
+    Path path = tmp.resolve("j");
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "put a b 100")) {
+      journal.record(0, 10, null);
+      journal.record(10, 20, null);
+    }
+    long size = Files.size(path);
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      fc.truncate(size - 3);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "put a b 100")) {
+      assertEquals(1, journal.ranges().size());
+      journal.record(10, 30, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "put a b 100")) {
+      assertEquals(2, journal.ranges().size());
+      assertEquals(30, journal.ranges().get(1).end);
+    }
+  }
+
+  @Test
+  void otherTransferStartsOver() throws Exception {
+    Path path = tmp.resolve("j");
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      journal.record(0, 10, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 101")) {
+      assertEquals(0, journal.ranges().size());
+    }
+    SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 101");
+    journal.delete();
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  void resetDropsTheRecordedRanges() throws Exception {
+    Path path = tmp.resolve("j");
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(0, journal.end());
+      journal.record(50, 100, null);
+      journal.record(0, 20, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(100, journal.end());
+      journal.reset();
+      assertEquals(0, journal.ranges().size());
+      assertEquals(0, journal.end());
+      journal.record(0, 10, null);
+    }
+    try (SftpTransferJournal journal = SftpTransferJournal.open(path, "get a b 100")) {
+      assertEquals(1, journal.ranges().size());
+      assertEquals(10, journal.end());
+    }
+  }
+
+  @Test
+  void hashOfRange() throws Exception {
+    Path path = tmp.resolve("f");
+    Files.write(path, "0123456789".getBytes("UTF-8"));
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+      assertArrayEquals(
+          java.security.MessageDigest.getInstance("SHA-256").digest("2345".getBytes("UTF-8")),
+          SftpTransferJournal.hash(fc, 2, 6));
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SftpTransferStatsTest {
+
+  private volatile boolean closed = false;
+  private final ChannelSftp channel = new ChannelSftp() {
+    @Override
+    SftpDispatcher dispatcher() throws SftpException {
+      if (closed) {
+        throw new SftpException(SSH_FX_CONNECTION_LOST, "channel is closed");
+      }
+      return new SftpDispatcher(this, new ByteArrayInputStream(new byte[0]));
+    }
+  };
+
+  // sampled by the tests, which let the executor run only the tasks submitted by init() and end()
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+  private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+
+  {
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private SftpTransferStats stats(SftpTransferListener listener) {
+    return new SftpTransferStats(channel, listener, TimeUnit.HOURS.toMillis(1), executor,
+        clock::get);
+  }
+
+  /** Waits until the executor has run the tasks submitted so far. */
+  private void drain() throws Exception {
+    executor.submit(() -> {
+    }).get(5, TimeUnit.SECONDS);
+  }
+
+  private void advance(long millis) {
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /** Records the calls. */
+  private static class Recorder implements SftpTransferListener {
+    final List<Long> stalls = new ArrayList<>();
+    int samples;
+    boolean done;
+
+    @Override
+    public void sample(SftpTransferStats stats) {
+      samples++;
+      done = stats.isDone();
+    }
+
+    @Override
+    public void stalled(SftpTransferStats stats, long millis) {
+      stalls.add(millis);
+    }
+  }
+
+  @Test
+  void samplesThroughputAndEta() throws Exception {
+    Recorder recorder = new Recorder();
+    SftpTransferStats stats = stats(recorder);
+    stats.init(SftpProgressMonitor.GET, "src", "dest", 1_000_000);
+    drain();
+    assertSame(stats, channel.transferStats);
+    assertEquals(-1, stats.getEta());
+
+    assertTrue(stats.count(100_000));
+    advance(1000);
+    stats.sample();
+    assertEquals(100_000, stats.getThroughput());
+    assertEquals(100_000, stats.getAverageThroughput());
+    assertEquals(9000, stats.getEta());
+
+    assertTrue(stats.count(300_000));
+    advance(1000);
+    stats.sample();
+    assertEquals(300_000, stats.getThroughput());
+    // the average moves by 1 - e^(-1s / 5s) of the difference
+    long average = (long) (100_000 + 200_000 * (1 - Math.exp(-0.2)));
+    assertEquals(average, stats.getAverageThroughput());
+    assertEquals(600_000 * 1000 / average, stats.getEta(), 1);
+    assertEquals(400_000, stats.getBytes());
+    assertEquals(2000, stats.getElapsedMillis());
+    assertFalse(stats.isDone());
+    assertEquals(2, recorder.samples);
+
+    advance(500);
+    stats.end();
+    drain();
+    assertTrue(recorder.done);
+    assertEquals(3, recorder.samples);
+    assertNull(channel.transferStats);
+    assertEquals(0, stats.getEta());
+    assertEquals(2500, stats.getElapsedMillis());
+    assertTrue(recorder.stalls.isEmpty());
+  }
+
+  @Test
+  void reportsEachStallOnce() throws Exception {
+    Recorder recorder = new Recorder();
+    SftpTransferStats stats = stats(recorder);
+    stats.setStallTimeout(50);
+    stats.init(SftpProgressMonitor.PUT, "src", "dest", SftpProgressMonitor.UNKNOWN_SIZE);
+    drain();
+
+    advance(40);
+    stats.sample();
+    assertFalse(stats.isStalled());
+    advance(20);
+    stats.sample();
+    assertTrue(stats.isStalled());
+    assertEquals(Arrays.asList(60L), recorder.stalls);
+    assertEquals(-1, stats.getEta());
+    advance(100);
+    stats.sample();
+    assertTrue(stats.isStalled());
+    assertEquals(1, recorder.stalls.size());
+
+    stats.count(1);
+    advance(10);
+    stats.sample();
+    assertFalse(stats.isStalled());
+    advance(70);
+    stats.sample();
+    assertEquals(Arrays.asList(60L, 70L), recorder.stalls);
+
+    stats.end();
+    drain();
+    assertTrue(recorder.done);
+    assertFalse(stats.isStalled());
+    assertEquals(2, recorder.stalls.size());
+  }
+
+  @Test
+  void histogramBoundsPercentiles() {
+    SftpTransferStats stats = new SftpTransferStats(channel);
+    assertEquals(0, stats.getRttPercentile(50));
+    for (int i = 0; i < 90; i++) {
+      stats.rtt(1000); // 2^9 <= 1000 < 2^10
+    }
+    for (int i = 0; i < 10; i++) {
+      stats.rtt(1_000_000); // 2^19 <= 1000000 < 2^20
+    }
+    assertEquals(100, stats.getRequests());
+    assertEquals(90, stats.getRttHistogram()[9]);
+    assertEquals(10, stats.getRttHistogram()[19]);
+    assertEquals(1 << 10, stats.getRttPercentile(50));
+    assertEquals(1 << 10, stats.getRttPercentile(90));
+    assertEquals(1 << 20, stats.getRttPercentile(99));
+    assertEquals((90 * 1000 + 10 * 1_000_000) / 100, stats.getAverageRtt());
+  }
+
+  @Test
+  void cancelStopsTheTransfer() {
+    SftpTransferStats stats = stats(null);
+    stats.init(SftpProgressMonitor.GET, "src", "dest", 10);
+    assertTrue(stats.count(1));
+    stats.cancel();
+    assertFalse(stats.count(1));
+    stats.end();
+    assertTrue(stats.isDone());
+  }
+
+  @Test
+  void resumedBytesAreLeftOutOfTheThroughput() throws Exception {
+    SftpTransferStats stats = stats(null);
+    stats.init(SftpProgressMonitor.PUT, "src", "dest", 1_000_000);
+    drain();
+    SftpTransferStats.skip(stats, 900_000);
+    stats.count(10_000);
+    advance(1000);
+    stats.sample();
+    assertEquals(10_000, stats.getThroughput());
+    assertEquals(910_000, stats.getBytes());
+    assertEquals(9000, stats.getEta());
+  }
+
+  @Test
+  void failedTransferIsNoLongerSampled() throws Exception {
+    Recorder recorder = new Recorder();
+    SftpTransferStats stats = stats(recorder);
+    stats.setStallTimeout(50);
+    stats.init(SftpProgressMonitor.GET, "src", "dest", 10);
+    drain();
+    stats.failed();
+    drain();
+    assertTrue(stats.isDone());
+    assertNull(channel.transferStats);
+    advance(100);
+    stats.sample();
+    assertTrue(recorder.stalls.isEmpty());
+    assertTrue(executor.getQueue().isEmpty());
+  }
+
+  @Test
+  void closedChannelEndsTheSampling() throws Exception {
+    Recorder recorder = new Recorder();
+    SftpTransferStats stats = stats(recorder);
+    stats.setStallTimeout(50);
+    stats.init(SftpProgressMonitor.GET, "src", "dest", 10);
+    drain();
+    assertSame(stats, channel.transferStats);
+
+    closed = true;
+    advance(100);
+    stats.sample();
+    drain();
+    assertTrue(stats.isDone());
+    assertTrue(recorder.done);
+    assertNull(channel.transferStats);
+    assertTrue(recorder.stalls.isEmpty());
+    // the periodic sample has been cancelled
+    assertTrue(executor.getQueue().isEmpty());
+  }
+}
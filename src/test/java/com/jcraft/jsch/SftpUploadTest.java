@@ -0,0 +1,130 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SftpUploadTest {
+
+  @TempDir
+  Path tmp;
+
+  private byte[] remote = new byte[0];
+  private int writes = 0;
+
+  /** Decodes every SSH_FXP_WRITE into the remote file, and acknowledges it. */
+  private final SftpDispatcher dispatcher =
+      new SftpDispatcher(new ChannelSftp(), new ByteArrayInputStream(new byte[0])) {
+        @Override
+        <T> CompletableFuture<T> request(Reply<T> reply, byte type, int length,
+            Consumer<Buffer> body) {
+          Buffer buf = new Buffer(length);
+          try {
+            body.accept(buf);
+          } catch (UncheckedIOException e) {
+            reply.completeExceptionally(new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                e.getCause().toString(), e.getCause()));
+            return reply;
+          }
+          assertEquals(length, buf.index);
+          buf.getString();
+          int offset = (int) buf.getLong();
+          byte[] data = buf.getString();
+          synchronized (SftpUploadTest.this) {
+            writes++;
+            if (offset + data.length > remote.length) {
+              remote = Arrays.copyOf(remote, offset + data.length);
+            }
+            System.arraycopy(data, 0, remote, offset, data.length);
+          }
+          reply.complete(null);
+          return reply;
+        }
+
+        @Override
+        int maxWriteLength(SftpHandle handle) {
+          return 32768;
+        }
+      };
+
+  private SftpUpload upload(long offset) {
+    return new SftpUpload(dispatcher, new SftpHandle(new byte[4], "file", false), offset,
+        new SftpFlowControl(8, 8, 32768, 32768, false, null), null);
+  }
+
+  private Path file(int size) throws Exception {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    Path path = tmp.resolve("file" + size);
+    Files.write(path, data);
+    return path;
+  }
+
+  @Test
+  void transferFromFileReadsItsRange() throws Exception {
+    Path path = file(100_000);
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+      upload(0).transferFrom(fc, 1000, 70_000);
+    }
+    assertArrayEquals(Arrays.copyOfRange(Files.readAllBytes(path), 1000, 70_000), remote);
+    assertEquals(3, writes);
+  }
+
+  @Test
+  void transferFromLargeFile() throws Exception {
+    int size = 8 * 1024 * 1024 + 12345;
+    Path path = file(size);
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+      upload(100).transferFrom(fc, 0, size);
+    }
+    byte[] expected = new byte[100 + size];
+    System.arraycopy(Files.readAllBytes(path), 0, expected, 100, size);
+    assertArrayEquals(expected, remote);
+    assertEquals((size + 32767) / 32768, writes);
+  }
+
+  @Test
+  void transferFromTruncatedFile() throws Exception {
+    int size = 8 * 1024 * 1024 + 12345;
+    Path path = file(size);
+    SftpProgressMonitor truncate = new SftpProgressMonitor() {
+      @Override
+      public void init(int op, String src, String dest, long max) {}
+
+      @Override
+      public boolean count(long count) {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+          fc.truncate(65536);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+        return true;
+      }
+
+      @Override
+      public void end() {}
+    };
+    SftpUpload upload = new SftpUpload(dispatcher, new SftpHandle(new byte[4], "file", false), 0,
+        new SftpFlowControl(8, 8, 32768, 32768, false, null), truncate);
+    try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+      SftpException e = assertThrows(SftpException.class, () -> upload.transferFrom(fc, 0, size));
+      assertInstanceOf(EOFException.class, e.getCause());
+    }
+    assertEquals(2, writes);
+  }
+}
@@ -0,0 +1,67 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class WindowAdjusterTest {
+
+  /** Fails to write the first window adjusts, as if a key exchange took too long. */
+  private static class FailingSession extends Session {
+    int failures = 1;
+    final BlockingQueue<Integer> written = new LinkedBlockingQueue<>();
+
+    FailingSession() throws JSchException {
+      super(new JSch(), "user", "host", 22);
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    void write(Packet[] packets, Channel[] channels, int count) throws Exception {
+      if (failures-- > 0) {
+        throw new JSchException("timeout in waiting for rekeying process.");
+      }
+      for (int i = 0; i < count; i++) {
+        Buffer buffer = packets[i].buffer;
+        byte[] b = buffer.buffer;
+        int j = buffer.index - 4;
+        written.add(((b[j] & 0xff) << 24) | ((b[j + 1] & 0xff) << 16) | ((b[j + 2] & 0xff) << 8)
+            | (b[j + 3] & 0xff));
+      }
+    }
+  }
+
+  @Test
+  void failedAdjustsAreSentAgain() throws Exception {
+    FailingSession session = new FailingSession();
+    WindowAdjuster adjuster = new WindowAdjuster(session, new DefaultWindowPolicy());
+    ChannelExec channel = new ChannelExec();
+    channel.setRecipient(1);
+    channel.setOutputStream(new ByteArrayOutputStream());
+    byte[] data = new byte[0x90000];
+    channel.write(data, 0, data.length);
+    channel.received(data.length, false);
+
+    Thread thread = new Thread(adjuster::run);
+    thread.start();
+    try {
+      adjuster.schedule(channel, 0);
+      Integer len = session.written.poll(10, TimeUnit.SECONDS);
+      assertNotNull(len);
+      assertEquals(0x90000, len);
+      assertEquals(0x100000, channel.lwsize);
+    } finally {
+      adjuster.stop();
+      thread.join();
+    }
+  }
+}
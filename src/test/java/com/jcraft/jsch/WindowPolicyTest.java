@@ -0,0 +1,114 @@
+package com.jcraft.jsch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import org.junit.jupiter.api.Test;
+
+class WindowPolicyTest {
+
+  private final WindowPolicy policy = new DefaultWindowPolicy();
+
+  @Test
+  void defaultPolicyWaitsForThreshold() {
+    assertEquals(0, policy.adjust(0x80000, 0x100000, 0x80000, 0x4000));
+    assertEquals(0x80001, policy.adjust(0x7ffff, 0x100000, 0x80001, 0x4000));
+  }
+
+  @Test
+  void defaultPolicyCoalescesSmallAdjusts() {
+    assertEquals(0, policy.adjust(0x1000, 0x100000, 100, 0x4000));
+    assertEquals(32768, policy.adjust(0x1000, 0x100000, 32768, 0x4000));
+    // the consumer has drained everything
+    assertEquals(0x7000, policy.adjust(0x1000, 0x8000, 0x7000, 0x4000));
+  }
+
+  @Test
+  void unbufferedDataIsConsumedOnReceipt() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    channel.setOutputStream(new ByteArrayOutputStream());
+    byte[] data = new byte[0x90000];
+    channel.write(data, 0, data.length);
+    channel.received(data.length, false);
+
+    assertEquals(0x100000 - 0x90000, channel.lwsize);
+    assertEquals(0x90000, channel.takeWindowAdjust(policy));
+    assertEquals(0x100000, channel.lwsize);
+  }
+
+  @Test
+  void bufferedDataAboveThreshold() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    InputStream in = channel.getInputStream();
+    byte[] data = new byte[0x8000];
+    for (int i = 0; i < 15; i++) {
+      channel.write(data, 0, data.length);
+      channel.received(data.length, false);
+      assertEquals(data.length, in.read(new byte[data.length]));
+    }
+
+    // the window is still more than half open
+    assertEquals(0x100000 - 15 * 0x8000, channel.lwsize);
+    assertFalse(channel.needsWindowAdjust(policy));
+    assertEquals(0, channel.takeWindowAdjust(policy));
+  }
+
+  @Test
+  void bufferedDataBelowThreshold() throws Exception {
+    ChannelExec channel = new ChannelExec();
+    InputStream in = channel.getInputStream();
+    byte[] data = new byte[0x8000];
+    for (int i = 0; i < 24; i++) {
+      channel.write(data, 0, data.length);
+      channel.received(data.length, false);
+      assertEquals(data.length, in.read(new byte[data.length]));
+    }
+    channel.write(data, 0, data.length);
+    channel.received(data.length, false);
+
+    // 25 chunks received, 24 of them drained; the unread chunk must not be returned
+    assertEquals(0x100000 - 25 * 0x8000, channel.lwsize);
+    assertEquals(24 * 0x8000, channel.takeWindowAdjust(policy));
+    assertEquals(0x100000 - 0x8000, channel.lwsize);
+    assertEquals(0, channel.takeWindowAdjust(policy));
+
+    assertEquals(data.length, in.read(new byte[data.length]));
+    assertEquals(0x8000, channel.takeWindowAdjust(new WindowPolicy() {
+      @Override
+      public int adjust(int window, int windowMax, int consumed, int packetSize) {
+        return consumed;
+      }
+    }));
+    assertEquals(0x100000, channel.lwsize);
+  }
+
+  @Test
+  void autoTuningGrowsWindowUpToLimit() {
+    ChannelExec channel = new ChannelExec();
+    WindowPolicy always = (window, windowMax, consumed, packetSize) -> consumed;
+    long rtt = 1000000L;
+
+    channel.tuneLocalWindow(0x8000, 1, rtt, 0x300000);
+    // a full window drained within one round-trip
+    channel.tuneLocalWindow(0x100000, 1 + rtt, rtt, 0x300000);
+    assertEquals(0x200000, channel.lwsize_max);
+    assertEquals(0x100000, channel.takeWindowAdjust(always));
+    assertEquals(0x200000, channel.lwsize);
+
+    channel.tuneLocalWindow(0x200000, 1 + 2 * rtt, rtt, 0x300000);
+    assertEquals(0x300000, channel.lwsize_max);
+  }
+
+  @Test
+  void autoTuningKeepsWindowForSlowConsumer() {
+    ChannelExec channel = new ChannelExec();
+    long rtt = 1000000L;
+
+    channel.tuneLocalWindow(0x8000, 1, rtt, 0x1000000);
+    // only a quarter of the window drained within two round-trips
+    channel.tuneLocalWindow(0x80000, 1 + 2 * rtt, rtt, 0x1000000);
+    assertEquals(0x100000, channel.lwsize_max);
+  }
+}